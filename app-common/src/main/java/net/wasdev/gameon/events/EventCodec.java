@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.events;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding for room events. Version 1 of the format is:
+ *
+ * <pre>
+ * version    : 1 byte, 1
+ * type       : varint, an {@link EventType} code
+ * flags      : 1 byte, 0x1 user id, 0x2 item id, 0x4 attributes present
+ * timestamp  : varint, milliseconds since the epoch
+ * room id    : string
+ * user id    : string, if flagged
+ * item id    : string, if flagged
+ * attributes : varint count, then that many names and value strings, if flagged
+ * </pre>
+ *
+ * Varints are unsigned LEB128, 7 bits a byte, least significant first.
+ * Strings are a varint byte length followed by that many bytes of UTF-8.
+ * Attribute names in {@link #ATTRIBUTE_NAMES} are written as a varint of
+ * twice their index, any other name as a varint of twice its byte length
+ * plus one followed by the UTF-8.
+ * <p>
+ * Anything new an event needs to carry goes in its attributes, which every
+ * decoder can read. The version is only changed if the layout above has to,
+ * and decoders refuse versions newer than their own.
+ */
+public final class EventCodec {
+
+    public static final int VERSION = 1;
+
+    /**
+     * Attribute names written as a number rather than spelled out. Only ever
+     * add to the end of this.
+     */
+    public static final String[] ATTRIBUTE_NAMES = { "roomName", "username", "command", RoomEvent.ATTR_PRODUCER,
+            RoomEvent.ATTR_SEQUENCE };
+
+    private static final int FLAG_USER = 0x1;
+    private static final int FLAG_ITEM = 0x2;
+    private static final int FLAG_ATTRIBUTES = 0x4;
+
+    private EventCodec() {
+    }
+
+    /**
+     * Encode an event at the position of out, leaving the position after it.
+     *
+     * @param userId
+     *            may be null.
+     * @param itemId
+     *            may be null.
+     * @param attributes
+     *            may be null or empty.
+     * @throws BufferOverflowException
+     *             if out does not have room for the event, see
+     *             {@link #encodedSize}.
+     */
+    public static void encode(ByteBuffer out, EventType type, String roomId, String userId, String itemId,
+            long timestamp, Map<String, String> attributes) {
+        boolean hasAttributes = attributes != null && !attributes.isEmpty();
+        int flags = (userId != null ? FLAG_USER : 0) | (itemId != null ? FLAG_ITEM : 0)
+                | (hasAttributes ? FLAG_ATTRIBUTES : 0);
+        out.put((byte) VERSION);
+        putVarLong(out, type.getCode());
+        out.put((byte) flags);
+        putVarLong(out, timestamp);
+        putString(out, roomId);
+        if (userId != null) {
+            putString(out, userId);
+        }
+        if (itemId != null) {
+            putString(out, itemId);
+        }
+        if (hasAttributes) {
+            putVarLong(out, attributes.size());
+            for (Map.Entry<String, String> a : attributes.entrySet()) {
+                putName(out, a.getKey());
+                putString(out, a.getValue());
+            }
+        }
+    }
+
+    /**
+     * Encode an event into an array of exactly its size.
+     */
+    public static byte[] encode(EventType type, String roomId, String userId, String itemId, long timestamp,
+            Map<String, String> attributes) {
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(type, roomId, userId, itemId, timestamp, attributes));
+        encode(out, type, roomId, userId, itemId, timestamp, attributes);
+        return out.array();
+    }
+
+    /**
+     * The number of bytes {@link #encode} will write for an event.
+     */
+    public static int encodedSize(EventType type, String roomId, String userId, String itemId, long timestamp,
+            Map<String, String> attributes) {
+        int size = 2 + varLongSize(type.getCode()) + varLongSize(timestamp) + stringSize(roomId);
+        if (userId != null) {
+            size += stringSize(userId);
+        }
+        if (itemId != null) {
+            size += stringSize(itemId);
+        }
+        if (attributes != null && !attributes.isEmpty()) {
+            size += varLongSize(attributes.size());
+            for (Map.Entry<String, String> a : attributes.entrySet()) {
+                size += nameSize(a.getKey()) + stringSize(a.getValue());
+            }
+        }
+        return size;
+    }
+
+    public static RoomEvent decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decode the event at the position of in, leaving the position after it.
+     *
+     * @throws IllegalArgumentException
+     *             if the bytes are not an event this version can read.
+     */
+    public static RoomEvent decode(ByteBuffer in) {
+        try {
+            int version = in.get() & 0xFF;
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("Unsupported event version " + version);
+            }
+            int type = (int) getVarLong(in);
+            int flags = in.get() & 0xFF;
+            long timestamp = getVarLong(in);
+            String roomId = getString(in);
+            String userId = (flags & FLAG_USER) != 0 ? getString(in) : null;
+            String itemId = (flags & FLAG_ITEM) != 0 ? getString(in) : null;
+            Map<String, String> attributes = null;
+            if ((flags & FLAG_ATTRIBUTES) != 0) {
+                int count = (int) getVarLong(in);
+                if (count < 0 || count > in.remaining()) {
+                    throw new IllegalArgumentException("Bad attribute count " + count);
+                }
+                attributes = new LinkedHashMap<String, String>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    attributes.put(getName(in), getString(in));
+                }
+            }
+            return new RoomEvent(version, type, roomId, userId, itemId, timestamp, attributes);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated event", e);
+        }
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static int nameIndex(String name) {
+        for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+            if (ATTRIBUTE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void putName(ByteBuffer out, String name) {
+        int index = nameIndex(name);
+        if (index >= 0) {
+            putVarLong(out, index << 1);
+        } else {
+            int length = utf8Length(name);
+            putVarLong(out, ((long) length << 1) | 1);
+            putUtf8(out, name, length);
+        }
+    }
+
+    private static int nameSize(String name) {
+        int index = nameIndex(name);
+        if (index >= 0) {
+            return varLongSize(index << 1);
+        }
+        int length = utf8Length(name);
+        return varLongSize(((long) length << 1) | 1) + length;
+    }
+
+    private static String getName(ByteBuffer in) {
+        long n = getVarLong(in);
+        if ((n & 1) != 0) {
+            return getUtf8(in, n >>> 1);
+        }
+        long index = n >>> 1;
+        if (index >= ATTRIBUTE_NAMES.length) {
+            // from a newer library, keep it rather than fail the whole event.
+            return "#" + index;
+        }
+        return ATTRIBUTE_NAMES[(int) index];
+    }
+
+    private static int stringSize(String s) {
+        int length = utf8Length(s);
+        return varLongSize(length) + length;
+    }
+
+    private static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length++;
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // four bytes for the pair.
+                    length += 2;
+                    i++;
+                } else {
+                    // three bytes, unpaired surrogates are written as '?'.
+                    length += Character.isSurrogate(c) ? 0 : 2;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write a string without the intermediate byte[] String.getBytes would
+     * make, the event is mostly short ascii ids.
+     */
+    private static void putString(ByteBuffer out, String s) {
+        int length = utf8Length(s);
+        putVarLong(out, length);
+        putUtf8(out, s, length);
+    }
+
+    private static void putUtf8(ByteBuffer out, String s, int length) {
+        if (length == s.length() && out.hasArray()) {
+            // all ascii, straight into the array.
+            if (out.remaining() < length) {
+                throw new BufferOverflowException();
+            }
+            byte[] array = out.array();
+            int at = out.arrayOffset() + out.position();
+            for (int i = 0; i < length; i++) {
+                array[at + i] = (byte) s.charAt(i);
+            }
+            out.position(out.position() + length);
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        return getUtf8(in, getVarLong(in));
+    }
+
+    private static String getUtf8(ByteBuffer in, long length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        int n = (int) length;
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), n, StandardCharsets.UTF_8);
+            in.position(in.position() + n);
+        } else {
+            byte[] bytes = new byte[n];
+            in.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+}
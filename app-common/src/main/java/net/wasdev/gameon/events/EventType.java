@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.events;
+
+/**
+ * The kinds of event rooms publish, by the code they are encoded with. Codes
+ * are part of the wire format: never reuse or renumber one.
+ */
+public enum EventType {
+    /** a player made coffee */
+    COFFEE_MADE(1),
+    /** counts of the events a node saw over a window of time */
+    WINDOW_SUMMARY(2);
+
+    private static final EventType[] byCode;
+
+    static {
+        int max = 0;
+        for (EventType t : values()) {
+            max = Math.max(max, t.code);
+        }
+        byCode = new EventType[max + 1];
+        for (EventType t : values()) {
+            byCode[t.code] = t;
+        }
+    }
+
+    private final int code;
+
+    private EventType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return the type for a code, or null if it is one this library does not
+     *         know yet.
+     */
+    public static EventType fromCode(int code) {
+        return code >= 0 && code < byCode.length ? byCode[code] : null;
+    }
+}
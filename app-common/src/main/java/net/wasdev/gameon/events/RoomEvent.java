@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.events;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An event as read back by {@link EventCodec#decode}.
+ */
+public class RoomEvent {
+
+    /**
+     * Attributes naming who published an event, and where it comes in the
+     * events they published for its room, see {@link SequenceVerifier}.
+     */
+    public static final String ATTR_PRODUCER = "producer";
+    public static final String ATTR_SEQUENCE = "seq";
+
+    private final int version;
+    private final int typeCode;
+    private final String roomId;
+    private final String userId;
+    private final String itemId;
+    private final long timestamp;
+    private final Map<String, String> attributes;
+
+    public RoomEvent(int version, int typeCode, String roomId, String userId, String itemId, long timestamp,
+            Map<String, String> attributes) {
+        this.version = version;
+        this.typeCode = typeCode;
+        this.roomId = roomId;
+        this.userId = userId;
+        this.itemId = itemId;
+        this.timestamp = timestamp;
+        this.attributes = attributes == null ? Collections.<String, String> emptyMap()
+                : Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * The format version the event was written with.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    /**
+     * @return the type, or null if the event was written by a newer library
+     *         with a type this one does not know.
+     */
+    public EventType getType() {
+        return EventType.fromCode(typeCode);
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return the item the event is about, or null if there isn't one.
+     */
+    public String getItemId() {
+        return itemId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public String getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * @return who published the event, or null if it was not sequenced.
+     */
+    public String getProducer() {
+        return attributes.get(ATTR_PRODUCER);
+    }
+
+    /**
+     * @return the event's place among those its producer published for the
+     *         room, counting from 1, or 0 if it was not sequenced.
+     */
+    public long getSequence() {
+        String seq = attributes.get(ATTR_SEQUENCE);
+        if (seq == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(seq);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        EventType type = getType();
+        return (type == null ? "type" + typeCode : type.toString()) + "(" + roomId + "," + userId
+                + (itemId == null ? "" : "," + itemId) + "," + timestamp + "," + attributes + ")";
+    }
+}
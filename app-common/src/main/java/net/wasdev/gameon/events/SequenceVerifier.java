@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.events;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checks events read back from a topic against the sequence numbers they
+ * were published with, for tests and tools. Feed it every event in the
+ * order it was read, then ask what was missing or repeated.
+ * <p>
+ * Each producer numbers the events of each room from 1, and a node starts a
+ * new producer every run, so a restart is a new stream rather than a gap.
+ */
+public class SequenceVerifier {
+
+    public enum Result {
+        /** the next event of its stream */
+        IN_ORDER,
+        /** ahead of the next expected, the events between are missing so far */
+        GAP,
+        /** one that was missing, arriving after events published later */
+        LATE,
+        /** one already seen */
+        DUPLICATE,
+        /** carries no sequence number */
+        UNSEQUENCED
+    }
+
+    private static class Stream {
+        long next = 1;
+        // runs of missing sequence numbers, first to last inclusive.
+        final TreeMap<Long, Long> missing = new TreeMap<Long, Long>();
+    }
+
+    private final Map<String, Stream> streams = new HashMap<String, Stream>();
+    private long inOrder;
+    private long gaps;
+    private long late;
+    private long duplicates;
+    private long unsequenced;
+
+    public Result accept(RoomEvent event) {
+        long seq = event.getSequence();
+        String producer = event.getProducer();
+        if (seq <= 0 || producer == null) {
+            unsequenced++;
+            return Result.UNSEQUENCED;
+        }
+        Stream s = streams.computeIfAbsent(producer + '\0' + event.getRoomId(), k -> new Stream());
+        if (seq == s.next) {
+            s.next++;
+            inOrder++;
+            return Result.IN_ORDER;
+        }
+        if (seq > s.next) {
+            s.missing.put(s.next, seq - 1);
+            s.next = seq + 1;
+            gaps++;
+            return Result.GAP;
+        }
+        Map.Entry<Long, Long> run = s.missing.floorEntry(seq);
+        if (run == null || run.getValue() < seq) {
+            duplicates++;
+            return Result.DUPLICATE;
+        }
+        long first = run.getKey();
+        long last = run.getValue();
+        s.missing.remove(first);
+        if (first < seq) {
+            s.missing.put(first, seq - 1);
+        }
+        if (seq < last) {
+            s.missing.put(seq + 1, last);
+        }
+        late++;
+        return Result.LATE;
+    }
+
+    /**
+     * Events skipped over and not seen since.
+     */
+    public long getMissing() {
+        long missing = 0;
+        for (Stream s : streams.values()) {
+            for (Map.Entry<Long, Long> run : s.missing.entrySet()) {
+                missing += run.getValue() - run.getKey() + 1;
+            }
+        }
+        return missing;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * Streams seen, one per producer and room.
+     */
+    public int getStreams() {
+        return streams.size();
+    }
+
+    /**
+     * True if every stream so far is complete and nothing came twice.
+     */
+    public boolean isClean() {
+        return duplicates == 0 && getMissing() == 0;
+    }
+
+    public String getStats() {
+        return "streams=" + streams.size() + " inOrder=" + inOrder + " gaps=" + gaps + " missing=" + getMissing()
+                + " late=" + late + " duplicates=" + duplicates + " unsequenced=" + unsequenced;
+    }
+}
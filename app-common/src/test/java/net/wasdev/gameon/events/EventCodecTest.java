@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class EventCodecTest {
+
+    private static Map<String, String> attributes() {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("roomName", "Rec Room");
+        attributes.put(RoomEvent.ATTR_SEQUENCE, "42");
+        // not one of the well known names, so it is spelled out.
+        attributes.put("flavour", "mocha \u2615 \ud83d\ude00");
+        return attributes;
+    }
+
+    @Test
+    public void roundTripsEveryField() {
+        long now = System.currentTimeMillis();
+        byte[] bytes = EventCodec.encode(EventType.COFFEE_MADE, "RecRoom", "user:1", "mug", now, attributes());
+        assertEquals(EventCodec.encodedSize(EventType.COFFEE_MADE, "RecRoom", "user:1", "mug", now, attributes()),
+                bytes.length);
+
+        RoomEvent event = EventCodec.decode(bytes);
+        assertEquals(EventCodec.VERSION, event.getVersion());
+        assertEquals(EventType.COFFEE_MADE, event.getType());
+        assertEquals("RecRoom", event.getRoomId());
+        assertEquals("user:1", event.getUserId());
+        assertEquals("mug", event.getItemId());
+        assertEquals(now, event.getTimestamp());
+        assertEquals(attributes(), event.getAttributes());
+        assertEquals(42, event.getSequence());
+    }
+
+    @Test
+    public void roundTripsWithoutOptionalFields() {
+        byte[] bytes = EventCodec.encode(EventType.WINDOW_SUMMARY, "RecRoom", null, null, 0, null);
+        assertEquals(EventCodec.encodedSize(EventType.WINDOW_SUMMARY, "RecRoom", null, null, 0, null),
+                bytes.length);
+
+        RoomEvent event = EventCodec.decode(bytes);
+        assertEquals(EventType.WINDOW_SUMMARY, event.getType());
+        assertEquals("RecRoom", event.getRoomId());
+        assertNull(event.getUserId());
+        assertNull(event.getItemId());
+        assertEquals(0, event.getTimestamp());
+        assertTrue(event.getAttributes().isEmpty());
+        assertEquals(0, event.getSequence());
+    }
+
+    @Test
+    public void decodesEventsOneAfterAnother() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        EventCodec.encode(buffer, EventType.COFFEE_MADE, "Room1", "user", null, 1, null);
+        EventCodec.encode(buffer, EventType.COFFEE_MADE, "Room2", null, "mug", 2, attributes());
+        buffer.flip();
+        assertEquals("Room1", EventCodec.decode(buffer).getRoomId());
+        assertEquals("Room2", EventCodec.decode(buffer).getRoomId());
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void refusesToOverflowTheBuffer() {
+        EventCodec.encode(ByteBuffer.allocate(8), EventType.COFFEE_MADE, "RecRoom", "user", "mug", 0, attributes());
+    }
+
+    @Test
+    public void refusesANewerVersion() {
+        byte[] bytes = EventCodec.encode(EventType.COFFEE_MADE, "RecRoom", null, null, 0, null);
+        bytes[0] = (byte) (EventCodec.VERSION + 1);
+        try {
+            EventCodec.decode(bytes);
+            fail("decoded version " + bytes[0]);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void refusesATruncatedEvent() {
+        byte[] bytes = EventCodec.encode(EventType.COFFEE_MADE, "RecRoom", "user", "mug", 0, attributes());
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                EventCodec.decode(Arrays.copyOf(bytes, length));
+                fail("decoded " + length + " of " + bytes.length + " bytes");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void keepsATypeItDoesNotKnow() {
+        byte[] bytes = EventCodec.encode(EventType.COFFEE_MADE, "RecRoom", null, null, 0, null);
+        bytes[1] = 99;
+        RoomEvent event = EventCodec.decode(bytes);
+        assertNull(event.getType());
+        assertEquals(99, event.getTypeCode());
+    }
+}
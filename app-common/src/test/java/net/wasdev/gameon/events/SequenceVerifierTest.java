@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SequenceVerifierTest {
+
+    private static RoomEvent event(String producer, String roomId, long seq) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put(RoomEvent.ATTR_PRODUCER, producer);
+        attributes.put(RoomEvent.ATTR_SEQUENCE, Long.toString(seq));
+        return new RoomEvent(EventCodec.VERSION, EventType.COFFEE_MADE.getCode(), roomId, "user", null, 0,
+                attributes);
+    }
+
+    @Test
+    public void inOrderIsClean() {
+        SequenceVerifier verifier = new SequenceVerifier();
+        for (long seq = 1; seq <= 5; seq++) {
+            assertEquals(SequenceVerifier.Result.IN_ORDER, verifier.accept(event("p", "RecRoom", seq)));
+        }
+        assertTrue(verifier.isClean());
+        assertEquals(1, verifier.getStreams());
+    }
+
+    @Test
+    public void aGapIsMissingUntilItArrives() {
+        SequenceVerifier verifier = new SequenceVerifier();
+        verifier.accept(event("p", "RecRoom", 1));
+        assertEquals(SequenceVerifier.Result.GAP, verifier.accept(event("p", "RecRoom", 5)));
+        assertEquals(3, verifier.getMissing());
+        assertFalse(verifier.isClean());
+
+        assertEquals(SequenceVerifier.Result.LATE, verifier.accept(event("p", "RecRoom", 3)));
+        assertEquals(2, verifier.getMissing());
+        assertEquals(SequenceVerifier.Result.LATE, verifier.accept(event("p", "RecRoom", 2)));
+        assertEquals(SequenceVerifier.Result.LATE, verifier.accept(event("p", "RecRoom", 4)));
+        assertEquals(0, verifier.getMissing());
+        assertEquals(3, verifier.getLate());
+        assertTrue(verifier.isClean());
+        assertEquals(SequenceVerifier.Result.IN_ORDER, verifier.accept(event("p", "RecRoom", 6)));
+    }
+
+    @Test
+    public void aRepeatIsADuplicate() {
+        SequenceVerifier verifier = new SequenceVerifier();
+        verifier.accept(event("p", "RecRoom", 1));
+        verifier.accept(event("p", "RecRoom", 2));
+        assertEquals(SequenceVerifier.Result.DUPLICATE, verifier.accept(event("p", "RecRoom", 1)));
+        verifier.accept(event("p", "RecRoom", 4));
+        verifier.accept(event("p", "RecRoom", 3));
+        assertEquals(SequenceVerifier.Result.DUPLICATE, verifier.accept(event("p", "RecRoom", 3)));
+        assertEquals(2, verifier.getDuplicates());
+        assertFalse(verifier.isClean());
+    }
+
+    @Test
+    public void eachProducerAndRoomIsItsOwnStream() {
+        SequenceVerifier verifier = new SequenceVerifier();
+        assertEquals(SequenceVerifier.Result.IN_ORDER, verifier.accept(event("p1", "RecRoom", 1)));
+        assertEquals(SequenceVerifier.Result.IN_ORDER, verifier.accept(event("p1", "Other", 1)));
+        // a restarted node is a new producer, starting again from 1.
+        assertEquals(SequenceVerifier.Result.IN_ORDER, verifier.accept(event("p2", "RecRoom", 1)));
+        assertEquals(3, verifier.getStreams());
+        assertTrue(verifier.isClean());
+    }
+
+    @Test
+    public void unsequencedEventsAreCountedApart() {
+        SequenceVerifier verifier = new SequenceVerifier();
+        RoomEvent plain = new RoomEvent(EventCodec.VERSION, EventType.COFFEE_MADE.getCode(), "RecRoom", "user",
+                null, 0, null);
+        assertEquals(SequenceVerifier.Result.UNSEQUENCED, verifier.accept(plain));
+        assertEquals(0, verifier.getStreams());
+        assertTrue(verifier.isClean());
+    }
+}
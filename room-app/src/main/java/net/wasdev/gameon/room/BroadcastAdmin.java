@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * POST /admin/broadcast with {"message": "..."} announces the message to
+ * every room, see {@link WorldBroadcast}, and answers once this node's
+ * sessions have it, or after ?wait seconds (default 30), with how many were
+ * sent to and how long it took.
+ * <p>
+ * Uses the same basic auth as {@link RoomAdmin}.
+ */
+@WebServlet("/admin/broadcast")
+public class BroadcastAdmin extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    public static final long DEFAULT_WAIT_SECONDS = 30;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!RoomAdmin.authorized(request, response)) {
+            return;
+        }
+        String message;
+        try {
+            JsonObject body = Json.createReader(request.getReader()).readObject();
+            message = body.getString("message", null);
+        } catch (JsonException | IllegalStateException | ClassCastException e) {
+            message = null;
+        }
+        if (message == null || message.trim().isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected {\"message\": \"...\"}");
+            return;
+        }
+        long wait = DEFAULT_WAIT_SECONDS;
+        if (request.getParameter("wait") != null) {
+            try {
+                wait = Long.parseLong(request.getParameter("wait"));
+            } catch (NumberFormatException nfe) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "wait must be a number of seconds");
+                return;
+            }
+        }
+
+        WorldBroadcast.Delivery delivery = WorldBroadcast.getBroadcast().announce(message);
+        try {
+            delivery.await(wait, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        response.setStatus(delivery.isComplete() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_ACCEPTED);
+        response.setContentType(MediaType.APPLICATION_JSON);
+        response.getWriter().write(Json.createObjectBuilder().add("rooms", delivery.getRooms())
+                .add("sessions", delivery.getSessions()).add("sent", delivery.getSent())
+                .add("failed", delivery.getFailed()).add("complete", delivery.isComplete())
+                .add("elapsedMicros", delivery.getElapsedMicros()).build().toString());
+    }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.StringReader;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Reconciles every local room with the map at once. A single owner scoped
+ * query lists everything the map holds for this system id, which is compared
+ * with the local rooms in memory; only rooms that are missing or differ are
+ * registered or updated, the rest just take their exits from the listing.
+ * <p>
+ * If the map is unavailable every room is queued for retry straight away;
+ * if the listing fails for any other reason rooms are registered one by one.
+ */
+public class BulkRegistration {
+
+    private final String systemId;
+    private final String secret;
+    private final String mapLocation;
+    private final ParallelRegistration parallel;
+
+    private static class Listing {
+        enum Type { LISTED, UNAVAILABLE, FAILED };
+        Type type;
+        Map<String, JsonObject> rooms;
+
+        Listing(Type type, Map<String, JsonObject> rooms) {
+            this.type = type;
+            this.rooms = rooms;
+        }
+    }
+
+    public BulkRegistration(String systemId, String secret, ParallelRegistration parallel) {
+        this.systemId = systemId;
+        this.secret = secret;
+        this.parallel = parallel;
+        mapLocation = System.getProperty(Constants.ENV_MAP_SVC, System.getenv(Constants.ENV_MAP_SVC));
+        if (mapLocation == null) {
+            throw new IllegalStateException("The location for the map service cold not be "
+                    + "found in a system property or environment variable named : " + Constants.ENV_MAP_SVC);
+        }
+    }
+
+    /**
+     * Is bulk registration enabled, it is unless room_registration_bulk is
+     * set to false.
+     */
+    public static boolean isEnabled() {
+        String value = System.getProperty(Constants.ENV_ROOM_REGISTRATION_BULK,
+                System.getenv(Constants.ENV_ROOM_REGISTRATION_BULK));
+        return value == null || !"false".equalsIgnoreCase(value.trim());
+    }
+
+    public ParallelRegistration.Result registerAll(Collection<RoomRegistrationHandler> handlers) {
+        long start = System.nanoTime();
+        Listing listing = listRegisteredRooms();
+        if (listing.type == Listing.Type.FAILED) {
+            return parallel.registerAll(handlers);
+        }
+
+        ParallelRegistration.Result result = parallel.newResult(handlers.size());
+        if (listing.type == Listing.Type.UNAVAILABLE) {
+            for (RoomRegistrationHandler handler : handlers) {
+                handler.defer();
+                result.addDeferred();
+            }
+            Log.log(Level.WARNING, this, "Map is unavailable, {0} rooms queued for registration", handlers.size());
+            return result;
+        }
+
+        Map<String, JsonObject> registered = listing.rooms;
+        List<RoomRegistrationHandler> changed = new ArrayList<RoomRegistrationHandler>();
+        for (RoomRegistrationHandler handler : handlers) {
+            JsonObject existing = registered.get(handler.getRoomId());
+            if (existing != null && handler.applyIfUpToDate(existing)) {
+                result.addUnchanged();
+            } else {
+                changed.add(handler);
+            }
+        }
+        Log.log(Level.INFO, this, "Map lists {0} rooms for {1}, {2} of {3} local rooms need registering or updating",
+                registered.size(), systemId, changed.size(), handlers.size());
+        result.addElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        return parallel.runAll(changed, h -> h.reconcile(registered.get(h.getRoomId())), result);
+    }
+
+    /**
+     * Everything the map holds for this system id, by room name.
+     */
+    private Listing listRegisteredRooms() {
+        Response r;
+        try {
+            r = MapClient.get(systemId, secret).target(mapLocation).queryParam("owner", systemId)
+                    .request(MediaType.APPLICATION_JSON).get();
+        } catch (ProcessingException e) {
+            if (e.getCause() instanceof ConnectException) {
+                return new Listing(Listing.Type.UNAVAILABLE, null);
+            }
+            Log.log(Level.WARNING, this, "Unable to list rooms registered for " + systemId
+                    + ", registering rooms individually", e);
+            return new Listing(Listing.Type.FAILED, null);
+        }
+        try {
+            Map<String, JsonObject> rooms = new HashMap<String, JsonObject>();
+            switch (r.getStatus()) {
+                case 204:
+                    // nothing registered yet.
+                    return new Listing(Listing.Type.LISTED, rooms);
+                case 200:
+                    JsonArray listing = Json.createReader(new StringReader(r.readEntity(String.class))).readArray();
+                    for (JsonValue v : listing) {
+                        JsonObject room = (JsonObject) v;
+                        JsonObject info = room.getJsonObject("info");
+                        if (info != null && info.containsKey("name")) {
+                            rooms.put(info.getString("name"), room);
+                        }
+                    }
+                    return new Listing(Listing.Type.LISTED, rooms);
+                case 404:
+                case 503:
+                    return new Listing(Listing.Type.UNAVAILABLE, null);
+                default:
+                    Log.log(Level.WARNING, this, "Listing rooms registered for {0} returned {1}, registering rooms individually",
+                            systemId, r.getStatus());
+                    return new Listing(Listing.Type.FAILED, null);
+            }
+        } catch (RuntimeException e) {
+            Log.log(Level.WARNING, this, "Unable to read rooms registered for " + systemId
+                    + ", registering rooms individually", e);
+            return new Listing(Listing.Type.FAILED, null);
+        } finally {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Maps keys to members so that adding or removing a member only moves the
+ * keys it gains or loses. Each member is placed at many points around a
+ * ring of 64 bit hashes, and a key belongs to the member at the first point
+ * at or after the key's own hash.
+ * <p>
+ * Every node builds the same ring from the same members, so they agree on
+ * owners without talking to each other.
+ */
+public class ConsistentHashRing {
+
+    // enough points that members' shares stay within a few percent of even.
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final Set<String> members;
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHashRing(Collection<String> members) {
+        this(members, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        this.members = Collections.unmodifiableSet(new TreeSet<String>(members));
+        int size = this.members.size() * virtualNodes;
+        long[][] placed = new long[size][];
+        String[] byIndex = this.members.toArray(new String[this.members.size()]);
+        int i = 0;
+        for (int m = 0; m < byIndex.length; m++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                placed[i++] = new long[] { hash(byIndex[m] + "#" + v), m };
+            }
+        }
+        // ties are broken by member name, so every node orders them alike.
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[size];
+        owners = new String[size];
+        for (i = 0; i < size; i++) {
+            points[i] = placed[i][0];
+            owners[i] = byIndex[(int) placed[i][1]];
+        }
+    }
+
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return the member that owns key, or null if there are no members.
+     */
+    public String ownerOf(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, with a final mix so that similar keys,
+     * like Room1 and Room2, land far apart.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
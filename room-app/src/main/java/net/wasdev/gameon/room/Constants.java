@@ -31,4 +31,58 @@ public interface Constants {
     //env var names
     String ENV_ROOM_SVC = "service_room";
     String ENV_MAP_SVC = "service_map";
+    //seconds a room with no users may sit idle before it is passivated, 0 disables.
+    String ENV_ROOM_IDLE_TIMEOUT = "room_idle_timeout";
+    //directory of json room definitions, the sample rooms are used if unset.
+    String ENV_ROOM_DATA_DIR = "room_data_dir";
+    //directory room state is saved to, state is kept in memory only if unset.
+    String ENV_ROOM_STATE_DIR = "room_state_dir";
+    //seconds between snapshots of room state, 0 disables.
+    String ENV_ROOM_SNAPSHOT_INTERVAL = "room_snapshot_interval";
+    //number of rooms registered with the map at once during startup.
+    String ENV_ROOM_REGISTRATION_PARALLELISM = "room_registration_parallelism";
+    //set to false to query the map for each room, rather than once for all rooms.
+    String ENV_ROOM_REGISTRATION_BULK = "room_registration_bulk";
+    //first and longest delay, in seconds, between retries while the map is unavailable.
+    String ENV_ROOM_REGISTRATION_RETRY_BASE = "room_registration_retry_base";
+    String ENV_ROOM_REGISTRATION_RETRY_MAX = "room_registration_retry_max";
+    //seconds a cached registration is trusted without asking the map.
+    String ENV_ROOM_REGISTRATION_CACHE_TTL = "room_registration_cache_ttl";
+    //milliseconds to wait for a connection to, and a response from, the map.
+    String ENV_MAP_CLIENT_CONNECT_TIMEOUT = "map_client_connect_timeout";
+    String ENV_MAP_CLIENT_RECEIVE_TIMEOUT = "map_client_receive_timeout";
+    //name of this node, defaults to the host name.
+    String ENV_ROOM_NODE_ID = "room_node_id";
+    //seconds between checks with the map for changed exits, 0 disables.
+    String ENV_ROOM_EXIT_REFRESH_INTERVAL = "room_exit_refresh_interval";
+    //milliseconds from JVM start for room endpoints to open, /startup answers 500 when exceeded.
+    String ENV_ROOM_STARTUP_BUDGET = "room_startup_budget";
+    //seconds players are given to leave a room removed at runtime before they are disconnected.
+    String ENV_ROOM_DRAIN_TIMEOUT = "room_drain_timeout";
+    //most game events held waiting for kafka, more are dropped.
+    String ENV_EVENT_QUEUE_CAPACITY = "room_event_queue_capacity";
+    //times a game event is sent before it is dropped.
+    String ENV_EVENT_ATTEMPTS = "room_event_attempts";
+    //how game events are written to kafka, "text" (the default) or "binary".
+    String ENV_EVENT_ENCODING = "room_event_encoding";
+    //megabytes of game events kept on disk waiting for kafka, more are refused.
+    String ENV_EVENT_OUTBOX_MAX = "room_event_outbox_max";
+    //which game events are published, "raw" (the default), "summary" counts per window, or "both".
+    String ENV_EVENT_AGGREGATION = "room_event_aggregation";
+    //seconds in each window of summarised game events.
+    String ENV_EVENT_WINDOW = "room_event_window";
+    //true to share room output with every node through kafka, rather than only local sessions.
+    String ENV_ROOM_FANOUT = "room_event_fanout";
+    //true to run room commands on the node assigned the room's partition of the command topic.
+    String ENV_ROOM_COMMAND_INGESTION = "room_command_ingestion";
+    //directory shared by the nodes of a cluster, each announces itself there and serves only its share of rooms.
+    String ENV_ROOM_CLUSTER_DIR = "room_cluster_dir";
+    //comma separated node ids of cluster members, as well as or instead of a cluster directory.
+    String ENV_ROOM_CLUSTER_MEMBERS = "room_cluster_members";
+    //seconds between cluster heartbeats, members missing three are taken to have left.
+    String ENV_ROOM_CLUSTER_HEARTBEAT = "room_cluster_heartbeat";
+    //true to get a room on this node ready for a player while they are still leaving another room on it.
+    String ENV_ROOM_EXIT_FAST_PATH = "room_exit_fast_path";
+    //how many shards of sessions an announcement to every room is sent to at once.
+    String ENV_ROOM_BROADCAST_SHARDS = "room_broadcast_shards";
 }
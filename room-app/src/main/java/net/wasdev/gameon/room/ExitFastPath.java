@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.json.JsonObject;
+
+import net.wasdev.gameon.room.LifecycleManager.SessionRoomResponseProcessor;
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.User;
+import net.wasdev.gameon.room.engine.meta.ExitDesc;
+import net.wasdev.gameon.room.engine.sample.commands.Look;
+
+/**
+ * Notices players leaving a room for another room served by this node. The
+ * mediator still has to say goodbye to one room and hello to the other, it
+ * holds the player's connection, but with room_exit_fast_path set the room
+ * they are going to is made ready while that happens: it is activated, the
+ * player's user record is built, and the location they will see is
+ * rendered, so their hello only has to check nothing has changed in the
+ * room since and send it.
+ * <p>
+ * Exits to rooms on this node are timed from the exit to the first location
+ * sent in the new room whether the fast path is on or not, so the two can
+ * be compared.
+ */
+public class ExitFastPath {
+
+    public static final long HANDOFF_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static volatile ExitFastPath fastPath = new ExitFastPath(isEnabled());
+
+    /**
+     * A player on their way from one room to another on this node.
+     */
+    private static class Handoff {
+        final long exitNanos = System.nanoTime();
+        final long expires = System.currentTimeMillis() + HANDOFF_TTL_MILLIS;
+        // only when the fast path is on.
+        User user;
+        String location;
+        long viewVersion;
+    }
+
+    /**
+     * Times from exit to first location.
+     */
+    private static class Latency {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        String getStats(String name) {
+            long n = count.sum();
+            return name + "=" + n + " " + name + "AvgUs=" + (n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / n))
+                    + " " + name + "MaxUs=" + TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+        }
+    }
+
+    private final boolean enabled;
+    private final RoomEndpoints endpoints;
+    // by room they are going to and user id.
+    private final Map<String, Handoff> pending = new ConcurrentHashMap<String, Handoff>();
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private final LongAdder remote = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final Latency prepared = new Latency();
+    private final Latency unprepared = new Latency();
+
+    ExitFastPath(boolean enabled) {
+        this.enabled = enabled;
+        this.endpoints = RoomEndpoints.getEndpoints();
+    }
+
+    public static ExitFastPath getFastPath() {
+        return fastPath;
+    }
+
+    /**
+     * Replace the fast path in use, eg. to compare with it on and off when
+     * benchmarking.
+     */
+    static void use(ExitFastPath path) {
+        fastPath = path;
+    }
+
+    public static boolean isEnabled() {
+        String value = System.getProperty(Constants.ENV_ROOM_EXIT_FAST_PATH,
+                System.getenv(Constants.ENV_ROOM_EXIT_FAST_PATH));
+        return value != null && Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * A player has taken an exit out of a room, and the mediator is about to
+     * be told.
+     *
+     * @param direction
+     *            the short name of the exit's direction.
+     */
+    public void exited(String fromRoomId, String userId, String direction) {
+        sweep();
+        RoomEndpoints.Hosted from = endpoints.get(fromRoomId);
+        if (from == null) {
+            return;
+        }
+        RoomEndpoints.Hosted to = coLocated(from.getRoom(), direction);
+        if (to == null) {
+            remote.increment();
+            return;
+        }
+        Handoff handoff = new Handoff();
+        if (enabled) {
+            try {
+                prepare(handoff, from.getRoom(), to, userId);
+            } catch (RuntimeException e) {
+                // they get the usual hello, just not a fast one.
+                Log.log(Level.FINE, this, "Unable to prepare room " + to.getRoom().getRoomId() + " for " + userId, e);
+                handoff.location = null;
+            }
+        }
+        pending.put(key(to.getRoom().getRoomId(), userId), handoff);
+    }
+
+    /**
+     * A player has said hello to a room, let them in with what was prepared
+     * if it is still good, otherwise by running enter.
+     */
+    public void arrived(Room room, SessionRoomResponseProcessor srrp, String userId, String username, Runnable enter) {
+        Handoff handoff = pending.remove(key(room.getRoomId(), userId));
+        if (handoff == null) {
+            enter.run();
+            return;
+        }
+        if (handoff.location != null && handoff.user.username.equals(username)
+                && handoff.viewVersion == room.getViewVersion()) {
+            room.addUser(handoff.user);
+            srrp.sendLocation(userId, handoff.location);
+            prepared.record(System.nanoTime() - handoff.exitNanos);
+            return;
+        }
+        if (handoff.location != null) {
+            stale.increment();
+        }
+        enter.run();
+        unprepared.record(System.nanoTime() - handoff.exitNanos);
+    }
+
+    /**
+     * The room behind an exit, if it is one this node serves.
+     */
+    private RoomEndpoints.Hosted coLocated(Room from, String direction) {
+        for (ExitDesc exit : from.getExits()) {
+            if (!exit.getDirection().toString().equalsIgnoreCase(direction)) {
+                continue;
+            }
+            // rooms are registered with the map under their own ids.
+            RoomEndpoints.Hosted to = endpoints.get(exit.name);
+            if (to == null || to.isDraining()) {
+                return null;
+            }
+            JsonObject registered = to.getRegistration().getLastRegistration();
+            if (registered != null && !registered.getString("_id", "").equals(exit.targetId)) {
+                // another room with the same name, somewhere else.
+                return null;
+            }
+            return to;
+        }
+        return null;
+    }
+
+    private void prepare(Handoff handoff, Room from, RoomEndpoints.Hosted to, String userId) {
+        Room room = to.getRoom();
+        User leaving = from.getUserById(userId);
+        if (leaving == null || !(room.getCommand("look") instanceof Look)) {
+            // a room of its own making, let it look for itself.
+            return;
+        }
+        room.activate();
+        long version = room.getViewVersion();
+        String[] rendered = new String[1];
+        // their pockets are emptied into the room they leave.
+        Look.describe(room, userId, Collections.emptyList(), new Room.DebugResponseProcessor() {
+            @Override
+            public void locationEvent(String senderId, String roomId, String roomName, String roomDescription,
+                    Map<String, String> exits, List<String> objects, List<String> inventory,
+                    Map<String, String> commands) {
+                rendered[0] = to.getResponseProcessor().renderLocation(roomId, roomName, roomDescription, exits,
+                        objects, inventory, commands);
+            }
+        });
+        handoff.user = new User(userId, leaving.username);
+        handoff.viewVersion = version;
+        handoff.location = rendered[0];
+    }
+
+    /**
+     * Forget players who never arrived, eg. the mediator took them
+     * elsewhere.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+        if (now < next || !nextSweep.compareAndSet(next, now + HANDOFF_TTL_MILLIS)) {
+            return;
+        }
+        pending.values().removeIf(h -> {
+            if (h.expires < now) {
+                expired.increment();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private static String key(String roomId, String userId) {
+        return roomId + '\0' + userId;
+    }
+
+    public String getStats() {
+        return "enabled=" + enabled + " pending=" + pending.size() + " otherNode=" + remote.sum() + " "
+                + prepared.getStats("prepared") + " " + unprepared.getStats("unprepared") + " stale=" + stale.sum()
+                + " expired=" + expired.sum();
+    }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.StringReader;
+import java.net.ConnectException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Keeps room exits current after registration, so rooms pick up neighbours
+ * that move on the map without a restart.
+ * <p>
+ * Each pass asks the map for what it holds using conditional requests: the
+ * ETag from the previous answer goes back as If-None-Match, and a 304 means
+ * nothing changed and nothing is parsed. When something has changed the
+ * exits are compared with those each room already has, and only rooms whose
+ * exits differ are given a new exit map. With bulk registration enabled a
+ * pass is a single owner scoped query, otherwise one query per registered
+ * room.
+ */
+public class ExitRefresher {
+
+    public static final long DEFAULT_INTERVAL_SECONDS = 60;
+
+    private final String systemId;
+    private final String secret;
+    private final String mapLocation;
+    private final Collection<RoomRegistrationHandler> handlers;
+    private final RegistrationCache cache;
+    private final boolean bulk;
+
+    private final Map<String, String> etags = new ConcurrentHashMap<String, String>();
+    private volatile String listingEtag;
+
+    private long passes;
+    private long requests;
+    private long notModified;
+    private long changed;
+
+    public ExitRefresher(String systemId, String secret, Collection<RoomRegistrationHandler> handlers,
+            RegistrationCache cache, boolean bulk) {
+        this.systemId = systemId;
+        this.secret = secret;
+        this.handlers = handlers;
+        this.cache = cache;
+        this.bulk = bulk;
+        mapLocation = System.getProperty(Constants.ENV_MAP_SVC, System.getenv(Constants.ENV_MAP_SVC));
+        if (mapLocation == null) {
+            throw new IllegalStateException("The location for the map service cold not be "
+                    + "found in a system property or environment variable named : " + Constants.ENV_MAP_SVC);
+        }
+    }
+
+    /**
+     * Seconds between passes from room_exit_refresh_interval, 0 or less if
+     * refreshing is disabled.
+     */
+    public static long getInterval() {
+        String value = System.getProperty(Constants.ENV_ROOM_EXIT_REFRESH_INTERVAL,
+                System.getenv(Constants.ENV_ROOM_EXIT_REFRESH_INTERVAL));
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, ExitRefresher.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_ROOM_EXIT_REFRESH_INTERVAL, value);
+            }
+        }
+        return DEFAULT_INTERVAL_SECONDS;
+    }
+
+    /**
+     * Check the map once, and apply any exits that have changed.
+     *
+     * @return the number of rooms whose exits changed.
+     */
+    public synchronized int refresh() {
+        long start = System.nanoTime();
+        passes++;
+        int updated = bulk ? refreshFromListing() : refreshEachRoom();
+        changed += updated;
+        if (updated > 0) {
+            // so a restart within the cache ttl starts with the new exits.
+            cache.update(handlers);
+            cache.save();
+            Log.log(Level.INFO, this, "Exits changed for {0} rooms, refreshed in {1}ms", updated,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return updated;
+    }
+
+    private int refreshFromListing() {
+        Response r = get(MapClient.get(systemId, secret).target(mapLocation).queryParam("owner", systemId)
+                .request(MediaType.APPLICATION_JSON), listingEtag);
+        if (r == null) {
+            return 0;
+        }
+        try {
+            if (r.getStatus() == 304) {
+                notModified++;
+                return 0;
+            }
+            if (r.getStatus() != 200) {
+                Log.log(Level.FINE, this, "Listing rooms for exit refresh returned {0}", r.getStatus());
+                return 0;
+            }
+            Map<String, JsonObject> sites = new HashMap<String, JsonObject>();
+            JsonArray listing = Json.createReader(new StringReader(r.readEntity(String.class))).readArray();
+            for (JsonValue v : listing) {
+                JsonObject site = (JsonObject) v;
+                JsonObject info = site.getJsonObject("info");
+                if (info != null && info.containsKey("name")) {
+                    sites.put(info.getString("name"), site);
+                }
+            }
+            int updated = 0;
+            for (RoomRegistrationHandler handler : handlers) {
+                JsonObject site = sites.get(handler.getRoomId());
+                if (site != null && isSettled(handler) && handler.refreshExits(site)) {
+                    updated++;
+                }
+            }
+            listingEtag = r.getHeaderString(HttpHeaders.ETAG);
+            return updated;
+        } catch (RuntimeException e) {
+            Log.log(Level.WARNING, this, "Unable to read rooms for exit refresh", e);
+            return 0;
+        } finally {
+            r.close();
+        }
+    }
+
+    private int refreshEachRoom() {
+        int updated = 0;
+        for (RoomRegistrationHandler handler : handlers) {
+            JsonObject registered = handler.getLastRegistration();
+            if (registered == null || !isSettled(handler)) {
+                continue;
+            }
+            Response r = get(MapClient.get(systemId, secret).target(mapLocation).path("{roomId}")
+                    .resolveTemplate("roomId", registered.getString("_id")).request(MediaType.APPLICATION_JSON),
+                    etags.get(handler.getRoomId()));
+            if (r == null) {
+                // map is away, try the rest next time.
+                break;
+            }
+            try {
+                if (r.getStatus() == 304) {
+                    notModified++;
+                } else if (r.getStatus() == 200) {
+                    JsonObject site = Json.createReader(new StringReader(r.readEntity(String.class))).readObject();
+                    if (handler.refreshExits(site)) {
+                        updated++;
+                    }
+                    String etag = r.getHeaderString(HttpHeaders.ETAG);
+                    if (etag != null) {
+                        etags.put(handler.getRoomId(), etag);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.log(Level.WARNING, this, "Unable to refresh exits for " + handler.getRoomId(), e);
+            } finally {
+                r.close();
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Rooms still being registered get their exits from registration.
+     */
+    private boolean isSettled(RoomRegistrationHandler handler) {
+        RoomRegistrationHandler.State state = handler.getState();
+        return state == RoomRegistrationHandler.State.REGISTERED || state == RoomRegistrationHandler.State.CACHED;
+    }
+
+    private Response get(Invocation.Builder request, String etag) {
+        requests++;
+        if (etag != null) {
+            request.header(HttpHeaders.IF_NONE_MATCH, etag);
+        }
+        try {
+            return request.get();
+        } catch (ProcessingException e) {
+            if (!(e.getCause() instanceof ConnectException)) {
+                Log.log(Level.WARNING, this, "Unable to contact the map for exit refresh", e);
+            }
+            return null;
+        }
+    }
+
+    public synchronized String getStats() {
+        return "passes=" + passes + " requests=" + requests + " notModified=" + notModified + " changed=" + changed;
+    }
+}
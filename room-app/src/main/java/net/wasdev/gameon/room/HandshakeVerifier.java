@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Collections;
+import java.util.logging.Level;
+
+import javax.websocket.HandshakeResponse;
+import javax.websocket.server.HandshakeRequest;
+
+import org.gameontext.signed.SignedRequestHmac;
+import org.gameontext.signed.SignedRequestMap;
+
+/**
+ * Checks the signature on websocket handshakes for one room, and re-signs
+ * the response, with {@link SignedRequestHmac}.
+ */
+public class HandshakeVerifier {
+
+    private final String roomId;
+    private final String token;
+
+    public HandshakeVerifier(String roomId, String token) {
+        this.roomId = roomId;
+        this.token = token;
+    }
+
+    /**
+     * Check a handshake, re-signing the response if it is good.
+     *
+     * @return false if the connection should be refused.
+     */
+    public boolean verify(HandshakeRequest request, HandshakeResponse response) {
+        if (token == null || token.isEmpty()) {
+            Log.log(Level.FINEST, this, "No token set for room, skipping validation");
+            return true;
+        }
+
+        Log.log(Level.FINEST, this, "Validating WS handshake");
+        SignedRequestHmac wsHmac = new SignedRequestHmac("", token, "", request.getRequestURI().getRawPath());
+        try {
+            wsHmac.checkHeaders(new SignedRequestMap.MLS_StringMap(request.getHeaders()))
+                    .verifyFullSignature()
+                    .wsResignRequest(new SignedRequestMap.MLS_StringMap(response.getHeaders()));
+        } catch (Exception e) {
+            Log.log(Level.WARNING, this, "Failed to validate HMAC, unable to establish connection", e);
+            return false;
+        }
+        Log.log(Level.FINE, this, "validated and resigned handshake for {0}", roomId);
+        return true;
+    }
+
+    /**
+     * Refuse the connection a handshake response belongs to.
+     */
+    public static void refuse(HandshakeResponse response) {
+        response.getHeaders().replace(HandshakeResponse.SEC_WEBSOCKET_ACCEPT, Collections.emptyList());
+    }
+}
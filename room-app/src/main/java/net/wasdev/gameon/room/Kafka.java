@@ -3,80 +3,159 @@ package net.wasdev.gameon.room;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.spi.CDI;
 
+import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import net.wasdev.gameon.room.events.EventSink;
+import net.wasdev.gameon.room.events.GameEvent;
+import net.wasdev.gameon.room.events.GameEventSerializer;
 
 @ApplicationScoped
-public class Kafka {
+public class Kafka implements EventSink {
 
    @Resource(lookup="kafkaUrl")
    protected String kafkaUrl;
 
-   private Producer<String,String> producer=null;
+   private static final long PRODUCER_RETRY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+   private Producer<String,GameEvent> producer=null;
+   private long nextAttempt = System.nanoTime();
 
    public Kafka(){
    }
 
+   /**
+    * Look up the Kafka bean, timing how long that takes as part of startup.
+    */
+   public static Kafka lookup(){
+     StartupProfiler.Phase phase = StartupProfiler.start("cdi.kafka");
+     try{
+       return CDI.current().select(Kafka.class).get();
+     }finally{
+       phase.end();
+     }
+   }
+
    @PostConstruct
    public void init(){
-     try{
-         //Kafka client expects this property to be set and pointing at the
-         //jaas config file.. except when running in liberty, we don't need
-         //one of those.. thankfully, neither does kafka client, it just doesn't
-         //know that.. so we'll set this to an empty string to bypass the check.
-         if(System.getProperty("java.security.auth.login.config")==null){
-           System.setProperty("java.security.auth.login.config", "");
-         }
-
-         Log.log(Level.INFO, this, "Initializing kafka producer for url {0}", kafkaUrl);
-         Properties producerProps = new Properties();
-         producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaUrl);
-         producerProps.put(ProducerConfig.ACKS_CONFIG,"-1");
-         producerProps.put(ProducerConfig.CLIENT_ID_CONFIG,"gameon-map");
-         producerProps.put(ProducerConfig.RETRIES_CONFIG,0);
-         producerProps.put(ProducerConfig.BATCH_SIZE_CONFIG,16384);
-         producerProps.put(ProducerConfig.LINGER_MS_CONFIG,1);
-         producerProps.put(ProducerConfig.BUFFER_MEMORY_CONFIG,33554432);
-         producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.StringSerializer");
-         producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,"org.apache.kafka.common.serialization.StringSerializer");
-
-         //this is a cheat, we need to enable ssl when talking to message hub, and not to kafka locally
-         //the easiest way to know which we are running on, is to check how many hosts are in kafkaUrl
-         //locally for kafka there'll only ever be one, and messagehub gives us a whole bunch..
-         boolean multipleHosts = kafkaUrl.indexOf(",") != -1;
-         if(multipleHosts){
-           Log.log(Level.INFO, this, "Initializing SSL Config for MessageHub");
-           producerProps.put("security.protocol","SASL_SSL");
-           producerProps.put("ssl.protocol","TLSv1.2");
-           producerProps.put("ssl.enabled.protocols","TLSv1.2");
-           Path p = Paths.get(System.getProperty("java.home"), "lib", "security", "cacerts");
-           producerProps.put("ssl.truststore.location", p.toString());
-           producerProps.put("ssl.truststore.password","changeit");
-           producerProps.put("ssl.truststore.type","JKS");
-           producerProps.put("ssl.endpoint.identification.algorithm","HTTPS");
-         }
-
-         producer = new KafkaProducer<String, String>(producerProps);
-     }catch(Exception e){
-         System.out.println("KAFKA INIT FAILED");
-         e.printStackTrace(System.out);
-         throw e;
+     StartupProfiler.Phase phase = StartupProfiler.start("kafka.init");
+     producer();
+     phase.end();
+   }
+
+   /**
+    * The producer, made on first use. If it can't be made, eg. kafkaUrl is
+    * missing, events fail to send and we try again after a while, rather
+    * than stop the room starting.
+    */
+   private synchronized Producer<String,GameEvent> producer(){
+     if(producer==null && System.nanoTime() - nextAttempt >= 0){
+       try{
+         producer = createProducer();
+       }catch(Exception e){
+         nextAttempt = System.nanoTime() + PRODUCER_RETRY_NANOS;
+         Log.log(Level.WARNING, this, "Unable to create kafka producer, game events will wait for it", e);
+       }
+     }
+     return producer;
+   }
+
+   private Producer<String,GameEvent> createProducer(){
+     //Kafka client expects this property to be set and pointing at the
+     //jaas config file.. except when running in liberty, we don't need
+     //one of those.. thankfully, neither does kafka client, it just doesn't
+     //know that.. so we'll set this to an empty string to bypass the check.
+     if(System.getProperty("java.security.auth.login.config")==null){
+       System.setProperty("java.security.auth.login.config", "");
      }
+
+     Log.log(Level.INFO, this, "Initializing kafka producer for url {0}", kafkaUrl);
+     Properties producerProps = connectionProperties();
+     producerProps.put(ProducerConfig.ACKS_CONFIG,"-1");
+     producerProps.put(ProducerConfig.CLIENT_ID_CONFIG,"gameon-map");
+     //retry passing errors here, with one request in flight a retry can't overtake later events.
+     //a retry after a lost ack can repeat an event, consumers drop repeats by room and sequence number.
+     producerProps.put(ProducerConfig.RETRIES_CONFIG,3);
+     //send is called from the bus, which should not stall behind a missing broker for long.
+     producerProps.put(ProducerConfig.MAX_BLOCK_MS_CONFIG,5000);
+     producerProps.put(ProducerConfig.BATCH_SIZE_CONFIG,16384);
+     producerProps.put(ProducerConfig.LINGER_MS_CONFIG,1);
+     //one request at a time, so events arrive in the order they were sent.
+     producerProps.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION,1);
+     producerProps.put(ProducerConfig.BUFFER_MEMORY_CONFIG,33554432);
+
+     GameEventSerializer.Encoding encoding = GameEventSerializer.Encoding.fromName(System.getProperty(
+             Constants.ENV_EVENT_ENCODING, System.getenv(Constants.ENV_EVENT_ENCODING)));
+     Log.log(Level.INFO, this, "Publishing game events as {0}", encoding);
+     return new KafkaProducer<String, GameEvent>(producerProps, new StringSerializer(), new GameEventSerializer(encoding));
    }
 
-   public void publishMessage(String topic, String key, String message){
-     Log.log(Level.FINER, this, "Publishing Event {0} {1} {2}",topic,key,message);
-     ProducerRecord<String,String> pr = new ProducerRecord<String,String>(topic, key, message);
-     producer.send(pr);
-     Log.log(Level.FINER, this, "Published Event");
+   /**
+    * Where kafka is and how to talk to it, shared by every client we make.
+    */
+   private Properties connectionProperties(){
+     Properties props = new Properties();
+     props.put(CommonClientConfigs.BOOTSTRAP_SERVERS_CONFIG, kafkaUrl);
+
+     //this is a cheat, we need to enable ssl when talking to message hub, and not to kafka locally
+     //the easiest way to know which we are running on, is to check how many hosts are in kafkaUrl
+     //locally for kafka there'll only ever be one, and messagehub gives us a whole bunch..
+     boolean multipleHosts = kafkaUrl.indexOf(",") != -1;
+     if(multipleHosts){
+       Log.log(Level.INFO, this, "Initializing SSL Config for MessageHub");
+       props.put("security.protocol","SASL_SSL");
+       props.put("ssl.protocol","TLSv1.2");
+       props.put("ssl.enabled.protocols","TLSv1.2");
+       Path p = Paths.get(System.getProperty("java.home"), "lib", "security", "cacerts");
+       props.put("ssl.truststore.location", p.toString());
+       props.put("ssl.truststore.password","changeit");
+       props.put("ssl.truststore.type","JKS");
+       props.put("ssl.endpoint.identification.algorithm","HTTPS");
+     }
+     return props;
+   }
+
+   /**
+    * A transport for sharing room output with the other nodes, see {@link RoomFanout}.
+    */
+   public RoomFanout.Transport roomEventTransport(){
+     return new KafkaRoomEvents(connectionProperties(), RoomFanout.TOPIC);
+   }
+
+   /**
+    * A transport for running commands on the node that owns the room, see {@link RoomCommandIngestion}.
+    */
+   public RoomCommandIngestion.Transport roomCommandTransport(){
+     return new KafkaRoomCommands(connectionProperties(), RoomCommandIngestion.TOPIC);
+   }
+
+   @Override
+   public void send(GameEvent event, EventSink.Completion done){
+     Log.log(Level.FINER, this, "Sending Event {0}", event);
+     try{
+       Producer<String,GameEvent> p = producer();
+       if(p==null){
+         done.completed(new IllegalStateException("No kafka producer"));
+         return;
+       }
+       //keyed by room, so each room's events stay in order on one partition and rooms spread across them.
+       ProducerRecord<String,GameEvent> pr = new ProducerRecord<String,GameEvent>(event.getTopic(), event.getRoomId(), event);
+       p.send(pr, (metadata, e) -> done.completed(e));
+     }catch(Exception e){
+       done.completed(e);
+     }
    }
 
 }
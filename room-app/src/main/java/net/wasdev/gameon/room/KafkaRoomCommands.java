@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+/**
+ * Carries room commands to the node that owns the room over a Kafka topic.
+ * Records are keyed by room id, so the default partitioner keeps each
+ * room's commands in order on one partition.
+ * <p>
+ * Every node joins the same consumer group, so each partition, and so each
+ * room, is read by exactly one node at a time. Offsets are committed after
+ * every poll and when partitions are taken away, so a room that moves picks
+ * up where its last owner stopped. A node that dies between running
+ * commands and committing them has them run again by the next owner.
+ */
+public class KafkaRoomCommands implements RoomCommandIngestion.Transport {
+
+    public static final String GROUP = "gameon-room-commands";
+
+    private static final long POLL_MILLIS = 100;
+
+    private final String topic;
+    private final KafkaProducer<String, String> producer;
+    private final KafkaConsumer<String, String> consumer;
+    private volatile boolean closed;
+    private Thread reader;
+
+    public KafkaRoomCommands(Properties connection, String topic) {
+        this.topic = topic;
+
+        Properties producerProps = new Properties();
+        producerProps.putAll(connection);
+        producerProps.put(ProducerConfig.CLIENT_ID_CONFIG, "gameon-room-commands");
+        // players are waiting on these, don't wait for every replica or for a batch.
+        producerProps.put(ProducerConfig.ACKS_CONFIG, "1");
+        producerProps.put(ProducerConfig.LINGER_MS_CONFIG, 0);
+        producerProps.put(ProducerConfig.RETRIES_CONFIG, 0);
+        // send is called on the session's thread, run the command locally rather than stall it.
+        producerProps.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, 1000);
+        producer = new KafkaProducer<String, String>(producerProps, new StringSerializer(), new StringSerializer());
+
+        Properties consumerProps = new Properties();
+        consumerProps.putAll(connection);
+        consumerProps.put(ConsumerConfig.CLIENT_ID_CONFIG, "gameon-room-commands");
+        consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, GROUP);
+        consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        // a new group starts with what players say next, not with old commands.
+        consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
+        consumer = new KafkaConsumer<String, String>(consumerProps, new StringDeserializer(), new StringDeserializer());
+    }
+
+    @Override
+    public synchronized void start(RoomCommandIngestion.Receiver receiver, RoomCommandIngestion.Ownership ownership) {
+        if (reader == null && !closed) {
+            reader = new Thread(() -> read(receiver, ownership), "room-commands");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    @Override
+    public void send(String roomId, String frame, RoomFanout.Completion done) {
+        try {
+            producer.send(new ProducerRecord<String, String>(topic, roomId, frame), (metadata, e) -> done.completed(e));
+        } catch (RuntimeException e) {
+            done.completed(e);
+        }
+    }
+
+    private void read(RoomCommandIngestion.Receiver receiver, RoomCommandIngestion.Ownership ownership) {
+        try {
+            consumer.subscribe(Collections.singletonList(topic), new ConsumerRebalanceListener() {
+                @Override
+                public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                    // the next owner starts from here, so commit what we have run.
+                    try {
+                        consumer.commitSync();
+                    } catch (RuntimeException e) {
+                        Log.log(Level.WARNING, KafkaRoomCommands.this,
+                                "Unable to commit room commands before rebalance, some may run twice", e);
+                    }
+                    ownership.revoked(partitionNumbers(partitions));
+                }
+
+                @Override
+                public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                    List<PartitionInfo> all = consumer.partitionsFor(topic);
+                    ownership.assigned(partitionNumbers(partitions), all == null ? 0 : all.size());
+                }
+            });
+            while (!closed) {
+                ConsumerRecords<String, String> records = consumer.poll(POLL_MILLIS);
+                if (records.isEmpty()) {
+                    continue;
+                }
+                for (ConsumerRecord<String, String> record : records) {
+                    receiver.received(record.key(), record.value());
+                }
+                consumer.commitAsync();
+            }
+        } catch (WakeupException e) {
+            // closing, the next owner starts after what we have run.
+            try {
+                consumer.commitSync();
+            } catch (RuntimeException re) {
+                Log.log(Level.WARNING, this, "Unable to commit room commands on close, some may run twice", re);
+            }
+        } catch (RuntimeException e) {
+            Log.log(Level.SEVERE, this, "Room command ingestion stopped reading " + topic, e);
+        } finally {
+            consumer.close();
+        }
+    }
+
+    private static List<Integer> partitionNumbers(Collection<TopicPartition> partitions) {
+        List<Integer> numbers = new ArrayList<Integer>(partitions.size());
+        for (TopicPartition tp : partitions) {
+            numbers.add(tp.partition());
+        }
+        return numbers;
+    }
+
+    @Override
+    public void close() {
+        Thread r;
+        synchronized (this) {
+            closed = true;
+            r = reader;
+        }
+        if (r == null) {
+            consumer.close();
+        } else {
+            // the reader commits and closes the consumer on its way out.
+            consumer.wakeup();
+            try {
+                r.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        producer.close(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+/**
+ * Carries room output between nodes over a Kafka topic. Records are keyed
+ * by room id, so the default partitioner keeps each room's events in order.
+ * <p>
+ * Every node must see every event, so rather than joining a consumer group
+ * each node assigns itself every partition of the topic and starts reading
+ * from the end. Nothing is committed, a node that restarts picks up from
+ * whatever is being said now.
+ */
+public class KafkaRoomEvents implements RoomFanout.Transport {
+
+    private static final long POLL_MILLIS = 100;
+    private static final long PARTITION_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private final String topic;
+    private final KafkaProducer<String, byte[]> producer;
+    private final KafkaConsumer<String, byte[]> consumer;
+    private volatile boolean closed;
+    private Thread reader;
+
+    public KafkaRoomEvents(Properties connection, String topic) {
+        this.topic = topic;
+
+        Properties producerProps = new Properties();
+        producerProps.putAll(connection);
+        producerProps.put(ProducerConfig.CLIENT_ID_CONFIG, "gameon-room-fanout");
+        // players are waiting on these, don't wait for every replica or for a batch.
+        producerProps.put(ProducerConfig.ACKS_CONFIG, "1");
+        producerProps.put(ProducerConfig.LINGER_MS_CONFIG, 0);
+        producerProps.put(ProducerConfig.RETRIES_CONFIG, 0);
+        // send is called on the command thread, fall back to local delivery rather than stall it.
+        producerProps.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, 1000);
+        producer = new KafkaProducer<String, byte[]>(producerProps, new StringSerializer(),
+                new ByteArraySerializer());
+
+        Properties consumerProps = new Properties();
+        consumerProps.putAll(connection);
+        consumerProps.put(ConsumerConfig.CLIENT_ID_CONFIG, "gameon-room-fanout");
+        consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "latest");
+        consumer = new KafkaConsumer<String, byte[]>(consumerProps, new StringDeserializer(),
+                new ByteArrayDeserializer());
+    }
+
+    @Override
+    public synchronized void start(RoomFanout.Receiver receiver) {
+        if (reader == null && !closed) {
+            reader = new Thread(() -> read(receiver), "room-fanout");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    @Override
+    public void send(String roomId, byte[] value, RoomFanout.Completion done) {
+        try {
+            producer.send(new ProducerRecord<String, byte[]>(topic, roomId, value),
+                    (metadata, e) -> done.completed(e));
+        } catch (RuntimeException e) {
+            done.completed(e);
+        }
+    }
+
+    private void read(RoomFanout.Receiver receiver) {
+        Set<TopicPartition> assigned = new HashSet<TopicPartition>();
+        long nextCheck = 0;
+        try {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                if (now >= nextCheck) {
+                    assign(assigned);
+                    nextCheck = now + (assigned.isEmpty() ? POLL_MILLIS * 10 : PARTITION_CHECK_MILLIS);
+                }
+                if (assigned.isEmpty()) {
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_MILLIS)) {
+                    receiver.received(record.key(), record.value());
+                }
+            }
+        } catch (WakeupException | InterruptedException e) {
+            // closing.
+        } catch (RuntimeException e) {
+            Log.log(Level.SEVERE, this, "Room event fan-out stopped reading " + topic, e);
+        } finally {
+            consumer.close();
+        }
+    }
+
+    /**
+     * Take any partitions of the topic we don't have yet, from their end.
+     */
+    private void assign(Set<TopicPartition> assigned) {
+        List<PartitionInfo> partitions = consumer.partitionsFor(topic);
+        if (partitions == null || partitions.size() == assigned.size()) {
+            return;
+        }
+        List<TopicPartition> added = new ArrayList<TopicPartition>();
+        for (PartitionInfo p : partitions) {
+            TopicPartition tp = new TopicPartition(p.topic(), p.partition());
+            if (!assigned.contains(tp)) {
+                added.add(tp);
+            }
+        }
+        assigned.addAll(added);
+        consumer.assign(new ArrayList<TopicPartition>(assigned));
+        consumer.seekToEnd(added.toArray(new TopicPartition[added.size()]));
+        Log.log(Level.INFO, this, "Reading room events from {0} partitions of {1}", assigned.size(), topic);
+    }
+
+    @Override
+    public void close() {
+        Thread r;
+        synchronized (this) {
+            closed = true;
+            r = reader;
+        }
+        if (r == null) {
+            consumer.close();
+        } else {
+            // the reader closes the consumer on its way out.
+            consumer.wakeup();
+            try {
+                r.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        producer.close(5, TimeUnit.SECONDS);
+    }
+}
@@ -16,6 +16,9 @@
 package net.wasdev.gameon.room;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -23,10 +26,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
 import javax.enterprise.context.ApplicationScoped;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
@@ -41,12 +46,11 @@ import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerApplicationConfig;
 import javax.websocket.server.ServerEndpointConfig;
 
-import org.gameontext.signed.SignedRequestHmac;
-import org.gameontext.signed.SignedRequestMap;
-
 import net.wasdev.gameon.room.engine.Engine;
 import net.wasdev.gameon.room.engine.Room;
 import net.wasdev.gameon.room.engine.Room.RoomResponseProcessor;
+import net.wasdev.gameon.room.engine.persist.StateStore;
+import net.wasdev.gameon.room.events.GameEventBus;
 
 /**
  * Manages the registration of all rooms in the Engine with the concierge
@@ -54,26 +58,55 @@ import net.wasdev.gameon.room.engine.Room.RoomResponseProcessor;
 @ApplicationScoped
 public class LifecycleManager implements ServerApplicationConfig {
 
+    private static final long DEFAULT_ROOM_IDLE_TIMEOUT_SECONDS = 300;
+    private static final long DEFAULT_ROOM_SNAPSHOT_INTERVAL_SECONDS = 300;
+
     private String registrationSecret;
     private String systemId;
 
     private Engine e = Engine.getEngine();
 
+    private static volatile boolean registrationComplete = false;
+    private static volatile boolean endpointsOpen = false;
+
     public static class SessionRoomResponseProcessor
             implements RoomResponseProcessor {
-        private Collection<Session> activeSessions = new CopyOnWriteArraySet<Session>();
+        private final String roomId;
+        private final Map<Session, SessionQueue> activeSessions = new ConcurrentHashMap<Session, SessionQueue>();
         private AtomicInteger counter = new AtomicInteger(0);
 
-        private void generateEvent(Session session, JsonObject content, String userID, boolean selfOnly, int bookmark)
-                throws IOException {
+        public SessionRoomResponseProcessor(String roomId) {
+            this.roomId = roomId;
+        }
+
+        /**
+         * Send a message to everyone in the room, on every node serving it
+         * when room output is fanned out.
+         */
+        private void send(String msg) {
+            RoomFanout fanout = RoomFanout.getFanout();
+            if (fanout != null) {
+                fanout.publish(roomId, msg);
+            } else {
+                deliver(msg);
+            }
+        }
+
+        /**
+         * Send a message to the sessions connected to this node.
+         */
+        public void deliver(String msg) {
+            for (SessionQueue queue : activeSessions.values()) {
+                queue.send(msg);
+            }
+        }
+
+        private static String event(JsonObject content, String userID, boolean selfOnly, int bookmark) {
             JsonObjectBuilder response = Json.createObjectBuilder();
             response.add("type", "event");
             response.add("content", content);
             response.add("bookmark", bookmark);
-
-            String msg = "player," + (selfOnly ? userID : "*") + "," + response.build().toString();
-            Log.log(Level.FINE, this, "ROOM(PE): sending to session {0} messsage {1}", session.getId(), msg);
-            session.getBasicRemote().sendText(msg);
+            return "player," + (selfOnly ? userID : "*") + "," + response.build().toString();
         }
 
         @Override
@@ -90,27 +123,7 @@ public class LifecycleManager implements ServerApplicationConfig {
             if (selfMessage != null && selfMessage.length() > 0) {
                 content.add(senderId, selfMessage);
             }
-            JsonObject json = content.build();
-            int count = counter.incrementAndGet();
-            for (Session s : activeSessions) {
-                try {
-                    generateEvent(s, json, senderId, selfOnly, count);
-                } catch (IOException io) {
-                    throw new RuntimeException(io);
-                }
-            }
-        }
-
-        private void generateRoomEvent(Session session, JsonObject content, int bookmark) throws IOException {
-            JsonObjectBuilder response = Json.createObjectBuilder();
-            response.add("type", "event");
-            response.add("content", content);
-            response.add("bookmark", bookmark);
-
-            String msg = "player,*," + response.build().toString();
-
-            Log.log(Level.FINE, this, "ROOM(RE): sending to session {0} messsage {1}", session.getId(), msg);
-            session.getBasicRemote().sendText(msg);
+            send(event(content.build(), senderId, selfOnly, counter.incrementAndGet()));
         }
 
         @Override
@@ -118,15 +131,7 @@ public class LifecycleManager implements ServerApplicationConfig {
             // System.out.println("Message sent to everyone :: "+s);
             JsonObjectBuilder content = Json.createObjectBuilder();
             content.add("*", s);
-            JsonObject json = content.build();
-            int count = counter.incrementAndGet();
-            for (Session session : activeSessions) {
-                try {
-                    generateRoomEvent(session, json, count);
-                } catch (IOException io) {
-                    throw new IllegalStateException(io);
-                }
-            }
+            send(event(content.build(), null, false, counter.incrementAndGet()));
         }
 
         public void chatEvent(String username, String msg) {
@@ -135,21 +140,21 @@ public class LifecycleManager implements ServerApplicationConfig {
             content.add("username", username);
             content.add("content", msg);
             content.add("bookmark", counter.incrementAndGet());
-            JsonObject json = content.build();
-            for (Session session : activeSessions) {
-                try {
-                    String cmsg = "player,*," + json.toString();
-                    Log.log(Level.FINE, this, "ROOM(CE): sending to session {0} messsage {1}", session.getId(), cmsg);
-                    session.getBasicRemote().sendText(cmsg);
-                } catch (IOException io) {
-                    throw new IllegalStateException(io);
-                }
-            }
+            send("player,*," + content.build().toString());
         }
 
         @Override
         public void locationEvent(String senderId, String roomId, String roomName, String roomDescription, Map<String,String> exits,
                 List<String> objects, List<String> inventory, Map<String,String> commands) {
+            sendLocation(senderId, renderLocation(roomId, roomName, roomDescription, exits, objects, inventory, commands));
+        }
+
+        /**
+         * Build the location message, all but its bookmark, so it can be
+         * built ahead of time and sent later with {@link #sendLocation}.
+         */
+        public String renderLocation(String roomId, String roomName, String roomDescription, Map<String,String> exits,
+                List<String> objects, List<String> inventory, Map<String,String> commands) {
             JsonObjectBuilder content = Json.createObjectBuilder();
             content.add("type", "location");
             content.add("name", roomId);
@@ -179,41 +184,29 @@ public class LifecycleManager implements ServerApplicationConfig {
                 objs.add(o);
             }
             content.add("objects", objs.build());
-            content.add("bookmark", counter.incrementAndGet());
+            String json = content.build().toString();
+            // drop the closing brace, the bookmark goes on when it is sent.
+            return json.substring(0, json.length() - 1);
+        }
 
-            JsonObject json = content.build();
-            for (Session session : activeSessions) {
-                try {
-                    String lmsg = "player," + senderId + "," + json.toString();
-                    Log.log(Level.FINE, this, "ROOM(LE): sending to session {0} messsage {1}", session.getId(), lmsg);
-                    session.getBasicRemote().sendText(lmsg);
-                } catch (IOException io) {
-                    throw new RuntimeException(io);
-                }
-            }
+        public void sendLocation(String senderId, String rendered) {
+            send("player," + senderId + "," + rendered + ",\"bookmark\":" + counter.incrementAndGet() + "}");
         }
 
         @Override
         public void exitEvent(String senderId, String message, String exitID, String exitJson) {
+            // before the mediator hears of it, so the room they are going to can get ready for them.
+            ExitFastPath.getFastPath().exited(roomId, senderId, exitID);
             JsonObjectBuilder content = Json.createObjectBuilder();
             content.add("type", "exit");
             content.add("exitId", exitID);
             content.add("content", message);
             content.add("bookmark", counter.incrementAndGet());
-            JsonObject json = content.build();
-            for (Session session : activeSessions) {
-                try {
-                    String emsg = "playerLocation," + senderId + "," + json.toString();
-                    Log.log(Level.FINE, this, "ROOM(EE): sending to session {0} messsage {1}", session.getId(), emsg);
-                    session.getBasicRemote().sendText(emsg);
-                } catch (IOException io) {
-                    throw new RuntimeException(io);
-                }
-            }
+            send("playerLocation," + senderId + "," + content.build().toString());
         }
 
         public void addSession(Session s) {
-            activeSessions.add(s);
+            activeSessions.computeIfAbsent(s, SessionQueue::new);
         }
 
         public void removeSession(Session s) {
@@ -221,7 +214,15 @@ public class LifecycleManager implements ServerApplicationConfig {
         }
 
         public Collection<Session> getSessions() {
-            return activeSessions;
+            return activeSessions.keySet();
+        }
+
+        /**
+         * The queue for each session, for sending something to them all
+         * without holding up the room, see {@link WorldBroadcast}.
+         */
+        public Collection<SessionQueue> getQueues() {
+            return activeSessions.values();
         }
     }
 
@@ -236,22 +237,212 @@ public class LifecycleManager implements ServerApplicationConfig {
         }
     }
 
-    private static class RoomWSConfig extends ServerEndpointConfig.Configurator {
-        private final Room room;
-        private final SessionRoomResponseProcessor srrp;
-        private final String token;
+    /**
+     * Rooms activate on first use, this schedules the sweep that passivates
+     * them again once they have been left idle.
+     */
+    private void schedulePassivation() {
+        long idleSeconds = DEFAULT_ROOM_IDLE_TIMEOUT_SECONDS;
+        String value = System.getProperty(Constants.ENV_ROOM_IDLE_TIMEOUT, System.getenv(Constants.ENV_ROOM_IDLE_TIMEOUT));
+        if (value != null) {
+            try {
+                idleSeconds = Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, this, "Ignoring bad value for {0} : {1}", Constants.ENV_ROOM_IDLE_TIMEOUT, value);
+            }
+        }
+        if (idleSeconds <= 0) {
+            Log.log(Level.INFO, this, "Room passivation disabled, all rooms will stay resident once active.");
+            return;
+        }
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            final long idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+            long sweepSeconds = Math.max(1, idleSeconds / 4);
+            executor.scheduleWithFixedDelay(() -> {
+                e.passivateIdleRooms(idleMillis);
+                Log.log(Level.FINE, this, "Room activation stats: {0}", e.getActivationSummary());
+            }, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+            Log.log(Level.INFO, this, "Idle rooms will be passivated after {0}s", idleSeconds);
+        } catch (NamingException ne) {
+            Log.log(Level.WARNING, this, "Unable to schedule room passivation, rooms will stay resident once active", ne);
+        }
+    }
 
-        public RoomWSConfig(Room room, SessionRoomResponseProcessor srrp, String token) {
-            this.room = room;
-            this.srrp = srrp;
-            this.room.setRoomResponseProcessor(srrp);
-            this.token = token;
+    /**
+     * Snapshots bound how much journal has to be replayed when the node
+     * restarts, this schedules them if room state is being saved.
+     */
+    private void scheduleSnapshots() {
+        StateStore store = e.getStateStore();
+        if (store == null) {
+            return;
+        }
+        long intervalSeconds = DEFAULT_ROOM_SNAPSHOT_INTERVAL_SECONDS;
+        String value = System.getProperty(Constants.ENV_ROOM_SNAPSHOT_INTERVAL, System.getenv(Constants.ENV_ROOM_SNAPSHOT_INTERVAL));
+        if (value != null) {
+            try {
+                intervalSeconds = Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, this, "Ignoring bad value for {0} : {1}", Constants.ENV_ROOM_SNAPSHOT_INTERVAL, value);
+            }
+        }
+        if (intervalSeconds <= 0) {
+            Log.log(Level.INFO, this, "Room state snapshots disabled, the whole journal will be replayed on restart.");
+            return;
+        }
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    store.snapshot();
+                    Log.log(Level.FINE, this, "Room state stats: {0}", store.getStats());
+                } catch (IOException io) {
+                    Log.log(Level.WARNING, this, "Unable to snapshot room state", io);
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+            Log.log(Level.INFO, this, "Room state will be snapshot every {0}s", intervalSeconds);
+        } catch (NamingException ne) {
+            Log.log(Level.WARNING, this, "Unable to schedule room state snapshots", ne);
+        }
+    }
+
+    /**
+     * Share room output with the other nodes serving our rooms, if asked to.
+     * Rooms talk only to their local sessions until Kafka is ready.
+     */
+    private void startFanout() {
+        if (!RoomFanout.isEnabled()) {
+            return;
+        }
+        Runnable start = () -> {
+            try {
+                RoomFanout.start(Kafka.lookup().roomEventTransport());
+            } catch (RuntimeException re) {
+                Log.log(Level.WARNING, this, "Unable to fan out room output, rooms will only talk to local sessions", re);
+            }
+        };
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            executor.submit(start);
+        } catch (NamingException ne) {
+            start.run();
+        }
+    }
+
+    /**
+     * Run room commands on the node that owns each room, if asked to.
+     * Commands run where they arrive until Kafka is ready.
+     */
+    private void startCommandIngestion() {
+        if (!RoomCommandIngestion.isEnabled()) {
+            return;
+        }
+        Runnable start = () -> {
+            try {
+                RoomCommandIngestion.start(Kafka.lookup().roomCommandTransport());
+            } catch (RuntimeException re) {
+                Log.log(Level.WARNING, this, "Unable to take room commands from kafka, they will run where they arrive", re);
+            }
+        };
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            executor.submit(start);
+        } catch (NamingException ne) {
+            start.run();
+        }
+    }
+
+    /**
+     * Follow the cluster as nodes come and go, serving the rooms that move
+     * here and draining the ones that move away.
+     */
+    private void scheduleRebalance(RoomCluster cluster, Collection<Room> rooms) {
+        RoomEndpoints hosted = RoomEndpoints.getEndpoints();
+        RoomCluster.Host host = new RoomCluster.Host() {
+            @Override
+            public boolean isHosted(String roomId) {
+                RoomEndpoints.Hosted h = hosted.get(roomId);
+                return h != null && !h.isDraining();
+            }
+
+            @Override
+            public void host(String roomId) {
+                Room room = e.getRoom(roomId);
+                if (room != null) {
+                    hosted.host(room);
+                }
+            }
+
+            @Override
+            public void release(String roomId) {
+                hosted.release(roomId);
+            }
+        };
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            long interval = cluster.getHeartbeatMillis();
+            cluster.setHeartbeats(executor.scheduleWithFixedDelay(() -> {
+                try {
+                    //the engine's rooms as they are now, with any added or removed since startup.
+                    List<String> roomIds = new ArrayList<String>();
+                    for (Room room : e.getRooms()) {
+                        roomIds.add(room.getRoomId());
+                    }
+                    cluster.rebalance(roomIds, host);
+                } catch (RuntimeException re) {
+                    Log.log(Level.WARNING, this, "Unable to rebalance rooms across the cluster", re);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS));
+            Log.log(Level.INFO, this, "Serving {0} of {1} rooms as node {2}, checking the cluster every {3}ms",
+                    hosted.getRegistrations().size(), rooms.size(), cluster.getNodeId(), interval);
+        } catch (NamingException ne) {
+            Log.log(Level.WARNING, this, "Unable to schedule cluster heartbeats, this node will keep the rooms it has", ne);
+        }
+    }
+
+    /**
+     * Keep checking the map for exits that have changed since registration.
+     */
+    private void scheduleExitRefresh(List<RoomRegistrationHandler> registrations, RegistrationCache cache) {
+        long intervalSeconds = ExitRefresher.getInterval();
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        ExitRefresher refresher = new ExitRefresher(systemId, registrationSecret, registrations, cache,
+                BulkRegistration.isEnabled());
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    refresher.refresh();
+                    Log.log(Level.FINE, this, "Exit refresh stats: {0}", refresher.getStats());
+                } catch (RuntimeException re) {
+                    Log.log(Level.WARNING, this, "Unable to refresh room exits", re);
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+            Log.log(Level.INFO, this, "Room exits will be refreshed from the map every {0}s", intervalSeconds);
+        } catch (NamingException ne) {
+            Log.log(Level.WARNING, this, "Unable to schedule room exit refresh", ne);
+        }
+    }
+
+    private static class RoomWSConfig extends ServerEndpointConfig.Configurator {
+        private final String roomId;
+
+        /**
+         * @param roomId
+         *            the room for a fixed path, or null for the path with the
+         *            room id as a parameter.
+         */
+        public RoomWSConfig(String roomId) {
+            this.roomId = roomId;
         }
 
         @SuppressWarnings("unchecked")
         @Override
         public <T> T getEndpointInstance(Class<T> endpointClass) {
-            RoomWS r = new RoomWS(this.room, this.srrp);
+            RoomWS r = new RoomWS(roomId);
             return (T) r;
         }
 
@@ -259,57 +450,162 @@ public class LifecycleManager implements ServerApplicationConfig {
         public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request, HandshakeResponse response) {
             super.modifyHandshake(sec, request, response);
 
-            if ( token == null || token.isEmpty() ) {
-                Log.log(Level.FINEST, this, "No token set for room, skipping validation");
-            } else {
-                Log.log(Level.FINEST, this, "Validating WS handshake");
-                SignedRequestHmac wsHmac = new SignedRequestHmac("", token, "", request.getRequestURI().getRawPath());
-
-                try {
-                    wsHmac.checkHeaders(new SignedRequestMap.MLS_StringMap(request.getHeaders()))
-                            .verifyFullSignature()
-                            .wsResignRequest(new SignedRequestMap.MLS_StringMap(response.getHeaders()));
-
-                    Log.log(Level.INFO, this, "validated and resigned", wsHmac);
-                } catch(Exception e) {
-                    Log.log(Level.WARNING, this, "Failed to validate HMAC, unable to establish connection", e);
+            String id = roomId == null ? pathRoomId(request) : roomId;
+            RoomEndpoints.Hosted hosted = RoomEndpoints.getEndpoints().get(id);
+            if (hosted == null || hosted.isDraining()) {
+                Log.log(Level.INFO, this, "Refusing handshake for room {0}, it is not being served", id);
+                HandshakeVerifier.refuse(response);
+            } else if (!hosted.getVerifier().verify(request, response)) {
+                HandshakeVerifier.refuse(response);
+            }
+        }
 
-                    response.getHeaders().replace(HandshakeResponse.SEC_WEBSOCKET_ACCEPT, Collections.emptyList());
-                }
+        /**
+         * The room id from the path, decoded as the container decodes the
+         * path parameter RoomWS gets, so both find the same room. Taken from
+         * the path rather than the parameter map, where a query parameter of
+         * the same name could stand in for it.
+         */
+        static String pathRoomId(HandshakeRequest request) {
+            String path = request.getRequestURI().getRawPath();
+            String segment = path.substring(path.lastIndexOf('/') + 1);
+            try {
+                // a '+' in a path is itself, not a space.
+                return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                return segment;
             }
         }
     }
 
     private Set<ServerEndpointConfig> registerRooms(Collection<Room> rooms) {
 
+        RoomEndpoints hosted = RoomEndpoints.getEndpoints();
+        hosted.configure(systemId, registrationSecret);
+        RoomCluster cluster = RoomCluster.fromConfig();
+        if (cluster != null && RoomCommandIngestion.isEnabled()) {
+            //the ring and the partitions would each pick a node for a room, and rarely the same one.
+            throw new IllegalStateException("Set " + Constants.ENV_ROOM_COMMAND_INGESTION + " or the "
+                    + Constants.ENV_ROOM_CLUSTER_DIR + "/" + Constants.ENV_ROOM_CLUSTER_MEMBERS
+                    + " settings, not both, they decide which node runs a room in different ways");
+        }
+        if (cluster != null) {
+            RoomCluster.join(cluster);
+        }
         Set<ServerEndpointConfig> endpoints = new HashSet<ServerEndpointConfig>();
         for (Room room : rooms) {
-
-            RoomRegistrationHandler roomRegistration = new RoomRegistrationHandler(room, systemId, registrationSecret);
-            try{
-                roomRegistration.performRegistration();
-            }catch(Exception e){
-                Log.log(Level.SEVERE, this, "Room Registration FAILED", e);
-                //we keep running, maybe we were registered ok before...
+            //in a cluster we only serve our share, the endpoint refuses rooms served elsewhere.
+            if (cluster == null || cluster.owns(room.getRoomId())) {
+                hosted.open(new RoomRegistrationHandler(room, systemId, registrationSecret));
             }
-
-            //now regardless of our registration, open our websocket.
-            SessionRoomResponseProcessor srrp = new SessionRoomResponseProcessor();
-            ServerEndpointConfig.Configurator config = new RoomWSConfig(room, srrp, roomRegistration.getToken());
-
-            endpoints.add(ServerEndpointConfig.Builder.create(RoomWS.class, "/ws/" + room.getRoomId())
-                    .configurator(config).build());
+        }
+        //one websocket for every room, rather than one each, it finds the room from the path.
+        endpoints.add(ServerEndpointConfig.Builder.create(RoomWS.class, "/ws/{" + RoomWS.ROOM_ID_PARAM + "}")
+                .configurator(new RoomWSConfig(null)).build());
+        List<RoomRegistrationHandler> registrations = new ArrayList<RoomRegistrationHandler>(hosted.getRegistrations());
+
+        //the map can take a while, rooms answer with whatever exits they have until it's done.
+        Runnable registration = () -> {
+            //failures are logged per room, we keep running, maybe we were registered ok before...
+            RegistrationCache cache;
+            StartupProfiler.Phase phase = StartupProfiler.start("registration");
+            try {
+                cache = RegistrationCache.fromConfig();
+                registerWithMap(systemId, registrationSecret, registrations, cache,
+                        ParallelRegistration.fromConfig(), BulkRegistration.isEnabled());
+            } finally {
+                phase.end();
+            }
+            registrationComplete = true;
+            StartupProfiler.milestone(StartupProfiler.REGISTRATION_COMPLETE);
+            Log.log(Level.INFO, this, "Map client usage after registration: {0}", MapClient.getStats());
+            Log.log(Level.INFO, this, StartupProfiler.summary());
+            scheduleExitRefresh(hosted.getRegistrations(), cache);
+        };
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            executor.submit(registration);
+            Log.log(Level.INFO, this, "Opened endpoints for {0} rooms, registering with the map in the background", registrations.size());
+        } catch (NamingException ne) {
+            Log.log(Level.WARNING, this, "Unable to register in the background, registering before opening endpoints", ne);
+            registration.run();
+        }
+        if (cluster != null) {
+            scheduleRebalance(cluster, rooms);
         }
 
         return endpoints;
     }
 
+    /**
+     * The registration of every room this app serves, for reporting.
+     */
+    public static List<RoomRegistrationHandler> getRegistrations() {
+        return RoomEndpoints.getEndpoints().getRegistrations();
+    }
+
+    /**
+     * True once the first pass of registration with the map has finished,
+     * rooms the map could not take are left with the retry scheduler.
+     */
+    public static boolean isRegistrationComplete() {
+        return registrationComplete;
+    }
+
+    /**
+     * True once the websocket endpoints for every room have been handed to the container.
+     */
+    public static boolean isEndpointsOpen() {
+        return endpointsOpen;
+    }
+
+    /**
+     * Bring the map up to date with every room, trusting cached registrations
+     * where possible and asking the map about as little as it can.
+     */
+    static void registerWithMap(String systemId, String secret, List<RoomRegistrationHandler> registrations,
+            RegistrationCache cache, ParallelRegistration parallel, boolean bulk) {
+        StartupProfiler.Phase phase = StartupProfiler.start("registration.cache");
+        List<RoomRegistrationHandler> unverified = cache.applyCachedExits(registrations);
+        phase.end();
+        if (unverified.isEmpty()) {
+            Log.log(Level.INFO, LifecycleManager.class, "All rooms are registered as cached, map not contacted");
+        } else if (bulk) {
+            new BulkRegistration(systemId, secret, parallel).registerAll(unverified);
+        } else {
+            parallel.runAll(unverified, h -> {
+                RegistrationCache.Entry cached = cache.get(h);
+                return cached != null ? h.revalidate(cached.mapId) : h.performRegistration();
+            }, parallel.newResult(unverified.size()));
+        }
+        cache.update(registrations);
+        cache.save();
+        RegistrationRetryScheduler retries = RegistrationRetryScheduler.getScheduler();
+        if (retries.getQueueDepth() > 0) {
+            Log.log(Level.INFO, LifecycleManager.class, "Registration retries: {0}", retries.getStats());
+        }
+    }
+
     @Override
     public Set<ServerEndpointConfig> getEndpointConfigs(Set<Class<? extends Endpoint>> endpointClasses) {
         try {
-            if(registrationSecret==null)
+            if(registrationSecret==null){
+                StartupProfiler.Phase config = StartupProfiler.start("config.jndi");
                 getConfig();
-            return registerRooms(e.getRooms());
+                config.end();
+            }
+            StartupProfiler.Phase phase = StartupProfiler.start("endpoints");
+            Set<ServerEndpointConfig> endpoints = registerRooms(e.getRooms());
+            schedulePassivation();
+            scheduleSnapshots();
+            startFanout();
+            startCommandIngestion();
+            //start forwarding game events an earlier run left in the outbox.
+            GameEventBus.getBus();
+            phase.end();
+            endpointsOpen = true;
+            StartupProfiler.milestone(StartupProfiler.ENDPOINTS_OPEN);
+            return endpoints;
         } catch (IllegalStateException e) {
             Log.log(Level.SEVERE, this, "Error building endpoint configs for room", e);
             //getEndpointConfigs is defined by ServerApplicationConfig, and doesn't allow for failure..
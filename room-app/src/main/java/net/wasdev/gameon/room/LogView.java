@@ -19,8 +19,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.StringTokenizer;
 import java.util.stream.Stream;
@@ -154,7 +156,7 @@ public class LogView extends HttpServlet {
 
                 if (basic.equalsIgnoreCase("Basic")) {
                     try {
-                        String credentials = new String(Base64.getDecoder().decode(st.nextToken()));
+                        String credentials = new String(Base64.getDecoder().decode(st.nextToken()), StandardCharsets.UTF_8);
                         int p = credentials.indexOf(":");
                         if (p != -1) {
                             String login = credentials.substring(0, p).trim();
@@ -169,7 +171,8 @@ public class LogView extends HttpServlet {
                                 return;
                             }
 
-                            if ("admin".equals(login) && expectedPassword.equals(password)) {
+                            if ("admin".equals(login) && MessageDigest.isEqual(expectedPassword.getBytes(StandardCharsets.UTF_8),
+                                    password.getBytes(StandardCharsets.UTF_8))) {
 
                                 String cmd = request.getParameter("cmd");
                                 PrintWriter out = response.getWriter();
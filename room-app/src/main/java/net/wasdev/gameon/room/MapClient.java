@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+
+import org.gameontext.signed.SignedClientRequestFilter;
+
+/**
+ * Shared JAX-RS clients for talking to the map, one per system id. Clients
+ * are thread safe, and reusing one keeps its SSL setup and lets the
+ * underlying connections be kept alive between requests.
+ * <p>
+ * Connections are kept alive by the JVM's HttpURLConnection cache, which
+ * both Liberty's client and the reference implementation sit on. Neither
+ * client has a pool of its own to size, so how many are kept is left to the
+ * JVM's http.maxConnections setting. For the same reason connection setups
+ * are not counted: they happen in that cache, below anything a client filter
+ * sees, so requests per client is what {@link #getStats()} offers instead.
+ */
+public class MapClient {
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final long DEFAULT_RECEIVE_TIMEOUT_MILLIS = 30000;
+
+    private static final ConcurrentMap<String, MapClient> clients = new ConcurrentHashMap<String, MapClient>();
+    private static final AtomicLong clientsCreated = new AtomicLong();
+
+    private final String systemId;
+    private final String secret;
+    private final Client client;
+    private final AtomicLong requests = new AtomicLong();
+
+    private MapClient(String systemId, String secret) {
+        this.systemId = systemId;
+        this.secret = secret;
+        long connectTimeout = config(Constants.ENV_MAP_CLIENT_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        long receiveTimeout = config(Constants.ENV_MAP_CLIENT_RECEIVE_TIMEOUT, DEFAULT_RECEIVE_TIMEOUT_MILLIS);
+
+        //Build client that uses the SSLContext defined by 'DefaultSSLSettings' in server.xml
+        client = ClientBuilder.newBuilder()
+                .property("com.ibm.ws.jaxrs.client.ssl.config", "DefaultSSLSettings")
+                .property("com.ibm.ws.jaxrs.client.disableCNCheck", true)
+                .property("com.ibm.ws.jaxrs.client.connection.timeout", connectTimeout)
+                .property("com.ibm.ws.jaxrs.client.receive.timeout", receiveTimeout)
+                // the same timeouts for the reference implementation, used outside the server.
+                .property("jersey.config.client.connectTimeout", (int) connectTimeout)
+                .property("jersey.config.client.readTimeout", (int) receiveTimeout)
+                .build();
+        // add our request signer
+        client.register(new SignedClientRequestFilter(systemId, secret));
+        client.register(new ClientRequestFilter() {
+            @Override
+            public void filter(ClientRequestContext requestContext) throws IOException {
+                requests.incrementAndGet();
+            }
+        });
+        clientsCreated.incrementAndGet();
+        Log.log(Level.INFO, this, "Created map client for {0}, timeouts connect {1}ms receive {2}ms",
+                systemId, connectTimeout, receiveTimeout);
+    }
+
+    /**
+     * The shared client for a system id, created on first use, and again if
+     * the secret it signs with has changed.
+     */
+    public static Client get(String systemId, String secret) {
+        MapClient c = clients.get(systemId);
+        if (c != null && Objects.equals(c.secret, secret)) {
+            return c.client;
+        }
+        return clients.compute(systemId, (id, old) -> {
+            if (old != null && Objects.equals(old.secret, secret)) {
+                return old;
+            }
+            if (old != null) {
+                // left open, requests may still be using it.
+                Log.log(Level.INFO, MapClient.class, "Secret for {0} has changed, replacing its map client", id);
+            }
+            return new MapClient(id, secret);
+        }).client;
+    }
+
+    /**
+     * Clients created and requests made by each, requests per client well
+     * above one shows clients are being reused.
+     */
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("clientsCreated=").append(clientsCreated.get());
+        for (MapClient c : clients.values()) {
+            sb.append(' ').append(c.systemId).append(".requests=").append(c.requests.get());
+        }
+        return sb.toString();
+    }
+
+    private static long config(String name, long defaultValue) {
+        String value = System.getProperty(name, System.getenv(name));
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, MapClient.class, "Ignoring bad value for {0} : {1}", name, value);
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Runs tasks one at a time, in the order they were handed over, on the
+ * managed executor. For work that turns up on a thread that must not be
+ * held up, such as a Kafka client's I/O thread, but still has to happen in
+ * order. Outside the server it uses a thread of its own.
+ */
+class OrderedExecutor implements Executor {
+
+    private final String name;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private ExecutorService ownExecutor;
+
+    /**
+     * @param name
+     *            for the thread used outside the server.
+     */
+    OrderedExecutor(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor().execute(this::drain);
+            } catch (RejectedExecutionException ree) {
+                // shutting down, nothing else will run them.
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        // check again after letting go, something may have been added as we did.
+        do {
+            try {
+                for (Runnable task; (task = tasks.poll()) != null;) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.log(Level.WARNING, this, "Task failed on " + name, e);
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+        } while (!tasks.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private ExecutorService executor() {
+        try {
+            return (ExecutorService) new InitialContext().lookup("concurrent/execSvc");
+        } catch (NamingException ne) {
+            // outside the server, eg from a test rig.
+            synchronized (this) {
+                if (ownExecutor == null) {
+                    ownExecutor = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                return ownExecutor;
+            }
+        }
+    }
+
+    /**
+     * Let go of the thread used outside the server, once what is queued has
+     * run.
+     */
+    synchronized void shutdown() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+}
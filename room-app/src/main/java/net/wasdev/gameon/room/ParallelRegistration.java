@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Registers many rooms with the map at once, with at most a fixed number of
+ * registrations in flight. Each registration is a chain of blocking REST
+ * calls, so startup time is bounded by the slowest rooms rather than by the
+ * sum of them all.
+ * <p>
+ * The calling thread registers rooms too, alongside helpers from the
+ * server's executor. Registration is itself started from tasks on that
+ * executor, so it must not wait for threads the executor may never free:
+ * with none to spare the caller simply registers every room itself.
+ */
+public class ParallelRegistration {
+
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * One step of registration for a room.
+     */
+    public interface RegistrationTask {
+        /**
+         * @return true if the room is registered, false if it was deferred.
+         */
+        boolean run(RoomRegistrationHandler handler) throws Exception;
+    }
+
+    /**
+     * What happened to each room.
+     */
+    public static class Result {
+        private final int total;
+        private final AtomicInteger registered = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger deferred = new AtomicInteger();
+        private final Map<String, Exception> failures = new ConcurrentHashMap<String, Exception>();
+        private volatile long elapsedMillis;
+
+        Result(int total) {
+            this.total = total;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getRegistered() {
+            return registered.get();
+        }
+
+        /**
+         * Rooms that were found already registered and up to date, without
+         * any calls of their own to the map.
+         */
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        void addDeferred() {
+            deferred.incrementAndGet();
+        }
+
+        void addUnchanged() {
+            unchanged.incrementAndGet();
+            registered.incrementAndGet();
+        }
+
+        /**
+         * Rooms the map could not be reached for, registration of these will
+         * be retried in the background.
+         */
+        public int getDeferred() {
+            return deferred.get();
+        }
+
+        /**
+         * Rooms that failed to register, by room id.
+         */
+        public Map<String, Exception> getFailures() {
+            return failures;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        void addElapsedMillis(long millis) {
+            elapsedMillis += millis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(registered.get()).append(" of ").append(total).append(" rooms registered in ")
+                    .append(elapsedMillis).append("ms, ").append(unchanged.get()).append(" unchanged, ")
+                    .append(deferred.get()).append(" deferred, ")
+                    .append(failures.size()).append(" failed");
+            for (Map.Entry<String, Exception> f : failures.entrySet()) {
+                sb.append("\n  ").append(f.getKey()).append(" : ").append(f.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+    private final int parallelism;
+
+    public ParallelRegistration(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Build from the room_registration_parallelism setting.
+     */
+    public static ParallelRegistration fromConfig() {
+        int parallelism = DEFAULT_PARALLELISM;
+        String value = System.getProperty(Constants.ENV_ROOM_REGISTRATION_PARALLELISM,
+                System.getenv(Constants.ENV_ROOM_REGISTRATION_PARALLELISM));
+        if (value != null) {
+            try {
+                parallelism = Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, ParallelRegistration.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_ROOM_REGISTRATION_PARALLELISM, value);
+            }
+        }
+        return new ParallelRegistration(parallelism);
+    }
+
+    /**
+     * Register every room, returning once all of them have either
+     * registered, been deferred, or failed.
+     */
+    public Result registerAll(Collection<RoomRegistrationHandler> handlers) {
+        Result result = newResult(handlers.size());
+        runAll(handlers, RoomRegistrationHandler::performRegistration, result);
+        return result;
+    }
+
+    public Result newResult(int total) {
+        return new Result(total);
+    }
+
+    /**
+     * Run a registration task for every room, at most parallelism at a time,
+     * recording the outcome in result. The calling thread is one of those
+     * running them.
+     */
+    public Result runAll(Collection<RoomRegistrationHandler> handlers, RegistrationTask task, Result result) {
+        long start = System.nanoTime();
+        int helpers = Math.min(parallelism, handlers.size()) - 1;
+        ExecutorService ownExecutor = null;
+        ExecutorService executor = null;
+        if (helpers > 0) {
+            try {
+                executor = (ExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            } catch (NamingException ne) {
+                // outside the server, eg. when benchmarking.
+                executor = ownExecutor = Executors.newFixedThreadPool(helpers);
+            }
+        }
+
+        Queue<RoomRegistrationHandler> pending = new ConcurrentLinkedQueue<RoomRegistrationHandler>(handlers);
+        CountDownLatch done = new CountDownLatch(handlers.size());
+        Runnable worker = () -> {
+            for (RoomRegistrationHandler handler; (handler = pending.poll()) != null;) {
+                try {
+                    register(handler, task, result);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        try {
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    executor.execute(worker);
+                } catch (RejectedExecutionException ree) {
+                    // fewer hands, the caller and any helpers that started get through the rest.
+                    break;
+                }
+            }
+            worker.run();
+            // only rooms a running helper has taken are left, a helper that never started finds none.
+            done.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            Log.log(Level.WARNING, this, "Interrupted waiting for {0} room registrations", done.getCount());
+        } finally {
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+        }
+        result.addElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        Log.log(result.getFailures().isEmpty() ? Level.INFO : Level.WARNING, this, "Room registration ({0} at a time): {1}",
+                parallelism, result);
+        return result;
+    }
+
+    private void register(RoomRegistrationHandler handler, RegistrationTask task, Result result) {
+        long start = System.nanoTime();
+        try {
+            if (task.run(handler)) {
+                result.registered.incrementAndGet();
+            } else {
+                result.deferred.incrementAndGet();
+            }
+        } catch (Exception e) {
+            Log.log(Level.SEVERE, this, "Room Registration FAILED for " + handler.getRoomId(), e);
+            result.failures.put(handler.getRoomId(), e);
+            handler.failed(e);
+        } finally {
+            StartupProfiler.step("registration", handler.getRoomId(), System.nanoTime() - start);
+        }
+    }
+}
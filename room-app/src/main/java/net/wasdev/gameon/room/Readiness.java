@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+
+import net.wasdev.gameon.room.RoomRegistrationHandler.State;
+import net.wasdev.gameon.room.engine.Engine;
+import net.wasdev.gameon.room.engine.persist.StateStore;
+
+/**
+ * Reports whether the rooms are open for traffic, and how far each one has
+ * got registering with the map.
+ * <p>
+ * Rooms accept connections as soon as their endpoints are open, so by
+ * default this answers 200 from then on. Adding <code>?registered</code>
+ * asks for every room to also be known to the map (registered, or running
+ * on cached exits), answering 503 until then. Adding <code>?budget</code>
+ * answers 503 if startup went over room_startup_budget, so a check can fail
+ * on it without the admin credentials /startup needs.
+ */
+@WebServlet("/ready")
+public class Readiness extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        List<RoomRegistrationHandler> registrations = LifecycleManager.getRegistrations();
+        RegistrationRetryScheduler retries = RegistrationRetryScheduler.getScheduler();
+
+        Map<State, Integer> counts = new EnumMap<State, Integer>(State.class);
+        for (State state : State.values()) {
+            counts.put(state, 0);
+        }
+        JsonObjectBuilder rooms = Json.createObjectBuilder();
+        for (RoomRegistrationHandler registration : registrations) {
+            State state = registration.getState();
+            counts.put(state, counts.get(state) + 1);
+
+            JsonObjectBuilder room = Json.createObjectBuilder();
+            room.add("state", state.name());
+            room.add("exits", registration.getRoom().getExits().size());
+            RoomEndpoints.Hosted hosted = RoomEndpoints.getEndpoints().get(registration.getRoomId());
+            if (hosted != null && hosted.isDraining()) {
+                room.add("draining", true);
+            }
+            if (registration.getLastError() != null) {
+                room.add("error", registration.getLastError());
+            }
+            rooms.add(registration.getRoomId(), room);
+        }
+
+        JsonObjectBuilder summary = Json.createObjectBuilder();
+        for (Map.Entry<State, Integer> count : counts.entrySet()) {
+            summary.add(count.getKey().name().toLowerCase(), count.getValue());
+        }
+
+        boolean open = LifecycleManager.isEndpointsOpen();
+        boolean registered = counts.get(State.REGISTERED) + counts.get(State.CACHED) == registrations.size();
+        boolean overBudget = StartupProfiler.isOverBudget();
+        boolean ready = open && (request.getParameter("registered") == null || registered)
+                && (request.getParameter("budget") == null || !overBudget);
+
+        JsonObjectBuilder status = Json.createObjectBuilder();
+        status.add("ready", ready);
+        status.add("endpointsOpen", open);
+        status.add("registrationComplete", LifecycleManager.isRegistrationComplete());
+        status.add("startupBudget", StartupProfiler.getBudget());
+        status.add("overBudget", overBudget);
+        status.add("rooms", registrations.size());
+        status.add("registration", summary);
+        status.add("retryQueue", retries.getQueueDepth());
+        status.add("retryState", retries.getState().name());
+        status.add("nextRetry", retries.getNextAttempt());
+        StateStore store = Engine.getEngine().getStateStore();
+        if (store != null) {
+            status.add("stateHealthy", store.isHealthy());
+            status.add("state", store.getStats());
+        }
+        RoomFanout fanout = RoomFanout.getFanout();
+        if (fanout != null) {
+            status.add("fanout", fanout.getStats());
+        }
+        RoomCluster cluster = RoomCluster.getCluster();
+        if (cluster != null) {
+            status.add("cluster", cluster.getStats());
+        }
+        RoomCommandIngestion ingestion = RoomCommandIngestion.getIngestion();
+        if (ingestion != null) {
+            status.add("commands", ingestion.getStats());
+        }
+        status.add("exits", ExitFastPath.getFastPath().getStats());
+        status.add("broadcast", WorldBroadcast.getBroadcast().getStats());
+        status.add("room", rooms);
+
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType(MediaType.APPLICATION_JSON);
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(status.build().toString());
+    }
+}
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+import net.wasdev.gameon.room.engine.Engine;
+
+/**
+ * Remembers, per room, a fingerprint of what was last registered with the map
+ * along with the map's id for the room and the exits it gave back. A room
+ * whose fingerprint is unchanged can use those exits straight away; within
+ * the TTL it does not need to ask the map at all, after it a single lookup by
+ * id confirms the registration.
+ * <p>
+ * Kept in the room state directory, there is no cache if that is not set.
+ */
+public class RegistrationCache {
+
+    public static final long DEFAULT_TTL_SECONDS = 3600;
+
+    /**
+     * What was last registered for a room.
+     */
+    public static class Entry {
+        public final String fingerprint;
+        public final String mapId;
+        public final JsonObject exits;
+        public final long verified;
+
+        Entry(String fingerprint, String mapId, JsonObject exits, long verified) {
+            this.fingerprint = fingerprint;
+            this.mapId = mapId;
+            this.exits = exits;
+            this.verified = verified;
+        }
+    }
+
+    private final Path file;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public RegistrationCache(Path file, long ttlMillis) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+    }
+
+    /**
+     * Build from the room_state_dir and room_registration_cache_ttl settings.
+     */
+    public static RegistrationCache fromConfig() {
+        String dir = System.getProperty(Constants.ENV_ROOM_STATE_DIR, System.getenv(Constants.ENV_ROOM_STATE_DIR));
+        long ttlSeconds = DEFAULT_TTL_SECONDS;
+        String value = System.getProperty(Constants.ENV_ROOM_REGISTRATION_CACHE_TTL,
+                System.getenv(Constants.ENV_ROOM_REGISTRATION_CACHE_TTL));
+        if (value != null) {
+            try {
+                ttlSeconds = Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, RegistrationCache.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_ROOM_REGISTRATION_CACHE_TTL, value);
+            }
+        }
+        Path file = dir == null || dir.isEmpty() ? null
+                : Paths.get(dir, "registrations-" + Engine.getNodeId() + ".json");
+        return new RegistrationCache(file, TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * The entry for a handler's room, if its fingerprint is unchanged.
+     */
+    public Entry get(RoomRegistrationHandler handler) {
+        Entry e = entries.get(handler.getRoomId());
+        return e != null && e.fingerprint.equals(handler.getFingerprint()) ? e : null;
+    }
+
+    /**
+     * Apply cached exits to every room with an unchanged fingerprint.
+     *
+     * @return the rooms that still need the map, either because nothing
+     *         usable is cached for them or because their entry is older than
+     *         the TTL.
+     */
+    public List<RoomRegistrationHandler> applyCachedExits(Collection<RoomRegistrationHandler> handlers) {
+        List<RoomRegistrationHandler> remaining = new ArrayList<RoomRegistrationHandler>();
+        long now = System.currentTimeMillis();
+        int fresh = 0;
+        for (RoomRegistrationHandler handler : handlers) {
+            Entry e = get(handler);
+            if (e != null) {
+                handler.applyCachedExits(e.exits);
+                if (now - e.verified < ttlMillis) {
+                    fresh++;
+                    continue;
+                }
+            }
+            remaining.add(handler);
+        }
+        if (isEnabled()) {
+            Log.log(Level.INFO, this, "Registration cache: {0} of {1} rooms unchanged and verified within {2}s",
+                    fresh, handlers.size(), TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+        }
+        return remaining;
+    }
+
+    /**
+     * Record what the map returned for rooms that have been registered, and
+     * forget rooms that are no longer here.
+     */
+    public void update(Collection<RoomRegistrationHandler> handlers) {
+        Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+        long now = System.currentTimeMillis();
+        for (RoomRegistrationHandler handler : handlers) {
+            JsonObject registered = handler.getLastRegistration();
+            if (registered != null && registered.containsKey("exits")) {
+                current.put(handler.getRoomId(), new Entry(handler.getFingerprint(), registered.getString("_id"),
+                        registered.getJsonObject("exits"), now));
+            } else if (entries.containsKey(handler.getRoomId())) {
+                current.put(handler.getRoomId(), entries.get(handler.getRoomId()));
+            }
+        }
+        entries.clear();
+        entries.putAll(current);
+    }
+
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        JsonObjectBuilder rooms = Json.createObjectBuilder();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            rooms.add(e.getKey(), Json.createObjectBuilder().add("fingerprint", entry.fingerprint)
+                    .add("_id", entry.mapId).add("exits", entry.exits).add("verified", entry.verified));
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                Json.createWriter(out).writeObject(rooms.build());
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException io) {
+            Log.log(Level.WARNING, this, "Unable to save registration cache " + file, io);
+        }
+    }
+
+    private void load() {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JsonObject rooms = Json.createReader(in).readObject();
+            for (Map.Entry<String, JsonValue> e : rooms.entrySet()) {
+                JsonObject entry = (JsonObject) e.getValue();
+                entries.put(e.getKey(), new Entry(entry.getString("fingerprint"), entry.getString("_id"),
+                        entry.getJsonObject("exits"), entry.getJsonNumber("verified").longValue()));
+            }
+        } catch (IOException | JsonException | ClassCastException | NullPointerException bad) {
+            // start afresh, everything will be registered the long way.
+            Log.log(Level.WARNING, this, "Ignoring unreadable registration cache " + file, bad);
+            entries.clear();
+        }
+    }
+}
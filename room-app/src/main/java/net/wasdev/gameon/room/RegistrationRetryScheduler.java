@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Retries registration for every room the map was unavailable for, from a
+ * single schedule.
+ * <p>
+ * Pending rooms are retried together in one sweep. While the map is failing
+ * the breaker is open: each sweep sends a single room as a probe, and the
+ * delay between sweeps doubles (with jitter) up to a maximum. Once a probe
+ * gets through the breaker closes and the rest of the rooms follow, a
+ * bounded number at a time, so a map coming back is not met by every room at
+ * once.
+ */
+public class RegistrationRetryScheduler {
+
+    public static final long DEFAULT_BASE_DELAY_SECONDS = 5;
+    public static final long DEFAULT_MAX_DELAY_SECONDS = 300;
+
+    public enum State {
+        CLOSED, OPEN
+    };
+
+    private static final RegistrationRetryScheduler scheduler = new RegistrationRetryScheduler(
+            config(Constants.ENV_ROOM_REGISTRATION_RETRY_BASE, DEFAULT_BASE_DELAY_SECONDS),
+            config(Constants.ENV_ROOM_REGISTRATION_RETRY_MAX, DEFAULT_MAX_DELAY_SECONDS));
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Map<String, RoomRegistrationHandler> pending = new ConcurrentHashMap<String, RoomRegistrationHandler>();
+
+    // guarded by this.
+    private ScheduledExecutorService executor;
+    private boolean scheduled;
+    private boolean sweeping;
+    private int failures;
+    private State state = State.CLOSED;
+    private long nextAttempt;
+    private long sweeps;
+    private long retries;
+
+    public static RegistrationRetryScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public RegistrationRetryScheduler(long baseDelaySeconds, long maxDelaySeconds) {
+        this.baseDelayMillis = TimeUnit.SECONDS.toMillis(Math.max(1, baseDelaySeconds));
+        this.maxDelayMillis = Math.max(baseDelayMillis, TimeUnit.SECONDS.toMillis(maxDelaySeconds));
+    }
+
+    /**
+     * Queue a room whose registration could not reach the map.
+     */
+    public void defer(RoomRegistrationHandler handler) {
+        if (pending.putIfAbsent(handler.getRoomId(), handler) == null) {
+            Log.log(Level.FINE, this, "Room {0} queued for registration retry", handler.getRoomId());
+        }
+        scheduleSweep();
+    }
+
+    /**
+     * Stop retrying a room, because it has gone away.
+     */
+    public void cancel(RoomRegistrationHandler handler) {
+        pending.remove(handler.getRoomId(), handler);
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    /**
+     * When the next sweep will run, in epoch millis, or 0 if none is due.
+     */
+    public synchronized long getNextAttempt() {
+        return scheduled ? nextAttempt : 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized String getStats() {
+        return "pending=" + pending.size() + " state=" + state + " failures=" + failures + " sweeps=" + sweeps
+                + " retries=" + retries + " nextAttempt="
+                + (scheduled ? new Date(nextAttempt) + " (in "
+                        + TimeUnit.MILLISECONDS.toSeconds(nextAttempt - System.currentTimeMillis()) + "s)" : "none");
+    }
+
+    private synchronized void scheduleSweep() {
+        if (scheduled || sweeping || pending.isEmpty()) {
+            return;
+        }
+        long delay = nextDelay();
+        nextAttempt = System.currentTimeMillis() + delay;
+        scheduled = true;
+        executor().schedule(this::sweep, delay, TimeUnit.MILLISECONDS);
+        Log.log(Level.INFO, this, "{0} rooms awaiting registration, next attempt in {1}ms (breaker {2})",
+                pending.size(), delay, state);
+    }
+
+    /**
+     * Exponential backoff with jitter, half to all of base * 2^failures.
+     */
+    private long nextDelay() {
+        long delay = baseDelayMillis << Math.min(failures, 20);
+        delay = Math.min(delay, maxDelayMillis);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void sweep() {
+        synchronized (this) {
+            scheduled = false;
+            sweeping = true;
+            sweeps++;
+        }
+        try {
+            List<RoomRegistrationHandler> batch = new ArrayList<RoomRegistrationHandler>(pending.values());
+            if (batch.isEmpty()) {
+                return;
+            }
+            // probe with one room first, the rest only follow if it gets through.
+            RoomRegistrationHandler probe = batch.remove(0);
+            if (!retry(probe)) {
+                synchronized (this) {
+                    failures++;
+                    state = State.OPEN;
+                }
+                return;
+            }
+            synchronized (this) {
+                failures = 0;
+                state = State.CLOSED;
+            }
+            if (!batch.isEmpty()) {
+                ParallelRegistration parallel = ParallelRegistration.fromConfig();
+                parallel.runAll(batch, this::retry, parallel.newResult(batch.size()));
+            }
+        } finally {
+            synchronized (this) {
+                sweeping = false;
+            }
+            scheduleSweep();
+        }
+    }
+
+    /**
+     * @return true if the room registered, false if it is still waiting for
+     *         the map.
+     */
+    private boolean retry(RoomRegistrationHandler handler) {
+        pending.remove(handler.getRoomId());
+        synchronized (this) {
+            retries++;
+        }
+        try {
+            if (handler.performRegistration()) {
+                return true;
+            }
+            // it has queued itself again.
+            return false;
+        } catch (Exception e) {
+            Log.log(Level.SEVERE, this, "Room Registration FAILED for " + handler.getRoomId() + " on retry", e);
+            handler.failed(e);
+            // the map answered, so the breaker can close, but the room has to wait for a restart.
+            return true;
+        }
+    }
+
+    private synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            try {
+                executor = (ScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            } catch (NamingException ne) {
+                // outside the server, eg. when benchmarking.
+                executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "room-registration-retry");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        return executor;
+    }
+
+    private static long config(String name, long defaultValue) {
+        String value = System.getProperty(name, System.getenv(name));
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, RegistrationRetryScheduler.class, "Ignoring bad value for {0} : {1}", name, value);
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Adds and removes rooms while running, see {@link RoomEndpoints}.
+ * <ul>
+ * <li>GET /admin/rooms lists the rooms being served</li>
+ * <li>POST /admin/rooms with a room definition, in the same JSON format as
+ * the room_data_dir files, adds a room</li>
+ * <li>DELETE /admin/rooms/{roomId} drains and removes a room</li>
+ * </ul>
+ * Room ids may only have letters, digits, '_' and '-', others are refused
+ * with a 400. Uses the same basic auth as LogView, admin with the registration secret.
+ */
+@WebServlet("/admin/rooms/*")
+public class RoomAdmin extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    static boolean authorized(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String authHeader = request.getHeader("Authorization");
+        if (authHeader == null || !authHeader.regionMatches(true, 0, "Basic ", 0, 6)) {
+            response.setHeader("WWW-Authenticate", "Basic realm=\"room admin\"");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return false;
+        }
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(authHeader.substring(6).trim()), "UTF-8");
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "badly formed auth header.");
+            return false;
+        }
+        String expectedPassword;
+        try {
+            expectedPassword = (String) new InitialContext().lookup("registrationSecret");
+        } catch (NamingException e) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "unable to obtain pw to auth against");
+            return false;
+        }
+        int p = credentials.indexOf(":");
+        if (p == -1 || !"admin".equals(credentials.substring(0, p).trim())
+                || !MessageDigest.isEqual(expectedPassword.getBytes(StandardCharsets.UTF_8),
+                        credentials.substring(p + 1).trim().getBytes(StandardCharsets.UTF_8))) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+    private String roomId(HttpServletRequest request) {
+        String path = request.getPathInfo();
+        return path == null || path.length() <= 1 ? null : path.substring(1);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!authorized(request, response)) {
+            return;
+        }
+        JsonArrayBuilder rooms = Json.createArrayBuilder();
+        for (RoomRegistrationHandler registration : RoomEndpoints.getEndpoints().getRegistrations()) {
+            RoomEndpoints.Hosted hosted = RoomEndpoints.getEndpoints().get(registration.getRoomId());
+            rooms.add(Json.createObjectBuilder().add("id", registration.getRoomId())
+                    .add("name", registration.getRoom().getRoomName())
+                    .add("registration", registration.getState().name())
+                    .add("draining", hosted != null && hosted.isDraining())
+                    .add("sessions", hosted == null ? 0 : hosted.getResponseProcessor().getSessions().size()));
+        }
+        response.setContentType(MediaType.APPLICATION_JSON);
+        response.getWriter().write(rooms.build().toString());
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!authorized(request, response)) {
+            return;
+        }
+        JsonObject definition;
+        try {
+            definition = Json.createReader(request.getReader()).readObject();
+        } catch (JsonException | IllegalStateException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Room definition must be a JSON object");
+            return;
+        }
+        RoomEndpoints.Hosted hosted;
+        try {
+            hosted = RoomEndpoints.getEndpoints().add(definition);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (IllegalStateException e) {
+            response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        response.setHeader("Location", request.getRequestURL() + "/" + hosted.getRoom().getRoomId());
+        response.setContentType(MediaType.APPLICATION_JSON);
+        response.getWriter().write(Json.createObjectBuilder().add("id", hosted.getRoom().getRoomId())
+                .add("endpoint", "/ws/" + hosted.getRoom().getRoomId()).build().toString());
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!authorized(request, response)) {
+            return;
+        }
+        String roomId = roomId(request);
+        if (roomId == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "DELETE needs a room id");
+            return;
+        }
+        if (!RoomEndpoints.isValidRoomId(roomId)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Room ids may only have letters, digits, '_' and '-'");
+            return;
+        }
+        if (RoomEndpoints.getEndpoints().get(roomId) == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No room " + roomId);
+            return;
+        }
+        // removal finishes in the background once the room has drained.
+        response.setStatus(RoomEndpoints.getEndpoints().remove(roomId) ? HttpServletResponse.SC_ACCEPTED
+                : HttpServletResponse.SC_CONFLICT);
+    }
+}
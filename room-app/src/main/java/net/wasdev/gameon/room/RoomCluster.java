@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import net.wasdev.gameon.room.engine.Engine;
+
+/**
+ * Shares rooms out between the nodes of a cluster, so that each room is
+ * served, and registered with the map, by only one of them. Owners are
+ * picked by a {@link ConsistentHashRing} over the cluster members, so when
+ * a node joins or leaves only the rooms it gains or loses move.
+ * <p>
+ * Members are listed in room_cluster_members, found in room_cluster_dir,
+ * or both. Each node in a cluster directory keeps a file named after its
+ * node id fresh there, and nodes whose files have not been touched for a
+ * few heartbeats are taken to have left. Several JVMs on one machine can
+ * share a directory, each with its own room_node_id.
+ * <p>
+ * Every heartbeat the rooms this node should own are compared with the
+ * rooms it serves: rooms gained are served and registered, pointing the
+ * map at this node, and rooms lost are drained so their players move to
+ * the new owner. Only the rooms defined at startup are shared out, rooms
+ * added at runtime stay on the node they were added to.
+ */
+public class RoomCluster {
+
+    public static final long DEFAULT_HEARTBEAT_SECONDS = 5;
+    static final String MEMBER_SUFFIX = ".member";
+
+    // heartbeats a member can miss before it is taken to have left.
+    private static final int MISSED_HEARTBEATS = 3;
+
+    /**
+     * Starts and stops serving rooms as they move.
+     */
+    public interface Host {
+        /**
+         * True if the room is served here, and not being drained.
+         */
+        boolean isHosted(String roomId);
+
+        void host(String roomId);
+
+        void release(String roomId);
+    }
+
+    private static volatile RoomCluster cluster;
+
+    private final String nodeId;
+    private final Path dir;
+    private final Set<String> listed;
+    private final long heartbeatMillis;
+    private volatile ConsistentHashRing ring;
+    // the periodic rebalance, cancelled when the node leaves.
+    private volatile Future<?> heartbeats;
+    private volatile boolean left;
+
+    private final AtomicLong rebalances = new AtomicLong();
+    private final AtomicLong gained = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private volatile String lastRebalance = "none";
+    private volatile Map<String, Integer> spread = Collections.emptyMap();
+    private volatile int owned;
+
+    public RoomCluster(String nodeId, Path dir, Collection<String> listed, long heartbeatMillis) {
+        this.nodeId = nodeId;
+        this.dir = dir;
+        this.listed = Collections.unmodifiableSet(new TreeSet<String>(listed));
+        this.heartbeatMillis = heartbeatMillis;
+        this.ring = new ConsistentHashRing(Collections.singleton(nodeId));
+    }
+
+    /**
+     * @return the cluster this node is part of, or null if it serves every
+     *         room itself.
+     */
+    public static RoomCluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Build from the room_cluster_* settings.
+     *
+     * @return null if no cluster is configured.
+     */
+    public static RoomCluster fromConfig() {
+        String dirName = System.getProperty(Constants.ENV_ROOM_CLUSTER_DIR, System.getenv(Constants.ENV_ROOM_CLUSTER_DIR));
+        String members = System.getProperty(Constants.ENV_ROOM_CLUSTER_MEMBERS,
+                System.getenv(Constants.ENV_ROOM_CLUSTER_MEMBERS));
+        boolean hasDir = dirName != null && !dirName.trim().isEmpty();
+        boolean hasMembers = members != null && !members.trim().isEmpty();
+        if (!hasDir && !hasMembers) {
+            return null;
+        }
+        List<String> listed = new ArrayList<String>();
+        if (hasMembers) {
+            for (String m : members.split(",")) {
+                if (!m.trim().isEmpty()) {
+                    listed.add(m.trim());
+                }
+            }
+        }
+        long heartbeatSeconds = DEFAULT_HEARTBEAT_SECONDS;
+        String value = System.getProperty(Constants.ENV_ROOM_CLUSTER_HEARTBEAT,
+                System.getenv(Constants.ENV_ROOM_CLUSTER_HEARTBEAT));
+        if (value != null) {
+            try {
+                heartbeatSeconds = Math.max(1, Long.parseLong(value.trim()));
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, RoomCluster.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_ROOM_CLUSTER_HEARTBEAT, value);
+            }
+        }
+        return new RoomCluster(Engine.getNodeId(), hasDir ? Paths.get(dirName.trim()) : null, listed,
+                TimeUnit.SECONDS.toMillis(heartbeatSeconds));
+    }
+
+    /**
+     * Make this the cluster the node is part of, announcing it to the others.
+     */
+    static synchronized void join(RoomCluster c) {
+        c.heartbeat();
+        c.ring = new ConsistentHashRing(c.discover());
+        cluster = c;
+        Log.log(Level.INFO, RoomCluster.class, "Node {0} joined a cluster of {1}", c.nodeId, c.ring.getMembers());
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    public Set<String> getMembers() {
+        return ring.getMembers();
+    }
+
+    /**
+     * True if this node should serve the room, going by the members last seen.
+     */
+    public boolean owns(String roomId) {
+        return nodeId.equals(ownerOf(roomId));
+    }
+
+    /**
+     * The node that should serve the room, going by the members last seen.
+     */
+    public String ownerOf(String roomId) {
+        return ring.ownerOf(roomId);
+    }
+
+    /**
+     * The task that calls rebalance every heartbeat, stopped when the node
+     * leaves.
+     */
+    public void setHeartbeats(Future<?> task) {
+        heartbeats = task;
+        if (left) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Let the other nodes know we are still here.
+     */
+    public void heartbeat() {
+        if (dir == null || left) {
+            return;
+        }
+        Path file = dir.resolve(nodeId + MEMBER_SUFFIX);
+        try {
+            if (Files.exists(file)) {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } else {
+                Files.createDirectories(dir);
+                Files.write(file, new byte[0]);
+            }
+        } catch (IOException io) {
+            Log.log(Level.WARNING, this, "Unable to update cluster membership in " + file, io);
+        }
+    }
+
+    /**
+     * Stop the heartbeats and stop announcing this node, so the others take
+     * its rooms without waiting for it to time out.
+     */
+    public void leave() {
+        left = true;
+        Future<?> task = heartbeats;
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (dir == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(nodeId + MEMBER_SUFFIX));
+            Log.log(Level.INFO, this, "Node {0} left the cluster", nodeId);
+        } catch (IOException io) {
+            Log.log(Level.WARNING, this, "Unable to leave cluster in " + dir, io);
+        }
+    }
+
+    /**
+     * The members listed, those with a fresh file in the cluster directory,
+     * and this node.
+     */
+    Set<String> discover() {
+        Set<String> members = new TreeSet<String>(listed);
+        members.add(nodeId);
+        if (dir == null) {
+            return members;
+        }
+        long oldest = System.currentTimeMillis() - heartbeatMillis * MISSED_HEARTBEATS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + MEMBER_SUFFIX)) {
+            for (Path f : files) {
+                try {
+                    if (Files.getLastModifiedTime(f).toMillis() >= oldest) {
+                        String name = f.getFileName().toString();
+                        members.add(name.substring(0, name.length() - MEMBER_SUFFIX.length()));
+                    }
+                } catch (IOException io) {
+                    // the member left while we were looking.
+                }
+            }
+        } catch (IOException io) {
+            // keep the members we had, rather than take every room.
+            Log.log(Level.WARNING, this, "Unable to read cluster membership from " + dir, io);
+            return ring.getMembers();
+        }
+        return members;
+    }
+
+    /**
+     * Heartbeat, look for members that have come or gone, and serve or
+     * drain rooms to match.
+     */
+    public void rebalance(Collection<String> roomIds, Host host) {
+        if (left) {
+            // leaving, the other nodes are taking our rooms.
+            return;
+        }
+        heartbeat();
+        Set<String> members = discover();
+        ConsistentHashRing r = ring;
+        if (!members.equals(r.getMembers())) {
+            Log.log(Level.INFO, this, "Cluster members changed from {0} to {1}", r.getMembers(), members);
+            r = ring = new ConsistentHashRing(members);
+        }
+
+        long start = System.nanoTime();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        List<String> gain = new ArrayList<String>();
+        List<String> lose = new ArrayList<String>();
+        for (String roomId : roomIds) {
+            String owner = r.ownerOf(roomId);
+            counts.merge(owner, 1, Integer::sum);
+            boolean hosted = host.isHosted(roomId);
+            if (nodeId.equals(owner)) {
+                if (!hosted) {
+                    gain.add(roomId);
+                }
+            } else if (hosted) {
+                lose.add(roomId);
+            }
+        }
+        spread = counts;
+        owned = counts.getOrDefault(nodeId, 0);
+        if (gain.isEmpty() && lose.isEmpty()) {
+            return;
+        }
+        // take new rooms first, the map then points players here before the old owner drains them.
+        int took = 0;
+        for (String roomId : gain) {
+            try {
+                host.host(roomId);
+                took++;
+            } catch (RuntimeException e) {
+                // still draining from an earlier move, try again next time.
+                Log.log(Level.FINE, this, "Unable to serve room " + roomId + " yet", e);
+            }
+        }
+        for (String roomId : lose) {
+            host.release(roomId);
+        }
+        rebalances.incrementAndGet();
+        gained.addAndGet(took);
+        released.addAndGet(lose.size());
+        lastRebalance = "+" + took + "/-" + lose.size() + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms";
+        Log.log(Level.INFO, this, "Rebalanced rooms across {0} members: took {1}, released {2}, now own {3} of {4}",
+                members.size(), took, lose.size(), owned, roomIds.size());
+    }
+
+    /**
+     * How many rooms each member owns, as of the last rebalance.
+     */
+    public Map<String, Integer> getSpread() {
+        return spread;
+    }
+
+    public String getStats() {
+        Map<String, Integer> s = spread;
+        int max = 0;
+        int total = 0;
+        for (int count : s.values()) {
+            max = Math.max(max, count);
+            total += count;
+        }
+        int members = ring.getMembers().size();
+        return "node=" + nodeId + " members=" + members + " owned=" + owned + " spread=" + new TreeSet<String>(
+                s.keySet()).stream().map(m -> m + ":" + s.get(m)).reduce((a, b) -> a + "," + b).orElse("")
+                + " maxOverIdeal=" + (total == 0 ? "0" : String.format("%.2f", max * (double) members / total))
+                + " rebalances=" + rebalances.get() + " gained=" + gained.get() + " released=" + released.get()
+                + " last=" + lastRebalance;
+    }
+}
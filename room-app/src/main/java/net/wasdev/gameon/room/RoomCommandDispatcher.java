@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.StringReader;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReaderFactory;
+
+import net.wasdev.gameon.room.engine.Room;
+
+/**
+ * Runs the routed frames players send a room: roomHello, room and
+ * roomGoodbye. Frames normally arrive on the room's WebSocket sessions, but
+ * can also be read from the command topic by {@link RoomCommandIngestion}.
+ */
+public class RoomCommandDispatcher {
+
+    // looking up the json provider is expensive, and every frame is parsed, so share one reader factory.
+    private static final JsonReaderFactory readerFactory = Json.createReaderFactory(null);
+
+    private final Room room;
+    private final LifecycleManager.SessionRoomResponseProcessor srrp;
+
+    public RoomCommandDispatcher(Room room, LifecycleManager.SessionRoomResponseProcessor srrp) {
+        this.room = room;
+        this.srrp = srrp;
+    }
+
+    /**
+     * @param via
+     *            where the frame came from, for logging.
+     */
+    public void dispatch(String message, String via) {
+        Log.log(Level.FINE, this, "ROOMX: [{0}] via {1} : {2}", room.getRoomId(), via, message);
+        String[] contents = Message.splitRouting(message);
+        if (contents.length < 3) {
+            Log.log(Level.SEVERE, this, "Malformed message for room {0} message {1}", room.getRoomId(), message);
+            return;
+        }
+        if (contents[0].equals("roomHello")) {
+            addNewPlayer(contents[2], via);
+            return;
+        }
+        if (contents[0].equals("room")) {
+            processCommand(contents[2]);
+            return;
+        }
+        if (contents[0].equals("roomGoodbye")) {
+            removePlayer(contents[2], via);
+            return;
+        }
+        Log.log(Level.SEVERE, this, "Unknown Message Type {0} for room {1} message {2}", contents[0], room.getRoomId(),message);
+    }
+
+    // process a command
+    private void processCommand(String json) {
+        Log.log(Level.FINE,this, "Command received from the user, " + this);
+        JsonObject msg = readerFactory.createReader(new StringReader(json)).readObject();
+
+        String content = Message.getValue(msg.get("content"));
+        String userid = Message.getValue(msg.get(Constants.USERID));
+
+        if (content.startsWith("/")) {
+            room.command(userid, content.substring(1));
+        } else {
+            String username = Message.getValue(msg.get(Constants.USERNAME));
+            if(username==null){
+                Log.log(Level.WARNING, this, "Recieved chat msg with missing username : {0}", json);
+                username = userid;
+            }
+            // everything else is chat.
+            srrp.chatEvent(username, content);
+        }
+    }
+
+    // add a new player to the room
+    private void addNewPlayer(String json, String via) {
+
+        JsonObject msg = readerFactory.createReader(new StringReader(json)).readObject();
+        String username = Message.getValue(msg.get(Constants.USERNAME));
+        String userid = Message.getValue(msg.get(Constants.USERID));
+
+        Log.log(Level.INFO, this, "*** Adding player {0} from room {1} via {2}", userid,room.getRoomId(),via);
+
+        ExitFastPath.getFastPath().arrived(room, srrp, userid, username, () -> {
+            room.addUserToRoom(userid, username);
+            room.command(userid, "look");
+        });
+    }
+
+    private void removePlayer(String json, String via) {
+        JsonObject msg = readerFactory.createReader(new StringReader(json)).readObject();
+        String userid = Message.getValue(msg.get(Constants.USERID));
+        Log.log(Level.INFO, this, "*** Removing player {0} from room {1} via {2}", userid,room.getRoomId(),via);
+        room.removeUserFromRoom(userid);
+    }
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Runs player commands on whichever node owns the room, rather than on the
+ * node the player happens to be connected to. When enabled, the frames a
+ * session sends are published, keyed by room id, to a partitioned topic read
+ * by a consumer group of every node. The node assigned a room's partition
+ * runs its commands, in the order they were sent, and the room's output goes
+ * out through its response processor as usual.
+ * <p>
+ * Room ownership follows partition assignment, so rooms move between nodes
+ * as nodes join and leave the group without any sticky routing of sessions.
+ * Output is only seen by the sessions on the owning node unless it is also
+ * fanned out, see {@link RoomFanout}.
+ * <p>
+ * If a frame cannot be published it is run here instead, so players are not
+ * left without an answer. Those frames are queued and run in order on the
+ * managed executor, never on the thread that reported the failure, which
+ * may be the producer's.
+ * <p>
+ * Room ownership comes from the partitions alone, so this can not be used
+ * together with a {@link RoomCluster}, which shares rooms out by its own
+ * ring.
+ */
+public class RoomCommandIngestion {
+
+    public static final String TOPIC = "gameon-room-commands";
+
+    /**
+     * Carries command frames to the node that owns their room.
+     */
+    public interface Transport {
+        /**
+         * Start handing receiver the frames for the partitions this node is
+         * assigned, telling ownership as the assignment changes.
+         */
+        void start(Receiver receiver, Ownership ownership);
+
+        /**
+         * Publish a frame, ordered after earlier ones for the same room.
+         * Must not block for long. done may be told on the transport's own
+         * I/O thread, and must not block it.
+         */
+        void send(String roomId, String frame, RoomFanout.Completion done);
+
+        void close();
+    }
+
+    public interface Receiver {
+        void received(String roomId, String frame);
+    }
+
+    public interface Ownership {
+        void assigned(Collection<Integer> partitions, int partitionCount);
+
+        void revoked(Collection<Integer> partitions);
+    }
+
+    /**
+     * Runs a frame against a room served by this node.
+     */
+    public interface Dispatch {
+        /**
+         * @return false if the room is not served here.
+         */
+        boolean dispatch(String roomId, String frame);
+    }
+
+    private static volatile RoomCommandIngestion ingestion;
+
+    private final Transport transport;
+    private final Dispatch dispatch;
+    // frames that could not be published, run here in order.
+    private final OrderedExecutor fallback = new OrderedExecutor("room-command-fallback");
+
+    private volatile Set<Integer> owned = Collections.emptySet();
+    private volatile int partitionCount;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder forwardFailed = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder notServed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rebalances = new LongAdder();
+
+    public RoomCommandIngestion(Transport transport, Dispatch dispatch) {
+        this.transport = transport;
+        this.dispatch = dispatch;
+    }
+
+    /**
+     * @return the ingestion in use, or null if commands are run by the node
+     *         the player is connected to.
+     */
+    public static RoomCommandIngestion getIngestion() {
+        return ingestion;
+    }
+
+    public static boolean isEnabled() {
+        String value = System.getProperty(Constants.ENV_ROOM_COMMAND_INGESTION,
+                System.getenv(Constants.ENV_ROOM_COMMAND_INGESTION));
+        return value != null && Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Start taking commands through transport, running them against the
+     * rooms hosted on this node.
+     */
+    static synchronized void start(Transport transport) {
+        if (ingestion != null) {
+            return;
+        }
+        RoomCommandIngestion i = new RoomCommandIngestion(transport, (roomId, frame) -> {
+            RoomEndpoints.Hosted hosted = RoomEndpoints.getEndpoints().get(roomId);
+            if (hosted == null) {
+                return false;
+            }
+            hosted.getDispatcher().dispatch(frame, "topic " + TOPIC);
+            return true;
+        });
+        i.open();
+        ingestion = i;
+        Log.log(Level.INFO, RoomCommandIngestion.class, "Room commands are taken from topic {0}", TOPIC);
+        if (!RoomFanout.isEnabled()) {
+            Log.log(Level.WARNING, RoomCommandIngestion.class,
+                    "Room output is not fanned out, players connected to other nodes will not see it. Set {0} as well",
+                    Constants.ENV_ROOM_FANOUT);
+        }
+    }
+
+    /**
+     * The partition a room's commands are published to, the same choice
+     * Kafka's default partitioner makes for the room id as a key.
+     */
+    public static int partitionFor(String roomId, int partitions) {
+        return Utils.abs(Utils.murmur2(roomId.getBytes(StandardCharsets.UTF_8))) % partitions;
+    }
+
+    public void open() {
+        transport.start(this::received, new Ownership() {
+            @Override
+            public void assigned(Collection<Integer> partitions, int count) {
+                Set<Integer> now = new HashSet<Integer>(owned);
+                now.addAll(partitions);
+                partitionCount = count;
+                owned = Collections.unmodifiableSet(now);
+                rebalances.increment();
+                Log.log(Level.INFO, RoomCommandIngestion.this, "Running commands for {0} of {1} partitions, {2} rooms",
+                        now.size(), count, getOwnedRooms());
+            }
+
+            @Override
+            public void revoked(Collection<Integer> partitions) {
+                Set<Integer> now = new HashSet<Integer>(owned);
+                now.removeAll(partitions);
+                owned = Collections.unmodifiableSet(now);
+            }
+        });
+    }
+
+    /**
+     * Stop taking commands from the topic, they run where they arrive from
+     * here on.
+     */
+    static synchronized void stop() {
+        RoomCommandIngestion i = ingestion;
+        if (i != null) {
+            ingestion = null;
+            i.close();
+            Log.log(Level.INFO, RoomCommandIngestion.class, "Room command ingestion stopped: {0}", i.getStats());
+        }
+    }
+
+    public void close() {
+        transport.close();
+        fallback.shutdown();
+    }
+
+    /**
+     * Send a frame from a player to the node that owns the room.
+     *
+     * @param local
+     *            runs the frame here, if it cannot be sent, queued behind
+     *            any others that could not be.
+     */
+    public void forward(String roomId, String frame, Runnable local) {
+        transport.send(roomId, frame, failure -> {
+            if (failure == null) {
+                forwarded.increment();
+                return;
+            }
+            forwardFailed.increment();
+            long count = forwardFailed.sum();
+            // while the topic is away every command ends here, so warn less and less often.
+            if (Long.bitCount(count) == 1) {
+                Log.log(Level.WARNING, this, "Unable to publish " + count + " room commands, running them locally",
+                        failure);
+            }
+            fallback.execute(local);
+        });
+    }
+
+    private void received(String roomId, String frame) {
+        received.increment();
+        if (roomId == null || frame == null) {
+            Log.log(Level.WARNING, this, "Ignoring malformed room command for {0}", roomId);
+            return;
+        }
+        try {
+            if (!dispatch.dispatch(roomId, frame)) {
+                notServed.increment();
+                return;
+            }
+        } catch (RuntimeException e) {
+            failed.increment();
+            Log.log(Level.WARNING, this, "Unable to run room command for " + roomId, e);
+            return;
+        }
+        executed.increment();
+    }
+
+    /**
+     * True if this node is currently assigned the partition for a room.
+     */
+    public boolean owns(String roomId) {
+        int count = partitionCount;
+        return count > 0 && owned.contains(partitionFor(roomId, count));
+    }
+
+    /**
+     * The rooms hosted here whose commands this node is running.
+     */
+    public int getOwnedRooms() {
+        int rooms = 0;
+        for (RoomRegistrationHandler r : RoomEndpoints.getEndpoints().getRegistrations()) {
+            if (owns(r.getRoomId())) {
+                rooms++;
+            }
+        }
+        return rooms;
+    }
+
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    public String getStats() {
+        return "partitions=" + owned.size() + "/" + partitionCount + " rooms=" + getOwnedRooms() + " rebalances="
+                + rebalances.sum() + " forwarded=" + forwarded.sum() + " forwardFailed=" + forwardFailed.sum()
+                + " received=" + received.sum() + " executed=" + executed.sum() + " notServed=" + notServed.sum()
+                + " failed=" + failed.sum();
+    }
+}
@@ -0,0 +1,450 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+
+import net.wasdev.gameon.room.LifecycleManager.SessionRoomResponseProcessor;
+import net.wasdev.gameon.room.engine.Engine;
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.file.HandlerRegistry;
+import net.wasdev.gameon.room.engine.file.JsonDataProvider;
+
+/**
+ * The rooms this app is serving, and what each needs to accept connections.
+ * <p>
+ * Rooms known at startup are opened by {@link LifecycleManager}, rooms can
+ * also be added and removed while running. Every room's websocket endpoint
+ * looks its room up here on each connection, so an added room is reachable
+ * straight away through the /ws/{roomId} endpoint, and a removed one stops
+ * accepting connections.
+ * <p>
+ * Removing a room drains it: new connections are refused and players are
+ * told the room is closing, then after room_drain_timeout seconds (default
+ * 30) anyone still connected is disconnected and the room is taken out of
+ * the engine and the map.
+ * <p>
+ * Room ids name the room's endpoint and its definition file, so rooms added
+ * while running must have ids of letters, digits, '_' and '-' only. In a
+ * cluster a room can only be added on the node the ring gives it to.
+ */
+public class RoomEndpoints {
+
+    public static final long DEFAULT_DRAIN_TIMEOUT_SECONDS = 30;
+
+    private static final Pattern ROOM_ID = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final long DRAIN_CHECK_MILLIS = 250;
+
+    private static final RoomEndpoints endpoints = new RoomEndpoints();
+
+    /**
+     * A room being served.
+     */
+    public static class Hosted {
+        private final RoomRegistrationHandler registration;
+        private final SessionRoomResponseProcessor srrp;
+        private final RoomCommandDispatcher dispatcher;
+        private final HandshakeVerifier verifier;
+        private volatile boolean draining;
+
+        private Hosted(RoomRegistrationHandler registration) {
+            this.registration = registration;
+            this.srrp = new SessionRoomResponseProcessor(registration.getRoomId());
+            this.dispatcher = new RoomCommandDispatcher(registration.getRoom(), srrp);
+            this.verifier = new HandshakeVerifier(registration.getRoomId(), registration.getToken());
+            registration.getRoom().setRoomResponseProcessor(srrp);
+        }
+
+        public Room getRoom() {
+            return registration.getRoom();
+        }
+
+        public RoomRegistrationHandler getRegistration() {
+            return registration;
+        }
+
+        public SessionRoomResponseProcessor getResponseProcessor() {
+            return srrp;
+        }
+
+        public RoomCommandDispatcher getDispatcher() {
+            return dispatcher;
+        }
+
+        public HandshakeVerifier getVerifier() {
+            return verifier;
+        }
+
+        /**
+         * True once the room is being removed, it accepts no new connections.
+         */
+        public boolean isDraining() {
+            return draining;
+        }
+    }
+
+    private final Map<String, Hosted> hosted = new ConcurrentHashMap<String, Hosted>();
+    private final Set<String> added = ConcurrentHashMap.newKeySet();
+    private final List<RoomRegistrationHandler> registrations = new CopyOnWriteArrayList<RoomRegistrationHandler>();
+    private volatile String systemId;
+    private volatile String secret;
+    private ExecutorService ownExecutor;
+    private ScheduledExecutorService ownScheduler;
+
+    public static RoomEndpoints getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return true if the id is safe to use in a path and a file name.
+     */
+    public static boolean isValidRoomId(String roomId) {
+        return roomId != null && ROOM_ID.matcher(roomId).matches();
+    }
+
+    /**
+     * The identity rooms added later are registered with.
+     */
+    void configure(String systemId, String secret) {
+        this.systemId = systemId;
+        this.secret = secret;
+    }
+
+    /**
+     * Start serving a room.
+     */
+    public Hosted open(RoomRegistrationHandler registration) {
+        Hosted h = new Hosted(registration);
+        if (hosted.putIfAbsent(registration.getRoomId(), h) != null) {
+            throw new IllegalStateException("Room " + registration.getRoomId() + " is already being served");
+        }
+        registrations.add(registration);
+        return h;
+    }
+
+    /**
+     * The room being served with this id, or null.
+     */
+    public Hosted get(String roomId) {
+        return roomId == null ? null : hosted.get(roomId);
+    }
+
+    /**
+     * Every room being served, including any being drained.
+     */
+    public Collection<Hosted> getHosted() {
+        return Collections.unmodifiableCollection(hosted.values());
+    }
+
+    /**
+     * Registrations for every room being served, including any being drained.
+     */
+    public List<RoomRegistrationHandler> getRegistrations() {
+        return Collections.unmodifiableList(registrations);
+    }
+
+    /**
+     * Build a room from a definition, add it to the engine and serve it,
+     * registering it with the map in the background.
+     *
+     * @throws IllegalArgumentException
+     *             if the room id is not one that can be served.
+     * @throws IllegalStateException
+     *             if the definition is bad, the room already exists, or in
+     *             a cluster, another node should serve it.
+     */
+    public Hosted add(JsonObject definition) {
+        if (systemId == null) {
+            throw new IllegalStateException("Rooms can not be added until startup has finished");
+        }
+        Room room = JsonDataProvider.buildRoom(definition, HandlerRegistry.withSampleHandlers());
+        if (!isValidRoomId(room.getRoomId())) {
+            throw new IllegalArgumentException("Room id " + room.getRoomId()
+                    + " may only have letters, digits, '_' and '-'");
+        }
+        if (hosted.containsKey(room.getRoomId())) {
+            throw new IllegalStateException("Room " + room.getRoomId() + " is already being served");
+        }
+        RoomCluster cluster = RoomCluster.getCluster();
+        if (cluster != null && !cluster.owns(room.getRoomId())) {
+            //the ring sends its players to the owner, the room would never be reached here.
+            throw new IllegalStateException("Room " + room.getRoomId() + " belongs to node "
+                    + cluster.ownerOf(room.getRoomId()) + ", add it there");
+        }
+        Engine.getEngine().addRoom(room);
+        Hosted h;
+        try {
+            h = open(new RoomRegistrationHandler(room, systemId, secret));
+        } catch (RuntimeException e) {
+            Engine.getEngine().removeRoom(room.getRoomId());
+            throw e;
+        }
+        saveDefinition(room.getRoomId(), definition);
+        registerInBackground(h.getRegistration());
+        Log.log(Level.INFO, this, "Room {0} added, now serving {1} rooms", room.getRoomId(), hosted.size());
+        return h;
+    }
+
+    /**
+     * Serve a room the engine already has, eg. one that has moved here from
+     * another node, registering it with the map in the background.
+     *
+     * @throws IllegalStateException
+     *             if the room is already being served, or still draining.
+     */
+    public Hosted host(Room room) {
+        if (systemId == null) {
+            throw new IllegalStateException("Rooms can not be served until startup has finished");
+        }
+        Hosted h = open(new RoomRegistrationHandler(room, systemId, secret));
+        registerInBackground(h.getRegistration());
+        Log.log(Level.INFO, this, "Room {0} is now served here, serving {1} rooms", room.getRoomId(), hosted.size());
+        return h;
+    }
+
+    private void registerInBackground(RoomRegistrationHandler registration) {
+        execute(() -> {
+            try {
+                registration.performRegistration();
+            } catch (Exception e) {
+                Log.log(Level.SEVERE, this, "Room Registration FAILED for " + registration.getRoomId(), e);
+                registration.failed(e);
+            }
+        });
+    }
+
+    /**
+     * Drain a room and stop serving it, in the background.
+     *
+     * @return false if there is no such room, or it is already draining.
+     */
+    public boolean remove(String roomId) {
+        return stop(roomId, true);
+    }
+
+    /**
+     * Drain a room and stop serving it here, in the background, leaving it
+     * in the engine and registered with the map for the node that now
+     * serves it.
+     *
+     * @return false if there is no such room, or it is already draining.
+     */
+    public boolean release(String roomId) {
+        return stop(roomId, false);
+    }
+
+    private boolean stop(String roomId, boolean delete) {
+        Hosted h = hosted.get(roomId);
+        if (h == null) {
+            return false;
+        }
+        synchronized (h) {
+            if (h.draining) {
+                return false;
+            }
+            h.draining = true;
+        }
+        long drainMillis = TimeUnit.SECONDS.toMillis(drainTimeout());
+        Log.log(Level.INFO, this, "Draining room {0}, {1} sessions connected", roomId, h.srrp.getSessions().size());
+        execute(() -> drain(h, drainMillis, delete));
+        return true;
+    }
+
+    private void drain(Hosted h, long drainMillis, boolean delete) {
+        String roomId = h.getRoom().getRoomId();
+        try {
+            h.getRoom().roomEvent(delete ? "This room is closing. Please make your way out."
+                    : "This room is moving to another server. Please make your way out and come back in.");
+        } catch (RuntimeException e) {
+            Log.log(Level.FINE, this, "Unable to tell everyone room " + roomId + " is closing", e);
+        }
+        awaitDrained(h, System.currentTimeMillis() + drainMillis, delete);
+    }
+
+    /**
+     * Check back until everyone has left or the time is up, rather than hold
+     * a thread while they go.
+     */
+    private void awaitDrained(Hosted h, long deadline, boolean delete) {
+        if (h.srrp.getSessions().isEmpty() || System.currentTimeMillis() >= deadline) {
+            execute(() -> close(h, delete));
+        } else {
+            schedule(() -> awaitDrained(h, deadline, delete), DRAIN_CHECK_MILLIS);
+        }
+    }
+
+    private void close(Hosted h, boolean delete) {
+        String roomId = h.getRoom().getRoomId();
+        for (Session s : h.srrp.getSessions()) {
+            try {
+                s.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Room removed"));
+            } catch (IOException io) {
+                Log.log(Level.FINE, this, "Error closing session " + s.getId(), io);
+            }
+        }
+
+        hosted.remove(roomId, h);
+        registrations.remove(h.getRegistration());
+        if (!delete) {
+            Log.log(Level.INFO, this, "Room {0} released, now serving {1} rooms", roomId, hosted.size());
+            return;
+        }
+        Engine.getEngine().removeRoom(roomId);
+        deleteDefinition(roomId);
+        try {
+            h.getRegistration().deleteRegistration();
+        } catch (Exception e) {
+            Log.log(Level.WARNING, this, "Unable to remove room " + roomId + " from the map", e);
+        }
+        Log.log(Level.INFO, this, "Room {0} removed, now serving {1} rooms", roomId, hosted.size());
+    }
+
+    private static long drainTimeout() {
+        String value = System.getProperty(Constants.ENV_ROOM_DRAIN_TIMEOUT, System.getenv(Constants.ENV_ROOM_DRAIN_TIMEOUT));
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, RoomEndpoints.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_ROOM_DRAIN_TIMEOUT, value);
+            }
+        }
+        return DEFAULT_DRAIN_TIMEOUT_SECONDS;
+    }
+
+    /**
+     * Rooms added at runtime are written to the room_data_dir, so they are
+     * still there after a restart. Without one they last until the restart.
+     * Only definitions written here are deleted again, rooms defined before
+     * startup come back on restart.
+     */
+    private Path definitionFile(String roomId) {
+        String dir = System.getProperty(Constants.ENV_ROOM_DATA_DIR, System.getenv(Constants.ENV_ROOM_DATA_DIR));
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        Path base = Paths.get(dir).toAbsolutePath().normalize();
+        Path file = base.resolve(roomId + ".json").normalize();
+        if (!isValidRoomId(roomId) || !base.equals(file.getParent())) {
+            throw new IllegalArgumentException("Room id " + roomId + " does not name a file in " + base);
+        }
+        return file;
+    }
+
+    private void saveDefinition(String roomId, JsonObject definition) {
+        Path file = definitionFile(roomId);
+        if (file == null) {
+            Log.log(Level.WARNING, this, "No {0} set, room {1} will be gone after a restart", Constants.ENV_ROOM_DATA_DIR, roomId);
+            return;
+        }
+        if (Files.exists(file)) {
+            Log.log(Level.WARNING, this, "Not overwriting {0}, room {1} will be gone after a restart", file, roomId);
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        added.add(roomId);
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                Json.createWriter(out).writeObject(definition);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException io) {
+            Log.log(Level.WARNING, this, "Unable to save definition for room " + roomId + " to " + file, io);
+        }
+    }
+
+    private void deleteDefinition(String roomId) {
+        if (!added.remove(roomId)) {
+            return;
+        }
+        Path file = definitionFile(roomId);
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException io) {
+                Log.log(Level.WARNING, this, "Unable to delete definition for room " + roomId + " at " + file, io);
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            executor.submit(task);
+        } catch (NamingException ne) {
+            // outside the server, eg from a test rig.
+            ExecutorService executor;
+            synchronized (this) {
+                if (ownExecutor == null) {
+                    ownExecutor = Executors.newCachedThreadPool(r -> {
+                        Thread t = new Thread(r, "room-endpoints");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                executor = ownExecutor;
+            }
+            executor.submit(task);
+        }
+    }
+
+    private void schedule(Runnable task, long delayMillis) {
+        try {
+            ManagedScheduledExecutorService executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (NamingException ne) {
+            ScheduledExecutorService executor;
+            synchronized (this) {
+                if (ownScheduler == null) {
+                    ownScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "room-endpoints-drain");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                executor = ownScheduler;
+            }
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Spreads room output across every node serving a room. When enabled, what
+ * a room says is not sent to the sessions connected here, it is published,
+ * keyed by room id, to a partitioned topic that every node reads in full.
+ * Each node hands what it reads to its own sessions for that room, so the
+ * players of one room can be connected to different replicas and still
+ * hear the same things in the same order.
+ * <p>
+ * Only output is shared. Each node still runs its own copy of the room's
+ * state from the commands it is sent.
+ * <p>
+ * If an event cannot be published it is delivered to the local sessions
+ * instead, so players connected here are not left without output. Those
+ * deliveries are queued and made in order on the managed executor, never
+ * on the thread that reported the failure, which may be the producer's.
+ * <p>
+ * Announcements from {@link WorldBroadcast} go out once, under
+ * {@link #BROADCAST_KEY} rather than a room id, for every other node to
+ * send to all of its sessions.
+ */
+public class RoomFanout {
+
+    public static final String TOPIC = "gameon-room-events";
+
+    // not a room, an announcement for every session on every node.
+    public static final String BROADCAST_KEY = "*";
+
+    // node id, sent millis, sent nanos.
+    private static final int HEADER_BYTES = 24;
+
+    /**
+     * Carries published events between nodes.
+     */
+    public interface Transport {
+        /**
+         * Start handing every event published by any node to receiver.
+         */
+        void start(Receiver receiver);
+
+        /**
+         * Publish an event, ordered after earlier ones for the same room.
+         * Must not block for long. done may be told on the transport's own
+         * I/O thread, and must not block it.
+         */
+        void send(String roomId, byte[] value, Completion done);
+
+        void close();
+    }
+
+    public interface Receiver {
+        void received(String roomId, byte[] value);
+    }
+
+    public interface Completion {
+        /**
+         * @param failure
+         *            null if the event was published.
+         */
+        void completed(Exception failure);
+    }
+
+    /**
+     * Hands an event to the sessions connected to this node for a room.
+     */
+    public interface Delivery {
+        /**
+         * @return false if the room is not served here.
+         */
+        boolean deliver(String roomId, String frame);
+    }
+
+    private static volatile RoomFanout fanout;
+
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final Transport transport;
+    private final Delivery delivery;
+    // events that could not be published, for the local sessions, in order.
+    private final OrderedExecutor fallback = new OrderedExecutor("room-fanout-fallback");
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder publishFailed = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder notServed = new LongAdder();
+    private final LongAdder localLatencyNanos = new LongAdder();
+    private final LongAdder localCount = new LongAdder();
+    private final AtomicLong maxLocalLatencyNanos = new AtomicLong();
+    private final LongAdder remoteLatencyMillis = new LongAdder();
+    private final LongAdder remoteCount = new LongAdder();
+    private final AtomicLong maxRemoteLatencyMillis = new AtomicLong();
+
+    public RoomFanout(Transport transport, Delivery delivery) {
+        this.transport = transport;
+        this.delivery = delivery;
+    }
+
+    /**
+     * @return the fan-out in use, or null if room output only goes to
+     *         sessions on this node.
+     */
+    public static RoomFanout getFanout() {
+        return fanout;
+    }
+
+    public static boolean isEnabled() {
+        String value = System.getProperty(Constants.ENV_ROOM_FANOUT, System.getenv(Constants.ENV_ROOM_FANOUT));
+        return value != null && Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Start fanning out room output through transport, delivering to the
+     * rooms hosted on this node.
+     */
+    static synchronized void start(Transport transport) {
+        if (fanout != null) {
+            return;
+        }
+        RoomFanout f = new RoomFanout(transport, (roomId, frame) -> {
+            RoomEndpoints.Hosted hosted = RoomEndpoints.getEndpoints().get(roomId);
+            if (hosted == null) {
+                return false;
+            }
+            hosted.getResponseProcessor().deliver(frame);
+            return true;
+        });
+        f.open();
+        fanout = f;
+        Log.log(Level.INFO, RoomFanout.class, "Room output is fanned out through topic {0}", TOPIC);
+    }
+
+    public void open() {
+        transport.start(this::received);
+    }
+
+    /**
+     * Stop fanning out, room output goes to the local sessions from here on.
+     */
+    static synchronized void stop() {
+        RoomFanout f = fanout;
+        if (f != null) {
+            fanout = null;
+            f.close();
+            Log.log(Level.INFO, RoomFanout.class, "Room output fan-out stopped: {0}", f.getStats());
+        }
+    }
+
+    public void close() {
+        transport.close();
+        fallback.shutdown();
+    }
+
+    /**
+     * Publish a frame for every session of a room, on every node.
+     */
+    public void publish(String roomId, String frame) {
+        byte[] text = frame.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer value = ByteBuffer.allocate(HEADER_BYTES + text.length);
+        value.putLong(nodeId).putLong(System.currentTimeMillis()).putLong(System.nanoTime()).put(text);
+        transport.send(roomId, value.array(), failure -> {
+            if (failure == null) {
+                published.increment();
+                return;
+            }
+            publishFailed.increment();
+            long count = publishFailed.sum();
+            // while the topic is away every event ends here, so warn less and less often.
+            if (Long.bitCount(count) == 1) {
+                Log.log(Level.WARNING, this, "Unable to publish " + count + " room events, delivering them locally",
+                        failure);
+            }
+            deliverLocally(roomId, frame);
+        });
+    }
+
+    /**
+     * Publish an announcement for the other nodes, the caller has already
+     * sent it to the sessions on this one.
+     */
+    public void broadcast(String frame) {
+        byte[] text = frame.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer value = ByteBuffer.allocate(HEADER_BYTES + text.length);
+        value.putLong(nodeId).putLong(System.currentTimeMillis()).putLong(System.nanoTime()).put(text);
+        transport.send(BROADCAST_KEY, value.array(), failure -> {
+            if (failure == null) {
+                published.increment();
+                return;
+            }
+            publishFailed.increment();
+            Log.log(Level.WARNING, this, "Unable to publish an announcement, only this node's sessions have it",
+                    failure);
+        });
+    }
+
+    private void deliverLocally(String roomId, String frame) {
+        fallback.execute(() -> delivery.deliver(roomId, frame));
+    }
+
+    private void received(String roomId, byte[] bytes) {
+        received.increment();
+        if (bytes == null || bytes.length < HEADER_BYTES) {
+            Log.log(Level.WARNING, this, "Ignoring malformed room event for {0}", roomId);
+            return;
+        }
+        ByteBuffer value = ByteBuffer.wrap(bytes);
+        long sender = value.getLong();
+        long sentMillis = value.getLong();
+        long sentNanos = value.getLong();
+        String frame = new String(bytes, HEADER_BYTES, bytes.length - HEADER_BYTES, StandardCharsets.UTF_8);
+        if (BROADCAST_KEY.equals(roomId)) {
+            if (sender != nodeId) {
+                // not waited for, the rest of the topic is behind it.
+                WorldBroadcast.getBroadcast().deliver(frame);
+                delivered.increment();
+            }
+            return;
+        }
+        try {
+            if (!delivery.deliver(roomId, frame)) {
+                notServed.increment();
+                return;
+            }
+        } catch (RuntimeException e) {
+            Log.log(Level.WARNING, this, "Unable to deliver room event for " + roomId, e);
+            return;
+        }
+        delivered.increment();
+        if (sender == nodeId) {
+            long latency = System.nanoTime() - sentNanos;
+            localLatencyNanos.add(latency);
+            localCount.increment();
+            maxLocalLatencyNanos.accumulateAndGet(latency, Math::max);
+        } else {
+            // between nodes this is only as good as their clocks.
+            long latency = Math.max(0, System.currentTimeMillis() - sentMillis);
+            remoteLatencyMillis.add(latency);
+            remoteCount.increment();
+            maxRemoteLatencyMillis.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public String getStats() {
+        long local = localCount.sum();
+        long remote = remoteCount.sum();
+        return "published=" + published.sum() + " publishFailed=" + publishFailed.sum() + " received="
+                + received.sum() + " delivered=" + delivered.sum() + " notServed=" + notServed.sum()
+                + " ownLatencyAvgUs="
+                + (local == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(localLatencyNanos.sum() / local))
+                + " ownLatencyMaxUs=" + TimeUnit.NANOSECONDS.toMicros(maxLocalLatencyNanos.get())
+                + " otherNodeLatencyAvgMs=" + (remote == 0 ? 0 : remoteLatencyMillis.sum() / remote)
+                + " otherNodeLatencyMaxMs=" + maxRemoteLatencyMillis.get();
+    }
+}
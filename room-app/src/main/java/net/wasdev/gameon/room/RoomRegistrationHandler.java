@@ -17,14 +17,14 @@ package net.wasdev.gameon.room;
 
 import java.io.StringReader;
 import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
-import javax.enterprise.concurrent.ManagedScheduledExecutorService;
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
@@ -38,7 +38,6 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
@@ -46,8 +45,6 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
-import org.gameontext.signed.SignedClientRequestFilter;
-
 import net.wasdev.gameon.room.engine.Room;
 import net.wasdev.gameon.room.engine.meta.DoorDesc;
 import net.wasdev.gameon.room.engine.meta.ExitDesc;
@@ -59,8 +56,27 @@ public class RoomRegistrationHandler {
     private final String endPoint;
     private final String mapLocation;
     private final Room room;
-    private AtomicBoolean handling503 = new AtomicBoolean(false);
     private final String token;
+    private volatile JsonObject lastRegistration;
+    private volatile JsonObject appliedExits;
+    private volatile State state = State.PENDING;
+    private volatile String lastError;
+
+    /**
+     * Where registration of this room has got to.
+     */
+    public enum State {
+        /** not yet attempted */
+        PENDING,
+        /** using exits remembered from an earlier registration */
+        CACHED,
+        /** registered, with exits from the map */
+        REGISTERED,
+        /** waiting for the map to become available */
+        DEFERRED,
+        /** the map refused the registration */
+        FAILED
+    }
 
 
     RoomRegistrationHandler(Room room, String id, String secret){
@@ -102,19 +118,10 @@ public class RoomRegistrationHandler {
     }
 
     /**
-     * Obtain a jaxrs client configured appropriately for ssl to map.
+     * Obtain the shared jaxrs client configured appropriately for ssl to map.
      */
     private Client getClient() throws Exception{
-
-      //Build client that uses the SSLContext defined by 'DefaultSSLSettings' in server.xml
-      Client client = ClientBuilder.newBuilder()
-                                     .property("com.ibm.ws.jaxrs.client.ssl.config", "DefaultSSLSettings")
-                                     .property("com.ibm.ws.jaxrs.client.disableCNCheck", true)
-                                     .build();
-      // add our request signer
-      client.register(new SignedClientRequestFilter(id, secret));
-
-      return client;
+      return MapClient.get(id, secret);
     }
 
     /**
@@ -135,63 +142,51 @@ public class RoomRegistrationHandler {
             Response r = null;
 
             r = target.request(MediaType.APPLICATION_JSON).get(); // .accept(MediaType.APPLICATION_JSON).get();
-            int code = r.getStatusInfo().getStatusCode();
-            switch (code) {
-                case 204: {
-                    // room is unknown to map
-                    result.type = RegistrationResult.Type.NOT_REGISTERED;
-                    return result;
-                }
-                case 200: {
-                    // request succeeded.. we need to parse the result into a JsonObject..
-                    // query url always returns an array, so we need to reach in to obtain our
-                    // hit. There should only ever be the one, becase we searched by owner and
-                    // name, and rooms should be unique by owner & name;
-                    String respString = r.readEntity(String.class);
-                    JsonReader reader = Json.createReader(new StringReader(respString));
-                    JsonArray resp = reader.readArray();
-                    JsonObject queryResponse = resp.getJsonObject(0);
-
-                    //get the id for our already-registered room.
-                    String roomId = queryResponse.getString("_id");
-
-                    // now we have our id.. make a new request to get our exit wirings..
-                    queryClient = getClient();
-
-                    WebTarget lookup = queryClient.target(mapLocation);
-                    Invocation.Builder builder = lookup.resolveTemplate("roomId", roomId).path("{roomId}").request(MediaType.APPLICATION_JSON);
-                    Response response = builder.get();
-                    respString = response.readEntity(String.class);
-
-                    Log.log(Level.FINE, this, "EXISTING_INFO({0})({1}):{2}", id, room.getRoomId(), respString);
-
-                    reader = Json.createReader(new StringReader(respString));
-                    queryResponse = reader.readObject();
-
-                    //save the full response with exit info into the result var.
-                    result.type = RegistrationResult.Type.REGISTERED;
-                    result.registeredObject = queryResponse;
-                    return result;
-                }
-                case 404:// fall through to 503.
-                case 503: {
-                    // service was unavailable.. we need to reschedule ourselves
-                    // to try again later..
-                    if (handling503.compareAndSet(false, true)) {
-                        handle503();
+            try {
+                int code = r.getStatusInfo().getStatusCode();
+                switch (code) {
+                    case 204: {
+                        // room is unknown to map
+                        result.type = RegistrationResult.Type.NOT_REGISTERED;
+                        return result;
+                    }
+                    case 200: {
+                        // request succeeded.. we need to parse the result into a JsonObject..
+                        // query url always returns an array, so we need to reach in to obtain our
+                        // hit. There should only ever be the one, becase we searched by owner and
+                        // name, and rooms should be unique by owner & name;
+                        String respString = r.readEntity(String.class);
+                        JsonReader reader = Json.createReader(new StringReader(respString));
+                        JsonArray resp = reader.readArray();
+                        JsonObject queryResponse = resp.getJsonObject(0);
+
+                        //get the id for our already-registered room.
+                        String roomId = queryResponse.getString("_id");
+
+                        // now we have our id.. make a new request to get our exit wirings..
+                        //save the full response with exit info into the result var.
+                        result.type = RegistrationResult.Type.REGISTERED;
+                        result.registeredObject = fetchRegistration(roomId);
+                        return result;
+                    }
+                    case 404:// fall through to 503.
+                    case 503: {
+                        // service was unavailable.. queue ourselves to try again later..
+                        defer();
+                        result.type = RegistrationResult.Type.SERVICE_UNAVAILABLE;
+                        return result;
+                    }
+                    default: {
+                        throw new Exception("Unknown response code from map " + code);
                     }
-                    result.type = RegistrationResult.Type.SERVICE_UNAVAILABLE;
-                    return result;
-                }
-                default: {
-                    throw new Exception("Unknown response code from map " + code);
                 }
+            } finally {
+                // hand the connection back for reuse.
+                r.close();
             }
         } catch (ProcessingException e){
             if(e.getCause() instanceof ConnectException){
-                if (handling503.compareAndSet(false, true)) {
-                    handle503();
-                }
+                defer();
                 result.type = RegistrationResult.Type.SERVICE_UNAVAILABLE;
                 return result;
             }else{
@@ -202,56 +197,39 @@ public class RoomRegistrationHandler {
         }
     }
 
-    private void handle503() throws Exception{
-        try{
-            Log.log(Level.INFO, this, "Scheduling room {0} to be registered via bg thread.", room.getRoomId());
-            ManagedScheduledExecutorService executor;
-            executor = (ManagedScheduledExecutorService) new InitialContext().lookup("concurrent/execSvc");
-
-            Thread r = new Thread(){
-                public void run() {
-                    try{
-                        Log.log(Level.INFO, this, "Registration thread for room {0} has awoken.", room.getRoomId());
-                        if(performRegistration()){
-                            executor.shutdown();
-                        }
-                    }catch(Exception e){
-                        //we're in a thread.. documentation for the scheduled executor service says
-                        //to throw an exception to terminate the scheduler.. here we go.
-                        throw new RuntimeException("Registration Thread Fail",e);
-                    }
-                };
-            };
-
-            executor.scheduleAtFixedRate(r, 10, 10, TimeUnit.SECONDS);
-        }catch(Exception e){
-            throw new Exception("Error creating scheduler to handle 503 response from map",e);
+    /**
+     * Fetch the full registration for a room from the map, including its exits.
+     */
+    private JsonObject fetchRegistration(String roomId) throws Exception {
+        WebTarget lookup = getClient().target(mapLocation);
+        Invocation.Builder builder = lookup.path("{roomId}").resolveTemplate("roomId", roomId).request(MediaType.APPLICATION_JSON);
+        Response response = builder.get();
+        String respString;
+        try {
+            respString = response.readEntity(String.class);
+        } finally {
+            response.close();
         }
+
+        Log.log(Level.FINE, this, "EXISTING_INFO({0})({1}):{2}", id, room.getRoomId(), respString);
+
+        JsonReader reader = Json.createReader(new StringReader(respString));
+        return reader.readObject();
     }
 
     public boolean performRegistration() throws Exception{
         RegistrationResult existingRegistration = checkExistingRegistration();
         switch(existingRegistration.type){
             case REGISTERED:{
-                RegistrationResult updatedRegistration = compareRoomAndUpdateIfRequired(existingRegistration.registeredObject);
-                if(updatedRegistration.type == RegistrationResult.Type.REGISTERED){
-                    updateRoomWithExits(updatedRegistration.registeredObject);
-                }else{
-                    Log.log(Level.SEVERE, this, "Unable to update room registration for room {0}", room.getRoomId());
-                    //use old registered room exit info.
-                    updateRoomWithExits(existingRegistration.registeredObject);
-                }
+                updateExistingRegistration(existingRegistration.registeredObject);
                 return true;
             }
             case NOT_REGISTERED:{
-                RegistrationResult newRegistration = registerRoom();
-                if(newRegistration.type == RegistrationResult.Type.REGISTERED){
-                    updateRoomWithExits(newRegistration.registeredObject);
-                }
+                registerNewRoom();
                 return true;
             }
             case SERVICE_UNAVAILABLE:{
-                //background thread has been scheduled to re-attempt registration later.
+                //the retry scheduler will re-attempt registration later.
                 return false;
             }
             default:{
@@ -260,8 +238,86 @@ public class RoomRegistrationHandler {
         }
     }
 
+    /**
+     * Bring the map up to date from a registration found by an owner wide
+     * query, without querying for this room again.
+     *
+     * @param registeredRoom the room as listed by the map, or null if the map
+     *            does not know the room.
+     * @return true, for symmetry with performRegistration.
+     */
+    public boolean reconcile(JsonObject registeredRoom) throws Exception{
+        if(registeredRoom==null){
+            registerNewRoom();
+        }else if(registeredRoom.containsKey("exits")){
+            updateExistingRegistration(registeredRoom);
+        }else{
+            //the listing did not include exit wirings, so fetch the full document.
+            updateExistingRegistration(fetchRegistration(registeredRoom.getString("_id")));
+        }
+        return true;
+    }
+
+    /**
+     * Apply the exits from a registration if it already matches this room.
+     *
+     * @return true if the registration matched and its exits were applied,
+     *         false if it has no exit wirings or needs updating.
+     */
+    public boolean applyIfUpToDate(JsonObject registeredRoom){
+        if(registeredRoom.containsKey("exits") && !needsUpdate(registeredRoom.getJsonObject("info"))){
+            updateRoomWithExits(registeredRoom);
+            return true;
+        }
+        return false;
+    }
+
+    private void updateExistingRegistration(JsonObject registeredObject) throws Exception{
+        RegistrationResult updatedRegistration = compareRoomAndUpdateIfRequired(registeredObject);
+        if(updatedRegistration.type == RegistrationResult.Type.REGISTERED){
+            updateRoomWithExits(updatedRegistration.registeredObject);
+        }else{
+            Log.log(Level.SEVERE, this, "Unable to update room registration for room {0}", room.getRoomId());
+            //use old registered room exit info.
+            updateRoomWithExits(registeredObject);
+        }
+    }
+
+    private void registerNewRoom() throws Exception{
+        RegistrationResult newRegistration = registerRoom();
+        if(newRegistration.type == RegistrationResult.Type.REGISTERED){
+            updateRoomWithExits(newRegistration.registeredObject);
+        }
+    }
+
     private void updateRoomWithExits(JsonObject registeredObject) {
+        if(registeredObject.containsKey("_id")){
+            lastRegistration = registeredObject;
+            state = State.REGISTERED;
+            lastError = null;
+        }
+        applyExits(registeredObject.getJsonObject("exits"));
+    }
+
+    /**
+     * Apply exits the map has reported since registration, leaving the room
+     * alone if they are the same as the ones it has.
+     *
+     * @return true if the room's exits changed.
+     */
+    boolean refreshExits(JsonObject registeredObject) {
         JsonObject exits = registeredObject.getJsonObject("exits");
+        if(exits == null || exits.equals(appliedExits)){
+            return false;
+        }
+        if(registeredObject.containsKey("_id")){
+            lastRegistration = registeredObject;
+        }
+        applyExits(exits);
+        return true;
+    }
+
+    private void applyExits(JsonObject exits) {
         Map<String,ExitDesc> exitMap = new HashMap<String,ExitDesc>();
         for(Entry<String, JsonValue> e : exits.entrySet()){
             try{
@@ -283,11 +339,28 @@ public class RoomRegistrationHandler {
             }
         }
         room.setExits(exitMap);
+        appliedExits = exits;
     }
 
     private RegistrationResult compareRoomAndUpdateIfRequired(JsonObject registeredRoom) throws Exception{
         JsonObject info = registeredRoom.getJsonObject("info");
 
+        if(needsUpdate(info)){
+            Log.log(Level.INFO,this,"Update required for {0}",room.getRoomId());
+            return updateRoom(registeredRoom.getString("_id"));
+        }else{
+            Log.log(Level.INFO,this,"Room {0} is still up to date in Map, no update required.",room.getRoomId());
+            RegistrationResult r = new RegistrationResult();
+            r.type = RegistrationResult.Type.REGISTERED;
+            r.registeredObject = registeredRoom;
+            return r;
+        }
+    }
+
+    /**
+     * Compare the registered room info with this room.
+     */
+    private boolean needsUpdate(JsonObject info){
         boolean needsUpdate = true;
         if(   room.getRoomId().equals(info.getString("name"))
            && room.getRoomName().equals(info.getString("fullName"))
@@ -337,17 +410,7 @@ public class RoomRegistrationHandler {
             Log.log(Level.INFO,this,"Basic room compare failed.");
         }
 
-        if(needsUpdate){
-            System.out.println("Update required for "+room.getRoomId());
-            Log.log(Level.INFO,this,"Update required for {0}",room.getRoomId());
-            return updateRoom(registeredRoom.getString("_id"));
-        }else{
-            Log.log(Level.INFO,this,"Room {0} is still up to date in Map, no update required.",room.getRoomId());
-            RegistrationResult r = new RegistrationResult();
-            r.type = RegistrationResult.Type.REGISTERED;
-            r.registeredObject = registeredRoom;
-            return r;
-        }
+        return needsUpdate;
     }
 
     private RegistrationResult registerRoom() throws Exception{
@@ -366,6 +429,57 @@ public class RoomRegistrationHandler {
         WebTarget root = postClient.target(mapLocation);
 
         // build the registration/update payload (post data)
+        JsonObject registrationPayload = buildRegistrationPayload();
+
+        Response response=null;
+        switch(mode){
+            case REGISTER:{
+                Invocation.Builder builder = root.request(MediaType.APPLICATION_JSON);
+                response = builder.post(Entity.json(registrationPayload));
+                break;
+            }
+            case UPDATE:{
+                Invocation.Builder builder = root.path("{roomId}").resolveTemplate("roomId", roomId).request(MediaType.APPLICATION_JSON);
+                response = builder.put(Entity.json(registrationPayload));
+                break;
+            }
+            default:{
+                throw new IllegalStateException("Bad enum value "+mode.name());
+            }
+        }
+
+        RegistrationResult r = new RegistrationResult();
+        try {
+
+            if ( (mode.equals(Mode.REGISTER) && Status.CREATED.getStatusCode() == response.getStatus()) ||
+                 (mode.equals(Mode.UPDATE) && Status.OK.getStatusCode() == response.getStatus()) ){
+                String regString = response.readEntity(String.class);
+                JsonReader reader = Json.createReader(new StringReader(regString));
+                JsonObject registrationResponse = reader.readObject();
+
+                r.type = RegistrationResult.Type.REGISTERED;
+                r.registeredObject = registrationResponse;
+
+                Log.log(Level.INFO,this,"Sucessful registration/update operation against ({0})({1})({2}) : {3}",roomId,id,room.getRoomId(),regString);
+            } else {
+                String resp = response.readEntity(String.class);
+
+                Log.log(Level.SEVERE, "Error registering room provider : {0} : status code {1} : response {2}", room.getRoomName(), response.getStatus(), String.valueOf(resp));
+
+                r.type = RegistrationResult.Type.NOT_REGISTERED;
+
+                throw new Exception("Room operation did not report success, got error code "+response.getStatus()+" "+response.getStatusInfo().getReasonPhrase());
+            }
+        } finally {
+            response.close();
+        }
+        return r;
+    }
+
+    /**
+     * The registration/update payload describing this room to the map.
+     */
+    private JsonObject buildRegistrationPayload() {
         JsonObjectBuilder registrationPayload = Json.createObjectBuilder();
         // add the basic room info.
         registrationPayload.add("name", room.getRoomId());
@@ -416,56 +530,134 @@ public class RoomRegistrationHandler {
             connInfo.add("token", token);       //add security token if it is present
         }
         registrationPayload.add("connectionDetails", connInfo.build());
+        return registrationPayload.build();
+    }
 
-        Response response=null;
-        switch(mode){
-            case REGISTER:{
-                Invocation.Builder builder = root.request(MediaType.APPLICATION_JSON);
-                response = builder.post(Entity.json(registrationPayload.build()));
-                break;
-            }
-            case UPDATE:{
-                Invocation.Builder builder = root.path("{roomId}").resolveTemplate("roomId", roomId).request(MediaType.APPLICATION_JSON);
-                response = builder.put(Entity.json(registrationPayload.build()));
-                break;
-            }
-            default:{
-                throw new IllegalStateException("Bad enum value "+mode.name());
+    /**
+     * A stable hash of everything this room would register with the map, and
+     * where. If it is unchanged since the room was last registered, the map
+     * holds nothing newer for the room than the exits it gave us then.
+     */
+    public String getFingerprint() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((mapLocation + "\n" + id + "\n").getBytes(StandardCharsets.UTF_8));
+            digest.update(buildRegistrationPayload().toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
             }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
+    }
 
-        RegistrationResult r = new RegistrationResult();
-        try {
-
-            if ( (mode.equals(Mode.REGISTER) && Status.CREATED.getStatusCode() == response.getStatus()) ||
-                 (mode.equals(Mode.UPDATE) && Status.OK.getStatusCode() == response.getStatus()) ){
-                String regString = response.readEntity(String.class);
-                JsonReader reader = Json.createReader(new StringReader(regString));
-                JsonObject registrationResponse = reader.readObject();
-
-                r.type = RegistrationResult.Type.REGISTERED;
-                r.registeredObject = registrationResponse;
+    /**
+     * Use exits remembered from an earlier registration, until the map can
+     * be asked.
+     */
+    public void applyCachedExits(JsonObject exits) {
+        updateRoomWithExits(Json.createObjectBuilder().add("exits", exits).build());
+        state = State.CACHED;
+    }
 
-                Log.log(Level.INFO,this,"Sucessful registration/update operation against ({0})({1})({2}) : {3}",roomId,id,room.getRoomId(),regString);
-            } else {
-                String resp = response.readEntity(String.class);
+    /**
+     * Queue this room to be registered once the map is available.
+     */
+    void defer() {
+        state = State.DEFERRED;
+        RegistrationRetryScheduler.getScheduler().defer(this);
+    }
 
-                Log.log(Level.SEVERE, "Error registering room provider : {0} : status code {1} : response {2}", room.getRoomName(), response.getStatus(), String.valueOf(resp));
+    void failed(Exception e) {
+        // a room that has exits from the cache can keep using them.
+        if (state != State.CACHED) {
+            state = State.FAILED;
+        }
+        lastError = String.valueOf(e.getMessage());
+    }
 
-                r.type = RegistrationResult.Type.NOT_REGISTERED;
+    public State getState() {
+        return state;
+    }
 
-                throw new Exception("Room operation did not report success, got error code "+response.getStatus()+" "+response.getStatusInfo().getReasonPhrase());
+    /**
+     * Remove this room from the map, used when the room is taken away while
+     * running.
+     *
+     * @return true if the map no longer has the room.
+     */
+    public boolean deleteRegistration() throws Exception{
+        RegistrationRetryScheduler.getScheduler().cancel(this);
+        JsonObject registered = lastRegistration;
+        if(registered == null){
+            Log.log(Level.INFO,this,"Room {0} was never registered, nothing to remove from the map",room.getRoomId());
+            return true;
+        }
+        Response response = getClient().target(mapLocation).path("{roomId}")
+                .resolveTemplate("roomId", registered.getString("_id")).request(MediaType.APPLICATION_JSON).delete();
+        try {
+            int code = response.getStatus();
+            if(code == 200 || code == 204 || code == 404){
+                Log.log(Level.INFO,this,"Removed room {0} ({1}) from the map",room.getRoomId(),registered.getString("_id"));
+                lastRegistration = null;
+                return true;
             }
+            Log.log(Level.WARNING,this,"Map answered {0} removing room {1}",code,room.getRoomId());
+            return false;
         } finally {
             response.close();
         }
-        return r;
+    }
+
+    /**
+     * Why registration last failed, or null.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Check a previously registered room with a single lookup by its map id,
+     * updating it if it no longer matches. Falls back to the full
+     * registration if the map no longer knows the id.
+     */
+    public boolean revalidate(String mapId) throws Exception {
+        JsonObject registered;
+        try {
+            registered = fetchRegistration(mapId);
+        } catch (Exception e) {
+            Log.log(Level.FINE, this, "Cached registration {0} for room {1} could not be fetched: {2}", mapId,
+                    room.getRoomId(), e.getMessage());
+            return performRegistration();
+        }
+        if (!registered.containsKey("exits") || !registered.containsKey("info")) {
+            return performRegistration();
+        }
+        return reconcile(registered);
+    }
+
+    /**
+     * The registration the exits of this room were last taken from the map
+     * with, or null if the map has not been asked yet.
+     */
+    public JsonObject getLastRegistration() {
+        return lastRegistration;
     }
 
     private String getEndpointForRoom() {
         return endPoint + "/ws/" +room.getRoomId();
     }
 
+    public Room getRoom() {
+        return room;
+    }
+
+    public String getRoomId() {
+        return room.getRoomId();
+    }
+
     public String getToken() {
         return token;
     }
@@ -16,14 +16,13 @@
 package net.wasdev.gameon.room;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.websocket.CloseReason;
 import javax.websocket.Endpoint;
@@ -35,15 +34,26 @@ import net.wasdev.gameon.room.engine.Room;
 
 /**
  * WebSocket endpoint for player's interacting with the room
+ * <p>
+ * The room is looked up in {@link RoomEndpoints} when the connection opens,
+ * either by a fixed id or from the roomId path parameter, so rooms added
+ * while running are served by the same endpoint class.
  */
 public class RoomWS extends Endpoint {
-    private final Room room;
-    private final LifecycleManager.SessionRoomResponseProcessor srrp;
+    public static final String ROOM_ID_PARAM = "roomId";
+
+    private final String roomId;
+    private Room room;
+    private LifecycleManager.SessionRoomResponseProcessor srrp;
+    private RoomCommandDispatcher dispatcher;
     private Map<Session, MessageHandler.Whole<String>> handlersBySession = new ConcurrentHashMap<Session, MessageHandler.Whole<String>>();
 
-    public RoomWS(Room room, LifecycleManager.SessionRoomResponseProcessor srrp) {
-        this.room = room;
-        this.srrp = srrp;
+    /**
+     * @param roomId
+     *            the room to serve, or null to take it from the path.
+     */
+    public RoomWS(String roomId) {
+        this.roomId = roomId;
     }
 
     private static class SessionMessageHandler implements MessageHandler.Whole<String> {
@@ -59,15 +69,37 @@ public class RoomWS extends Endpoint {
         public void onMessage(String message) {
             try {
                 owner.receiveMessage(message, session);
-            } catch (IOException io) {
-                Log.log(Level.SEVERE, this, "IO Exception sending message to session", io);
+            } catch (RuntimeException e) {
+                Log.log(Level.SEVERE, this, "Exception processing message from session", e);
             }
         }
     }
 
     @Override
     public void onOpen(final Session session, EndpointConfig ec) {
+        String id = roomId != null ? roomId : session.getPathParameters().get(ROOM_ID_PARAM);
+        RoomEndpoints.Hosted hosted = RoomEndpoints.getEndpoints().get(id);
+        if (hosted == null || hosted.isDraining()) {
+            Log.log(Level.INFO, this, "Refusing session {0} for room {1}, it is not being served", session.getId(), id);
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, "No room " + id));
+            } catch (IOException io) {
+                Log.log(Level.FINE, this, "Error closing session", io);
+            }
+            return;
+        }
+        room = hosted.getRoom();
+        srrp = hosted.getResponseProcessor();
+        dispatcher = hosted.getDispatcher();
+
         Log.log(Level.FINE,this, "onOpen called against room " + this.room.getRoomId());
+        StartupProfiler.milestone(StartupProfiler.FIRST_CONNECTION);
+
+        //rooms are activated on first connection.
+        if (room.activate()) {
+            Log.log(Level.INFO, this, "Room {0} activated for session {1} in {2}us", room.getRoomId(), session.getId(),
+                    TimeUnit.NANOSECONDS.toMicros(room.getLastActivationNanos()));
+        }
 
         //send ack
         try{
@@ -124,6 +156,10 @@ public class RoomWS extends Endpoint {
 
     @Override
     public void onClose(Session session, CloseReason reason) {
+        if (room == null) {
+            // refused in onOpen.
+            return;
+        }
         // (lifecycle) Called when the connection is closed, treat this as the
         // player has left the room
         srrp.removeSession(session);
@@ -150,63 +186,16 @@ public class RoomWS extends Endpoint {
         }
     }
 
-    public void receiveMessage(String message, Session session) throws IOException {
+    public void receiveMessage(String message, Session session) {
         Log.log(Level.FINE, this, "ROOMX: [{0}:{1}] sess[{2}:{3}] : {4}", this.hashCode(),this.room.getRoomId(),session.hashCode(),session.getId(),message);
-        String[] contents = Message.splitRouting(message);
-        if (contents[0].equals("roomHello")) {
-            addNewPlayer(session, contents[2]);
-            return;
-        }
-        if (contents[0].equals("room")) {
-            processCommand(contents[2]);
+        String via = "session " + session.getId();
+        RoomCommandIngestion ingestion = RoomCommandIngestion.getIngestion();
+        if (ingestion != null) {
+            // run by whichever node owns the room's partition.
+            ingestion.forward(room.getRoomId(), message, () -> dispatcher.dispatch(message, via));
             return;
         }
-        if (contents[0].equals("roomGoodbye")) {
-            removePlayer(session, contents[2]);
-            return;
-        }
-        Log.log(Level.SEVERE, this, "Unknown Message Type {0} for room {1} message {2}", contents[0], room.getRoomId(),message);
-    }
-
-    // process a command
-    private void processCommand(String json) throws IOException {
-        Log.log(Level.FINE,this, "Command received from the user, " + this);
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
-
-        String content = Message.getValue(msg.get("content"));
-        String userid = Message.getValue(msg.get(Constants.USERID));
-
-        if (content.startsWith("/")) {
-            room.command(userid, content.substring(1));
-        } else {
-            String username = Message.getValue(msg.get(Constants.USERNAME));
-            if(username==null){
-                Log.log(Level.WARNING, this, "Recieved chat msg with missing username : {0}", json);
-                username = userid;
-            }
-            // everything else is chat.
-            srrp.chatEvent(username, content);
-        }
-    }
-
-    // add a new player to the room
-    private void addNewPlayer(Session session, String json) throws IOException {
-
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
-        String username = Message.getValue(msg.get(Constants.USERNAME));
-        String userid = Message.getValue(msg.get(Constants.USERID));
-
-        Log.log(Level.INFO, this, "*** Adding player {0} from room {1} via session {2}", userid,room.getRoomId(),session.getId());
-
-        room.addUserToRoom(userid, username);
-        room.command(userid, "look");
-    }
-
-    private void removePlayer(Session session, String json) throws IOException {
-        JsonObject msg = Json.createReader(new StringReader(json)).readObject();
-        String userid = Message.getValue(msg.get(Constants.USERID));
-        Log.log(Level.INFO, this, "*** Removing player {0} from room {1} via session {2}", userid,room.getRoomId(),session.getId());
-        room.removeUserFromRoom(userid);
+        dispatcher.dispatch(message, via);
     }
 
     @Override
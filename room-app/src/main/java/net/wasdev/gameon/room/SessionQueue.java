@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+
+/**
+ * Messages on their way to one WebSocket session. A session can only be
+ * sent one message at a time, so whichever thread finds the queue idle
+ * sends what is queued, in order, and any other thread just adds its
+ * message for that thread to send. Room output sent while nothing else is
+ * going to the session is sent straight away by the room's own thread, as
+ * it always was.
+ * <p>
+ * The thread that finds the queue idle may be running a room's commands, so
+ * it sends at most {@link #MAX_BATCH} messages and hands the rest to the
+ * managed executor. A session that falls {@link #MAX_PENDING} messages
+ * behind is closed rather than left to hold them all.
+ */
+public class SessionQueue {
+
+    // messages one thread sends before handing the rest on.
+    public static final int MAX_BATCH = 32;
+    // messages a session can be behind before it is closed.
+    public static final int MAX_PENDING = 1024;
+
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder overflows = new LongAdder();
+    private static ExecutorService ownExecutor;
+
+    private static class Pending {
+        final String text;
+        final RoomFanout.Completion completion;
+
+        Pending(String text, RoomFanout.Completion completion) {
+            this.text = text;
+            this.completion = completion;
+        }
+    }
+
+    private final Session session;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private volatile boolean overflowed;
+
+    public SessionQueue(Session session) {
+        this.session = session;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public void send(String text) {
+        send(text, null);
+    }
+
+    /**
+     * @param completion
+     *            told once the message is sent or could not be, on whichever
+     *            thread sent it; may be null.
+     */
+    public void send(String text, RoomFanout.Completion completion) {
+        if (overflowed) {
+            overflow(completion);
+            return;
+        }
+        if (size.incrementAndGet() > MAX_PENDING) {
+            size.decrementAndGet();
+            overflow(completion);
+            return;
+        }
+        pending.add(new Pending(text, completion));
+        drain();
+    }
+
+    private void drain() {
+        // check again after letting go, something may have been added as we did.
+        while (!pending.isEmpty() && sending.compareAndSet(false, true)) {
+            int sent = 0;
+            try {
+                for (Pending p; sent < MAX_BATCH && (p = pending.poll()) != null; sent++) {
+                    size.decrementAndGet();
+                    sendNow(p);
+                }
+            } finally {
+                sending.set(false);
+            }
+            if (sent == MAX_BATCH && !pending.isEmpty()) {
+                handOff();
+                return;
+            }
+        }
+    }
+
+    private void handOff() {
+        try {
+            executor().execute(this::drain);
+        } catch (RejectedExecutionException ree) {
+            // shutting down, the next send carries on from here.
+            Log.log(Level.FINE, this, "Unable to hand off sending to session {0}", session.getId());
+        }
+    }
+
+    private void sendNow(Pending p) {
+        IOException failure = null;
+        if (overflowed) {
+            failure = new IOException("Session " + session.getId() + " fell too far behind and was closed");
+        } else {
+            try {
+                Log.log(Level.FINE, this, "ROOM: sending to session {0} messsage {1}", session.getId(), p.text);
+                session.getBasicRemote().sendText(p.text);
+            } catch (IOException io) {
+                // the container closes the session, the rest of the room carries on.
+                failure = io;
+                failures.increment();
+                long count = failures.sum();
+                Log.log(Long.bitCount(count) == 1 ? Level.WARNING : Level.FINE, this,
+                        "Unable to send to session " + session.getId() + ", " + count + " sends failed", io);
+            }
+        }
+        if (p.completion != null) {
+            p.completion.completed(failure);
+        }
+    }
+
+    /**
+     * The session is not keeping up, close it so the player reconnects and
+     * starts again from what the room says next.
+     */
+    private void overflow(RoomFanout.Completion completion) {
+        if (completion != null) {
+            completion.completed(new IOException("Session " + session.getId() + " is too far behind"));
+        }
+        synchronized (this) {
+            if (overflowed) {
+                return;
+            }
+            overflowed = true;
+        }
+        overflows.increment();
+        long count = overflows.sum();
+        Log.log(Long.bitCount(count) == 1 ? Level.WARNING : Level.FINE, this,
+                "Closing session {0}, it fell {1} messages behind, {2} sessions closed so far", session.getId(),
+                MAX_PENDING, count);
+        Runnable close = () -> {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too far behind"));
+            } catch (IOException io) {
+                Log.log(Level.FINE, this, "Error closing session " + session.getId(), io);
+            }
+            // fail whatever was still waiting, rather than hold it.
+            drain();
+        };
+        try {
+            executor().execute(close);
+        } catch (RejectedExecutionException ree) {
+            close.run();
+        }
+    }
+
+    private static ExecutorService executor() {
+        try {
+            return (ExecutorService) new InitialContext().lookup("concurrent/execSvc");
+        } catch (NamingException ne) {
+            // outside the server, eg from a test rig.
+            synchronized (SessionQueue.class) {
+                if (ownExecutor == null) {
+                    ownExecutor = Executors.newCachedThreadPool(r -> {
+                        Thread t = new Thread(r, "room-session-send");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                return ownExecutor;
+            }
+        }
+    }
+}
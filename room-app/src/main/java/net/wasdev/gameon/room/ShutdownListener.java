@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.logging.Level;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import net.wasdev.gameon.room.engine.Engine;
+import net.wasdev.gameon.room.events.GameEventBus;
+
+/**
+ * Stops what the rooms started when the app is stopped or the server shuts
+ * down. The threads involved are daemons, so without this anything they were
+ * still holding would go with the JVM.
+ */
+@WebListener
+public class ShutdownListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        // the rooms are started by LifecycleManager, when the endpoints are.
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        Log.log(Level.INFO, this, "Shutting down rooms");
+        // commands first, they make output.
+        RoomCommandIngestion.stop();
+        // so the other nodes take our rooms straight away.
+        RoomCluster cluster = RoomCluster.getCluster();
+        if (cluster != null) {
+            cluster.leave();
+        }
+        RoomFanout.stop();
+        // what is still queued goes to the outbox for the next run.
+        GameEventBus.getBus().close();
+        // last, once nothing else can change a room.
+        Engine.getEngine().shutdown();
+    }
+}
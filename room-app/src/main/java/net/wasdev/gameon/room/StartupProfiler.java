@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Records where startup time goes.
+ * <p>
+ * Phases are timed from {@link #start(String)} until {@link Phase#end()},
+ * usually called from a finally block, work repeated per room is recorded as steps of a phase with
+ * {@link #step(String, String, long)}, and milestones such as endpoints
+ * opening or the first connection are marked once with
+ * {@link #milestone(String)}. Times are reported in milliseconds from JVM
+ * start, so they include the server's own startup.
+ * <p>
+ * If room_startup_budget is set, endpoints opening later than that many
+ * milliseconds after JVM start marks startup as over budget. The /startup
+ * servlet reports that with a 500, and /ready?budget with a 503, which needs
+ * no credentials so a CI check can fail on it.
+ */
+public class StartupProfiler {
+
+    public static final String ENDPOINTS_OPEN = "endpointsOpen";
+    public static final String REGISTRATION_COMPLETE = "registrationComplete";
+    public static final String FIRST_CONNECTION = "firstConnection";
+
+    private static final int SLOWEST_STEPS = 10;
+
+    private static final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private static final long budgetMillis = budget();
+
+    private static final Queue<Phase> phases = new ConcurrentLinkedQueue<Phase>();
+    private static final Map<String, Map<String, Long>> steps = new ConcurrentHashMap<String, Map<String, Long>>();
+    private static final Map<String, Long> milestones = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * A timed phase of startup, ending it records how long it took.
+     */
+    public static class Phase {
+        private final String name;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final String thread = Thread.currentThread().getName();
+        private volatile long nanos = -1;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Record how long the phase took, only the first call counts.
+         */
+        public void end() {
+            if (nanos < 0) {
+                nanos = System.nanoTime() - startNanos;
+                phases.add(this);
+            }
+        }
+    }
+
+    private static long budget() {
+        String value = System.getProperty(Constants.ENV_ROOM_STARTUP_BUDGET,
+                System.getenv(Constants.ENV_ROOM_STARTUP_BUDGET));
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, StartupProfiler.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_ROOM_STARTUP_BUDGET, value);
+            }
+        }
+        return 0;
+    }
+
+    public static Phase start(String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * Record one step of a phase that is repeated per room, replacing any
+     * earlier time for the same room.
+     */
+    public static void step(String phase, String roomId, long nanos) {
+        steps.computeIfAbsent(phase, p -> new ConcurrentHashMap<String, Long>()).put(roomId, nanos);
+    }
+
+    /**
+     * Mark a milestone, only the first time counts.
+     */
+    public static void milestone(String name) {
+        if (milestones.putIfAbsent(name, System.currentTimeMillis()) == null) {
+            Log.log(Level.INFO, StartupProfiler.class, "Startup milestone {0} at {1}ms", name,
+                    milestones.get(name) - jvmStartMillis);
+            if (ENDPOINTS_OPEN.equals(name) && isOverBudget()) {
+                Log.log(Level.SEVERE, StartupProfiler.class, "Room endpoints opened {0}ms after JVM start, over the {1}ms budget",
+                        milestones.get(name) - jvmStartMillis, budgetMillis);
+            }
+        }
+    }
+
+    /**
+     * Milliseconds from JVM start to a milestone, or -1 if not reached.
+     */
+    public static long getMilestone(String name) {
+        Long at = milestones.get(name);
+        return at == null ? -1 : at - jvmStartMillis;
+    }
+
+    public static long getBudget() {
+        return budgetMillis;
+    }
+
+    public static boolean isOverBudget() {
+        return isOverBudget(budgetMillis, getMilestone(ENDPOINTS_OPEN), System.currentTimeMillis() - jvmStartMillis);
+    }
+
+    /**
+     * @param openMillis
+     *            when endpoints opened, or -1 if they have not yet.
+     * @param nowMillis
+     *            the time now, both from JVM start.
+     * @return true if there is a budget and endpoints opened after it, or
+     *         are still not open after it.
+     */
+    static boolean isOverBudget(long budgetMillis, long openMillis, long nowMillis) {
+        if (budgetMillis <= 0) {
+            return false;
+        }
+        return openMillis < 0 ? nowMillis > budgetMillis : openMillis > budgetMillis;
+    }
+
+    public static JsonObject toJson() {
+        JsonObjectBuilder json = Json.createObjectBuilder();
+        json.add("budget", budgetMillis);
+        json.add("overBudget", isOverBudget());
+
+        JsonObjectBuilder reached = Json.createObjectBuilder();
+        for (Map.Entry<String, Long> m : milestones.entrySet()) {
+            reached.add(m.getKey(), m.getValue() - jvmStartMillis);
+        }
+        json.add("milestones", reached);
+
+        JsonArrayBuilder timed = Json.createArrayBuilder();
+        for (Phase p : sortedPhases()) {
+            timed.add(Json.createObjectBuilder().add("name", p.name).add("start", p.startMillis - jvmStartMillis)
+                    .add("millis", TimeUnit.NANOSECONDS.toMillis(p.nanos)).add("thread", p.thread));
+        }
+        json.add("phases", timed);
+
+        JsonObjectBuilder repeated = Json.createObjectBuilder();
+        for (Map.Entry<String, Map<String, Long>> phase : steps.entrySet()) {
+            List<Map.Entry<String, Long>> rooms = new ArrayList<Map.Entry<String, Long>>(phase.getValue().entrySet());
+            rooms.sort(Map.Entry.<String, Long> comparingByValue().reversed());
+            long total = 0;
+            for (Map.Entry<String, Long> room : rooms) {
+                total += room.getValue();
+            }
+            JsonObjectBuilder slowest = Json.createObjectBuilder();
+            for (Map.Entry<String, Long> room : rooms.subList(0, Math.min(SLOWEST_STEPS, rooms.size()))) {
+                slowest.add(room.getKey(), TimeUnit.NANOSECONDS.toMillis(room.getValue()));
+            }
+            repeated.add(phase.getKey(), Json.createObjectBuilder().add("rooms", rooms.size())
+                    .add("totalMillis", TimeUnit.NANOSECONDS.toMillis(total))
+                    .add("meanMillis", rooms.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(total / rooms.size()))
+                    .add("slowest", slowest));
+        }
+        json.add("steps", repeated);
+        return json.build();
+    }
+
+    /**
+     * One line per phase and per stepped phase, for the log.
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder("Startup profile, ms from JVM start:");
+        for (Map.Entry<String, Long> m : milestones.entrySet()) {
+            sb.append("\n  ").append(m.getKey()).append(" at ").append(m.getValue() - jvmStartMillis);
+        }
+        for (Phase p : sortedPhases()) {
+            sb.append("\n  ").append(p.name).append(" took ").append(TimeUnit.NANOSECONDS.toMillis(p.nanos))
+                    .append(" starting at ").append(p.startMillis - jvmStartMillis).append(" on ").append(p.thread);
+        }
+        for (Map.Entry<String, Map<String, Long>> phase : steps.entrySet()) {
+            long total = 0;
+            long max = 0;
+            for (long nanos : phase.getValue().values()) {
+                total += nanos;
+                max = Math.max(max, nanos);
+            }
+            sb.append("\n  ").append(phase.getKey()).append(" for ").append(phase.getValue().size())
+                    .append(" rooms took ").append(TimeUnit.NANOSECONDS.toMillis(total)).append(" in total, slowest ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(max));
+        }
+        if (budgetMillis > 0) {
+            sb.append("\n  budget ").append(budgetMillis).append(isOverBudget() ? " EXCEEDED" : " met");
+        }
+        return sb.toString();
+    }
+
+    private static List<Phase> sortedPhases() {
+        List<Phase> sorted = new ArrayList<Phase>(phases);
+        sorted.sort(Comparator.comparingLong(p -> p.startNanos));
+        return sorted;
+    }
+}
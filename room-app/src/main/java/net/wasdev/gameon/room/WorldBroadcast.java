@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Sends an announcement to every session of every room. The message is
+ * encoded once and the sessions are dealt into shards that are sent to in
+ * parallel, each through its session's {@link SessionQueue}, so it neither
+ * waits for nor gets between the output of the rooms. With room output
+ * fanned out, one copy goes to the other nodes through the topic and each
+ * sends to its own sessions.
+ * <p>
+ * room_broadcast_shards sets how many shards, default 16; sends block on the
+ * network rather than use the CPU, so this can be more than there are
+ * cores.
+ */
+public class WorldBroadcast {
+
+    public static final int DEFAULT_SHARDS = 16;
+
+    private static final WorldBroadcast broadcast = fromConfig();
+
+    /**
+     * One announcement on its way to this node's sessions.
+     */
+    public static class Delivery implements RoomFanout.Completion {
+        private final long start = System.nanoTime();
+        private final WorldBroadcast owner;
+        private final int rooms;
+        private final int sessions;
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final AtomicInteger remaining;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long elapsedNanos = -1;
+
+        Delivery(WorldBroadcast owner, int rooms, int sessions) {
+            this.owner = owner;
+            this.rooms = rooms;
+            this.sessions = sessions;
+            this.remaining = new AtomicInteger(sessions);
+            if (sessions == 0) {
+                finished();
+            }
+        }
+
+        @Override
+        public void completed(Exception failure) {
+            if (failure == null) {
+                sent.increment();
+            } else {
+                failed.increment();
+            }
+            if (remaining.decrementAndGet() == 0) {
+                finished();
+            }
+        }
+
+        private void finished() {
+            elapsedNanos = System.nanoTime() - start;
+            owner.finished(this);
+            done.countDown();
+        }
+
+        /**
+         * @return true if every session has been sent to, or failed, in time.
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        public boolean isComplete() {
+            return elapsedNanos >= 0;
+        }
+
+        public int getRooms() {
+            return rooms;
+        }
+
+        public int getSessions() {
+            return sessions;
+        }
+
+        public long getSent() {
+            return sent.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        /**
+         * @return how long until the last session was sent to, or so far if
+         *         that has not happened yet.
+         */
+        public long getElapsedMicros() {
+            long nanos = elapsedNanos;
+            return TimeUnit.NANOSECONDS.toMicros(nanos >= 0 ? nanos : System.nanoTime() - start);
+        }
+
+        @Override
+        public String toString() {
+            return sessions + " sessions in " + rooms + " rooms, " + sent.sum() + " sent, " + failed.sum()
+                    + " failed, " + (isComplete() ? "complete" : "still sending") + " after " + getElapsedMicros()
+                    + "us";
+        }
+    }
+
+    private final RoomEndpoints endpoints;
+    private final int shards;
+    private ExecutorService ownExecutor;
+
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder sessionsSent = new LongAdder();
+    private final LongAdder sessionsFailed = new LongAdder();
+    private final AtomicLong lastMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    WorldBroadcast(RoomEndpoints endpoints, int shards) {
+        this.endpoints = endpoints;
+        this.shards = Math.max(1, shards);
+    }
+
+    public static WorldBroadcast getBroadcast() {
+        return broadcast;
+    }
+
+    private static WorldBroadcast fromConfig() {
+        int shards = DEFAULT_SHARDS;
+        String value = System.getProperty(Constants.ENV_ROOM_BROADCAST_SHARDS,
+                System.getenv(Constants.ENV_ROOM_BROADCAST_SHARDS));
+        if (value != null) {
+            try {
+                shards = Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, WorldBroadcast.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_ROOM_BROADCAST_SHARDS, value);
+            }
+        }
+        return new WorldBroadcast(RoomEndpoints.getEndpoints(), shards);
+    }
+
+    /**
+     * Send an announcement to everyone in every room, on every node.
+     *
+     * @return the delivery to this node's sessions, other nodes send to their
+     *         own as the announcement reaches them.
+     */
+    public Delivery announce(String text) {
+        String frame = encode(text);
+        Delivery delivery = deliver(frame);
+        RoomFanout fanout = RoomFanout.getFanout();
+        if (fanout != null) {
+            fanout.broadcast(frame);
+        }
+        Log.log(Level.INFO, this, "Announced to {0} sessions in {1} rooms on this node : {2}",
+                delivery.getSessions(), delivery.getRooms(), text);
+        return delivery;
+    }
+
+    static String encode(String text) {
+        // not part of any one room's history, so there is no bookmark.
+        return "player,*," + Json.createObjectBuilder().add("type", "event")
+                .add("content", Json.createObjectBuilder().add("*", text)).build().toString();
+    }
+
+    /**
+     * Send an encoded frame to every session connected to this node.
+     */
+    public Delivery deliver(String frame) {
+        int rooms = 0;
+        List<SessionQueue> queues = new ArrayList<SessionQueue>();
+        for (RoomEndpoints.Hosted h : endpoints.getHosted()) {
+            rooms++;
+            queues.addAll(h.getResponseProcessor().getQueues());
+        }
+        Delivery delivery = new Delivery(this, rooms, queues.size());
+        int n = Math.min(shards, queues.size());
+        for (int i = 0; i < n; i++) {
+            int shard = i;
+            // every nth session, so a shard is not one big room.
+            Runnable send = () -> {
+                for (int q = shard; q < queues.size(); q += n) {
+                    queues.get(q).send(frame, delivery);
+                }
+            };
+            try {
+                executor().execute(send);
+            } catch (RejectedExecutionException ree) {
+                // send them here instead, rather than leave them out.
+                send.run();
+            }
+        }
+        return delivery;
+    }
+
+    private void finished(Delivery d) {
+        broadcasts.increment();
+        sessionsSent.add(d.getSent());
+        sessionsFailed.add(d.getFailed());
+        long micros = d.getElapsedMicros();
+        lastMicros.set(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+        Log.log(Level.FINE, this, "Broadcast finished: {0}", d);
+    }
+
+    private ExecutorService executor() {
+        try {
+            return (ExecutorService) new InitialContext().lookup("concurrent/execSvc");
+        } catch (NamingException ne) {
+            // outside the server, eg from a test rig.
+            synchronized (this) {
+                if (ownExecutor == null) {
+                    ownExecutor = Executors.newFixedThreadPool(shards, r -> {
+                        Thread t = new Thread(r, "room-broadcast");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                return ownExecutor;
+            }
+        }
+    }
+
+    public String getStats() {
+        return "shards=" + shards + " broadcasts=" + broadcasts.sum() + " sent=" + sessionsSent.sum() + " failed="
+                + sessionsFailed.sum() + " lastUs=" + lastMicros.get() + " maxUs=" + maxMicros.get();
+    }
+}
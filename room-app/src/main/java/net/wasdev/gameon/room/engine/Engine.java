@@ -15,23 +15,109 @@
  *******************************************************************************/
 package net.wasdev.gameon.room.engine;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
+import net.wasdev.gameon.room.Constants;
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.StartupProfiler;
+import net.wasdev.gameon.room.engine.file.JsonDataProvider;
 import net.wasdev.gameon.room.engine.meta.ExitDesc;
+import net.wasdev.gameon.room.engine.persist.StateStore;
 import net.wasdev.gameon.room.engine.sample.SampleDataProvider;
 
 public class Engine {
 
     private static final Engine engine = new Engine();
 
-    // eventually we'll let this be customizable..
-    private DataProvider dp = new SampleDataProvider();
+    // rooms come from a directory of json definitions if one is configured,
+    // otherwise we use the sample world.
+    private DataProvider dp = createDataProvider();
+
+    // rooms are held by id, so they can be found without walking the world.
+    // the map is replaced, never changed, so it can be read without locking
+    // while rooms are added and removed.
+    private volatile Map<String, Room> roomsById = new LinkedHashMap<String, Room>();
+
+    // durable room state, only when a state directory is configured.
+    private volatile StateStore stateStore;
 
     private Engine() {
+        for (Room r : dp.getRooms()) {
+            roomsById.put(r.getRoomId(), r);
+        }
+        StartupProfiler.Phase phase = StartupProfiler.start("engine.state");
+        openStateStore();
+        phase.end();
+    }
+
+    private void openStateStore() {
+        String dir = System.getProperty(Constants.ENV_ROOM_STATE_DIR, System.getenv(Constants.ENV_ROOM_STATE_DIR));
+        if (dir == null || dir.isEmpty()) {
+            Log.log(Level.INFO, this, "No {0} set, room state will not survive a restart", Constants.ENV_ROOM_STATE_DIR);
+            return;
+        }
+        try {
+            stateStore = new StateStore(this, Paths.get(dir), getNodeId());
+            stateStore.open();
+        } catch (IOException io) {
+            // carry on in memory rather than refuse to serve rooms.
+            Log.log(Level.SEVERE, this, "Unable to open room state in " + dir + ", room state will not be saved", io);
+            stateStore = null;
+        }
+    }
+
+    /**
+     * Name of this node, used to keep per-node files apart.
+     */
+    public static String getNodeId() {
+        String id = System.getProperty(Constants.ENV_ROOM_NODE_ID, System.getenv(Constants.ENV_ROOM_NODE_ID));
+        if (id == null || id.isEmpty()) {
+            try {
+                id = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                id = "local";
+            }
+        }
+        return id;
+    }
+
+    public StateStore getStateStore() {
+        return stateStore;
+    }
+
+    /**
+     * Save room state and let go of its files, when the app is stopped.
+     */
+    public synchronized void shutdown() {
+        if (stateStore != null) {
+            stateStore.close();
+            Log.log(Level.INFO, this, "Room state saved: {0}", stateStore.getStats());
+            stateStore = null;
+        }
+    }
+
+    private static DataProvider createDataProvider() {
+        String dir = System.getProperty(Constants.ENV_ROOM_DATA_DIR, System.getenv(Constants.ENV_ROOM_DATA_DIR));
+        StartupProfiler.Phase phase = StartupProfiler.start("engine.data");
+        try {
+            if (dir == null || dir.isEmpty()) {
+                return new SampleDataProvider();
+            }
+            return new JsonDataProvider(Paths.get(dir));
+        } finally {
+            phase.end();
+        }
     }
 
     public static Engine getEngine() {
@@ -40,7 +126,105 @@ public class Engine {
 
     public Collection<Room> getRooms() {
         // wrap it into an unmodifiable to prevent accidents ;p
-        return Collections.unmodifiableCollection(dp.getRooms());
+        return Collections.unmodifiableCollection(roomsById.values());
+    }
+
+    public Room getRoom(String roomId) {
+        return roomsById.get(roomId);
+    }
+
+    /**
+     * Add a room to a running engine.
+     */
+    public synchronized void addRoom(Room room) {
+        if (roomsById.containsKey(room.getRoomId())) {
+            throw new IllegalStateException("A room with id " + room.getRoomId() + " already exists");
+        }
+        Map<String, Room> rooms = new LinkedHashMap<String, Room>(roomsById);
+        rooms.put(room.getRoomId(), room);
+        roomsById = rooms;
+        Log.log(Level.INFO, this, "Added room {0}, {1} rooms defined", room.getRoomId(), rooms.size());
+    }
+
+    /**
+     * Remove a room from a running engine.
+     *
+     * @return the room removed, or null if there was no such room.
+     */
+    public synchronized Room removeRoom(String roomId) {
+        if (!roomsById.containsKey(roomId)) {
+            return null;
+        }
+        Map<String, Room> rooms = new LinkedHashMap<String, Room>(roomsById);
+        Room removed = rooms.remove(roomId);
+        roomsById = rooms;
+        Log.log(Level.INFO, this, "Removed room {0}, {1} rooms defined", roomId, rooms.size());
+        return removed;
+    }
+
+    /**
+     * Passivate every room that has no users and has been idle for at least
+     * idleMillis. Intended to be driven periodically by the hosting container.
+     *
+     * @return the number of rooms passivated by this sweep.
+     */
+    public int passivateIdleRooms(long idleMillis) {
+        int passivated = 0;
+        for (Room r : roomsById.values()) {
+            if (r.passivate(idleMillis)) {
+                passivated++;
+            }
+        }
+        if (passivated > 0) {
+            Log.log(Level.INFO, this, "Passivated {0} idle rooms, {1} of {2} rooms remain active, {3} loaded",
+                    passivated, getActiveRoomCount(), roomsById.size(), getLoadedRoomCount());
+        }
+        return passivated;
+    }
+
+    public int getActiveRoomCount() {
+        int count = 0;
+        for (Room r : roomsById.values()) {
+            if (r.isActive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rooms with their definitions and items in memory, active or not.
+     */
+    public int getLoadedRoomCount() {
+        int count = 0;
+        for (Room r : roomsById.values()) {
+            if (r.isLoaded()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Summary of room activation latency, for logging and diagnostics.
+     */
+    public String getActivationSummary() {
+        int rooms = 0;
+        long activations = 0;
+        long totalNanos = 0;
+        long maxNanos = 0;
+        for (Room r : roomsById.values()) {
+            if (r.getActivationCount() > 0) {
+                rooms++;
+                activations += r.getActivationCount();
+                totalNanos += r.getLastActivationNanos();
+                maxNanos = Math.max(maxNanos, r.getLastActivationNanos());
+            }
+        }
+        long avgMicros = rooms == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos / rooms);
+        return "active=" + getActiveRoomCount() + " defined=" + roomsById.size() + " activations=" + activations
+                + " lastActivationAvgUs=" + avgMicros + " lastActivationMaxUs="
+                + TimeUnit.NANOSECONDS.toMicros(maxNanos);
     }
 
     /**
@@ -48,7 +232,8 @@ public class Engine {
      */
     public static void main(String[] args) {
 
-        Engine e = new Engine();
+        // the one engine, a second would find its room state already in use.
+        Engine e = getEngine();
 
         Collection<Room> rooms = e.getRooms();
 
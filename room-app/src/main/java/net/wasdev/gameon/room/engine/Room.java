@@ -15,14 +15,18 @@
  *******************************************************************************/
 package net.wasdev.gameon.room.engine;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 import net.wasdev.gameon.room.Log;
@@ -31,18 +35,49 @@ import net.wasdev.gameon.room.engine.meta.DoorDesc;
 import net.wasdev.gameon.room.engine.meta.ExitDesc;
 import net.wasdev.gameon.room.engine.meta.ItemDesc;
 import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.meta.StateChanges;
+import net.wasdev.gameon.room.engine.meta.TrackedItemSet;
 import net.wasdev.gameon.room.engine.parser.CommandHandler;
 import net.wasdev.gameon.room.engine.parser.CommandTemplate;
+import net.wasdev.gameon.room.engine.persist.RoomSnapshot;
 
 public class Room {
 
     public final String TOKEN_ID;
-    private Map<String, ExitDesc> exitMap;
-    private RoomDesc roomDesc;
-    private Map<String, User> userMap = new ConcurrentHashMap<String, User>();
-    private Map<String, CommandHandler> commandMap = new HashMap<String, CommandHandler>();
+    private volatile Map<String, ExitDesc> exitMap = Collections.emptyMap();
+    // bumped each time the exits are replaced, see getViewVersion.
+    private volatile int exitsVersion;
+    private final String id;
+    private final String name;
+    // what the room registers with the map, kept so that needs no load.
+    private final String description;
+    private final Collection<DoorDesc> doorways;
+    // rebuilds the definition once it has been let go, null keeps it resident.
+    private final Supplier<RoomDesc> loader;
+    // the definition and its items, null while the room is unloaded.
+    private volatile RoomDesc roomDesc;
+    // where the items were when the room was unloaded, null if where they started.
+    private RoomSnapshot unloadedState;
+    // item changes made to definitions since let go, so view versions never repeat.
+    private volatile int unloadedChanges;
+    private final List<CommandHandler> globalCommands;
     private Room.RoomResponseProcessor rrp = new DebugResponseProcessor();
 
+    // runtime state, only present while the room is active.
+    private volatile ActiveState active;
+    private volatile long lastAccess = System.currentTimeMillis();
+    private volatile long lastActivationNanos;
+    private volatile int activationCount;
+
+    /**
+     * The parts of a room that only need to be resident while the room is in
+     * use, built on activation and discarded on passivation.
+     */
+    private static class ActiveState {
+        final Map<String, User> userMap = new ConcurrentHashMap<String, User>();
+        final Map<String, CommandHandler> commandMap = new HashMap<String, CommandHandler>();
+    }
+
     public interface RoomResponseProcessor {
         // "Player message :: from("+senderId+")
         // onlyForSelf("+String.valueOf(selfMessage)+")
@@ -97,14 +132,397 @@ public class Room {
     }
 
     public Room(RoomDesc r, List<CommandHandler> globalCommands) {
-        roomDesc = r;
-        for (CommandHandler c : globalCommands) {
-            for (CommandTemplate t : c.getTemplates()) {
-                CommandTemplate.ParseNode verb = t.template.get(0);
-                commandMap.put(verb.data.toUpperCase(), c);
+        this(r, globalCommands, null);
+    }
+
+    /**
+     * A room that only keeps its definition while it is in use.
+     *
+     * @param r
+     *            the definition, used to check it can be built; a room with
+     *            a loader keeps only its name, description and doors from
+     *            it and starts unloaded.
+     * @param loader
+     *            builds the definition again, each time the room is next
+     *            used; null keeps r for good.
+     */
+    public Room(RoomDesc r, List<CommandHandler> globalCommands, Supplier<RoomDesc> loader) {
+        id = r.id;
+        name = r.name;
+        description = r.description;
+        doorways = r.doorways;
+        this.loader = loader;
+        roomDesc = loader == null ? r : null;
+        this.globalCommands = globalCommands;
+        TOKEN_ID = r.id + "_token";     //the name that will be used to query JNDI to see if a token has been defined for this room
+    }
+
+    /**
+     * The definition of the room, loading it again if it has been let go.
+     */
+    private RoomDesc desc() {
+        RoomDesc d = roomDesc;
+        return d != null ? d : load();
+    }
+
+    private synchronized RoomDesc load() {
+        if (roomDesc != null) {
+            return roomDesc;
+        }
+        long start = System.nanoTime();
+        RoomDesc d;
+        try {
+            d = loader.get();
+        } catch (RuntimeException e) {
+            Log.log(Level.SEVERE, this, "Unable to load the definition of room " + id, e);
+            throw e;
+        }
+        if (!id.equals(d.id)) {
+            throw new IllegalStateException("The definition of room " + id + " is now for room " + d.id);
+        }
+        roomDesc = d;
+        RoomSnapshot saved = unloadedState;
+        unloadedState = null;
+        if (saved != null) {
+            restore(saved);
+        }
+        Log.log(Level.FINE, this, "Room {0} loaded in {1}us", id,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        return d;
+    }
+
+    /**
+     * Let go of the definition and its items, keeping where the items are by
+     * name. Rooms with no loader, or that own items other rooms share, are
+     * kept: shared items are only put back by the room that owns them, and
+     * other rooms may be using them.
+     */
+    private boolean unload() {
+        RoomDesc d = roomDesc;
+        if (loader == null || d == null) {
+            return false;
+        }
+        List<ItemDesc> universe = itemUniverse();
+        for (ItemDesc item : universe) {
+            if (item.isShared() && id.equals(item.getOwnerRoomId())) {
+                return false;
             }
         }
-        TOKEN_ID = r.id + "_token";     //the name that will be used to query JNDI to see if a token has been defined for this room
+        unloadedState = isAtDefaults(d, universe) ? null : snapshot();
+        if (d.items instanceof TrackedItemSet) {
+            unloadedChanges += ((TrackedItemSet) d.items).getChangeCount() + 1;
+        }
+        roomDesc = null;
+        return true;
+    }
+
+    private boolean isAtDefaults(RoomDesc d, List<ItemDesc> universe) {
+        if (!sameItems(d.items, d.defaultItems)) {
+            return false;
+        }
+        for (ItemDesc item : universe) {
+            if (isLocalContainer(item) && !sameItems(((ContainerDesc) item).items, ((ContainerDesc) item).defaultItems)) {
+                return false;
+            }
+            String state = item.getState();
+            if (id.equals(item.getOwnerRoomId()) && state != null && !state.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameItems(Collection<ItemDesc> a, Collection<ItemDesc> b) {
+        return a.size() == b.size() && a.containsAll(b);
+    }
+
+    /**
+     * Make the room ready for use, rebuilding its runtime state and loading
+     * its definition again if it was let go. Rooms are created passive, and
+     * are activated on first use.
+     *
+     * @return true if this call activated the room, false if it was already active.
+     */
+    public boolean activate() {
+        lastAccess = System.currentTimeMillis();
+        if (active != null) {
+            return false;
+        }
+        synchronized (this) {
+            if (active != null) {
+                return false;
+            }
+            long start = System.nanoTime();
+            desc();
+            ActiveState state = new ActiveState();
+            for (CommandHandler c : globalCommands) {
+                for (CommandTemplate t : c.getTemplates()) {
+                    CommandTemplate.ParseNode verb = t.template.get(0);
+                    state.commandMap.put(verb.data.toUpperCase(), c);
+                }
+            }
+            active = state;
+            lastActivationNanos = System.nanoTime() - start;
+            activationCount++;
+            Log.log(Level.FINE, this, "Room {0} activated in {1}us", id,
+                    TimeUnit.NANOSECONDS.toMicros(lastActivationNanos));
+            return true;
+        }
+    }
+
+    /**
+     * Release the runtime state of the room if it has no users and has not
+     * been used for at least idleMillis. A room with a loader also lets go
+     * of its definition and items, keeping only where the items are, by
+     * name, and only if that is not where they started.
+     *
+     * @return true if the room released anything.
+     */
+    public boolean passivate(long idleMillis) {
+        synchronized (this) {
+            ActiveState state = active;
+            if (state != null && !state.userMap.isEmpty()
+                    || System.currentTimeMillis() - lastAccess < idleMillis) {
+                return false;
+            }
+            active = null;
+            boolean unloaded = unload();
+            if (state != null || unloaded) {
+                Log.log(Level.FINE, this, "Room {0} passivated{1}", id, unloaded ? " and unloaded" : "");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public boolean isActive() {
+        return active != null;
+    }
+
+    /**
+     * True while the definition and items of the room are in memory.
+     */
+    public boolean isLoaded() {
+        return roomDesc != null;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public long getLastActivationNanos() {
+        return lastActivationNanos;
+    }
+
+    public int getActivationCount() {
+        return activationCount;
+    }
+
+    private ActiveState activeState() {
+        ActiveState state;
+        do {
+            activate();
+            state = active;
+        } while (state == null);
+        return state;
+    }
+
+    /**
+     * Every item that can be placed in this room, in a stable order. Items
+     * only move between the room,
+     * its containers and the inventories of users in the room, and users drop
+     * everything when they leave.
+     */
+    private List<ItemDesc> itemUniverse() {
+        List<ItemDesc> universe = new ArrayList<ItemDesc>();
+        List<ItemDesc> pending = new ArrayList<ItemDesc>(desc().defaultItems);
+        while (!pending.isEmpty()) {
+            ItemDesc item = pending.remove(0);
+            if (!universe.contains(item)) {
+                universe.add(item);
+                if (item instanceof ContainerDesc) {
+                    pending.addAll(((ContainerDesc) item).defaultItems);
+                }
+            }
+        }
+        Collections.sort(universe, new Comparator<ItemDesc>() {
+            @Override
+            public int compare(ItemDesc a, ItemDesc b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return universe;
+    }
+
+    /**
+     * True for a container only this room has. A container shared with other
+     * rooms, such as a registered item several definitions refer to, may be
+     * in use elsewhere, so only the room that owns it records what is in
+     * it.
+     */
+    private static boolean isLocalContainer(ItemDesc item) {
+        return item instanceof ContainerDesc && !item.isShared();
+    }
+
+    /**
+     * Find an item that belongs to this room, wherever it currently is.
+     *
+     * @return the item, or null if no item of that name belongs to the room.
+     */
+    public ItemDesc findItem(String name) {
+        for (ItemDesc item : itemUniverse()) {
+            if (item.name.equals(name)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put any item that is not in the room or one of its containers back in
+     * the room. Used after recovering state, when the users that were
+     * carrying those items are long gone.
+     */
+    public synchronized void recoverOrphanedItems() {
+        if (roomDesc == null && unloadedState == null) {
+            // where the items started, nobody can be holding any of them.
+            return;
+        }
+        RoomDesc roomDesc = desc();
+        List<ItemDesc> universe = itemUniverse();
+        List<ItemDesc> placed = new ArrayList<ItemDesc>(roomDesc.items);
+        for (ItemDesc item : universe) {
+            if (item instanceof ContainerDesc) {
+                placed.addAll(((ContainerDesc) item).items);
+            }
+        }
+        for (ItemDesc item : universe) {
+            if (!placed.contains(item)) {
+                roomDesc.items.add(item);
+                if (item.clearStateOnDrop) {
+                    item.setState("");
+                }
+                Log.log(Level.FINE, this, "Recovered item {0} into room {1}", item.name, id);
+            }
+        }
+    }
+
+    /**
+     * Capture where the items of this room are, and the state of the items it
+     * owns, without activating the room. Users are not part of the snapshot,
+     * anything they are carrying is recovered into the room on restore.
+     *
+     * @return null if the room is unloaded with its items where they started.
+     */
+    public synchronized RoomSnapshot snapshot() {
+        RoomDesc roomDesc = this.roomDesc;
+        if (roomDesc == null) {
+            return unloadedState;
+        }
+        List<ItemDesc> universe = itemUniverse();
+        RoomSnapshot s = new RoomSnapshot(id);
+        addNames(s.getItems(), roomDesc.items);
+        for (ItemDesc item : universe) {
+            // a shared container is still in use elsewhere, whichever room owns it records it.
+            if (isLocalContainer(item) || item instanceof ContainerDesc && id.equals(item.getOwnerRoomId())) {
+                addNames(containerList(s, item), ((ContainerDesc) item).items);
+            }
+        }
+        for (ItemDesc item : universe) {
+            String state = item.getState();
+            if (id.equals(item.getOwnerRoomId()) && state != null && !state.isEmpty()) {
+                s.getStates().put(item.name, state);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Put items back where a snapshot found them, leaving the room passive if
+     * it was, and unloaded if it was. Items the snapshot does not mention are
+     * left where they are.
+     */
+    public synchronized void restore(RoomSnapshot s) {
+        RoomDesc roomDesc = this.roomDesc;
+        if (roomDesc == null) {
+            // applied when the room is next loaded.
+            unloadedState = s;
+            return;
+        }
+        boolean wasMuted = StateChanges.mute();
+        try {
+            roomDesc.items.clear();
+            addItems(roomDesc.items, s.getItems());
+            for (Entry<String, List<String>> c : s.getContainers().entrySet()) {
+                ItemDesc box = findItem(c.getKey());
+                if (box instanceof ContainerDesc && (!box.isShared() || id.equals(box.getOwnerRoomId()))) {
+                    ((ContainerDesc) box).items.clear();
+                    addItems(((ContainerDesc) box).items, c.getValue());
+                }
+            }
+            for (Entry<String, String> state : s.getStates().entrySet()) {
+                ItemDesc item = findItem(state.getKey());
+                if (item != null) {
+                    item.setState(state.getValue());
+                }
+            }
+        } finally {
+            StateChanges.restore(wasMuted);
+        }
+    }
+
+    private List<String> containerList(RoomSnapshot s, ItemDesc container) {
+        List<String> names = new ArrayList<String>();
+        s.getContainers().put(container.name, names);
+        return names;
+    }
+
+    private void addNames(List<String> names, Collection<ItemDesc> items) {
+        for (ItemDesc item : items) {
+            names.add(item.name);
+        }
+    }
+
+    private void addItems(Collection<ItemDesc> items, List<String> names) {
+        for (String name : names) {
+            ItemDesc item = findItem(name);
+            if (item != null) {
+                items.add(item);
+            } else {
+                Log.log(Level.FINE, this, "Room {0} no longer has an item called {1}", id, name);
+            }
+        }
+    }
+
+    /**
+     * Run an action in this room after a delay, on the shared room timer. The
+     * room is activated again first if it has been passivated meanwhile.
+     *
+     * @return a handle that can be passed to cancelTimer.
+     */
+    public long schedule(Runnable action, long delay, TimeUnit unit) {
+        return RoomTimer.getTimer().schedule(inRoom(action), delay, unit);
+    }
+
+    /**
+     * Run an action in this room every period until cancelled, on the shared
+     * room timer.
+     *
+     * @return a handle that can be passed to cancelTimer.
+     */
+    public long scheduleRepeating(Runnable action, long initialDelay, long period, TimeUnit unit) {
+        return RoomTimer.getTimer().scheduleRepeating(inRoom(action), initialDelay, period, unit);
+    }
+
+    public boolean cancelTimer(long handle) {
+        return RoomTimer.getTimer().cancel(handle);
+    }
+
+    private Runnable inRoom(Runnable action) {
+        return () -> {
+            activate();
+            action.run();
+        };
     }
 
     public Map<String, String> getExitsMap(String senderId, Room room) {
@@ -141,15 +559,28 @@ public class Room {
         this.rrp = rrp;
     }
 
+    public Room.RoomResponseProcessor getRoomResponseProcessor() {
+        return rrp;
+    }
+
     public void addUserToRoom(String id, String username) {
-        User u = new User(id, username);
-        if (!userMap.containsKey(id)) {
-            userMap.put(id, u);
+        addUser(new User(id, username));
+    }
+
+    /**
+     * Add a user built elsewhere, eg. ahead of time while they were still
+     * leaving another room.
+     */
+    public void addUser(User u) {
+        Map<String, User> userMap = activeState().userMap;
+        if (!userMap.containsKey(u.id)) {
+            userMap.put(u.id, u);
             this.roomEvent(u.username + " enters the room.");
         }
     }
 
     public void removeUserFromRoom(String id) {
+        Map<String, User> userMap = activeState().userMap;
         if (userMap.containsKey(id)) {
             User u = userMap.get(id);
             // drop all items in the users inventory when they leave.
@@ -157,7 +588,7 @@ public class Room {
             while (itemIter.hasNext()) {
                 ItemDesc item = itemIter.next();
                 // add to the room
-                this.roomDesc.items.add(item);
+                desc().items.add(item);
                 // remove from the user.
                 itemIter.remove();
                 // reset item state if needed
@@ -169,70 +600,105 @@ public class Room {
             userMap.remove(id);
             this.roomEvent(u.username + " leaves the room.");
         } else {
-            Log.log(Level.WARNING, this, "Unable to remove {0} from room {1} because user is not known to room", id,roomDesc.id);
+            Log.log(Level.WARNING, this, "Unable to remove {0} from room {1} because user is not known to room", id,this.id);
         }
     }
 
     public void command(String userid, String cmd) {
         try {
-            Parser.parseInput(commandMap, cmd, this, userid);
+            Parser.parseInput(activeState().commandMap, cmd, this, userid);
         } catch (RuntimeException e) {
             this.playerEvent(userid, "I'm sorry Dave, I don't know how to do that", null);
         }
     }
 
     public String getRoomId() {
-        return roomDesc.id;
+        return id;
     }
 
     public String getRoomName() {
-        return roomDesc.name;
+        return name;
     }
 
     public String getRoomDescription() {
-        return roomDesc.description;
+        return description;
     }
 
     public User getUserById(String id) {
-        return userMap.get(id);
+        return activeState().userMap.get(id);
     }
 
     public Collection<User> getAllUsersInRoom() {
-        return userMap.values();
+        return activeState().userMap.values();
     }
 
     public Collection<ItemDesc> getItems() {
-        return roomDesc.items;
+        activate();
+        return desc().items;
     }
 
     public Collection<DoorDesc> getDoors() {
-        return roomDesc.doorways;
+        return doorways;
     }
 
     public void resetRoom() {
-        for (User u : userMap.values()) {
+        for (User u : activeState().userMap.values()) {
             u.inventory.clear();
         }
-        roomDesc.items.clear();
-        roomDesc.items.addAll(roomDesc.defaultItems);
-        for (ItemDesc item : roomDesc.items) {
-            item.setState("");
-            if (item instanceof ContainerDesc) {
-                ContainerDesc box = (ContainerDesc) item;
-                box.items.clear();
-                box.items.addAll(box.defaultItems);
+        // recorded as a single reset, rather than as every change it makes.
+        StateChanges.roomReset(id);
+        resetItems();
+    }
+
+    private void resetItems() {
+        RoomDesc roomDesc = desc();
+        boolean wasMuted = StateChanges.mute();
+        try {
+            roomDesc.items.clear();
+            roomDesc.items.addAll(roomDesc.defaultItems);
+            for (ItemDesc item : roomDesc.items) {
+                item.setState("");
+                if (item instanceof ContainerDesc) {
+                    ContainerDesc box = (ContainerDesc) item;
+                    box.items.clear();
+                    box.items.addAll(box.defaultItems);
+                }
             }
+        } finally {
+            StateChanges.restore(wasMuted);
         }
     }
 
     public Collection<CommandHandler> getCommands() {
-        return commandMap.values();
+        return activeState().commandMap.values();
+    }
+
+    /**
+     * The handler for a verb, or null if the room has none.
+     */
+    public CommandHandler getCommand(String verb) {
+        return activeState().commandMap.get(verb.toUpperCase());
+    }
+
+    /**
+     * Changes whenever what a player sees on looking around might have, as
+     * items come and go or the exits are replaced, so a description built
+     * ahead of time can be checked before it is used. Asking does not load
+     * the room.
+     */
+    public long getViewVersion() {
+        RoomDesc roomDesc = this.roomDesc;
+        int items = roomDesc != null && roomDesc.items instanceof TrackedItemSet
+                ? ((TrackedItemSet) roomDesc.items).getChangeCount() : 0;
+        items += unloadedChanges;
+        return ((long) exitsVersion << 32) | (items & 0xFFFFFFFFL);
     }
 
     public void setExits(Map<String, ExitDesc> exitMap) {
         Map<String,ExitDesc> exits = new HashMap<String,ExitDesc>();
         exits.putAll(exitMap);
         this.exitMap = Collections.unmodifiableMap(exits);
+        exitsVersion++;
     }
 
 }
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import net.wasdev.gameon.room.Log;
+
+/**
+ * A hashed wheel timer shared by every room, for scripted item events such as
+ * delayed messages and cleanup. A single thread ticks the wheel, so pending
+ * timers cost no threads at all, and each is held as a few entries in
+ * parallel arrays rather than as a task object and a queue node.
+ * <p>
+ * The timer thread only finds what is due, the actions themselves are
+ * handed to the managed executor, or to a pool of the timer's own outside
+ * the server, so a slow action holds up nothing else. Accuracy is to the
+ * nearest tick.
+ */
+public class RoomTimer {
+
+    private static final RoomTimer timer = new RoomTimer(100, TimeUnit.MILLISECONDS, 512);
+    private static final int ACTION_THREADS = 4;
+
+    private final long tickNanos;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+
+    // head of the list of timers for each slot of the wheel, -1 if none.
+    private final int[] wheel;
+    // per timer, by timer number. free numbers are chained through next.
+    private long[] deadlines;
+    private int[] periods;
+    private int[] next;
+    private int[] generations;
+    private Runnable[] actions;
+    private int free = -1;
+    private int used;
+    private int pending;
+
+    // the next tick to be processed.
+    private long tick;
+    private Thread worker;
+    private ExecutorService ownExecutor;
+
+    public static RoomTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @param wheelSize number of slots, rounded up to a power of two.
+     */
+    public RoomTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new int[size];
+        Arrays.fill(wheel, -1);
+        int capacity = 64;
+        deadlines = new long[capacity];
+        periods = new int[capacity];
+        next = new int[capacity];
+        generations = new int[capacity];
+        actions = new Runnable[capacity];
+    }
+
+    /**
+     * Run an action once, after a delay.
+     *
+     * @return a handle that can be passed to cancel.
+     */
+    public long schedule(Runnable action, long delay, TimeUnit unit) {
+        return add(action, unit.toNanos(delay), 0);
+    }
+
+    /**
+     * Run an action after an initial delay, then every period until
+     * cancelled.
+     *
+     * @return a handle that can be passed to cancel.
+     */
+    public long scheduleRepeating(Runnable action, long initialDelay, long period, TimeUnit unit) {
+        long ticks = Math.max(1, unit.toNanos(period) / tickNanos);
+        if (ticks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Period is too long : " + period + " " + unit);
+        }
+        return add(action, unit.toNanos(initialDelay), (int) ticks);
+    }
+
+    /**
+     * Stop a timer from firing (again).
+     *
+     * @return true if the timer was still pending.
+     */
+    public synchronized boolean cancel(long handle) {
+        int index = (int) handle;
+        if (index < 0 || index >= used || generations[index] != (int) (handle >>> 32) || actions[index] == null) {
+            return false;
+        }
+        // unlinked when its slot next comes round.
+        actions[index] = null;
+        pending--;
+        return true;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    private synchronized long add(Runnable action, long delayNanos, int periodTicks) {
+        if (action == null) {
+            throw new IllegalArgumentException("No action to schedule");
+        }
+        if (worker == null) {
+            worker = new Thread(this::run, "room-timer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        long due = (System.nanoTime() - startNanos + delayNanos + tickNanos - 1) / tickNanos;
+        int index = allocate();
+        deadlines[index] = Math.max(due, tick);
+        periods[index] = periodTicks;
+        actions[index] = action;
+        link(index);
+        pending++;
+        return ((long) generations[index] << 32) | index;
+    }
+
+    private int allocate() {
+        if (free >= 0) {
+            int index = free;
+            free = next[index];
+            return index;
+        }
+        if (used == actions.length) {
+            int capacity = used * 2;
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            periods = Arrays.copyOf(periods, capacity);
+            next = Arrays.copyOf(next, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            actions = Arrays.copyOf(actions, capacity);
+        }
+        return used++;
+    }
+
+    private void release(int index) {
+        actions[index] = null;
+        generations[index]++;
+        next[index] = free;
+        free = index;
+    }
+
+    private void link(int index) {
+        int slot = (int) (deadlines[index] & mask);
+        next[index] = wheel[slot];
+        wheel[slot] = index;
+    }
+
+    /**
+     * Take the actions due at the current tick off the wheel, and move on to
+     * the next tick.
+     */
+    private synchronized List<Runnable> expire() {
+        List<Runnable> due = new ArrayList<Runnable>();
+        List<Integer> repeats = null;
+        int slot = (int) (tick & mask);
+        int prev = -1;
+        int index = wheel[slot];
+        while (index >= 0) {
+            int following = next[index];
+            Runnable action = actions[index];
+            if (action == null || deadlines[index] <= tick) {
+                if (prev < 0) {
+                    wheel[slot] = following;
+                } else {
+                    next[prev] = following;
+                }
+                if (action == null) {
+                    release(index);
+                } else {
+                    due.add(action);
+                    if (periods[index] > 0) {
+                        if (repeats == null) {
+                            repeats = new ArrayList<Integer>();
+                        }
+                        repeats.add(index);
+                    } else {
+                        release(index);
+                        pending--;
+                    }
+                }
+            } else {
+                prev = index;
+            }
+            index = following;
+        }
+        if (repeats != null) {
+            for (int i : repeats) {
+                deadlines[i] = tick + periods[i];
+                link(i);
+            }
+        }
+        tick++;
+        return due;
+    }
+
+    private void run() {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = startNanos + tick * tickNanos - System.nanoTime();
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            List<Runnable> due = expire();
+            if (due.isEmpty()) {
+                continue;
+            }
+            ExecutorService executor = executor();
+            for (Runnable action : due) {
+                Runnable guarded = () -> {
+                    try {
+                        action.run();
+                    } catch (RuntimeException e) {
+                        Log.log(Level.WARNING, this, "Room timer action failed", e);
+                    }
+                };
+                try {
+                    executor.execute(guarded);
+                } catch (RejectedExecutionException ree) {
+                    // the executor is going away, run it here rather than drop it.
+                    guarded.run();
+                }
+            }
+        }
+    }
+
+    private ExecutorService executor() {
+        try {
+            return (ExecutorService) new InitialContext().lookup("concurrent/execSvc");
+        } catch (NamingException ne) {
+            // outside the server, eg from a test rig.
+            synchronized (this) {
+                if (ownExecutor == null) {
+                    // a few, so one slow action does not hold up the rest even on a small machine.
+                    int threads = Math.max(ACTION_THREADS, Runtime.getRuntime().availableProcessors());
+                    ownExecutor = Executors.newFixedThreadPool(threads, r -> {
+                        Thread t = new Thread(r, "room-timer-action");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                return ownExecutor;
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.file;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+
+/**
+ * Binary form of a set of validated room definitions, keyed by a fingerprint
+ * of the source files it was built from. Reads are done against a memory
+ * mapping of the cache file so a warm start does no JSON parsing at all.
+ */
+public class DefinitionCache {
+
+    private static final int MAGIC = 0x474F5244; // GORD
+    private static final short VERSION = 2;
+
+    private static final byte REF = 0;
+    private static final byte ITEM = 1;
+    private static final byte CONTAINER = 2;
+
+    // the fewest bytes each entry can take, to check counts against what is left.
+    private static final int MIN_ROOM = 4 + 4 + 4 + 4 + 4;
+    private static final int MIN_DOOR = 1 + 4;
+    private static final int MIN_ITEM = 1 + 4;
+
+    private final Path file;
+
+    public DefinitionCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the cached definitions, or null if there is no usable cache for
+     *         this fingerprint.
+     */
+    public List<RoomDefinition> read(long fingerprint) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getShort() != VERSION || in.getLong() != fingerprint) {
+                Log.log(Level.FINE, this, "Room definition cache {0} is stale", file);
+                return null;
+            }
+            int count = readCount(in, MIN_ROOM);
+            List<RoomDefinition> rooms = new ArrayList<RoomDefinition>(count);
+            for (int i = 0; i < count; i++) {
+                rooms.add(readRoom(in));
+            }
+            return rooms;
+        } catch (IOException | RuntimeException e) {
+            // a torn or corrupt file can fail in any number of ways, none of them worth more than a rebuild.
+            Log.log(Level.WARNING, this, "Ignoring unreadable room definition cache " + file, e);
+            return null;
+        }
+    }
+
+    public void write(long fingerprint, List<RoomDefinition> rooms) {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeLong(fingerprint);
+                out.writeInt(rooms.size());
+                for (RoomDefinition room : rooms) {
+                    writeRoom(out, room);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException io) {
+            // the cache is only an optimization, we can carry on without it.
+            Log.log(Level.WARNING, this, "Unable to write room definition cache " + file, io);
+        }
+    }
+
+    private void writeRoom(DataOutputStream out, RoomDefinition room) throws IOException {
+        writeString(out, room.id);
+        writeString(out, room.name);
+        writeString(out, room.description);
+        out.writeInt(room.doors.size());
+        for (RoomDefinition.Door door : room.doors) {
+            out.writeByte(door.direction.ordinal());
+            writeString(out, door.description);
+        }
+        writeItems(out, room.items);
+    }
+
+    private void writeItems(DataOutputStream out, List<RoomDefinition.ItemDefinition> items) throws IOException {
+        out.writeInt(items.size());
+        for (RoomDefinition.ItemDefinition item : items) {
+            if (item.ref != null) {
+                out.writeByte(REF);
+                writeString(out, item.ref);
+                continue;
+            }
+            out.writeByte(item.isContainer() ? CONTAINER : ITEM);
+            writeString(out, item.name);
+            writeString(out, item.description);
+            out.writeBoolean(item.takeable);
+            out.writeBoolean(item.clearStateOnDrop);
+            writeString(out, item.useHandler);
+            writeString(out, item.descriptionHandler);
+            if (item.isContainer()) {
+                writeString(out, item.accessHandler);
+                writeItems(out, item.items);
+            }
+        }
+    }
+
+    private RoomDefinition readRoom(ByteBuffer in) {
+        String id = readString(in);
+        String name = readString(in);
+        String description = readString(in);
+        int doorCount = readCount(in, MIN_DOOR);
+        List<RoomDefinition.Door> doors = new ArrayList<RoomDefinition.Door>(doorCount);
+        DoorDesc.Direction[] directions = DoorDesc.Direction.values();
+        for (int i = 0; i < doorCount; i++) {
+            int ordinal = in.get();
+            if (ordinal < 0 || ordinal >= directions.length) {
+                throw new IllegalArgumentException("Bad door direction " + ordinal);
+            }
+            DoorDesc.Direction direction = directions[ordinal];
+            doors.add(new RoomDefinition.Door(direction, readString(in)));
+        }
+        return new RoomDefinition(id, name, description, doors, readItems(in));
+    }
+
+    private List<RoomDefinition.ItemDefinition> readItems(ByteBuffer in) {
+        int count = readCount(in, MIN_ITEM);
+        List<RoomDefinition.ItemDefinition> items = new ArrayList<RoomDefinition.ItemDefinition>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = in.get();
+            if (kind != REF && kind != ITEM && kind != CONTAINER) {
+                throw new IllegalArgumentException("Bad item kind " + kind);
+            }
+            if (kind == REF) {
+                items.add(RoomDefinition.ItemDefinition.reference(readString(in)));
+                continue;
+            }
+            String name = readString(in);
+            String description = readString(in);
+            boolean takeable = in.get() != 0;
+            boolean clearStateOnDrop = in.get() != 0;
+            String useHandler = readString(in);
+            String descriptionHandler = readString(in);
+            String accessHandler = null;
+            List<RoomDefinition.ItemDefinition> contents = null;
+            if (kind == CONTAINER) {
+                accessHandler = readString(in);
+                contents = readItems(in);
+            }
+            items.add(new RoomDefinition.ItemDefinition(null, name, description, takeable, clearStateOnDrop,
+                    useHandler, descriptionHandler, accessHandler, contents));
+        }
+        return items;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a count of entries, checking there is room left for that many.
+     */
+    private static int readCount(ByteBuffer in, int minBytesEach) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / minBytesEach) {
+            throw new IllegalArgumentException("Bad count " + count + " with " + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length + " with " + in.remaining()
+                    + " bytes left");
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
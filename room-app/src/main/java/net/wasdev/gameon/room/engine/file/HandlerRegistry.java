@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.file;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.wasdev.gameon.room.engine.meta.ContainerDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.parser.ItemUseHandler;
+import net.wasdev.gameon.room.engine.sample.items.CoffeeMachine;
+import net.wasdev.gameon.room.engine.sample.items.Cupboard;
+import net.wasdev.gameon.room.engine.sample.items.Fuse;
+import net.wasdev.gameon.room.engine.sample.items.Items;
+import net.wasdev.gameon.room.engine.sample.items.JukeBox;
+import net.wasdev.gameon.room.engine.sample.items.Mug;
+import net.wasdev.gameon.room.engine.sample.items.Stilettos;
+
+/**
+ * Named items and handlers that declarative room definitions can bind to.
+ * <p>
+ * Items are shared instances (handlers compare items by identity, so a room
+ * wanting the sample mug must use the same mug). Handlers that are not
+ * registered can also be named by their fully qualified class name, as long as
+ * the class has a public no-arg constructor.
+ */
+public class HandlerRegistry {
+
+    private final Map<String, ItemDesc> items = new ConcurrentHashMap<String, ItemDesc>();
+    private final Map<String, ItemUseHandler> useHandlers = new ConcurrentHashMap<String, ItemUseHandler>();
+    private final Map<String, ItemDesc.ItemDescriptionHandler> descriptionHandlers = new ConcurrentHashMap<String, ItemDesc.ItemDescriptionHandler>();
+    private final Map<String, ContainerDesc.AccessVerificationHandler> accessHandlers = new ConcurrentHashMap<String, ContainerDesc.AccessVerificationHandler>();
+
+    /**
+     * @return a registry that knows about the items and handlers from the sample world.
+     */
+    public static HandlerRegistry withSampleHandlers() {
+        HandlerRegistry r = new HandlerRegistry();
+        r.registerItem("mug", Items.mug);
+        r.registerItem("coffeeMachine", Items.coffeeMachine);
+        r.registerItem("stilettoHeels", Items.stilettoHeels);
+        r.registerItem("jukebox", Items.jukebox);
+        r.registerItem("fuse", Items.fuse);
+        r.registerItem("cupboard", Items.cupboard);
+        r.registerItem("mugRoomSign", Items.mugRoomSign);
+
+        r.registerUseHandler("mug", Mug.useHandler);
+        r.registerUseHandler("coffeeMachine", CoffeeMachine.handler);
+        r.registerUseHandler("stilettos", Stilettos.useHandler);
+        r.registerUseHandler("jukebox", JukeBox.handler);
+        r.registerUseHandler("fuse", Fuse.handler);
+
+        r.registerDescriptionHandler("mug", Mug.descriptionHandler);
+        r.registerDescriptionHandler("cupboard", Cupboard.handler);
+
+        r.registerAccessHandler("cupboard", Cupboard.access);
+        return r;
+    }
+
+    public void registerItem(String name, ItemDesc item) {
+        items.put(name, item);
+    }
+
+    public void registerUseHandler(String name, ItemUseHandler handler) {
+        useHandlers.put(name, handler);
+    }
+
+    public void registerDescriptionHandler(String name, ItemDesc.ItemDescriptionHandler handler) {
+        descriptionHandlers.put(name, handler);
+    }
+
+    public void registerAccessHandler(String name, ContainerDesc.AccessVerificationHandler handler) {
+        accessHandlers.put(name, handler);
+    }
+
+    public ItemDesc getItem(String name) {
+        ItemDesc item = items.get(name);
+        if (item == null) {
+            throw new IllegalArgumentException("No item registered with name " + name);
+        }
+        return item;
+    }
+
+    public ItemUseHandler getUseHandler(String name) {
+        return name == null ? null : resolve(useHandlers, name, ItemUseHandler.class);
+    }
+
+    public ItemDesc.ItemDescriptionHandler getDescriptionHandler(String name) {
+        return name == null ? null : resolve(descriptionHandlers, name, ItemDesc.ItemDescriptionHandler.class);
+    }
+
+    public ContainerDesc.AccessVerificationHandler getAccessHandler(String name) {
+        return name == null ? null : resolve(accessHandlers, name, ContainerDesc.AccessVerificationHandler.class);
+    }
+
+    private <T> T resolve(Map<String, T> registered, String name, Class<T> type) {
+        T handler = registered.get(name);
+        if (handler != null) {
+            return handler;
+        }
+        try {
+            Class<?> c = Class.forName(name);
+            if (!type.isAssignableFrom(c)) {
+                throw new IllegalArgumentException("Class " + name + " is not a " + type.getSimpleName());
+            }
+            handler = type.cast(c.newInstance());
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+            throw new IllegalArgumentException("No " + type.getSimpleName() + " registered with name " + name, e);
+        }
+        // one instance per class, so handlers can keep state like the registered ones.
+        T existing = registered.putIfAbsent(name, handler);
+        return existing != null ? existing : handler;
+    }
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.file;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonValue;
+
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.DataProvider;
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.ContainerDesc;
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.sample.SampleDataProvider;
+
+/**
+ * Loads rooms from a directory of JSON files, one room per file:
+ *
+ * <pre>
+ * {
+ *   "id": "RecRoom",
+ *   "name": "Rec Room",
+ *   "description": "A dimly lit shabbily decorated room..",
+ *   "doors": { "n": "A dark alleyway..", "s": "Hidden behind piles of trash.." },
+ *   "items": [
+ *     { "ref": "mug" },
+ *     { "name": "Lamp", "description": "A lamp.", "takeable": true },
+ *     { "name": "Box", "description": "A box.", "access": "cupboard", "items": [ { "ref": "fuse" } ] }
+ *   ]
+ * }
+ * </pre>
+ *
+ * Items with a "ref" are shared instances from the {@link HandlerRegistry}.
+ * "useHandler", "descriptionHandler" and "access" name registered handlers,
+ * or handler classes. An item with an "items" array is a container.
+ * <p>
+ * Files are parsed in parallel, validated by binding them, and the result is
+ * written to a binary cache in the same directory that later starts read in
+ * place of the JSON for as long as the files are unchanged.
+ * <p>
+ * Rooms built from files do not keep their definitions: each is parsed from
+ * its file again when the room is next used, and let go again once the room
+ * is passivated.
+ */
+public class JsonDataProvider implements DataProvider {
+
+    static final String CACHE_FILE = ".rooms.cache";
+
+    // looking up the json provider is expensive, so share one reader factory.
+    private static final JsonReaderFactory readerFactory = Json.createReaderFactory(null);
+
+    private final HandlerRegistry registry;
+    private final Collection<Room> rooms;
+
+    public JsonDataProvider(Path dir) {
+        this(dir, HandlerRegistry.withSampleHandlers());
+    }
+
+    private JsonDataProvider(HandlerRegistry registry) {
+        this.registry = registry;
+        this.rooms = Collections.emptyList();
+    }
+
+    /**
+     * Build a single room from a definition in the same format as the files.
+     *
+     * @throws IllegalStateException
+     *             if the definition is not valid.
+     */
+    public static Room buildRoom(JsonObject json, HandlerRegistry registry) {
+        JsonDataProvider provider = new JsonDataProvider(registry);
+        try {
+            return provider.build(provider.parse(json), null);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Bad room definition : " + e.getMessage(), e);
+        }
+    }
+
+    public JsonDataProvider(Path dir, HandlerRegistry registry) {
+        this.registry = registry;
+        long start = System.nanoTime();
+        List<Path> files = listRoomFiles(dir);
+        long fingerprint = fingerprint(files);
+
+        DefinitionCache cache = new DefinitionCache(dir.resolve(CACHE_FILE));
+        List<RoomDefinition> definitions = cache.read(fingerprint);
+        boolean cached = definitions != null;
+        if (!cached) {
+            definitions = files.parallelStream().map(this::parse).collect(Collectors.toList());
+        }
+        List<Room> built = build(definitions, files);
+        if (!cached) {
+            cache.write(fingerprint, definitions);
+        }
+        rooms = Collections.unmodifiableList(built);
+
+        Log.log(Level.INFO, this, "Loaded {0} rooms from {1} ({2}) in {3}ms", rooms.size(), dir,
+                cached ? "cache" : "json", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Override
+    public Collection<Room> getRooms() {
+        return rooms;
+    }
+
+    private static List<Path> listRoomFiles(Path dir) {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.json")) {
+            for (Path p : stream) {
+                files.add(p);
+            }
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to list room definitions in " + dir, io);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Identifies a set of source files by name, size and modification time, so
+     * we can tell if a cache was built from them without reading them.
+     */
+    private static long fingerprint(List<Path> files) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer longs = ByteBuffer.allocate(16);
+            for (Path p : files) {
+                digest.update(p.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+                longs.clear();
+                longs.putLong(Files.size(p)).putLong(Files.getLastModifiedTime(p).toMillis());
+                digest.update(longs.array());
+            }
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to fingerprint room definitions", e);
+        }
+    }
+
+    private RoomDefinition parse(Path file) {
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+                JsonReader reader = readerFactory.createReader(r)) {
+            return parse(reader.readObject());
+        } catch (RuntimeException | IOException e) {
+            throw new IllegalStateException("Bad room definition in " + file + " : " + e.getMessage(), e);
+        }
+    }
+
+    private RoomDefinition parse(JsonObject json) {
+        List<RoomDefinition.Door> doors = new ArrayList<RoomDefinition.Door>();
+        JsonObject doorJson = json.getJsonObject("doors");
+        if (doorJson != null) {
+            for (Entry<String, JsonValue> e : doorJson.entrySet()) {
+                doors.add(new RoomDefinition.Door(direction(e.getKey()), doorJson.getString(e.getKey())));
+            }
+        }
+        return new RoomDefinition(json.getString("id"), json.getString("name"), json.getString("description"),
+                doors, parseItems(json.getJsonArray("items")));
+    }
+
+    private List<RoomDefinition.ItemDefinition> parseItems(JsonArray array) {
+        List<RoomDefinition.ItemDefinition> items = new ArrayList<RoomDefinition.ItemDefinition>();
+        if (array == null) {
+            return items;
+        }
+        for (JsonObject item : array.getValuesAs(JsonObject.class)) {
+            if (item.containsKey("ref")) {
+                items.add(RoomDefinition.ItemDefinition.reference(item.getString("ref")));
+                continue;
+            }
+            JsonArray contents = item.getJsonArray("items");
+            items.add(new RoomDefinition.ItemDefinition(null, item.getString("name"),
+                    item.getString("description", null), item.getBoolean("takeable", false),
+                    item.getBoolean("clearStateOnDrop", false), item.getString("useHandler", null),
+                    item.getString("descriptionHandler", null), item.getString("access", null),
+                    contents == null ? null : parseItems(contents)));
+        }
+        return items;
+    }
+
+    private static DoorDesc.Direction direction(String shortName) {
+        for (DoorDesc.Direction d : DoorDesc.Direction.values()) {
+            if (d.toString().equalsIgnoreCase(shortName.trim())) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("Unknown direction " + shortName);
+    }
+
+    /**
+     * Bind the definitions to items and handlers, failing with every problem
+     * found rather than just the first.
+     *
+     * @param files
+     *            the file each definition came from, in the same order, or
+     *            null to keep the definitions resident.
+     */
+    private List<Room> build(List<RoomDefinition> definitions, List<Path> files) {
+        Set<String> ids = new HashSet<String>();
+        List<String> errors = new ArrayList<String>();
+        for (RoomDefinition d : definitions) {
+            if (!ids.add(d.id)) {
+                errors.add("Duplicate room id " + d.id);
+            }
+        }
+        List<Room> built = IntStream.range(0, definitions.size()).parallel().mapToObj(i -> {
+            RoomDefinition d = definitions.get(i);
+            try {
+                return build(d, files == null ? null : files.get(i));
+            } catch (RuntimeException e) {
+                synchronized (errors) {
+                    errors.add("Room " + d.id + " : " + e.getMessage());
+                }
+                return null;
+            }
+        }).collect(Collectors.toList());
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("Invalid room definitions: " + errors);
+        }
+        return built;
+    }
+
+    private Room build(RoomDefinition d, Path file) {
+        RoomDesc desc = describe(d);
+        return new Room(desc, SampleDataProvider.globalCommands, file == null ? null : loader(file));
+    }
+
+    private Supplier<RoomDesc> loader(Path file) {
+        return () -> describe(parse(file));
+    }
+
+    private RoomDesc describe(RoomDefinition d) {
+        Set<DoorDesc.Direction> directions = new HashSet<DoorDesc.Direction>();
+        DoorDesc[] doors = new DoorDesc[d.doors.size()];
+        for (int i = 0; i < doors.length; i++) {
+            RoomDefinition.Door door = d.doors.get(i);
+            if (!directions.add(door.direction)) {
+                throw new IllegalArgumentException("More than one door to the " + door.direction.toLongString());
+            }
+            doors[i] = new DoorDesc(door.direction, door.description);
+        }
+        return new RoomDesc(d.id, d.name, d.description, buildItems(d.items), doors);
+    }
+
+    private ItemDesc[] buildItems(List<RoomDefinition.ItemDefinition> items) {
+        ItemDesc[] built = new ItemDesc[items.size()];
+        for (int i = 0; i < built.length; i++) {
+            RoomDefinition.ItemDefinition item = items.get(i);
+            if (item.ref != null) {
+                built[i] = registry.getItem(item.ref);
+            } else if (item.isContainer()) {
+                built[i] = new ContainerDesc(item.name, item.description, item.takeable, item.clearStateOnDrop,
+                        buildItems(item.items), registry.getAccessHandler(item.accessHandler),
+                        registry.getUseHandler(item.useHandler),
+                        registry.getDescriptionHandler(item.descriptionHandler));
+            } else {
+                built[i] = new ItemDesc(item.name, item.description, item.takeable, item.clearStateOnDrop,
+                        registry.getUseHandler(item.useHandler),
+                        registry.getDescriptionHandler(item.descriptionHandler));
+            }
+        }
+        return built;
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.file;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+
+/**
+ * A parsed, but not yet bound, room definition. This is the form that is
+ * validated, cached, and then turned into a Room.
+ */
+public class RoomDefinition {
+
+    public static class Door {
+        public final DoorDesc.Direction direction;
+        public final String description;
+
+        public Door(DoorDesc.Direction direction, String description) {
+            this.direction = direction;
+            this.description = description;
+        }
+    }
+
+    public static class ItemDefinition {
+        // name of a registered item, when set none of the other fields are used.
+        public final String ref;
+        public final String name;
+        public final String description;
+        public final boolean takeable;
+        public final boolean clearStateOnDrop;
+        public final String useHandler;
+        public final String descriptionHandler;
+        // containers only, null for plain items.
+        public final String accessHandler;
+        public final List<ItemDefinition> items;
+
+        public static ItemDefinition reference(String ref) {
+            return new ItemDefinition(ref, null, null, false, false, null, null, null, null);
+        }
+
+        public ItemDefinition(String ref, String name, String description, boolean takeable, boolean clearStateOnDrop,
+                String useHandler, String descriptionHandler, String accessHandler, List<ItemDefinition> items) {
+            this.ref = ref;
+            this.name = name;
+            this.description = description;
+            this.takeable = takeable;
+            this.clearStateOnDrop = clearStateOnDrop;
+            this.useHandler = useHandler;
+            this.descriptionHandler = descriptionHandler;
+            this.accessHandler = accessHandler;
+            this.items = items == null ? null : Collections.unmodifiableList(items);
+        }
+
+        public boolean isContainer() {
+            return items != null;
+        }
+    }
+
+    public final String id;
+    public final String name;
+    public final String description;
+    public final List<Door> doors;
+    public final List<ItemDefinition> items;
+
+    public RoomDefinition(String id, String name, String description, List<Door> doors, List<ItemDefinition> items) {
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.doors = Collections.unmodifiableList(doors);
+        this.items = Collections.unmodifiableList(items);
+    }
+}
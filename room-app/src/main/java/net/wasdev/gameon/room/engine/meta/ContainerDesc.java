@@ -19,7 +19,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 import net.wasdev.gameon.room.engine.Room;
 import net.wasdev.gameon.room.engine.parser.ItemUseHandler;
@@ -40,7 +39,7 @@ public class ContainerDesc extends ItemDesc {
             ItemDesc.ItemDescriptionHandler descHandler) {
         super(name, description, takeable, clearStateOnDrop, handler, descHandler);
         this.access = access;
-        this.items = new CopyOnWriteArraySet<ItemDesc>(Arrays.asList(items));
+        this.items = new TrackedItemSet(this, Arrays.asList(items));
         this.defaultItems = Collections.unmodifiableSet(new HashSet<ItemDesc>(this.items));
     }
 
@@ -27,6 +27,10 @@ public class ItemDesc {
     private String state = "";
     private final Object stateMonitor = new Object();
     private final String description;
+    // the first room this item was placed in, used to identify it when its state is recorded.
+    private volatile String ownerRoomId;
+    // placed in more than one room, eg. a registered item several definitions refer to.
+    private volatile boolean shared;
 
     public interface ItemDescriptionHandler {
         public String getDescription(ItemDesc item, String execBy, String cmd, Room room);
@@ -69,6 +73,7 @@ public class ItemDesc {
     public void setState(String newstate) {
         synchronized (stateMonitor) {
             this.state = newstate;
+            StateChanges.stateChanged(this, newstate);
         }
     }
 
@@ -76,6 +81,7 @@ public class ItemDesc {
         synchronized (stateMonitor) {
             if (this.state.equals(oldstate)) {
                 this.state = newstate;
+                StateChanges.stateChanged(this, newstate);
                 return true;
             } else {
                 return false;
@@ -83,6 +89,32 @@ public class ItemDesc {
         }
     }
 
+    public String getOwnerRoomId() {
+        return ownerRoomId;
+    }
+
+    /**
+     * Claim this item for a room, items shared between rooms belong to the
+     * first room that claims them.
+     */
+    void claim(String roomId) {
+        synchronized (stateMonitor) {
+            if (ownerRoomId == null) {
+                ownerRoomId = roomId;
+            } else if (!ownerRoomId.equals(roomId)) {
+                shared = true;
+            }
+        }
+    }
+
+    /**
+     * True if more than one room has this item, so no one room may put it
+     * back the way it was.
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
     public String getState() {
         return this.state;
     }
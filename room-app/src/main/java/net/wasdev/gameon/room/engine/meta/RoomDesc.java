@@ -20,7 +20,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 public class RoomDesc {
 
@@ -35,8 +34,18 @@ public class RoomDesc {
         this.id = id;
         this.name = name;
         this.description = description;
-        this.items = new CopyOnWriteArraySet<ItemDesc>(Arrays.asList(items));
+        this.items = new TrackedItemSet(id, Arrays.asList(items));
         this.defaultItems = Collections.unmodifiableSet(new HashSet<ItemDesc>(this.items));
         this.doorways = Collections.unmodifiableList(new ArrayList<DoorDesc>(Arrays.asList(doorways)));
+        claim(this.defaultItems);
+    }
+
+    private void claim(Collection<ItemDesc> items) {
+        for (ItemDesc item : items) {
+            item.claim(id);
+            if (item instanceof ContainerDesc) {
+                claim(((ContainerDesc) item).defaultItems);
+            }
+        }
     }
 }
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.meta;
+
+/**
+ * Routes state changes from the meta objects to the installed
+ * {@link StateListener}, if there is one. Changes made while restoring state
+ * (replay, passivation, reset) are muted on the current thread so they are
+ * not recorded again.
+ */
+public final class StateChanges {
+
+    private static volatile StateListener listener;
+
+    private static final ThreadLocal<Boolean> muted = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
+    private StateChanges() {
+    }
+
+    public static void setListener(StateListener l) {
+        listener = l;
+    }
+
+    public static StateListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Stop reporting changes made by this thread.
+     *
+     * @return the previous setting, to be passed to {@link #restore(boolean)}
+     */
+    public static boolean mute() {
+        boolean was = muted.get();
+        muted.set(Boolean.TRUE);
+        return was;
+    }
+
+    public static void restore(boolean wasMuted) {
+        muted.set(wasMuted);
+    }
+
+    private static StateListener active() {
+        StateListener l = listener;
+        if (l == null || muted.get()) {
+            return null;
+        }
+        return l;
+    }
+
+    static void added(TrackedItemSet set, ItemDesc item) {
+        StateListener l = active();
+        if (l != null) {
+            if (set.container == null) {
+                l.itemAddedToRoom(set.roomId, item.name);
+            } else {
+                l.itemAddedToContainer(set.container.getOwnerRoomId(), set.container.name, item.name);
+            }
+        }
+    }
+
+    static void removed(TrackedItemSet set, ItemDesc item) {
+        StateListener l = active();
+        if (l != null) {
+            if (set.container == null) {
+                l.itemRemovedFromRoom(set.roomId, item.name);
+            } else {
+                l.itemRemovedFromContainer(set.container.getOwnerRoomId(), set.container.name, item.name);
+            }
+        }
+    }
+
+    static void stateChanged(ItemDesc item, String state) {
+        StateListener l = active();
+        if (l != null) {
+            l.itemStateChanged(item.getOwnerRoomId(), item.name, state);
+        }
+    }
+
+    public static void roomReset(String roomId) {
+        StateListener l = active();
+        if (l != null) {
+            l.roomReset(roomId);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.meta;
+
+/**
+ * Told about every change to the durable state of the world: where items are,
+ * and what state they are in. Users, and what they carry, are not included.
+ * <p>
+ * Rooms are identified by id, containers and items by name within the room
+ * that owns them.
+ */
+public interface StateListener {
+
+    public void itemAddedToRoom(String roomId, String item);
+
+    public void itemRemovedFromRoom(String roomId, String item);
+
+    public void itemAddedToContainer(String roomId, String container, String item);
+
+    public void itemRemovedFromContainer(String roomId, String container, String item);
+
+    public void itemStateChanged(String roomId, String item, String state);
+
+    public void roomReset(String roomId);
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.meta;
+
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Predicate;
+
+/**
+ * The set of items in a room or container, reporting each item that moves in
+ * or out to {@link StateChanges}.
+ */
+public class TrackedItemSet extends CopyOnWriteArraySet<ItemDesc> {
+    private static final long serialVersionUID = 1L;
+
+    final String roomId;
+    final ContainerDesc container;
+    // only ever compared for a change, so a racing increment lost now and then does no harm.
+    private volatile int changes;
+
+    TrackedItemSet(String roomId, Collection<ItemDesc> items) {
+        super(items);
+        this.roomId = roomId;
+        this.container = null;
+    }
+
+    TrackedItemSet(ContainerDesc container, Collection<ItemDesc> items) {
+        super(items);
+        this.roomId = null;
+        this.container = container;
+    }
+
+    @Override
+    public boolean add(ItemDesc item) {
+        boolean added = super.add(item);
+        if (added) {
+            changes++;
+            StateChanges.added(this, item);
+        }
+        return added;
+    }
+
+    /**
+     * Changes each time an item moves in or out, muted or not.
+     */
+    public int getChangeCount() {
+        return changes;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends ItemDesc> items) {
+        boolean changed = false;
+        for (ItemDesc item : items) {
+            changed |= add(item);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        boolean removed = super.remove(o);
+        if (removed) {
+            changes++;
+            StateChanges.removed(this, (ItemDesc) o);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> items) {
+        boolean changed = false;
+        for (Object o : items) {
+            changed |= remove(o);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super ItemDesc> filter) {
+        boolean changed = false;
+        for (ItemDesc item : this) {
+            if (filter.test(item)) {
+                changed |= remove(item);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> items) {
+        boolean changed = false;
+        for (ItemDesc item : this) {
+            if (!items.contains(item)) {
+                changed |= remove(item);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public void clear() {
+        for (ItemDesc item : this) {
+            remove(item);
+        }
+    }
+}
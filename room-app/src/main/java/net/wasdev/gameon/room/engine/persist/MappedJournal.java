@@ -0,0 +1,619 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.meta.StateListener;
+
+/**
+ * Append-only journal of state changes, written to memory-mapped segment
+ * files by a single background writer.
+ * <p>
+ * Callers only queue the change, so recording never blocks a command. The
+ * writer drains whatever has queued up into a single frame, and forces it to
+ * disk once per frame (group commit). Strings are written once per segment
+ * and referred to by number after that, so most entries are a few bytes.
+ * <p>
+ * A frame that cannot be written is kept and tried again, with later entries
+ * queued behind it, so nothing is numbered or reported written until it is
+ * on disk. The queue is bounded: when the writer falls behind, recording
+ * waits for it, and once the journal is failing entries are dropped and
+ * counted instead. Dropped changes are still in the rooms, so the next
+ * snapshot has them again.
+ * <p>
+ * Segment layout: magic, version, first sequence number, then frames of
+ * [length][crc][first sequence number][entries], ending at a zero length.
+ * The crc covers the sequence number and the entries, version 1 segments
+ * only the entries.
+ */
+public class MappedJournal implements StateListener {
+
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int MAGIC = 0x474F524A; // GORJ
+    private static final short VERSION = 2;
+    private static final int SEGMENT_HEADER = 4 + 2 + 8;
+    private static final int FRAME_HEADER = 4 + 4 + 8;
+    private static final int MAX_BATCH = 4096;
+    static final int MAX_QUEUED = 64 * 1024;
+    private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // an idle writer is woken by the next entry, this is only a backstop.
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final byte DEFINE = 0;
+    private static final byte ROOM_ADD = 1;
+    private static final byte ROOM_REMOVE = 2;
+    private static final byte CONTAINER_ADD = 3;
+    private static final byte CONTAINER_REMOVE = 4;
+    private static final byte STATE = 5;
+    private static final byte RESET = 6;
+
+    private static class Entry {
+        final byte type;
+        final String roomId;
+        final String container;
+        final String item;
+        final String state;
+
+        Entry(byte type, String roomId, String container, String item, String state) {
+            this.type = type;
+            this.roomId = roomId;
+            this.container = container;
+            this.item = item;
+            this.state = state;
+        }
+    }
+
+    private final Path dir;
+    private final String nodeId;
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile boolean running;
+    private volatile Thread writer;
+    // set while the writer is parked with nothing to write.
+    private volatile boolean idle;
+
+    // only touched by the writer thread once started.
+    private MappedByteBuffer segment;
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    // strings defined by the frame being written, part of the dictionary once it is.
+    private Map<String, Integer> defining = new HashMap<String, Integer>();
+    private ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+    private long nextSeq = 1;
+
+    private volatile long lastWrittenSeq;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean failing;
+
+    public MappedJournal(Path dir, String nodeId) throws IOException {
+        this.dir = dir;
+        this.nodeId = nodeId;
+        Files.createDirectories(dir);
+    }
+
+    // -- recording, called on command threads.
+
+    @Override
+    public void itemAddedToRoom(String roomId, String item) {
+        enqueue(new Entry(ROOM_ADD, roomId, null, item, null));
+    }
+
+    @Override
+    public void itemRemovedFromRoom(String roomId, String item) {
+        enqueue(new Entry(ROOM_REMOVE, roomId, null, item, null));
+    }
+
+    @Override
+    public void itemAddedToContainer(String roomId, String container, String item) {
+        enqueue(new Entry(CONTAINER_ADD, roomId, container, item, null));
+    }
+
+    @Override
+    public void itemRemovedFromContainer(String roomId, String container, String item) {
+        enqueue(new Entry(CONTAINER_REMOVE, roomId, container, item, null));
+    }
+
+    @Override
+    public void itemStateChanged(String roomId, String item, String state) {
+        enqueue(new Entry(STATE, roomId, null, item, state));
+    }
+
+    @Override
+    public void roomReset(String roomId) {
+        enqueue(new Entry(RESET, roomId, null, null, null));
+    }
+
+    private void enqueue(Entry e) {
+        if (e.roomId == null) {
+            // not part of any room, so there is nowhere to restore it to.
+            return;
+        }
+        if (queued.get() >= MAX_QUEUED && !awaitRoom()) {
+            long count = dropped.incrementAndGet();
+            Log.log(Long.bitCount(count) == 1 ? Level.WARNING : Level.FINE, this,
+                    "Journal is full, dropped {0} entries, they will be saved by the next snapshot", count);
+            return;
+        }
+        queued.incrementAndGet();
+        queue.offer(e);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Hold the caller while the writer catches up, unless it is failing and
+     * will not.
+     *
+     * @return true if there is room in the queue.
+     */
+    private boolean awaitRoom() {
+        long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+        while (queued.get() >= MAX_QUEUED) {
+            if (failing || !running || System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    // -- lifecycle
+
+    /**
+     * Start writing to a new segment, numbering entries from after the given
+     * sequence number.
+     */
+    public synchronized void start(long lastSeq) throws IOException {
+        if (running) {
+            return;
+        }
+        nextSeq = lastSeq + 1;
+        lastWrittenSeq = lastSeq;
+        openSegment();
+        running = true;
+        writer = new Thread(this::writeLoop, "room-journal-" + nodeId);
+        writer.setDaemon(true);
+        writer.start();
+        Log.log(Level.INFO, this, "Journal for node {0} started in {1} at sequence {2}", nodeId, dir, nextSeq);
+    }
+
+    /**
+     * Stop the writer once everything queued so far is on disk.
+     */
+    public void close() {
+        running = false;
+        Thread t = writer;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getLastWrittenSeq() {
+        return lastWrittenSeq;
+    }
+
+    /**
+     * @return false while frames are failing to be written.
+     */
+    public boolean isHealthy() {
+        return !failing;
+    }
+
+    /**
+     * @return the number of entries dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public String getStats() {
+        long f = frames.get();
+        return "written=" + written.get() + " frames=" + f + " bytes=" + bytes.get() + " entriesPerFrame="
+                + (f == 0 ? 0 : written.get() / f) + " queued=" + queued.get() + " failures=" + failures.get()
+                + " dropped=" + dropped.get() + " healthy=" + !failing;
+    }
+
+    // -- writing, only on the writer thread.
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+        long retryNanos = 0;
+        while (true) {
+            Entry e;
+            while (batch.size() < MAX_BATCH && (e = queue.poll()) != null) {
+                batch.add(e);
+            }
+            if (batch.isEmpty()) {
+                if (!running) {
+                    break;
+                }
+                idle = true;
+                // look again, an entry queued before idle was set woke nobody.
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            try {
+                int count = writeFrame(batch);
+                batch.subList(0, count).clear();
+                queued.addAndGet(-count);
+                written.addAndGet(count);
+                if (failing) {
+                    failing = false;
+                    retryNanos = 0;
+                    Log.log(Level.INFO, this, "Journal for node {0} is writing again at sequence {1}", nodeId, nextSeq);
+                }
+            } catch (IOException | RuntimeException ex) {
+                failing = true;
+                long count = failures.incrementAndGet();
+                if (!running) {
+                    // the final snapshot has these, the rooms still do.
+                    Log.log(Level.SEVERE, this, "Journal for node " + nodeId + " stopped with "
+                            + (batch.size() + queue.size()) + " entries unwritten", ex);
+                    break;
+                }
+                if (Long.bitCount(count) == 1) {
+                    Log.log(Level.SEVERE, this, "Unable to write " + batch.size() + " journal entries, " + count
+                            + " attempts failed, they will be tried again", ex);
+                }
+                // keep the batch, later entries queue up behind it.
+                retryNanos = Math.min(MAX_RETRY_NANOS, Math.max(TimeUnit.MILLISECONDS.toNanos(10), retryNanos * 2));
+                LockSupport.parkNanos(retryNanos);
+            }
+        }
+        Log.log(Level.INFO, this, "Journal for node {0} stopped: {1}", nodeId, getStats());
+    }
+
+    /**
+     * Write as much of the batch as fits in one frame.
+     *
+     * @return the number of entries written, from the start of the batch.
+     */
+    private int writeFrame(List<Entry> batch) throws IOException {
+        int count = batch.size();
+        int length = encode(batch);
+        if (length + FRAME_HEADER > segment.remaining()) {
+            openSegment();
+            length = encode(batch);
+            while (length + FRAME_HEADER > segment.remaining()) {
+                if (count == 1) {
+                    throw new IOException("Journal frame of " + length + " bytes is larger than a segment");
+                }
+                count /= 2;
+                length = encode(batch.subList(0, count));
+            }
+        }
+        int crc = checksum(new CRC32(), VERSION, nextSeq, scratch.array(), length);
+        int start = segment.position();
+        try {
+            segment.putInt(length + 8);
+            segment.putInt(crc);
+            segment.putLong(nextSeq);
+            segment.put(scratch.array(), 0, length);
+            segment.force();
+        } catch (RuntimeException failed) {
+            // written again from here when it is retried.
+            segment.position(start);
+            throw failed;
+        }
+        dictionary.putAll(defining);
+
+        nextSeq += count;
+        lastWrittenSeq = nextSeq - 1;
+        frames.incrementAndGet();
+        bytes.addAndGet(length + FRAME_HEADER);
+        return count;
+    }
+
+    /**
+     * The crc of a frame, over its first sequence number then its entries.
+     */
+    private static int checksum(CRC32 crc, short version, long seq, byte[] entries, int length) {
+        crc.reset();
+        if (version > 1) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                crc.update((int) (seq >>> shift));
+            }
+        }
+        crc.update(entries, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Encode the batch into scratch, defining any strings that this segment
+     * has not seen yet.
+     */
+    private int encode(List<Entry> batch) {
+        while (true) {
+            scratch.clear();
+            Map<String, Integer> added = new HashMap<String, Integer>();
+            try {
+                for (Entry e : batch) {
+                    int room = ref(e.roomId, added);
+                    int container = e.container == null ? 0 : ref(e.container, added);
+                    int item = e.item == null ? 0 : ref(e.item, added);
+                    int state = e.state == null ? 0 : ref(e.state, added);
+                    scratch.put(e.type);
+                    putVarInt(scratch, room);
+                    switch (e.type) {
+                        case CONTAINER_ADD:
+                        case CONTAINER_REMOVE:
+                            putVarInt(scratch, container);
+                            putVarInt(scratch, item);
+                            break;
+                        case STATE:
+                            putVarInt(scratch, item);
+                            putVarInt(scratch, state);
+                            break;
+                        case RESET:
+                            break;
+                        default:
+                            putVarInt(scratch, item);
+                    }
+                }
+                defining = added;
+                return scratch.position();
+            } catch (BufferOverflowException full) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private int ref(String s, Map<String, Integer> added) {
+        Integer id = dictionary.get(s);
+        if (id == null) {
+            id = added.get(s);
+        }
+        if (id == null) {
+            id = dictionary.size() + added.size() + 1;
+            added.put(s, id);
+            byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+            scratch.put(DEFINE);
+            putVarInt(scratch, id);
+            putVarInt(scratch, utf.length);
+            scratch.put(utf);
+        }
+        return id;
+    }
+
+    private void openSegment() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        Path p = dir.resolve(segmentName(nextSeq));
+        try (RandomAccessFile raf = new RandomAccessFile(p.toFile(), "rw")) {
+            raf.setLength(SEGMENT_SIZE);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+        segment.putInt(MAGIC);
+        segment.putShort(VERSION);
+        segment.putLong(nextSeq);
+        dictionary.clear();
+        Log.log(Level.FINE, this, "Opened journal segment {0}", p);
+    }
+
+    private String segmentName(long firstSeq) {
+        return String.format("journal-%s-%019d.log", nodeId, firstSeq);
+    }
+
+    // -- reading
+
+    /**
+     * Segments written by this node, oldest first.
+     */
+    List<Path> segments() throws IOException {
+        List<Path> found = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "journal-" + nodeId + "-*.log")) {
+            for (Path p : stream) {
+                found.add(p);
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    /**
+     * Delete segments that only hold entries up to and including the given
+     * sequence number. The newest segment is always kept, as it may still be
+     * being written.
+     *
+     * @return the number of segments deleted.
+     */
+    public int deleteSegmentsThrough(long seq) throws IOException {
+        List<Path> found = segments();
+        int deleted = 0;
+        for (int i = 0; i < found.size() - 1; i++) {
+            // a segment ends where the next one starts.
+            if (firstSeqOf(found.get(i + 1)) - 1 > seq) {
+                break;
+            }
+            Files.deleteIfExists(found.get(i));
+            deleted++;
+            Log.log(Level.FINE, this, "Deleted journal segment {0}", found.get(i));
+        }
+        return deleted;
+    }
+
+    private long firstSeqOf(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - ".log".length()));
+    }
+
+    /**
+     * Replay every entry after the given sequence number to the target.
+     *
+     * @return the sequence number of the last entry in the journal.
+     */
+    public long replay(long afterSeq, StateListener target) throws IOException {
+        long last = afterSeq;
+        long applied = 0;
+        for (Path p : segments()) {
+            try (FileChannel channel = FileChannel.open(p)) {
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                short version = in.getInt() == MAGIC ? in.getShort() : 0;
+                if (version < 1 || version > VERSION) {
+                    Log.log(Level.WARNING, this, "Skipping unrecognized journal segment {0}", p);
+                    continue;
+                }
+                in.getLong();
+                List<String> strings = new ArrayList<String>();
+                strings.add(null);
+                CRC32 check = new CRC32();
+                while (in.remaining() > FRAME_HEADER) {
+                    int length = in.getInt();
+                    int crc = in.getInt();
+                    if (length <= 0 || length > in.remaining()) {
+                        break;
+                    }
+                    ByteBuffer frame = in.slice();
+                    frame.limit(length);
+                    in.position(in.position() + length);
+                    long seq = frame.getLong();
+                    byte[] payload = new byte[frame.remaining()];
+                    frame.duplicate().get(payload);
+                    if (checksum(check, version, seq, payload, payload.length) != crc) {
+                        Log.log(Level.WARNING, this, "Journal segment {0} has a torn frame at sequence {1}", p, seq);
+                        break;
+                    }
+                    while (frame.hasRemaining()) {
+                        byte type = frame.get();
+                        if (type == DEFINE) {
+                            int id = getVarInt(frame);
+                            byte[] utf = new byte[getVarInt(frame)];
+                            frame.get(utf);
+                            while (strings.size() <= id) {
+                                strings.add(null);
+                            }
+                            strings.set(id, new String(utf, StandardCharsets.UTF_8));
+                            continue;
+                        }
+                        if (seq > afterSeq) {
+                            apply(type, frame, strings, target);
+                            applied++;
+                        } else {
+                            skip(type, frame);
+                        }
+                        last = Math.max(last, seq);
+                        seq++;
+                    }
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException bad) {
+                Log.log(Level.WARNING, this, "Journal segment " + p + " is truncated", bad);
+            }
+        }
+        Log.log(Level.INFO, this, "Replayed {0} journal entries after sequence {1}, journal ends at {2}", applied,
+                afterSeq, last);
+        return last;
+    }
+
+    private void apply(byte type, ByteBuffer in, List<String> strings, StateListener target) {
+        String room = strings.get(getVarInt(in));
+        switch (type) {
+            case ROOM_ADD:
+                target.itemAddedToRoom(room, strings.get(getVarInt(in)));
+                break;
+            case ROOM_REMOVE:
+                target.itemRemovedFromRoom(room, strings.get(getVarInt(in)));
+                break;
+            case CONTAINER_ADD:
+                target.itemAddedToContainer(room, strings.get(getVarInt(in)), strings.get(getVarInt(in)));
+                break;
+            case CONTAINER_REMOVE:
+                target.itemRemovedFromContainer(room, strings.get(getVarInt(in)), strings.get(getVarInt(in)));
+                break;
+            case STATE:
+                target.itemStateChanged(room, strings.get(getVarInt(in)), strings.get(getVarInt(in)));
+                break;
+            case RESET:
+                target.roomReset(room);
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal entry type " + type);
+        }
+    }
+
+    private void skip(byte type, ByteBuffer in) {
+        getVarInt(in);
+        switch (type) {
+            case CONTAINER_ADD:
+            case CONTAINER_REMOVE:
+            case STATE:
+                getVarInt(in);
+                getVarInt(in);
+                break;
+            case RESET:
+                break;
+            default:
+                getVarInt(in);
+        }
+    }
+
+    static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
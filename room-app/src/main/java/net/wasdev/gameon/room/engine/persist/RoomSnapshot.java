@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The saved state of a single room: which items are in the room, what is in
+ * each of its containers, and the state of the items it owns. Items are
+ * referred to by name, so a snapshot still applies after the room
+ * definitions have been edited.
+ */
+public class RoomSnapshot {
+
+    private final String roomId;
+    private final List<String> items = new ArrayList<String>();
+    private final Map<String, List<String>> containers = new LinkedHashMap<String, List<String>>();
+    private final Map<String, String> states = new LinkedHashMap<String, String>();
+
+    public RoomSnapshot(String roomId) {
+        this.roomId = roomId;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * Names of the items lying in the room.
+     */
+    public List<String> getItems() {
+        return items;
+    }
+
+    /**
+     * Names of the items in each container, by container name.
+     */
+    public Map<String, List<String>> getContainers() {
+        return containers;
+    }
+
+    /**
+     * Item states by item name, items in their initial state are left out.
+     */
+    public Map<String, String> getStates() {
+        return states;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(roomId);
+        writeNames(out, items);
+        out.writeShort(containers.size());
+        for (Map.Entry<String, List<String>> c : containers.entrySet()) {
+            out.writeUTF(c.getKey());
+            writeNames(out, c.getValue());
+        }
+        out.writeShort(states.size());
+        for (Map.Entry<String, String> s : states.entrySet()) {
+            out.writeUTF(s.getKey());
+            out.writeUTF(s.getValue());
+        }
+    }
+
+    static RoomSnapshot read(DataInput in) throws IOException {
+        RoomSnapshot s = new RoomSnapshot(in.readUTF());
+        readNames(in, s.items);
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            String container = in.readUTF();
+            List<String> contents = new ArrayList<String>();
+            readNames(in, contents);
+            s.containers.put(container, contents);
+        }
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            s.states.put(in.readUTF(), in.readUTF());
+        }
+        return s;
+    }
+
+    private static void writeNames(DataOutput out, List<String> names) throws IOException {
+        out.writeShort(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static void readNames(DataInput in, List<String> names) throws IOException {
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            names.add(in.readUTF());
+        }
+    }
+}
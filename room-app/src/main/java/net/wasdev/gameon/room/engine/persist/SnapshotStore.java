@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import net.wasdev.gameon.room.Log;
+
+/**
+ * Snapshot files for a node. Each snapshot holds every room, and the journal
+ * sequence number it is known to include; recovery loads the newest readable
+ * snapshot and replays the journal after that sequence number.
+ * <p>
+ * File layout: magic, version, sequence number, time taken, room count, the
+ * rooms, then a CRC of everything before it.
+ */
+public class SnapshotStore {
+
+    private static final int MAGIC = 0x474F5253; // GORS
+    private static final short VERSION = 1;
+
+    /**
+     * A snapshot read back from disk.
+     */
+    public static class Snapshot {
+        public final Path path;
+        public final long seq;
+        public final long created;
+        public final List<RoomSnapshot> rooms;
+
+        Snapshot(Path path, long seq, long created, List<RoomSnapshot> rooms) {
+            this.path = path;
+            this.seq = seq;
+            this.created = created;
+            this.rooms = rooms;
+        }
+    }
+
+    private final Path dir;
+    private final String nodeId;
+
+    public SnapshotStore(Path dir, String nodeId) throws IOException {
+        this.dir = dir;
+        this.nodeId = nodeId;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Write a snapshot, replacing any earlier snapshot at the same sequence
+     * number. The file only appears once it is complete.
+     *
+     * @return the snapshot file.
+     */
+    public Path write(long seq, List<RoomSnapshot> rooms) throws IOException {
+        Path target = dir.resolve(String.format("snapshot-%s-%019d.snap", nodeId, seq));
+        Path tmp = dir.resolve(target.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream file = Files.newOutputStream(tmp);
+                DataOutputStream out = new DataOutputStream(
+                        new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), crc))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(seq);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(rooms.size());
+            for (RoomSnapshot room : rooms) {
+                room.write(out);
+            }
+            // the checksum itself is not part of the checksum.
+            long value = crc.getValue();
+            out.flush();
+            new DataOutputStream(file).writeLong(value);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    /**
+     * Snapshots for this node, newest first.
+     */
+    public List<Path> list() throws IOException {
+        List<Path> found = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "snapshot-" + nodeId + "-*.snap")) {
+            for (Path p : stream) {
+                found.add(p);
+            }
+        }
+        Collections.sort(found, Collections.reverseOrder());
+        return found;
+    }
+
+    /**
+     * Read the newest snapshot that is intact.
+     *
+     * @return the snapshot, or null if there are none.
+     */
+    public Snapshot readLatest() throws IOException {
+        for (Path p : list()) {
+            try {
+                return read(p);
+            } catch (IOException bad) {
+                Log.log(Level.WARNING, this, "Skipping unreadable snapshot " + p, bad);
+            }
+        }
+        return null;
+    }
+
+    private Snapshot read(Path p) throws IOException {
+        byte[] data = Files.readAllBytes(p);
+        if (data.length < 8) {
+            throw new IOException("Snapshot is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(data.length - 8);
+        if (in.readLong() != crc.getValue()) {
+            throw new IOException("Snapshot checksum does not match");
+        }
+        in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+        if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+            throw new IOException("Not a snapshot, or written by another version");
+        }
+        long seq = in.readLong();
+        long created = in.readLong();
+        int count = in.readInt();
+        List<RoomSnapshot> rooms = new ArrayList<RoomSnapshot>(count);
+        for (int i = 0; i < count; i++) {
+            rooms.add(RoomSnapshot.read(in));
+        }
+        return new Snapshot(p, seq, created, rooms);
+    }
+
+    /**
+     * Delete all but the newest keep snapshots.
+     *
+     * @return the sequence number of the oldest snapshot kept, everything in
+     *         the journal up to there is no longer needed.
+     */
+    public long prune(int keep) throws IOException {
+        List<Path> snapshots = list();
+        long oldest = 0;
+        for (int i = 0; i < snapshots.size(); i++) {
+            Path p = snapshots.get(i);
+            if (i < keep) {
+                oldest = seqOf(p);
+            } else {
+                Files.deleteIfExists(p);
+                Log.log(Level.FINE, this, "Deleted old snapshot {0}", p);
+            }
+        }
+        return oldest;
+    }
+
+    private long seqOf(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - ".snap".length()));
+    }
+}
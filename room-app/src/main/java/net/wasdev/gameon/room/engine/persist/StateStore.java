@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.Engine;
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.StateChanges;
+
+/**
+ * Makes room state durable: recovers the world from disk at startup, then
+ * records every change from then on.
+ * <p>
+ * Recovery loads the newest snapshot and replays only the journal written
+ * after it. Snapshots are taken in the background while rooms stay in use:
+ * item sets are copy-on-write, so each room is copied without holding up its
+ * commands, and any change that races with the copy is also in the journal
+ * after the snapshot's sequence number, so replaying it again is harmless.
+ * <p>
+ * Only one store at a time can have a node's files open, a second is refused
+ * rather than let two journals write over each other.
+ */
+public class StateStore {
+
+    // snapshots kept, the journal is kept back to the oldest of them.
+    private static final int SNAPSHOTS_KEPT = 2;
+
+    private final Engine engine;
+    private final MappedJournal journal;
+    private final SnapshotStore snapshots;
+    private final Path lockFile;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private boolean closed;
+
+    private volatile long recoveryMillis;
+    private volatile long lastSnapshotMillis;
+    private volatile long lastSnapshotBytes;
+    private volatile long lastSnapshotSeq;
+    // journal entries dropped before the last snapshot, which has them instead.
+    private volatile long droppedBeforeSnapshot;
+
+    public StateStore(Engine engine, Path dir, String nodeId) throws IOException {
+        this.engine = engine;
+        this.journal = new MappedJournal(dir, nodeId);
+        this.snapshots = new SnapshotStore(dir, nodeId);
+        this.lockFile = dir.resolve("state-" + nodeId + ".lock");
+    }
+
+    /**
+     * Restore the world from the latest snapshot and the journal, and start
+     * recording changes.
+     */
+    public void open() throws IOException {
+        lock();
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    private void lock() throws IOException {
+        lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException held) {
+            // by another store in this process.
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Room state is already in use by another engine, it holds " + lockFile);
+        }
+    }
+
+    private void unlock() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException io) {
+            Log.log(Level.FINE, this, "Unable to release " + lockFile, io);
+        }
+        lock = null;
+        lockChannel = null;
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        WorldState world = new WorldState(engine);
+        long snapshotSeq = 0;
+        int snapshotRooms = 0;
+        long lastSeq;
+        boolean wasMuted = StateChanges.mute();
+        try {
+            SnapshotStore.Snapshot snapshot = snapshots.readLatest();
+            if (snapshot != null) {
+                snapshotSeq = snapshot.seq;
+                lastSnapshotBytes = Files.size(snapshot.path);
+                for (RoomSnapshot s : snapshot.rooms) {
+                    Room r = engine.getRoom(s.getRoomId());
+                    if (r != null) {
+                        r.restore(s);
+                        snapshotRooms++;
+                    }
+                }
+            }
+            long loaded = System.nanoTime();
+            Log.log(Level.INFO, this, "Loaded snapshot at sequence {0} for {1} rooms in {2}ms", snapshotSeq,
+                    snapshotRooms, TimeUnit.NANOSECONDS.toMillis(loaded - start));
+            lastSeq = journal.replay(snapshotSeq, world);
+            // whoever was holding these items went away with the old process.
+            for (Room r : engine.getRooms()) {
+                r.recoverOrphanedItems();
+            }
+        } finally {
+            StateChanges.restore(wasMuted);
+        }
+        recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastSnapshotSeq = snapshotSeq;
+        Log.log(Level.INFO, this, "Recovered state in {0}ms, {1} rooms changed since the snapshot ({2} changes skipped)",
+                recoveryMillis, world.getTouchedRooms().size(), world.getSkipped());
+
+        journal.start(lastSeq);
+        StateChanges.setListener(journal);
+    }
+
+    /**
+     * Take a snapshot of every room, then release the journal segments and
+     * snapshots it makes redundant.
+     */
+    public synchronized void snapshot() throws IOException {
+        if (closed) {
+            // the final snapshot has been taken, and the files let go.
+            return;
+        }
+        long start = System.nanoTime();
+        // everything journaled up to here is already applied to the rooms.
+        long seq = journal.getLastWrittenSeq();
+        long dropped = journal.getDropped();
+        List<RoomSnapshot> rooms = new ArrayList<RoomSnapshot>();
+        for (Room r : engine.getRooms()) {
+            RoomSnapshot s = r.snapshot();
+            // unloaded where it started, recovery leaves it that way.
+            if (s != null) {
+                rooms.add(s);
+            }
+        }
+        long captured = System.nanoTime();
+        Path p = snapshots.write(seq, rooms);
+        long written = System.nanoTime();
+        int released = journal.deleteSegmentsThrough(snapshots.prune(SNAPSHOTS_KEPT));
+
+        lastSnapshotMillis = TimeUnit.NANOSECONDS.toMillis(written - start);
+        lastSnapshotBytes = Files.size(p);
+        lastSnapshotSeq = seq;
+        droppedBeforeSnapshot = dropped;
+        Log.log(Level.INFO, this,
+                "Snapshot of {0} rooms at sequence {1}: {2} bytes, copied in {3}ms, written in {4}ms, {5} journal segments released",
+                rooms.size(), seq, lastSnapshotBytes, TimeUnit.NANOSECONDS.toMillis(captured - start),
+                TimeUnit.NANOSECONDS.toMillis(written - captured), released);
+    }
+
+    /**
+     * Stop recording, leaving a final snapshot so the next start has no
+     * journal to replay.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        StateChanges.setListener(null);
+        journal.close();
+        try {
+            snapshot();
+        } catch (IOException io) {
+            Log.log(Level.WARNING, this, "Unable to take a final snapshot, the journal will be replayed instead", io);
+        }
+        closed = true;
+        unlock();
+    }
+
+    /**
+     * @return false while the journal is failing, or has dropped changes no
+     *         snapshot has saved yet; a restart now would lose them.
+     */
+    public boolean isHealthy() {
+        return journal.isHealthy() && journal.getDropped() == droppedBeforeSnapshot;
+    }
+
+    public MappedJournal getJournal() {
+        return journal;
+    }
+
+    public String getStats() {
+        return "recovery=" + recoveryMillis + "ms snapshotSeq=" + lastSnapshotSeq + " snapshotTime="
+                + lastSnapshotMillis + "ms snapshotBytes=" + lastSnapshotBytes + " journalSeq="
+                + journal.getLastWrittenSeq() + " healthy=" + isHealthy() + " " + journal.getStats();
+    }
+}
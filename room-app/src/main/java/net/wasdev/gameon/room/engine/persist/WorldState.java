@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.Engine;
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.ContainerDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.StateListener;
+
+/**
+ * Applies recovered state changes to the rooms of an Engine. Changes that no
+ * longer fit the world (a room or item has since been removed from the
+ * definitions) are skipped.
+ */
+public class WorldState implements StateListener {
+
+    private final Engine engine;
+    private final Set<Room> touched = new LinkedHashSet<Room>();
+    private long skipped;
+
+    public WorldState(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * The rooms that recovery has changed.
+     */
+    public Collection<Room> getTouchedRooms() {
+        return touched;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    private Room room(String roomId) {
+        Room r = engine.getRoom(roomId);
+        if (r != null) {
+            touched.add(r);
+        }
+        return r;
+    }
+
+    private ItemDesc item(String roomId, String name) {
+        Room r = room(roomId);
+        ItemDesc item = r == null ? null : r.findItem(name);
+        if (item == null) {
+            skipped++;
+            Log.log(Level.FINE, this, "Skipping recovered change to unknown item {0} in room {1}", name, roomId);
+        }
+        return item;
+    }
+
+    private ContainerDesc container(String roomId, String name) {
+        ItemDesc item = item(roomId, name);
+        return item instanceof ContainerDesc ? (ContainerDesc) item : null;
+    }
+
+    @Override
+    public void itemAddedToRoom(String roomId, String item) {
+        ItemDesc i = item(roomId, item);
+        if (i != null) {
+            room(roomId).getItems().add(i);
+        }
+    }
+
+    @Override
+    public void itemRemovedFromRoom(String roomId, String item) {
+        ItemDesc i = item(roomId, item);
+        if (i != null) {
+            room(roomId).getItems().remove(i);
+        }
+    }
+
+    @Override
+    public void itemAddedToContainer(String roomId, String container, String item) {
+        ContainerDesc c = container(roomId, container);
+        ItemDesc i = item(roomId, item);
+        if (c != null && i != null) {
+            c.items.add(i);
+        }
+    }
+
+    @Override
+    public void itemRemovedFromContainer(String roomId, String container, String item) {
+        ContainerDesc c = container(roomId, container);
+        ItemDesc i = item(roomId, item);
+        if (c != null && i != null) {
+            c.items.remove(i);
+        }
+    }
+
+    @Override
+    public void itemStateChanged(String roomId, String item, String state) {
+        ItemDesc i = item(roomId, item);
+        if (i != null) {
+            i.setState(state);
+        }
+    }
+
+    @Override
+    public void roomReset(String roomId) {
+        Room r = room(roomId);
+        if (r != null) {
+            r.resetRoom();
+        }
+    }
+}
@@ -40,7 +40,7 @@ import net.wasdev.gameon.room.engine.sample.items.Items;
 
 public class SampleDataProvider implements DataProvider {
 
-    static List<CommandHandler> globalCommands = Arrays
+    public static final List<CommandHandler> globalCommands = Arrays
             .asList(new CommandHandler[] { new Drop(), new Examine(), new Go(),
                     new Inventory(), new ListPlayers(), new Look(), new Quit(), new Reset(), new Take(), new Use() });
 
@@ -17,6 +17,7 @@ package net.wasdev.gameon.room.engine.sample.commands;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -70,22 +71,7 @@ public class Look extends CommandHandler {
         User u = room.getUserById(execBy);
         if (u != null) {
             if (key.equals(look.key)) {
-                List<String> invItems = new ArrayList<String>();
-                List<String> roomItems = new ArrayList<String>();
-                for (ItemDesc i : room.getItems()) {
-                    roomItems.add(i.name);
-                }
-                for (ItemDesc i : u.inventory) {
-                    invItems.add(i.name);
-                }
-                Map<String,String> commands = new HashMap<String,String>();
-                for(CommandHandler ch : room.getCommands()){
-                    if(!ch.isHidden()){
-                        String verb = ch.getTemplates().iterator().next().template.get(0).data.toLowerCase();
-                        commands.put("/"+verb, ch.getHelpText());
-                    }
-                }
-                room.locationEvent(execBy, room, room.getRoomDescription(), room.getExits(), roomItems, invItems,commands);
+                describe(room, execBy, u.inventory, room.getRoomResponseProcessor());
             } else if (key.equals(lookAtRoomItem.key) || key.equals(lookAtInventoryItem.key)
                     || key.equals(lookAtItemInContainer.key)) {
                 Item i = (Item) command.args.get(1);
@@ -99,6 +85,31 @@ public class Look extends CommandHandler {
         }
     }
 
+    /**
+     * Send what a player carrying inventory sees on looking around the room
+     * to rrp, which need not be the room's own, so the description can be
+     * built before the player is in the room.
+     */
+    public static void describe(Room room, String execBy, Collection<ItemDesc> inventory, Room.RoomResponseProcessor rrp) {
+        List<String> invItems = new ArrayList<String>();
+        List<String> roomItems = new ArrayList<String>();
+        for (ItemDesc i : room.getItems()) {
+            roomItems.add(i.name);
+        }
+        for (ItemDesc i : inventory) {
+            invItems.add(i.name);
+        }
+        Map<String,String> commands = new HashMap<String,String>();
+        for(CommandHandler ch : room.getCommands()){
+            if(!ch.isHidden()){
+                String verb = ch.getTemplates().iterator().next().template.get(0).data.toLowerCase();
+                commands.put("/"+verb, ch.getHelpText());
+            }
+        }
+        rrp.locationEvent(execBy, room.getRoomId(), room.getRoomName(), room.getRoomDescription(),
+                room.getExitsMap(execBy, room), roomItems, invItems, commands);
+    }
+
     @Override
     public void processUnknown(Room room, String execBy, String origCmd, String cmdWithoutVerb) {
         room.playerEvent(execBy, "I'm sorry, but I'm not sure how I'm supposed to look " + cmdWithoutVerb, null);
@@ -19,6 +19,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.wasdev.gameon.room.engine.Room;
@@ -60,38 +61,28 @@ public class JukeBox extends ContainerDesc {
         // we really only want one jukebox to play at once ;p
         AtomicBoolean isPlaying = new AtomicBoolean(false);
 
-        class JukeBoxPlayer implements Runnable {
-            Room room;
-
-            public JukeBoxPlayer(Room room) {
-                this.room = room;
-            }
-
-            @Override
-            public void run() {
-                if (isPlaying.compareAndSet(false, true)) {
-                    try {
-                        room.roomEvent("The jukebox sings \"Never gonna give you up.. \"");
-                        Thread.sleep(1000 * 10);
-                        room.roomEvent("The jukebox sings \"Never gonna let you down.. \"");
-                        Thread.sleep(1000 * 10);
-                        room.roomEvent("The jukebox sings \"Never gonna run around.. \"");
-                        Thread.sleep(1000 * 10);
-                        room.roomEvent("The jukebox sings \"And desert you.. \"");
-                        Thread.sleep(1000 * 5);
-                        room.roomEvent(
-                                "The jukebox emits a bright arc of light, and a small puff of smoke.. and stops working.");
-                        Thread.sleep(1000 * 1);
-                    } catch (InterruptedException io) {
-                        // ignore.
-                    }
+        // seconds into the song, and what the jukebox does then.
+        private final int[] songTimes = { 0, 10, 20, 30, 35 };
+        private final String[] song = { "The jukebox sings \"Never gonna give you up.. \"",
+                "The jukebox sings \"Never gonna let you down.. \"",
+                "The jukebox sings \"Never gonna run around.. \"", "The jukebox sings \"And desert you.. \"",
+                "The jukebox emits a bright arc of light, and a small puff of smoke.. and stops working." };
+        private final int songLength = 36;
+
+        private void play(Room room) {
+            if (isPlaying.compareAndSet(false, true)) {
+                for (int i = 0; i < song.length; i++) {
+                    String line = song[i];
+                    room.schedule(() -> room.roomEvent(line), songTimes[i], TimeUnit.SECONDS);
+                }
+                room.schedule(() -> {
                     ContainerDesc box = (ContainerDesc) Items.jukebox;
                     box.items.remove(Items.fuse);
                     ContainerDesc cupboardBox = (ContainerDesc) Items.cupboard;
                     cupboardBox.items.add(Items.fuse);
                     room.roomEvent("You experience an odd feeling of deja vu.");
                     isPlaying.compareAndSet(true, false);
-                }
+                }, songLength, TimeUnit.SECONDS);
             }
         }
 
@@ -108,7 +99,7 @@ public class JukeBox extends ContainerDesc {
                     if (jb.container.items.contains(Items.fuse)) {
                         room.playerEvent(execBy, "The jukebox plays music, you are so happy!",
                                 u.username + " makes the jukebox play music.");
-                        (new Thread(new JukeBoxPlayer(room))).start();
+                        play(room);
                     } else {
                         room.playerEvent(execBy,
                                 "The jukebox appears to be non functional, there's a large slot marked 15A that appears to be empty.",
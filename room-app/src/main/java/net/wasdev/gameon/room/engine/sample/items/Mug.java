@@ -20,10 +20,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
-import javax.enterprise.inject.spi.CDI;
-import java.util.logging.Level;
-import net.wasdev.gameon.room.Log;
-import net.wasdev.gameon.room.Kafka;
 import net.wasdev.gameon.room.engine.Room;
 import net.wasdev.gameon.room.engine.User;
 import net.wasdev.gameon.room.engine.meta.ItemDesc;
@@ -32,6 +28,8 @@ import net.wasdev.gameon.room.engine.parser.Item;
 import net.wasdev.gameon.room.engine.parser.ItemUseHandler;
 import net.wasdev.gameon.room.engine.parser.Node.Type;
 import net.wasdev.gameon.room.engine.parser.ParsedCommand;
+import net.wasdev.gameon.room.events.GameEvent;
+import net.wasdev.gameon.room.events.GameEventBus;
 
 public class Mug extends ItemDesc {
 
@@ -86,8 +84,6 @@ public class Mug extends ItemDesc {
                         useMugInRoomWithItemInContainer, useMugInContainerWithRoomItem,
                         useMugInContainerWithInventoryItem, useMugInContainerWithItemInContainer })));
 
-        private Kafka kafka = CDI.current().select(Kafka.class).get();
-
         @Override
         public Set<CommandTemplate> getTemplates() {
             return templates;
@@ -139,13 +135,8 @@ public class Mug extends ItemDesc {
                         if (mug.item.getAndSetState("empty", "full") || mug.item.getAndSetState("", "full")) {
                             room.playerEvent(execBy, "You make a hot cup of coffee.",
                                     u.username + " makes a mug of coffee.");
-                            if(kafka!=null){
-                              Log.log(Level.FINE, this, "Sending message to kafka");
-                              kafka.publishMessage("gameon","coffee","User "+u.username+" made coffee in "+room.getRoomName()+" using command '"+command.originalCommand+"'");
-                              Log.log(Level.FINE, this, "Sent message to kafka");
-                            }else{
-                              Log.log(Level.FINE, this, "Kafka bean lookup failed.. ");
-                            }
+                            GameEventBus.getBus().publish(GameEvent.coffeeMade(room.getRoomId(), room.getRoomName(),
+                                    u.id, u.username, mug.item.name, command.originalCommand));
                         } else {
                             room.playerEvent(execBy,
                                     "You attempt to fill the already full cup with more coffee. Coffee goes everywhere, you desperately clean up the coffee hoping nobody noticed.",
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import net.wasdev.gameon.events.EventType;
+import net.wasdev.gameon.room.Constants;
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.Engine;
+
+/**
+ * Counts game events per room, type and item over tumbling windows, so that
+ * a busy node publishes one summary per window rather than every event.
+ * Windows are aligned to the clock, so every node's windows line up, and
+ * events fall in the window open when the bus's stage sees them.
+ * <p>
+ * Each key gets a count and an estimate of how many different players it
+ * came from. Room and item ids are given small numbers the first time they
+ * are seen, and keys packed from those are counted in an open addressed
+ * table of primitives that is cleared rather than reallocated between
+ * windows, so counting an event allocates nothing. Only the stage thread
+ * adds to an aggregator.
+ */
+public class EventAggregator {
+
+    public static final long DEFAULT_WINDOW_SECONDS = 10;
+
+    public enum Mode {
+        RAW, SUMMARY, BOTH;
+
+        /**
+         * @return the named mode, or RAW if the name is not one.
+         */
+        public static Mode fromName(String name) {
+            for (Mode m : values()) {
+                if (m.name().equalsIgnoreCase(name == null ? "" : name.trim())) {
+                    return m;
+                }
+            }
+            return RAW;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+    // bits the linear counting estimate of players has, per key.
+    private static final int PLAYER_BITS = 64;
+
+    private final String source;
+    private final long windowMillis;
+    private final boolean keepRaw;
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[] players = new long[INITIAL_CAPACITY];
+    private int size;
+    private long windowStart;
+    private long windowEvents;
+
+    private final LongAdder aggregated = new LongAdder();
+    private final LongAdder summaries = new LongAdder();
+    private volatile int lastKeys;
+
+    /**
+     * @param source
+     *            the node the events are seen on.
+     * @param keepRaw
+     *            true if every event is published as well as the summaries.
+     */
+    public EventAggregator(String source, long windowMillis, boolean keepRaw) {
+        this.source = source;
+        this.windowMillis = Math.max(1, windowMillis);
+        this.keepRaw = keepRaw;
+    }
+
+    /**
+     * Build from the room_event_aggregation and room_event_window settings.
+     *
+     * @return null if only raw events are published.
+     */
+    public static EventAggregator fromConfig() {
+        Mode mode = Mode.fromName(System.getProperty(Constants.ENV_EVENT_AGGREGATION,
+                System.getenv(Constants.ENV_EVENT_AGGREGATION)));
+        if (mode == Mode.RAW) {
+            return null;
+        }
+        long seconds = DEFAULT_WINDOW_SECONDS;
+        String value = System.getProperty(Constants.ENV_EVENT_WINDOW, System.getenv(Constants.ENV_EVENT_WINDOW));
+        if (value != null) {
+            try {
+                seconds = Math.max(1, Long.parseLong(value.trim()));
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, EventAggregator.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_EVENT_WINDOW, value);
+            }
+        }
+        Log.log(Level.INFO, EventAggregator.class, "Game events are summarised every {0}s, raw events {1}", seconds,
+                mode == Mode.BOTH ? "published too" : "not published");
+        return new EventAggregator(Engine.getNodeId(), TimeUnit.SECONDS.toMillis(seconds), mode == Mode.BOTH);
+    }
+
+    public boolean isKeepingRaw() {
+        return keepRaw;
+    }
+
+    /**
+     * Count an event.
+     *
+     * @return the summary of a window that closed before the event, or null.
+     */
+    public GameEvent add(GameEvent event, long nowMillis) {
+        GameEvent closed = poll(nowMillis);
+        long key = key(event);
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            if (++size * 2 > keys.length) {
+                grow();
+                slot = slot(key);
+            }
+        }
+        counts[slot]++;
+        if (event.getUserId() != null) {
+            players[slot] |= 1L << (mix(event.getUserId().hashCode()) >>> (64 - 6));
+        }
+        windowEvents++;
+        aggregated.increment();
+        return closed;
+    }
+
+    /**
+     * Close the window if its time is up.
+     *
+     * @return its summary, or null if it is still open or saw nothing.
+     */
+    public GameEvent poll(long nowMillis) {
+        if (nowMillis - windowStart < windowMillis) {
+            return null;
+        }
+        GameEvent summary = size == 0 ? null : summarise();
+        windowStart = nowMillis - nowMillis % windowMillis;
+        return summary;
+    }
+
+    /**
+     * Close the window early, at shutdown.
+     *
+     * @return its summary so far, or null if it saw nothing.
+     */
+    public GameEvent flush() {
+        return size == 0 ? null : summarise();
+    }
+
+    private GameEvent summarise() {
+        StringBuilder sb = new StringBuilder(size * 32);
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            if (key == 0) {
+                continue;
+            }
+            int room = (int) (key >>> 36) - 1;
+            int item = (int) ((key >>> 8) & 0xfffffff) - 1;
+            GameEvent.Type type = GameEvent.Type.fromEncoded(EventType.fromCode((int) (key & 0xff)));
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(names.get(room)).append(',').append(type.getKey()).append(',')
+                    .append(item < 0 ? "-" : names.get(item)).append(',').append(counts[i]).append(',')
+                    .append(estimatePlayers(players[i]));
+        }
+        GameEvent summary = GameEvent.summary(source, windowStart, windowMillis, windowEvents, sb.toString());
+        lastKeys = size;
+        Arrays.fill(keys, 0);
+        Arrays.fill(counts, 0);
+        Arrays.fill(players, 0);
+        size = 0;
+        windowEvents = 0;
+        summaries.increment();
+        return summary;
+    }
+
+    /**
+     * Linear counting: with z of the bits still clear, about -m ln(z/m)
+     * different players set them.
+     */
+    private static long estimatePlayers(long bits) {
+        int zeros = PLAYER_BITS - Long.bitCount(bits);
+        return Math.round(-PLAYER_BITS * Math.log(Math.max(zeros, 1) / (double) PLAYER_BITS));
+    }
+
+    // room and item numbers are offset by one, so no key is 0 and no item is 0.
+    private long key(GameEvent event) {
+        long room = id(event.getRoomId()) + 1;
+        long item = event.getItemId() == null ? 0 : id(event.getItemId()) + 1;
+        return room << 36 | item << 8 | event.getType().getEncodedType().getCode();
+    }
+
+    private int id(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        // the top bits of the mix, the low bits of a key are mostly its type.
+        int i = (int) (mix(key) >>> (64 - Integer.numberOfTrailingZeros(keys.length)));
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        long[] oldPlayers = players;
+        keys = new long[oldKeys.length * 2];
+        counts = new long[keys.length];
+        players = new long[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+                players[slot] = oldPlayers[i];
+            }
+        }
+    }
+
+    private static long mix(long x) {
+        return x * 0x9e3779b97f4a7c15L;
+    }
+
+    public long getAggregated() {
+        return aggregated.sum();
+    }
+
+    public long getSummaries() {
+        return summaries.sum();
+    }
+
+    public String getStats() {
+        return "windowMs=" + windowMillis + " keepRaw=" + keepRaw + " aggregated=" + aggregated.sum() + " summaries="
+                + summaries.sum() + " lastKeys=" + lastKeys;
+    }
+}
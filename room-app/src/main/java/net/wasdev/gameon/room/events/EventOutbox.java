@@ -0,0 +1,675 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import net.wasdev.gameon.events.EventCodec;
+import net.wasdev.gameon.events.RoomEvent;
+import net.wasdev.gameon.room.Constants;
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.Engine;
+
+/**
+ * Disk backed outbox for game events. The bus stage appends events to
+ * memory-mapped segment files and forces them to disk a batch at a time; a
+ * forwarder thread reads them back in order and sends them to the sink,
+ * moving an acknowledged position on only once the sink has taken them.
+ * <p>
+ * Events survive the broker being away and the node restarting: on restart
+ * forwarding picks up after the last acknowledged event. If a send fails
+ * the forwarder goes back to the first event that was not acknowledged and
+ * tries again from there, with a doubling delay, so events are delivered in
+ * order and at least once; an event may be sent again after an outage.
+ * <p>
+ * Segments are deleted once every event in them is acknowledged. At most
+ * room_event_outbox_max megabytes of segments are kept, past that new events
+ * are refused, and counted, until the forwarder catches up.
+ * <p>
+ * Segment layout: magic, version, first sequence number, then records of
+ * [length][crc][sequence number][event in the {@link EventCodec} encoding],
+ * ending at a zero length. The crc covers the sequence number and the
+ * event; version 1 segments, still read, only had it cover the event.
+ */
+public class EventOutbox {
+
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_MEGABYTES = 64;
+    private static final int MAGIC = 0x474F4F42; // GOOB
+    private static final short VERSION = 2;
+    private static final int SEGMENT_HEADER = 4 + 2 + 8;
+    private static final int RECORD_HEADER = 4 + 4 + 8;
+    private static final int WINDOW = 500;
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+    private static final long RETRY_BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long RETRY_MAX_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long SINK_LOOKUP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long FULL_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Object SENT = new Object();
+
+    private final Path dir;
+    private final String nodeId;
+    private final int maxSegments;
+    private final Supplier<EventSink> sinkLookup;
+
+    // only touched by the appending thread once open.
+    private MappedByteBuffer segment;
+    private ByteBuffer scratch = ByteBuffer.allocate(16 * 1024);
+    private final CRC32 crc = new CRC32();
+    private long nextSeq = 1;
+    private long fullUntilNanos;
+
+    private volatile long lastWrittenSeq;
+    private volatile long ackedSeq;
+    private FileChannel ackFile;
+    private volatile boolean running;
+    private volatile Thread forwarder;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder failedSends = new LongAdder();
+    private final LongAdder delayMillis = new LongAdder();
+
+    public EventOutbox(Path dir, String nodeId, long maxBytes, Supplier<EventSink> sinkLookup) throws IOException {
+        this.dir = dir;
+        this.nodeId = nodeId;
+        this.maxSegments = (int) Math.max(2, maxBytes / SEGMENT_SIZE);
+        this.sinkLookup = sinkLookup;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Build from the room_state_dir and room_event_outbox_max settings.
+     *
+     * @return an open outbox, or null if there is nowhere to keep one and
+     *         events are only held in memory.
+     */
+    public static EventOutbox fromConfig(Supplier<EventSink> sinkLookup) {
+        String dir = System.getProperty(Constants.ENV_ROOM_STATE_DIR, System.getenv(Constants.ENV_ROOM_STATE_DIR));
+        if (dir == null || dir.isEmpty()) {
+            Log.log(Level.INFO, EventOutbox.class, "No {0} set, game events waiting for kafka are held in memory only",
+                    Constants.ENV_ROOM_STATE_DIR);
+            return null;
+        }
+        long maxMegabytes = DEFAULT_MAX_MEGABYTES;
+        String value = System.getProperty(Constants.ENV_EVENT_OUTBOX_MAX, System.getenv(Constants.ENV_EVENT_OUTBOX_MAX));
+        if (value != null) {
+            try {
+                maxMegabytes = Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, EventOutbox.class, "Ignoring bad value for {0} : {1}",
+                        Constants.ENV_EVENT_OUTBOX_MAX, value);
+            }
+        }
+        try {
+            EventOutbox outbox = new EventOutbox(Paths.get(dir, "outbox"), Engine.getNodeId(),
+                    maxMegabytes * 1024 * 1024, sinkLookup);
+            outbox.open();
+            return outbox;
+        } catch (IOException io) {
+            // carry on in memory rather than lose every event.
+            Log.log(Level.SEVERE, EventOutbox.class,
+                    "Unable to open the game event outbox in " + dir + ", events will be held in memory only", io);
+            return null;
+        }
+    }
+
+    // -- lifecycle
+
+    /**
+     * Recover what earlier runs left behind, start a new segment after it,
+     * and start forwarding.
+     */
+    public synchronized void open() throws IOException {
+        if (running) {
+            return;
+        }
+        ackFile = FileChannel.open(dir.resolve("outbox-" + nodeId + ".ack"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer ack = ByteBuffer.allocate(8);
+        if (ackFile.read(ack, 0) == 8) {
+            ack.flip();
+            ackedSeq = ack.getLong();
+        }
+        long last = Math.max(ackedSeq, recoverLastSeq());
+        nextSeq = last + 1;
+        lastWrittenSeq = last;
+        openSegment();
+        running = true;
+        Thread t = new Thread(this::forwardLoop, "game-event-outbox");
+        t.setDaemon(true);
+        t.start();
+        forwarder = t;
+        Log.log(Level.INFO, this, "Game event outbox for node {0} opened in {1}, {2} events waiting", nodeId, dir,
+                last - ackedSeq);
+    }
+
+    /**
+     * Stop forwarding. What has not been sent yet stays on disk for the next
+     * run.
+     */
+    public void close() {
+        running = false;
+        Thread t = forwarder;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (ackFile != null) {
+                ackFile.close();
+            }
+        } catch (IOException e) {
+            Log.log(Level.FINE, this, "Unable to close outbox position", e);
+        }
+    }
+
+    // -- appending, only on the bus stage.
+
+    /**
+     * Write events to the outbox and force them to disk, in order.
+     *
+     * @return how many of the events were taken, the rest were refused as
+     *         the outbox is full or could not be written.
+     */
+    public int append(List<GameEvent> events) {
+        int taken = 0;
+        try {
+            for (GameEvent e : events) {
+                if (!write(e)) {
+                    break;
+                }
+                taken++;
+            }
+        } catch (IOException | RuntimeException ex) {
+            Log.log(Level.SEVERE, this, "Unable to write game events to the outbox", ex);
+        }
+        if (taken > 0) {
+            segment.force();
+            lastWrittenSeq = nextSeq - 1;
+            appended.add(taken);
+            LockSupport.unpark(forwarder);
+        }
+        refused.add(events.size() - taken);
+        return taken;
+    }
+
+    private boolean write(GameEvent e) throws IOException {
+        int length = encode(e);
+        if (length + RECORD_HEADER > segment.remaining()) {
+            // listing segments is not free, so only check for room once in a while when full.
+            if (fullUntilNanos != 0 && System.nanoTime() - fullUntilNanos < 0) {
+                return false;
+            }
+            if (segments().size() >= maxSegments) {
+                fullUntilNanos = System.nanoTime() + FULL_CHECK_INTERVAL_NANOS;
+                return false;
+            }
+            fullUntilNanos = 0;
+            segment.force();
+            openSegment();
+            if (length + RECORD_HEADER > segment.remaining()) {
+                throw new IOException("Game event of " + length + " bytes is larger than a segment");
+            }
+        }
+        segment.putInt(length + 8);
+        segment.putInt(checksum(crc, VERSION, nextSeq, scratch.array(), length));
+        segment.putLong(nextSeq++);
+        segment.put(scratch.array(), 0, length);
+        return true;
+    }
+
+    /**
+     * The crc of a record, over its sequence number then its event.
+     */
+    private static int checksum(CRC32 crc, short version, long seq, byte[] payload, int length) {
+        crc.reset();
+        if (version > 1) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                crc.update((int) (seq >>> shift));
+            }
+        }
+        crc.update(payload, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private int encode(GameEvent e) {
+        while (true) {
+            scratch.clear();
+            try {
+                EventCodec.encode(scratch, e.getType().getEncodedType(), e.getRoomId(), e.getUserId(), e.getItemId(),
+                        e.getTimestamp(), e.getEncodedAttributes());
+                return scratch.position();
+            } catch (BufferOverflowException full) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path p = dir.resolve(segmentName(nextSeq));
+        try (RandomAccessFile raf = new RandomAccessFile(p.toFile(), "rw")) {
+            raf.setLength(SEGMENT_SIZE);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+        segment.putInt(MAGIC);
+        segment.putShort(VERSION);
+        segment.putLong(nextSeq);
+        segment.force();
+        Log.log(Level.FINE, this, "Opened outbox segment {0}", p);
+    }
+
+    private String segmentName(long firstSeq) {
+        return String.format("outbox-%s-%019d.spool", nodeId, firstSeq);
+    }
+
+    // -- forwarding, only on the forwarder thread.
+
+    private void forwardLoop() {
+        Reader reader = new Reader();
+        reader.seek(ackedSeq + 1);
+        EventSink sink = null;
+        long nextLookup = System.nanoTime();
+        long retryNanos = 0;
+        long retryAt = 0;
+        // everything after a failure in a window is sent again, so after one send smaller windows and grow
+        // them back while sends go through.
+        int windowSize = WINDOW;
+        List<GameEvent> window = new ArrayList<GameEvent>(WINDOW);
+        List<Long> seqs = new ArrayList<Long>(WINDOW);
+        while (running) {
+            if (reader.nextSeq > lastWrittenSeq) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            long now = System.nanoTime();
+            if (retryNanos != 0 && now - retryAt < 0) {
+                // appends wake us, but it is not time to try again yet.
+                LockSupport.parkNanos(this, retryAt - now);
+                continue;
+            }
+            if (sink == null) {
+                if (now - nextLookup < 0) {
+                    LockSupport.parkNanos(this, Math.min(IDLE_PARK_NANOS, nextLookup - now));
+                    continue;
+                }
+                sink = sinkLookup.get();
+                nextLookup = now + SINK_LOOKUP_INTERVAL_NANOS;
+                if (sink == null) {
+                    continue;
+                }
+            }
+
+            window.clear();
+            seqs.clear();
+            long through = reader.read(window, seqs, windowSize, lastWrittenSeq);
+            if (window.isEmpty()) {
+                // nothing we can send, eg. types this room no longer knows.
+                acknowledge(through);
+                continue;
+            }
+            int sent = send(sink, window);
+            if (sent == window.size()) {
+                acknowledge(through);
+                forwarded.add(sent);
+                long nowMillis = System.currentTimeMillis();
+                for (GameEvent e : window) {
+                    delayMillis.add(Math.max(0, nowMillis - e.getTimestamp()));
+                }
+                retryNanos = 0;
+                windowSize = Math.min(WINDOW, windowSize * 2);
+                continue;
+            }
+            windowSize = Math.max(1, windowSize / 2);
+            long failedSeq = seqs.get(sent);
+            acknowledge(failedSeq - 1);
+            forwarded.add(sent);
+            failedSends.increment();
+            reader.seek(failedSeq);
+            if (sent > 0) {
+                // kafka is answering, a send that failed on its own is retried straight away.
+                retryNanos = 0;
+                continue;
+            }
+            retryNanos = retryNanos == 0 ? RETRY_BASE_NANOS : Math.min(RETRY_MAX_NANOS, retryNanos * 2);
+            long count = failedSends.sum();
+            // while kafka is away this happens every retry, so warn less and less often.
+            Log.log(Long.bitCount(count) == 1 ? Level.WARNING : Level.FINE, this,
+                    "Unable to forward game events, retrying from {0} in {1}ms : {2}", failedSeq,
+                    TimeUnit.NANOSECONDS.toMillis(retryNanos), getStats());
+            retryAt = System.nanoTime() + retryNanos;
+        }
+    }
+
+    /**
+     * Send a window of events and wait for the sink to answer for all of
+     * them.
+     *
+     * @return how many events from the start of the window were taken.
+     */
+    private int send(EventSink sink, List<GameEvent> window) {
+        // the answer for each event, SENT or the failure.
+        AtomicReferenceArray<Object> answers = new AtomicReferenceArray<Object>(window.size());
+        CountDownLatch answered = new CountDownLatch(window.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < window.size(); i++) {
+            if (failed.get()) {
+                // everything from the failure on is sent again, and with the broker away each send can
+                // block for a while, so don't send the rest.
+                for (int j = i; j < window.size(); j++) {
+                    answered.countDown();
+                }
+                break;
+            }
+            int index = i;
+            sink.send(window.get(i), failure -> {
+                if (failure != null) {
+                    failed.set(true);
+                }
+                answers.set(index, failure == null ? SENT : failure);
+                answered.countDown();
+            });
+        }
+        try {
+            answered.await(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < window.size(); i++) {
+            Object answer = answers.get(i);
+            if (answer != SENT) {
+                // failed, or still waiting after the timeout.
+                Log.log(Level.FINE, this, "Sending game event " + window.get(i) + " failed",
+                        answer instanceof Exception ? (Exception) answer : null);
+                return i;
+            }
+        }
+        return window.size();
+    }
+
+    private void acknowledge(long seq) {
+        if (seq <= ackedSeq) {
+            return;
+        }
+        try {
+            ByteBuffer ack = ByteBuffer.allocate(8);
+            ack.putLong(seq).flip();
+            ackFile.write(ack, 0);
+            ackFile.force(false);
+            ackedSeq = seq;
+            deleteSegmentsThrough(seq);
+        } catch (IOException io) {
+            Log.log(Level.WARNING, this, "Unable to record the outbox position, events may be sent again", io);
+        }
+    }
+
+    /**
+     * Reads records back from the segments in sequence order.
+     */
+    private class Reader {
+        private final CRC32 check = new CRC32();
+        private ByteBuffer in;
+        private Path current;
+        private short version;
+        long nextSeq;
+
+        /**
+         * Position at the record with the given sequence number.
+         */
+        void seek(long seq) {
+            in = null;
+            current = null;
+            nextSeq = seq;
+            try {
+                List<Path> found = segments();
+                for (int i = found.size() - 1; i >= 0; i--) {
+                    if (firstSeqOf(found.get(i)) <= seq) {
+                        map(found.get(i));
+                        break;
+                    }
+                }
+                // skip to the record we want.
+                while (in != null && in.remaining() >= RECORD_HEADER) {
+                    in.mark();
+                    int length = in.getInt();
+                    if (length <= 8 || length + 4 > in.remaining()) {
+                        in.reset();
+                        break;
+                    }
+                    in.getInt();
+                    long recordSeq = in.getLong();
+                    if (recordSeq >= seq) {
+                        in.reset();
+                        break;
+                    }
+                    in.position(in.position() + length - 8);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.log(Level.WARNING, EventOutbox.this, "Unable to find game event " + seq + " in the outbox", e);
+            }
+        }
+
+        /**
+         * Read up to max events with sequence numbers no later than limit.
+         *
+         * @return the sequence number of the last record read.
+         */
+        long read(List<GameEvent> events, List<Long> seqs, int max, long limit) {
+            while (events.size() < max && nextSeq <= limit) {
+                if (in == null || in.remaining() < RECORD_HEADER || in.getInt(in.position()) == 0) {
+                    if (!nextSegment()) {
+                        break;
+                    }
+                    continue;
+                }
+                int position = in.position();
+                try {
+                    int length = in.getInt();
+                    if (length <= 8 || length + 4 > in.remaining()) {
+                        throw new IllegalStateException("Bad record length " + length);
+                    }
+                    int expected = in.getInt();
+                    long seq = in.getLong();
+                    byte[] payload = new byte[length - 8];
+                    in.get(payload);
+                    if (checksum(check, version, seq, payload, payload.length) != expected || seq < nextSeq) {
+                        throw new IllegalStateException("Torn record at sequence " + nextSeq);
+                    }
+                    if (seq > nextSeq) {
+                        Log.log(Level.WARNING, EventOutbox.this, "Outbox is missing game events {0} to {1}", nextSeq,
+                                seq - 1);
+                    }
+                    nextSeq = seq + 1;
+                    GameEvent e = GameEvent.fromEncoded(EventCodec.decode(payload));
+                    if (e == null) {
+                        Log.log(Level.WARNING, EventOutbox.this, "Skipping game event {0} of an unknown type", seq);
+                        continue;
+                    }
+                    events.add(e);
+                    seqs.add(seq);
+                } catch (BufferUnderflowException | IllegalArgumentException | IllegalStateException bad) {
+                    // left by a node that stopped mid write, nothing after it in this segment is whole.
+                    Log.log(Level.WARNING, EventOutbox.this, "Outbox segment " + current + " ends early", bad);
+                    in.position(position);
+                    if (!nextSegment()) {
+                        break;
+                    }
+                }
+            }
+            return nextSeq - 1;
+        }
+
+        /**
+         * Move on to the segment holding the next record.
+         *
+         * @return false if it has not been started yet.
+         */
+        private boolean nextSegment() {
+            try {
+                for (Path p : segments()) {
+                    if (firstSeqOf(p) >= nextSeq && !p.equals(current)) {
+                        map(p);
+                        return true;
+                    }
+                }
+            } catch (IOException io) {
+                Log.log(Level.WARNING, EventOutbox.this, "Unable to list outbox segments", io);
+            }
+            return false;
+        }
+
+        private void map(Path p) throws IOException {
+            try (FileChannel channel = FileChannel.open(p)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                short found = mapped.getInt() == MAGIC ? mapped.getShort() : 0;
+                if (found < 1 || found > VERSION) {
+                    throw new IOException("Unrecognized outbox segment " + p);
+                }
+                mapped.getLong();
+                in = mapped;
+                current = p;
+                version = found;
+            }
+        }
+    }
+
+    // -- segment files
+
+    /**
+     * Segments written by this node, oldest first.
+     */
+    List<Path> segments() throws IOException {
+        List<Path> found = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "outbox-" + nodeId + "-*.spool")) {
+            for (Path p : stream) {
+                found.add(p);
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private long firstSeqOf(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - ".spool".length()));
+    }
+
+    /**
+     * Delete segments that only hold events up to and including seq. The
+     * newest segment is always kept, as it is being written.
+     */
+    private void deleteSegmentsThrough(long seq) throws IOException {
+        List<Path> found = segments();
+        for (int i = 0; i < found.size() - 1; i++) {
+            // a segment ends where the next one starts.
+            if (firstSeqOf(found.get(i + 1)) - 1 > seq) {
+                break;
+            }
+            Files.deleteIfExists(found.get(i));
+            Log.log(Level.FINE, this, "Deleted outbox segment {0}", found.get(i));
+        }
+    }
+
+    /**
+     * Find the last whole record earlier runs wrote.
+     */
+    private long recoverLastSeq() throws IOException {
+        CRC32 check = new CRC32();
+        long last = 0;
+        for (Path p : segments()) {
+            last = Math.max(last, firstSeqOf(p) - 1);
+            try (FileChannel channel = FileChannel.open(p)) {
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                short version = in.getInt() == MAGIC ? in.getShort() : 0;
+                if (version < 1 || version > VERSION) {
+                    Log.log(Level.WARNING, this, "Ignoring unrecognized outbox segment {0}", p);
+                    continue;
+                }
+                in.getLong();
+                while (in.remaining() >= RECORD_HEADER) {
+                    int length = in.getInt();
+                    if (length <= 8 || length + 4 > in.remaining()) {
+                        break;
+                    }
+                    int expected = in.getInt();
+                    long seq = in.getLong();
+                    byte[] payload = new byte[length - 8];
+                    in.get(payload);
+                    if (checksum(check, version, seq, payload, payload.length) != expected) {
+                        break;
+                    }
+                    last = Math.max(last, seq);
+                }
+            } catch (BufferUnderflowException bad) {
+                Log.log(Level.WARNING, this, "Outbox segment " + p + " is truncated", bad);
+            }
+        }
+        return last;
+    }
+
+    // -- reporting
+
+    /**
+     * Events written but not yet acknowledged by the sink.
+     */
+    public long getBacklog() {
+        return lastWrittenSeq - ackedSeq;
+    }
+
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    public String getStats() {
+        long count = forwarded.sum();
+        return "backlog=" + getBacklog() + " appended=" + appended.sum() + " forwarded=" + count + " refused="
+                + refused.sum() + " failedSends=" + failedSends.sum() + " delayAvgMs="
+                + (count == 0 ? 0 : delayMillis.sum() / count);
+    }
+}
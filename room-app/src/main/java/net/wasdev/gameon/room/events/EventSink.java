@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+/**
+ * Where the {@link GameEventBus} delivers events to.
+ */
+public interface EventSink {
+
+    /**
+     * Told when an event has been delivered, or has failed.
+     */
+    public interface Completion {
+        /**
+         * @param failure
+         *            null if the event was delivered.
+         */
+        void completed(Exception failure);
+    }
+
+    /**
+     * Send an event, calling done once it is delivered or has failed. Should
+     * not block for long, and reports problems through done rather than
+     * throwing, calling it exactly once.
+     */
+    void send(GameEvent event, Completion done);
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.wasdev.gameon.events.EventType;
+import net.wasdev.gameon.events.RoomEvent;
+
+/**
+ * Something that happened in a room that the rest of Game On may want to
+ * hear about.
+ */
+public class GameEvent {
+
+    public static final String TOPIC = "gameon";
+
+    public enum Type {
+        /** a player made coffee */
+        COFFEE_MADE("coffee", EventType.COFFEE_MADE),
+        /** counts of the events a node saw over a window, see {@link EventAggregator} */
+        SUMMARY("summary", EventType.WINDOW_SUMMARY);
+
+        private final String key;
+        private final EventType encoded;
+
+        private Type(String key, EventType encoded) {
+            this.key = key;
+            this.encoded = encoded;
+        }
+
+        /**
+         * The record key events of this type are published with.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * The type in the binary encoding, see
+         * {@link net.wasdev.gameon.events.EventCodec}.
+         */
+        public EventType getEncodedType() {
+            return encoded;
+        }
+
+        /**
+         * @return the type encoded as the given type, or null if there isn't
+         *         one.
+         */
+        public static Type fromEncoded(EventType encoded) {
+            for (Type t : values()) {
+                if (t.encoded == encoded) {
+                    return t;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final String ATTR_ROOM_NAME = "roomName";
+    public static final String ATTR_USERNAME = "username";
+    public static final String ATTR_COMMAND = "command";
+    public static final String ATTR_WINDOW_MILLIS = "windowMillis";
+    public static final String ATTR_EVENTS = "events";
+    public static final String ATTR_COUNTS = "counts";
+
+    private final Type type;
+    private final String roomId;
+    private final String userId;
+    private final String itemId;
+    private final long timestamp;
+    private final Map<String, String> attributes;
+
+    // set by the bus, in the order it takes events.
+    private String producer;
+    private long sequence;
+
+    // bus bookkeeping.
+    long publishedNanos;
+    long notBeforeNanos;
+    int attempts;
+
+    /**
+     * @param itemId
+     *            the item the event is about, may be null.
+     * @param attributes
+     *            anything else about the event, may be null.
+     */
+    public GameEvent(Type type, String roomId, String userId, String itemId, long timestamp,
+            Map<String, String> attributes) {
+        this.type = type;
+        this.roomId = roomId;
+        this.userId = userId;
+        this.itemId = itemId;
+        this.timestamp = timestamp;
+        this.attributes = attributes == null ? Collections.<String, String> emptyMap()
+                : Collections.unmodifiableMap(attributes);
+    }
+
+    public static GameEvent coffeeMade(String roomId, String roomName, String userId, String username, String itemId,
+            String command) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>(8);
+        attributes.put(ATTR_ROOM_NAME, roomName);
+        attributes.put(ATTR_USERNAME, username);
+        attributes.put(ATTR_COMMAND, command);
+        return new GameEvent(Type.COFFEE_MADE, roomId, userId, itemId, System.currentTimeMillis(), attributes);
+    }
+
+    /**
+     * @param source
+     *            the node the events were seen on, in place of a room.
+     * @param counts
+     *            "roomId,type,itemId,count,players" for each key, separated
+     *            by ';', with '-' for no item.
+     */
+    public static GameEvent summary(String source, long windowStart, long windowMillis, long events, String counts) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>(8);
+        attributes.put(ATTR_WINDOW_MILLIS, String.valueOf(windowMillis));
+        attributes.put(ATTR_EVENTS, String.valueOf(events));
+        attributes.put(ATTR_COUNTS, counts);
+        return new GameEvent(Type.SUMMARY, source, null, null, windowStart, attributes);
+    }
+
+    /**
+     * Rebuild an event from its binary encoding.
+     *
+     * @return null if the event is of a type this room does not know.
+     */
+    public static GameEvent fromEncoded(RoomEvent encoded) {
+        Type type = Type.fromEncoded(encoded.getType());
+        if (type == null) {
+            return null;
+        }
+        Map<String, String> attributes = new LinkedHashMap<String, String>(encoded.getAttributes());
+        attributes.remove(RoomEvent.ATTR_PRODUCER);
+        attributes.remove(RoomEvent.ATTR_SEQUENCE);
+        GameEvent e = new GameEvent(type, encoded.getRoomId(), encoded.getUserId(), encoded.getItemId(),
+                encoded.getTimestamp(), attributes);
+        if (encoded.getProducer() != null) {
+            e.sequenced(encoded.getProducer(), encoded.getSequence());
+        }
+        return e;
+    }
+
+    void sequenced(String producer, long sequence) {
+        this.producer = producer;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the bus that numbered the event, or null if it has not been.
+     */
+    public String getProducer() {
+        return producer;
+    }
+
+    /**
+     * @return the event's place among those its producer published for the
+     *         room, counting from 1, or 0 if it has not been numbered.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The attributes as written by the binary encoding, including the
+     * producer and sequence number once the event has them.
+     */
+    public Map<String, String> getEncodedAttributes() {
+        if (producer == null) {
+            return attributes;
+        }
+        Map<String, String> encoded = new LinkedHashMap<String, String>(attributes.size() * 2 + 4);
+        encoded.putAll(attributes);
+        encoded.put(RoomEvent.ATTR_PRODUCER, producer);
+        encoded.put(RoomEvent.ATTR_SEQUENCE, Long.toString(sequence));
+        return encoded;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getItemId() {
+        return itemId;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public String getRoomName() {
+        return attributes.get(ATTR_ROOM_NAME);
+    }
+
+    public String getUsername() {
+        return attributes.get(ATTR_USERNAME);
+    }
+
+    public String getCommand() {
+        return attributes.get(ATTR_COMMAND);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getTopic() {
+        return TOPIC;
+    }
+
+    /**
+     * The message as consumers of the gameon topic have always seen it.
+     */
+    public String toMessage() {
+        switch (type) {
+            case COFFEE_MADE:
+                return "User " + getUsername() + " made coffee in " + getRoomName() + " using command '" + getCommand()
+                        + "'";
+            case SUMMARY:
+                return "Node " + roomId + " saw " + attributes.get(ATTR_EVENTS) + " events in the "
+                        + attributes.get(ATTR_WINDOW_MILLIS) + "ms from " + timestamp + " : "
+                        + attributes.get(ATTR_COUNTS);
+            default:
+                throw new IllegalStateException("Unknown event type " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + roomId + "," + userId + (producer == null ? "" : "," + sequence) + ")";
+    }
+}
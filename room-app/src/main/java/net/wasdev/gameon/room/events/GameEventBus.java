@@ -0,0 +1,520 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+import net.wasdev.gameon.room.Constants;
+import net.wasdev.gameon.room.Kafka;
+import net.wasdev.gameon.room.Log;
+import net.wasdev.gameon.room.engine.Engine;
+
+/**
+ * Takes game events from room handlers and delivers them to Kafka off the
+ * command thread.
+ * <p>
+ * Publishing never blocks: events go on a bounded lock-free queue, and once
+ * room_event_queue_capacity events are waiting new ones are dropped and
+ * counted. A single background stage drains the queue in batches and sends
+ * them to the sink, which reports each result through a callback. Failed
+ * events are retried with a doubling backoff up to room_event_attempts
+ * sends in total, then dropped and counted.
+ * <p>
+ * When there is a room_state_dir the stage instead writes each batch to an
+ * {@link EventOutbox} on disk, which sends them on in order and keeps them
+ * until Kafka has them, however long that takes. {@link #close()} spools
+ * whatever is still waiting there too, so the next run sends it.
+ * <p>
+ * With room_event_aggregation set, the stage also counts events into a
+ * summary per window, see {@link EventAggregator}, and may send only those.
+ * <p>
+ * The stage numbers each room's events in the order it takes them, so
+ * consumers can tell a room's events are complete and in order, and drop
+ * any sent twice, see {@link net.wasdev.gameon.events.SequenceVerifier}.
+ * While one of a room's events waits to be retried from memory, the room's
+ * later events are held back and sent, in order, once it is delivered or
+ * dropped; only those already sent when it failed can get ahead of it. The
+ * outbox sends again from the first failure, so only repeats, rarely a late
+ * one, reach the topic.
+ */
+public class GameEventBus {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_ATTEMPTS = 3;
+    private static final int BATCH_SIZE = 500;
+    private static final long RETRY_BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long SINK_LOOKUP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final GameEventBus bus = new GameEventBus(
+            config(Constants.ENV_EVENT_QUEUE_CAPACITY, DEFAULT_CAPACITY),
+            config(Constants.ENV_EVENT_ATTEMPTS, DEFAULT_ATTEMPTS), () -> kafkaSink(),
+            EventOutbox.fromConfig(() -> kafkaSink()), EventAggregator.fromConfig());
+
+    private final int capacity;
+    private final int maxAttempts;
+    private final Supplier<EventSink> sinkLookup;
+    private final EventOutbox outbox;
+    private final EventAggregator aggregator;
+
+    // names this run of the bus, so a restart starts new sequences rather than reusing numbers.
+    private final String producerId = Engine.getNodeId() + "-" + Long.toString(System.currentTimeMillis(), 36);
+    // the last sequence number given to each room's events, only used by the stage.
+    private final Map<String, long[]> sequences = new HashMap<String, long[]>();
+
+    private final Queue<GameEvent> queue = new ConcurrentLinkedQueue<GameEvent>();
+    // failed sends, handed back to the stage from the sink's callbacks.
+    private final Queue<GameEvent> failed = new ConcurrentLinkedQueue<GameEvent>();
+    // retried events now delivered or dropped, handed back so their room can go on.
+    private final Queue<GameEvent> settled = new ConcurrentLinkedQueue<GameEvent>();
+    // per room, the event waiting to be retried and the later ones held back behind it, only used by the stage.
+    private final Map<String, GameEvent> retrying = new HashMap<String, GameEvent>();
+    private final Map<String, PriorityQueue<GameEvent>> heldBack = new HashMap<String, PriorityQueue<GameEvent>>();
+    // events held by the bus: queued, waiting to retry, or being sent.
+    private final AtomicInteger held = new AtomicInteger();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private volatile Thread stage;
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    public static GameEventBus getBus() {
+        return bus;
+    }
+
+    public GameEventBus(int capacity, int maxAttempts, Supplier<EventSink> sinkLookup) {
+        this(capacity, maxAttempts, sinkLookup, null);
+    }
+
+    /**
+     * @param outbox
+     *            where events go on their way to the sink, or null to send
+     *            them from memory.
+     */
+    public GameEventBus(int capacity, int maxAttempts, Supplier<EventSink> sinkLookup, EventOutbox outbox) {
+        this(capacity, maxAttempts, sinkLookup, outbox, null);
+    }
+
+    /**
+     * @param aggregator
+     *            counts events into a summary per window, or null to send
+     *            only the events themselves.
+     */
+    public GameEventBus(int capacity, int maxAttempts, Supplier<EventSink> sinkLookup, EventOutbox outbox,
+            EventAggregator aggregator) {
+        this.capacity = Math.max(1, capacity);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.sinkLookup = sinkLookup;
+        this.outbox = outbox;
+        this.aggregator = aggregator;
+    }
+
+    private static int config(String name, int defaultValue) {
+        String value = System.getProperty(name, System.getenv(name));
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.log(Level.WARNING, GameEventBus.class, "Ignoring bad value for {0} : {1}", name, value);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static EventSink kafkaSink() {
+        try {
+            return Kafka.lookup();
+        } catch (RuntimeException e) {
+            Log.log(Level.WARNING, GameEventBus.class, "Kafka is not available, game events will be dropped", e);
+            return null;
+        }
+    }
+
+    /**
+     * Queue an event for delivery, without blocking.
+     *
+     * @return false if the bus is full or closed and the event was dropped.
+     */
+    public boolean publish(GameEvent event) {
+        if (closed) {
+            dropped.increment();
+            Log.log(Level.FINE, this, "Game event bus is closed, dropped {0}", event);
+            return false;
+        }
+        if (held.incrementAndGet() > capacity) {
+            held.decrementAndGet();
+            dropped.increment();
+            Log.log(Level.FINE, this, "Game event queue full, dropped {0}", event);
+            return false;
+        }
+        event.publishedNanos = System.nanoTime();
+        queue.offer(event);
+        published.increment();
+        Thread t = stage;
+        if (t == null) {
+            t = start();
+        }
+        if (t != null && idle) {
+            LockSupport.unpark(t);
+        }
+        return true;
+    }
+
+    private synchronized Thread start() {
+        if (stage == null && !closed) {
+            Thread t = new Thread(this::run, "game-event-bus");
+            t.setDaemon(true);
+            t.start();
+            stage = t;
+        }
+        return stage;
+    }
+
+    private void run() {
+        PriorityQueue<GameEvent> waiting = new PriorityQueue<GameEvent>(
+                (a, b) -> Long.compare(a.notBeforeNanos, b.notBeforeNanos));
+        List<GameEvent> batch = new ArrayList<GameEvent>(BATCH_SIZE);
+        EventSink sink = null;
+        long nextLookup = System.nanoTime();
+        while (!closed) {
+            long now = System.nanoTime();
+            for (GameEvent e; (e = settled.poll()) != null;) {
+                release(e, waiting, batch);
+            }
+            for (GameEvent e; (e = failed.poll()) != null;) {
+                retry(e, waiting);
+            }
+            while (!waiting.isEmpty() && waiting.peek().notBeforeNanos - now <= 0 && batch.size() < BATCH_SIZE) {
+                batch.add(waiting.poll());
+            }
+            take(batch);
+            if (aggregator != null) {
+                summarised(aggregator.poll(System.currentTimeMillis()), batch);
+            }
+            if (batch.isEmpty()) {
+                idle = true;
+                // a publish may have slipped in before idle was seen.
+                if (queue.isEmpty() && failed.isEmpty() && settled.isEmpty()) {
+                    long park = waiting.isEmpty() ? IDLE_PARK_NANOS
+                            : Math.min(IDLE_PARK_NANOS, waiting.peek().notBeforeNanos - now);
+                    LockSupport.parkNanos(this, park);
+                }
+                idle = false;
+                continue;
+            }
+
+            if (outbox != null) {
+                spool(batch);
+                batch.clear();
+                continue;
+            }
+            if (sink == null && now - nextLookup >= 0) {
+                sink = sinkLookup.get();
+                nextLookup = now + SINK_LOOKUP_INTERVAL_NANOS;
+            }
+            for (GameEvent e : batch) {
+                // a send that failed straight away holds back the rest of its room's batch too.
+                for (GameEvent f; (f = failed.poll()) != null;) {
+                    retry(f, waiting);
+                }
+                if (retrying.get(e.getRoomId()) != e && holdBack(e)) {
+                    continue;
+                }
+                e.attempts++;
+                if (sink == null) {
+                    complete(e, new IllegalStateException("No event sink"));
+                } else {
+                    sink.send(e, failure -> complete(e, failure));
+                }
+            }
+            batch.clear();
+        }
+        drain(waiting, batch);
+    }
+
+    /**
+     * Move queued events to the batch, numbering them in the order taken.
+     */
+    private void take(List<GameEvent> batch) {
+        for (GameEvent e; batch.size() < BATCH_SIZE && (e = queue.poll()) != null;) {
+            sequence(e);
+            if (aggregator != null) {
+                summarised(aggregator.add(e, System.currentTimeMillis()), batch);
+                if (!aggregator.isKeepingRaw()) {
+                    // counted, nothing more to send.
+                    held.decrementAndGet();
+                    continue;
+                }
+            }
+            if (!holdBack(e)) {
+                batch.add(e);
+            }
+        }
+    }
+
+    /**
+     * Wait a failed event out, unless an earlier event of its room is
+     * already waiting, then it is held back behind that one like any other.
+     */
+    private void retry(GameEvent event, PriorityQueue<GameEvent> waiting) {
+        GameEvent first = retrying.get(event.getRoomId());
+        if (first == null || first == event) {
+            retrying.put(event.getRoomId(), event);
+            waiting.add(event);
+        } else {
+            holdBack(event);
+        }
+    }
+
+    /**
+     * @return true if the event is held back until an earlier event of its
+     *         room has been retried.
+     */
+    private boolean holdBack(GameEvent event) {
+        if (!retrying.containsKey(event.getRoomId())) {
+            return false;
+        }
+        PriorityQueue<GameEvent> later = heldBack.get(event.getRoomId());
+        if (later == null) {
+            later = new PriorityQueue<GameEvent>((a, b) -> Long.compare(a.getSequence(), b.getSequence()));
+            heldBack.put(event.getRoomId(), later);
+        }
+        later.add(event);
+        return true;
+    }
+
+    /**
+     * A room's retried event is delivered or dropped: send what was held
+     * back behind it, in order, up to the next one that has failed before,
+     * which is retried in its turn.
+     */
+    private void release(GameEvent event, PriorityQueue<GameEvent> waiting, List<GameEvent> batch) {
+        String roomId = event.getRoomId();
+        if (retrying.get(roomId) != event) {
+            return;
+        }
+        retrying.remove(roomId);
+        PriorityQueue<GameEvent> later = heldBack.get(roomId);
+        while (later != null && !later.isEmpty()) {
+            GameEvent next = later.poll();
+            if (next.attempts > 0) {
+                retrying.put(roomId, next);
+                waiting.add(next);
+                break;
+            }
+            batch.add(next);
+        }
+        if (later != null && later.isEmpty()) {
+            heldBack.remove(roomId);
+        }
+    }
+
+    /**
+     * Once closed, write everything still held to the outbox, retries first
+     * as they were taken first, so the next run sends them. Without an
+     * outbox they are lost with the JVM.
+     */
+    private void drain(PriorityQueue<GameEvent> waiting, List<GameEvent> batch) {
+        for (GameEvent e; (e = failed.poll()) != null;) {
+            waiting.add(e);
+        }
+        if (outbox == null) {
+            int left = held.get();
+            if (left > 0) {
+                Log.log(Level.WARNING, this, "Game event bus closed with {0} events not delivered : {1}", left,
+                        getStats());
+            }
+            return;
+        }
+        while (!waiting.isEmpty()) {
+            batch.add(waiting.poll());
+            if (batch.size() == BATCH_SIZE) {
+                spool(batch);
+                batch.clear();
+            }
+        }
+        do {
+            take(batch);
+            if (queue.isEmpty() && aggregator != null) {
+                summarised(aggregator.flush(), batch);
+            }
+            if (!batch.isEmpty()) {
+                spool(batch);
+                batch.clear();
+            }
+        } while (!queue.isEmpty());
+    }
+
+    /**
+     * Stop taking events, write those still held to the outbox and close
+     * it. Called once, when the rooms shut down.
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            // after this no stage can start, and publish stops adding to the queue.
+            closed = true;
+            t = stage;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (t.isAlive()) {
+                Log.log(Level.WARNING, this, "Game event bus did not stop in time : {0}", getStats());
+            }
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+        Log.log(Level.INFO, this, "Game event bus closed : {0}", getStats());
+    }
+
+    /**
+     * Send a window's summary along with the events, if one closed.
+     */
+    private void summarised(GameEvent summary, List<GameEvent> batch) {
+        if (summary != null) {
+            sequence(summary);
+            held.incrementAndGet();
+            summary.publishedNanos = System.nanoTime();
+            if (!holdBack(summary)) {
+                batch.add(summary);
+            }
+        }
+    }
+
+    /**
+     * Number an event after the last one taken for its room. Only the stage
+     * takes events, so the numbers follow the order they are sent in.
+     */
+    private void sequence(GameEvent event) {
+        long[] last = sequences.get(event.getRoomId());
+        if (last == null) {
+            last = new long[1];
+            sequences.put(event.getRoomId(), last);
+        }
+        event.sequenced(producerId, ++last[0]);
+    }
+
+    private void spool(List<GameEvent> batch) {
+        int taken = outbox.append(batch);
+        held.addAndGet(-batch.size());
+        delivered.add(taken);
+        for (int i = 0; i < taken; i++) {
+            long latency = System.nanoTime() - batch.get(i).publishedNanos;
+            latencyNanos.add(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        }
+        int refused = batch.size() - taken;
+        if (refused > 0) {
+            abandoned.add(refused);
+            long count = outbox.getRefused();
+            // warn less and less often while it stays full.
+            if (Long.highestOneBit(count) != Long.highestOneBit(count - refused)) {
+                Log.log(Level.WARNING, this, "Game event outbox is full, {0} events refused : {1}", count,
+                        getStats());
+            }
+        }
+    }
+
+    private void complete(GameEvent event, Exception failure) {
+        if (failure == null) {
+            held.decrementAndGet();
+            delivered.increment();
+            long latency = System.nanoTime() - event.publishedNanos;
+            latencyNanos.add(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            if (event.attempts > 1) {
+                settled.offer(event);
+            }
+        } else if (event.attempts < maxAttempts) {
+            retried.increment();
+            event.notBeforeNanos = System.nanoTime() + (RETRY_BASE_NANOS << Math.min(10, event.attempts - 1));
+            failed.offer(event);
+            Log.log(Level.FINE, this, "Retrying game event " + event + " after failure", failure);
+        } else {
+            held.decrementAndGet();
+            abandoned.increment();
+            if (event.attempts > 1) {
+                settled.offer(event);
+            }
+            long count = abandoned.sum();
+            // while kafka is away every event ends here, so warn less and less often.
+            if (Long.bitCount(count) == 1) {
+                Log.log(Level.WARNING, this, "Dropped " + count + " game events after " + maxAttempts
+                        + " attempts, last " + event + " : " + getStats(), failure);
+            } else {
+                Log.log(Level.FINE, this, "Dropping game event " + event + " after " + event.attempts + " attempts",
+                        failure);
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return held.get();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum() + abandoned.sum();
+    }
+
+    public String getStats() {
+        long count = delivered.sum();
+        return "depth=" + held.get() + " published=" + published.sum() + " delivered=" + count + " retried="
+                + retried.sum() + " droppedFull=" + dropped.sum() + " droppedFailed=" + abandoned.sum()
+                + " latencyAvgUs=" + (count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latencyNanos.sum() / count))
+                + " latencyMaxUs=" + TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get())
+                + (outbox == null ? "" : " outbox[" + outbox.getStats() + "]")
+                + (aggregator == null ? "" : " aggregation[" + aggregator.getStats() + "]");
+    }
+
+    /**
+     * @return the outbox events are written to, or null if they are sent
+     *         from memory.
+     */
+    public EventOutbox getOutbox() {
+        return outbox;
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.kafka.common.serialization.Serializer;
+
+import net.wasdev.gameon.events.BufferPool;
+import net.wasdev.gameon.events.EventCodec;
+
+/**
+ * Writes game events as Kafka record values, either as the text messages
+ * consumers of the gameon topic have always seen, or in the compact binary
+ * encoding read by {@link EventCodec}.
+ * <p>
+ * Binary events are encoded into pooled buffers and copied out at their
+ * exact size, Kafka wants a byte[] of its own for every record.
+ */
+public class GameEventSerializer implements Serializer<GameEvent> {
+
+    public enum Encoding {
+        TEXT, BINARY;
+
+        /**
+         * @return the named encoding, or TEXT if the name is not one.
+         */
+        public static Encoding fromName(String name) {
+            return name != null && name.trim().equalsIgnoreCase("binary") ? BINARY : TEXT;
+        }
+    }
+
+    private static final int BUFFERS = 4;
+    private static final int BUFFER_SIZE = 1024;
+
+    private final Encoding encoding;
+    private final BufferPool buffers = new BufferPool(BUFFERS, BUFFER_SIZE);
+
+    public GameEventSerializer(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+    }
+
+    @Override
+    public byte[] serialize(String topic, GameEvent event) {
+        if (event == null) {
+            return null;
+        }
+        if (encoding == Encoding.TEXT) {
+            return event.toMessage().getBytes(StandardCharsets.UTF_8);
+        }
+        ByteBuffer buffer = buffers.acquire();
+        try {
+            encode(buffer, event);
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        } catch (BufferOverflowException tooBig) {
+            // bigger than a pooled buffer, size it exactly instead.
+            ByteBuffer exact = ByteBuffer.allocate(EventCodec.encodedSize(event.getType().getEncodedType(),
+                    event.getRoomId(), event.getUserId(), event.getItemId(), event.getTimestamp(),
+                    event.getEncodedAttributes()));
+            encode(exact, event);
+            return exact.array();
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    private static void encode(ByteBuffer out, GameEvent event) {
+        EventCodec.encode(out, event.getType().getEncodedType(), event.getRoomId(), event.getUserId(),
+                event.getItemId(), event.getTimestamp(), event.getEncodedAttributes());
+    }
+
+    @Override
+    public void close() {
+    }
+}
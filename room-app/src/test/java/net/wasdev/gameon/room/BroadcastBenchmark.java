@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.sample.SampleDataProvider;
+
+/**
+ * How long an announcement takes to reach every session. A world of rooms is
+ * served with stand-in sessions whose sends take about as long as a write to
+ * a socket, a few of them much longer. An announcement is sent room by room,
+ * as a tool would have to without {@link WorldBroadcast}, then through it
+ * with more and more shards, while the rooms carry on talking. The rig
+ * reports how long until every session had the announcement, and checks each
+ * session had it exactly once and was never sent two messages at the same
+ * time.
+ * <p>
+ * Usage: BroadcastBenchmark [rooms] [sessions per room] [send micros] [rounds]
+ */
+public class BroadcastBenchmark {
+
+    private static final String ANNOUNCEMENT = "The world will end in 10 minutes.";
+
+    private static class StandInSession {
+        final long sendNanos;
+        final AtomicInteger sending = new AtomicInteger();
+        final LongAdder announcements = new LongAdder();
+        final LongAdder overlaps = new LongAdder();
+        final Session session;
+
+        StandInSession(long sendNanos) {
+            this.sendNanos = sendNanos;
+            RemoteEndpoint.Basic remote = (RemoteEndpoint.Basic) Proxy.newProxyInstance(
+                    BroadcastBenchmark.class.getClassLoader(), new Class<?>[] { RemoteEndpoint.Basic.class },
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("sendText")) {
+                            sendText((String) args[0]);
+                        }
+                        return null;
+                    });
+            session = (Session) Proxy.newProxyInstance(BroadcastBenchmark.class.getClassLoader(),
+                    new Class<?>[] { Session.class }, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getBasicRemote":
+                                return remote;
+                            case "getId":
+                                return "bench";
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+        void sendText(String text) {
+            if (sending.incrementAndGet() > 1) {
+                overlaps.increment();
+            }
+            // the write to the socket.
+            LockSupport.parkNanos(sendNanos);
+            if (text.contains(ANNOUNCEMENT)) {
+                announcements.increment();
+            }
+            sending.decrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int perRoom = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long sendMicros = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        Logger.getLogger("net.wasdev.gameon.room").setLevel(Level.WARNING);
+        // registration is never started, but the handlers want to know where things are.
+        System.setProperty(Constants.ENV_ROOM_SVC, "ws://localhost:9080/rooms");
+        System.setProperty(Constants.ENV_MAP_SVC, "http://localhost:9080/map/v1/sites");
+
+        RoomEndpoints endpoints = RoomEndpoints.getEndpoints();
+        List<RoomEndpoints.Hosted> hosted = new ArrayList<RoomEndpoints.Hosted>();
+        List<StandInSession> sessions = new ArrayList<StandInSession>();
+        for (int r = 0; r < rooms; r++) {
+            RoomDesc desc = new RoomDesc("WorldRoom" + r, "World Room " + r, "One of many.", new ItemDesc[] {},
+                    new DoorDesc[] {});
+            Room room = new Room(desc, SampleDataProvider.globalCommands);
+            RoomEndpoints.Hosted h = endpoints.open(new RoomRegistrationHandler(room, "bench", "secret"));
+            for (int s = 0; s < perRoom; s++) {
+                // one in a hundred on a slow connection.
+                StandInSession session = new StandInSession(TimeUnit.MICROSECONDS.toNanos(
+                        sessions.size() % 100 == 99 ? sendMicros * 50 : sendMicros));
+                sessions.add(session);
+                h.getResponseProcessor().addSession(session.session);
+            }
+            hosted.add(h);
+        }
+        System.out.printf("%d rooms, %d sessions, %dus a send (1%% at %dus), %d rounds each%n", rooms,
+                sessions.size(), sendMicros, sendMicros * 50, rounds);
+
+        // the rooms keep talking throughout.
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] chatter = new Thread[2];
+        for (int c = 0; c < chatter.length; c++) {
+            chatter[c] = new Thread(() -> {
+                while (running.get()) {
+                    hosted.get(ThreadLocalRandom.current().nextInt(hosted.size())).getResponseProcessor()
+                            .roomEvent("Someone coughs.");
+                }
+            }, "chatter-" + c);
+            chatter[c].setDaemon(true);
+            chatter[c].start();
+        }
+
+        int expected = 0;
+        long[] times = new long[rounds];
+        for (int round = -1; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (RoomEndpoints.Hosted h : hosted) {
+                h.getResponseProcessor().roomEvent(ANNOUNCEMENT);
+            }
+            expected++;
+            if (round >= 0) {
+                times[round] = System.nanoTime() - start;
+            }
+        }
+        report("room by room", times);
+
+        for (int shards : new int[] { 1, 4, 16, 64 }) {
+            WorldBroadcast broadcast = new WorldBroadcast(endpoints, shards);
+            for (int round = -1; round < rounds; round++) {
+                WorldBroadcast.Delivery d = broadcast.deliver(WorldBroadcast.encode(ANNOUNCEMENT));
+                if (!d.await(5, TimeUnit.MINUTES)) {
+                    throw new IllegalStateException("Broadcast did not finish: " + d);
+                }
+                expected++;
+                if (round >= 0) {
+                    times[round] = TimeUnit.MICROSECONDS.toNanos(d.getElapsedMicros());
+                }
+            }
+            report(shards + " shards", times);
+        }
+        running.set(false);
+        for (Thread t : chatter) {
+            t.join();
+        }
+
+        int wrong = 0;
+        long overlaps = 0;
+        for (StandInSession s : sessions) {
+            if (s.announcements.sum() != expected) {
+                wrong++;
+            }
+            overlaps += s.overlaps.sum();
+        }
+        System.out.printf("sessions without exactly %d announcements: %d, sends to a session at once: %d%n",
+                expected, wrong, overlaps);
+        System.exit(0);
+    }
+
+    private static void report(String name, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-14s: every session had it in p50 %7.1fms, max %7.1fms%n", name,
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+}
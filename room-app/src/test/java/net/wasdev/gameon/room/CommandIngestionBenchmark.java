@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Runs room command ingestion across several nodes in one JVM, with an in
+ * memory stand-in for a Kafka topic read by a consumer group. Players in
+ * every room send commands through random nodes while a node joins and
+ * another leaves the group. The rig checks every command ran exactly once,
+ * in the order it was sent, on the node that owned the room's partition at
+ * the time, and reports how long commands took from being sent to being run.
+ * <p>
+ * Usage: CommandIngestionBenchmark [rooms] [commands per room] [partitions]
+ */
+public class CommandIngestionBenchmark {
+
+    /**
+     * Stands in for a partitioned topic read by one consumer group: each
+     * partition is read by one member at a time, from the offset the group
+     * last committed, and partitions are dealt round robin to the members
+     * whenever one joins or leaves.
+     */
+    private static class LocalGroup {
+        private final List<List<String[]>> logs;
+        private final int[] committed;
+        private final List<Member> members = new CopyOnWriteArrayList<Member>();
+        // held to run a record, and exclusively to move partitions.
+        private final ReentrantReadWriteLock rebalance = new ReentrantReadWriteLock();
+
+        LocalGroup(int partitions) {
+            logs = new ArrayList<List<String[]>>(partitions);
+            committed = new int[partitions];
+            for (int i = 0; i < partitions; i++) {
+                logs.add(new ArrayList<String[]>());
+            }
+        }
+
+        void append(String roomId, String frame) {
+            List<String[]> log = logs.get(RoomCommandIngestion.partitionFor(roomId, logs.size()));
+            synchronized (log) {
+                log.add(new String[] { roomId, frame });
+            }
+        }
+
+        void join(Member m) {
+            rebalance.writeLock().lock();
+            try {
+                members.add(m);
+                assign();
+            } finally {
+                rebalance.writeLock().unlock();
+            }
+        }
+
+        void leave(Member m) {
+            rebalance.writeLock().lock();
+            try {
+                members.remove(m);
+                m.ownership.revoked(toList(m.partitions));
+                m.partitions = new int[0];
+                assign();
+            } finally {
+                rebalance.writeLock().unlock();
+            }
+        }
+
+        private void assign() {
+            for (Member m : members) {
+                m.ownership.revoked(toList(m.partitions));
+            }
+            int n = members.size();
+            for (int i = 0; i < n; i++) {
+                List<Integer> mine = new ArrayList<Integer>();
+                for (int p = i; p < logs.size(); p += n) {
+                    mine.add(p);
+                }
+                Member m = members.get(i);
+                m.partitions = mine.stream().mapToInt(Integer::intValue).toArray();
+                m.ownership.assigned(mine, logs.size());
+            }
+        }
+
+        private static List<Integer> toList(int[] partitions) {
+            List<Integer> list = new ArrayList<Integer>();
+            for (int p : partitions) {
+                list.add(p);
+            }
+            return list;
+        }
+
+        /**
+         * Run the next record of one of m's partitions, if there is one.
+         */
+        boolean runNext(Member m) {
+            rebalance.readLock().lock();
+            try {
+                for (int p : m.partitions) {
+                    String[] record;
+                    List<String[]> log = logs.get(p);
+                    synchronized (log) {
+                        if (committed[p] >= log.size()) {
+                            continue;
+                        }
+                        record = log.get(committed[p]);
+                        committed[p]++;
+                    }
+                    m.receiver.received(record[0], record[1]);
+                    return true;
+                }
+                return false;
+            } finally {
+                rebalance.readLock().unlock();
+            }
+        }
+
+        Member member() {
+            return new Member(this);
+        }
+    }
+
+    private static class Member implements RoomCommandIngestion.Transport {
+        private final LocalGroup group;
+        volatile int[] partitions = new int[0];
+        RoomCommandIngestion.Receiver receiver;
+        RoomCommandIngestion.Ownership ownership;
+        private volatile boolean closed;
+        private Thread thread;
+
+        Member(LocalGroup group) {
+            this.group = group;
+        }
+
+        @Override
+        public void start(RoomCommandIngestion.Receiver receiver, RoomCommandIngestion.Ownership ownership) {
+            this.receiver = receiver;
+            this.ownership = ownership;
+            group.join(this);
+            thread = new Thread(() -> {
+                while (!closed) {
+                    if (!group.runNext(this)) {
+                        LockSupport.parkNanos(50000);
+                    }
+                }
+            }, "local-group-member");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void send(String roomId, String frame, RoomFanout.Completion done) {
+            group.append(roomId, frame);
+            done.completed(null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            group.leave(this);
+        }
+    }
+
+    /**
+     * What ran on one node.
+     */
+    private static class Node {
+        final int index;
+        final Map<String, List<Integer>> ran;
+        final long[] latencies;
+        final AtomicLong count;
+        final AtomicLong notOwner;
+        final AtomicLong executedHere = new AtomicLong();
+        RoomCommandIngestion ingestion;
+
+        Node(int index, Map<String, List<Integer>> ran, long[] latencies, AtomicLong count, AtomicLong notOwner) {
+            this.index = index;
+            this.ran = ran;
+            this.latencies = latencies;
+            this.count = count;
+            this.notOwner = notOwner;
+        }
+
+        // frames are "room,<roomId>,{"seq":n,"sent":nanos}".
+        boolean dispatch(String roomId, String frame) {
+            long now = System.nanoTime();
+            int seqAt = frame.indexOf("\"seq\":") + 6;
+            int sentAt = frame.indexOf(",\"sent\":", seqAt);
+            int seq = Integer.parseInt(frame.substring(seqAt, sentAt));
+            long sent = Long.parseLong(frame.substring(sentAt + 8, frame.length() - 1));
+            if (!ingestion.owns(roomId)) {
+                notOwner.incrementAndGet();
+            }
+            List<Integer> seqs = ran.get(roomId);
+            synchronized (seqs) {
+                seqs.add(seq);
+            }
+            executedHere.incrementAndGet();
+            latencies[(int) count.getAndIncrement()] = now - sent;
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int perRoom = args.length > 1 ? Integer.parseInt(args[1]) : 1500;
+        int partitions = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int total = rooms * perRoom;
+
+        // warm up, then measure.
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            LocalGroup group = new LocalGroup(partitions);
+            Map<String, List<Integer>> ran = new ConcurrentHashMap<String, List<Integer>>();
+            for (int r = 0; r < rooms; r++) {
+                ran.put("Room" + r, new ArrayList<Integer>());
+            }
+            long[] latencies = new long[total * 2];
+            AtomicLong count = new AtomicLong();
+            AtomicLong notOwner = new AtomicLong();
+
+            Node[] nodes = new Node[3];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = new Node(i, ran, latencies, count, notOwner);
+                nodes[i].ingestion = new RoomCommandIngestion(group.member(), nodes[i]::dispatch);
+            }
+            nodes[0].ingestion.open();
+            nodes[1].ingestion.open();
+            boolean[] live = { true, true, false };
+
+            long start = System.nanoTime();
+            List<Thread> players = new ArrayList<Thread>();
+            for (int r = 0; r < rooms; r++) {
+                String roomId = "Room" + r;
+                Thread t = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long next = System.nanoTime();
+                    for (int seq = 0; seq < perRoom; seq++) {
+                        // a thousand commands a second, each through whichever node the player is on.
+                        next += TimeUnit.MILLISECONDS.toNanos(1);
+                        LockSupport.parkNanos(next - System.nanoTime());
+                        Node via;
+                        do {
+                            via = nodes[random.nextInt(nodes.length)];
+                        } while (!live[via.index]);
+                        String frame = "room," + roomId + ",{\"seq\":" + seq + ",\"sent\":" + System.nanoTime() + "}";
+                        via.ingestion.forward(roomId, frame, () -> {
+                            throw new IllegalStateException("local topic never fails");
+                        });
+                    }
+                }, "player-" + roomId);
+                t.start();
+                players.add(t);
+            }
+
+            long phase = TimeUnit.MILLISECONDS.toNanos(perRoom / 3);
+            LockSupport.parkNanos(phase);
+            long[] before = executed(nodes);
+            nodes[2].ingestion.open();
+            live[2] = true;
+            LockSupport.parkNanos(phase);
+            long[] middle = executed(nodes);
+            live[0] = false;
+            nodes[0].ingestion.close();
+
+            for (Thread t : players) {
+                t.join();
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (count.get() < total && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            long elapsed = System.nanoTime() - start;
+            long[] after = executed(nodes);
+            nodes[1].ingestion.close();
+            nodes[2].ingestion.close();
+            if (!report) {
+                continue;
+            }
+
+            int ran_ = (int) count.get();
+            boolean exactlyOnceInOrder = ran_ == total;
+            for (List<Integer> seqs : ran.values()) {
+                for (int i = 0; i < seqs.size(); i++) {
+                    exactlyOnceInOrder &= seqs.get(i) == i;
+                }
+                exactlyOnceInOrder &= seqs.size() == perRoom;
+            }
+            System.out.printf("%-36s: %d commands for %d rooms over %d partitions in %dms%n", "ingestion", total,
+                    rooms, partitions, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            System.out.printf("%-36s: %s%n", "commands run by node (0,1 | +2 | -0)",
+                    Arrays.toString(before) + " " + Arrays.toString(diff(middle, before)) + " "
+                            + Arrays.toString(diff(after, middle)));
+            System.out.printf("%-36s: %s%n", "every command ran once, in order", exactlyOnceInOrder);
+            System.out.printf("%-36s: %d%n", "commands run off the room's owner", notOwner.get());
+            long[] sorted = Arrays.copyOf(latencies, ran_);
+            Arrays.sort(sorted);
+            System.out.printf("%-36s: p50=%dus p99=%dus max=%dus%n", "sent to run",
+                    TimeUnit.NANOSECONDS.toMicros(sorted[ran_ / 2]),
+                    TimeUnit.NANOSECONDS.toMicros(sorted[(int) (ran_ * 0.99)]),
+                    TimeUnit.NANOSECONDS.toMicros(sorted[ran_ - 1]));
+            for (Node n : nodes) {
+                System.out.println("node " + n.index + " : " + n.ingestion.getStats());
+            }
+        }
+    }
+
+    private static long[] executed(Node[] nodes) {
+        long[] counts = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            counts[i] = nodes[i].executedHere.get();
+        }
+        return counts;
+    }
+
+    private static long[] diff(long[] a, long[] b) {
+        long[] d = new long[a.length];
+        for (int i = 0; i < a.length; i++) {
+            d[i] = a[i] - b[i];
+        }
+        return d;
+    }
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 20000;
+
+    @Test
+    public void noMembersOwnNothing() {
+        assertNull(new ConsistentHashRing(Collections.<String> emptyList()).ownerOf("RecRoom"));
+    }
+
+    @Test
+    public void oneMemberOwnsEverything() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1"));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("node1", ring.ownerOf("Room" + i));
+        }
+    }
+
+    @Test
+    public void memberOrderDoesNotMatter() {
+        ConsistentHashRing a = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"));
+        ConsistentHashRing b = new ConsistentHashRing(Arrays.asList("node3", "node1", "node2"));
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(a.ownerOf("Room" + i), b.ownerOf("Room" + i));
+        }
+    }
+
+    @Test
+    public void sharesAreCloseToEven() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"));
+        Map<String, Integer> owned = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.ownerOf("Room" + i), 1, Integer::sum);
+        }
+        assertEquals(4, owned.size());
+        for (Map.Entry<String, Integer> share : owned.entrySet()) {
+            assertTrue(share + " of " + KEYS, Math.abs(share.getValue() - KEYS / 4) < KEYS / 4 / 5);
+        }
+    }
+
+    @Test
+    public void aJoiningMemberOnlyTakesKeys() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3"));
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("node1", "node2", "node3", "node4"));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String was = before.ownerOf("Room" + i);
+            String is = after.ownerOf("Room" + i);
+            if (!was.equals(is)) {
+                assertEquals("node4", is);
+                moved++;
+            }
+        }
+        // about a quarter, not the three quarters hashing modulo members would move.
+        assertTrue(moved + " of " + KEYS + " moved", moved > KEYS / 5 && moved < KEYS / 3);
+    }
+}
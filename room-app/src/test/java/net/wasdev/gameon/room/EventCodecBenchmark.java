@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+import net.wasdev.gameon.events.EventCodec;
+import net.wasdev.gameon.events.RoomEvent;
+import net.wasdev.gameon.room.events.GameEvent;
+import net.wasdev.gameon.room.events.GameEventSerializer;
+
+/**
+ * Compares game events written as the text messages published until now with
+ * the binary encoding, for size on the wire and for encode and decode rates
+ * on one thread. Decoding text is done the way consumers have had to, with a
+ * regex. The text carries fewer fields than the binary event, so the size of
+ * the same event as JSON is shown too.
+ * <p>
+ * Usage: EventCodecBenchmark [events]
+ */
+public class EventCodecBenchmark {
+
+    private static final Pattern COFFEE = Pattern.compile("User (.*) made coffee in (.*) using command '(.*)'");
+
+    private interface Pass {
+        long run(List<GameEvent> events, List<byte[]> encoded);
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+        List<GameEvent> events = new ArrayList<GameEvent>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(GameEvent.coffeeMade("RecRoom" + (i % 50), "Rec Room " + (i % 50),
+                    "github:" + (1000000 + i % 5000), "player" + (i % 5000), "Mug", "/use mug with coffee machine"));
+        }
+        GameEventSerializer text = new GameEventSerializer(GameEventSerializer.Encoding.TEXT);
+        GameEventSerializer binary = new GameEventSerializer(GameEventSerializer.Encoding.BINARY);
+        List<byte[]> texts = new ArrayList<byte[]>(count);
+        List<byte[]> binaries = new ArrayList<byte[]>(count);
+        long textBytes = 0;
+        long binaryBytes = 0;
+        long jsonBytes = 0;
+        for (GameEvent e : events) {
+            jsonBytes += json(e).getBytes(StandardCharsets.UTF_8).length;
+            byte[] t = text.serialize(GameEvent.TOPIC, e);
+            byte[] b = binary.serialize(GameEvent.TOPIC, e);
+            texts.add(t);
+            binaries.add(b);
+            textBytes += t.length;
+            binaryBytes += b.length;
+        }
+        System.out.printf("%-16s: %6.1f bytes/event%n", "text", (double) textBytes / count);
+        System.out.printf("%-16s: %6.1f bytes/event%n", "json", (double) jsonBytes / count);
+        System.out.printf("%-16s: %6.1f bytes/event (%.0f%% of text, %.0f%% of json)%n", "binary",
+                (double) binaryBytes / count, 100.0 * binaryBytes / textBytes, 100.0 * binaryBytes / jsonBytes);
+
+        // warm up, then measure.
+        for (int round = 0; round < 3; round++) {
+            boolean report = round == 2;
+            run(report, "text encode", events, texts, (evs, enc) -> {
+                long n = 0;
+                for (GameEvent e : evs) {
+                    n += text.serialize(GameEvent.TOPIC, e).length;
+                }
+                return n;
+            });
+            run(report, "binary encode", events, binaries, (evs, enc) -> {
+                long n = 0;
+                for (GameEvent e : evs) {
+                    n += binary.serialize(GameEvent.TOPIC, e).length;
+                }
+                return n;
+            });
+            run(report, "text decode", events, texts, (evs, enc) -> {
+                long n = 0;
+                for (byte[] b : enc) {
+                    Matcher m = COFFEE.matcher(new String(b, StandardCharsets.UTF_8));
+                    if (m.matches()) {
+                        n += m.group(1).length();
+                    }
+                }
+                return n;
+            });
+            run(report, "binary decode", events, binaries, (evs, enc) -> {
+                long n = 0;
+                for (byte[] b : enc) {
+                    RoomEvent e = EventCodec.decode(b);
+                    n += e.getAttribute(GameEvent.ATTR_USERNAME).length();
+                }
+                return n;
+            });
+        }
+    }
+
+    private static String json(GameEvent e) {
+        JsonObjectBuilder attributes = Json.createObjectBuilder();
+        e.getAttributes().forEach(attributes::add);
+        return Json.createObjectBuilder().add("type", e.getType().getKey()).add("roomId", e.getRoomId())
+                .add("userId", e.getUserId()).add("itemId", e.getItemId()).add("timestamp", e.getTimestamp())
+                .add("attributes", attributes).build().toString();
+    }
+
+    private static void run(boolean report, String name, List<GameEvent> events, List<byte[]> encoded, Pass pass) {
+        long start = System.nanoTime();
+        long check = pass.run(events, encoded);
+        long elapsed = System.nanoTime() - start;
+        if (report) {
+            System.out.printf("%-16s: %10.0f events/s (%d)%n", name, events.size() / (elapsed / 1e9), check);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+import net.wasdev.gameon.room.engine.meta.ExitDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.sample.SampleDataProvider;
+
+/**
+ * Times players walking between rooms, with and without the exit fast path.
+ * A ring of rooms is served by this node, and players walk round it, each
+ * thread standing in for its player's mediator: it sends the go command, and
+ * when the room says where the player went, says goodbye to that room and
+ * hello to the next. Each player walks their own stretch of the ring, so no
+ * room is passivated while someone else is on their way into it. The rig
+ * times each exit from the go command to the first location sent by the next
+ * room, with the fast path off and on, with the rooms already active and
+ * with each passivated before the player heads for it. It also checks every
+ * prepared location is what looking around would have shown.
+ * <p>
+ * Usage: ExitBenchmark [rooms] [players] [moves per player]
+ */
+public class ExitBenchmark {
+
+    // what the sessions of every room were sent, by the thread that caused it.
+    private static final ThreadLocal<List<String>> inbox = ThreadLocal.withInitial(ArrayList::new);
+
+    private static Session session() {
+        RemoteEndpoint.Basic remote = (RemoteEndpoint.Basic) Proxy.newProxyInstance(
+                ExitBenchmark.class.getClassLoader(), new Class<?>[] { RemoteEndpoint.Basic.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendText")) {
+                        inbox.get().add((String) args[0]);
+                    }
+                    return null;
+                });
+        return (Session) Proxy.newProxyInstance(ExitBenchmark.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getBasicRemote":
+                            return remote;
+                        case "getId":
+                            return "bench";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "bench session";
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static String roomId(int i) {
+        return "ExitRoom" + i;
+    }
+
+    private static List<RoomEndpoints.Hosted> openRooms(int rooms, int players) {
+        RoomEndpoints endpoints = RoomEndpoints.getEndpoints();
+        List<RoomEndpoints.Hosted> hosted = new ArrayList<RoomEndpoints.Hosted>();
+        for (int i = 0; i < rooms; i++) {
+            ItemDesc[] items = new ItemDesc[6];
+            for (int j = 0; j < items.length; j++) {
+                items[j] = new ItemDesc("Thing" + j, "A thing for benchmarks.", j % 2 == 0);
+            }
+            RoomDesc desc = new RoomDesc(roomId(i), "Exit Room " + i, "A room on the ring.", items,
+                    new DoorDesc[] {});
+            Room room = new Room(desc, SampleDataProvider.globalCommands);
+            RoomEndpoints.Hosted h = endpoints.open(new RoomRegistrationHandler(room, "bench", "secret"));
+            h.getResponseProcessor().addSession(session());
+            hosted.add(h);
+        }
+        int stretch = rooms / players;
+        for (int i = 0; i < rooms; i++) {
+            int first = i - i % stretch;
+            int north = first + (i - first + 1) % stretch;
+            int south = first + (i - first + stretch - 1) % stretch;
+            Map<String, ExitDesc> exits = new HashMap<String, ExitDesc>();
+            exits.put("n", new ExitDesc("n", roomId(north), "Exit Room " + north, "Onwards.", "site-" + north,
+                    null, null));
+            exits.put("s", new ExitDesc("s", roomId(south), "Exit Room " + south, "Backwards.", "site-" + south,
+                    null, null));
+            hosted.get(i).getRoom().setExits(exits);
+        }
+        return hosted;
+    }
+
+    private static class Results {
+        final List<long[]> latencies = new ArrayList<long[]>();
+        final LongAdder checked = new LongAdder();
+        final LongAdder matched = new LongAdder();
+    }
+
+    private static void walk(List<RoomEndpoints.Hosted> hosted, int players, int player, int moves, boolean cold, long[] latency,
+            Results results) {
+        String userId = "player" + player;
+        String user = "{\"" + Constants.USERNAME + "\":\"Player " + player + "\",\"" + Constants.USERID + "\":\""
+                + userId + "\"";
+        String location = "player," + userId + ",{\"type\":\"location\"";
+        int rooms = hosted.size() / players;
+        int first = player * rooms;
+        int at = first;
+        hosted.get(at).getDispatcher().dispatch("roomHello," + roomId(at) + "," + user + "}", "bench");
+        List<String> seen = inbox.get();
+        for (int m = 0; m < moves; m++) {
+            int next = first + (at - first + 1) % rooms;
+            if (cold) {
+                hosted.get(next).getRoom().passivate(0);
+            }
+            seen.clear();
+            long start = System.nanoTime();
+            hosted.get(at).getDispatcher().dispatch(
+                    "room," + roomId(at) + "," + user + ",\"content\":\"/go n\"}", "bench");
+            if (!seen.stream().anyMatch(s -> s.startsWith("playerLocation," + userId + ","))) {
+                throw new IllegalStateException(userId + " did not leave " + roomId(at) + " : " + seen);
+            }
+            hosted.get(at).getDispatcher().dispatch("roomGoodbye," + roomId(at) + "," + user + "}", "bench");
+            hosted.get(next).getDispatcher().dispatch("roomHello," + roomId(next) + "," + user + "}", "bench");
+            String shown = seen.stream().filter(s -> s.startsWith(location)).findFirst().orElse(null);
+            latency[m] = System.nanoTime() - start;
+            if (shown == null) {
+                throw new IllegalStateException(userId + " was not shown " + roomId(next) + " : " + seen);
+            }
+            if (m % 8 == 0) {
+                seen.clear();
+                hosted.get(next).getDispatcher().dispatch(
+                        "room," + roomId(next) + "," + user + ",\"content\":\"/look\"}", "bench");
+                String look = seen.stream().filter(s -> s.startsWith(location)).findFirst().orElse("");
+                results.checked.increment();
+                if (unbookmarked(look).equals(unbookmarked(shown))) {
+                    results.matched.increment();
+                }
+            }
+            at = next;
+        }
+        hosted.get(at).getDispatcher().dispatch("roomGoodbye," + roomId(at) + "," + user + "}", "bench");
+    }
+
+    private static String unbookmarked(String location) {
+        return location.replaceAll(",?\"bookmark\":[0-9]+", "");
+    }
+
+    private static Results run(List<RoomEndpoints.Hosted> hosted, int players, int moves, boolean cold)
+            throws InterruptedException {
+        Results results = new Results();
+        Thread[] threads = new Thread[players];
+        for (int p = 0; p < players; p++) {
+            long[] latency = new long[moves];
+            results.latencies.add(latency);
+            int player = p;
+            threads[p] = new Thread(() -> walk(hosted, players, player, moves, cold, latency, results), "player-" + p);
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // a player to a core, more only measures how long they wait for one.
+        int players = Runtime.getRuntime().availableProcessors();
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 8 * players;
+        players = args.length > 1 ? Integer.parseInt(args[1]) : players;
+        int moves = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        // registration is never started, but the handlers want to know where things are.
+        System.setProperty(Constants.ENV_ROOM_SVC, "ws://localhost:9080/rooms");
+        System.setProperty(Constants.ENV_MAP_SVC, "http://localhost:9080/map/v1/sites");
+        // keep the console quiet, it would be most of what is being timed.
+        Logger.getLogger("net.wasdev.gameon.room").setLevel(Level.WARNING);
+        List<RoomEndpoints.Hosted> hosted = openRooms(rooms, players);
+
+        System.out.printf("%d rooms, %d players, %d moves each%n", rooms, players, moves);
+        // warm up every way first, so the first measured is not also the one that warms up.
+        for (boolean cold : new boolean[] { false, true }) {
+            for (boolean enabled : new boolean[] { false, true }) {
+                ExitFastPath.use(new ExitFastPath(enabled));
+                run(hosted, players, moves / 4, cold);
+            }
+        }
+        for (boolean cold : new boolean[] { false, true }) {
+            for (boolean enabled : new boolean[] { false, true }) {
+                ExitFastPath path = new ExitFastPath(enabled);
+                ExitFastPath.use(path);
+                Results results = run(hosted, players, moves, cold);
+
+                long[] all = results.latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+                double avg = Arrays.stream(all).average().orElse(0);
+                System.out.printf("%-6s %-9s: avg %6.1fus  p50 %6.1fus  p99 %7.1fus  prepared matched look %d/%d%n",
+                        cold ? "cold" : "warm", enabled ? "fast path" : "usual", avg / 1000.0,
+                        all[all.length / 2] / 1000.0, all[(int) (all.length * 0.99)] / 1000.0,
+                        results.matched.sum(), results.checked.sum());
+                System.out.printf("%-16s: %s%n", "", path.getStats());
+            }
+        }
+        System.exit(0);
+    }
+}
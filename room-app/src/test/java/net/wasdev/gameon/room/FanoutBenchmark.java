@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs room fan-out end to end across several nodes in one JVM, with an in
+ * memory stand-in for the Kafka topic, {@link LocalTopic}. Every node has a
+ * session in every room; events are published from all nodes, and the rig
+ * checks each node heard every room's events in the same order and reports
+ * how long after publishing they were delivered, next to delivering straight
+ * to local sessions.
+ * <p>
+ * Usage: FanoutBenchmark [nodes] [rooms] [events per room]
+ */
+public class FanoutBenchmark {
+
+    /**
+     * What one node's sessions heard.
+     */
+    private static class Node {
+        final ConcurrentHashMap<String, List<Long>> heard = new ConcurrentHashMap<String, List<Long>>();
+        final long[] latencies;
+        int count;
+        final CountDownLatch done;
+        RoomFanout fanout;
+
+        Node(int expected) {
+            latencies = new long[expected];
+            done = new CountDownLatch(expected);
+        }
+
+        boolean deliver(String roomId, String frame) {
+            long now = System.nanoTime();
+            int colon = frame.indexOf(':');
+            long seq = Long.parseLong(frame.substring(0, colon));
+            long sent = Long.parseLong(frame.substring(colon + 1));
+            heard.computeIfAbsent(roomId, r -> new ArrayList<Long>()).add(seq);
+            synchronized (this) {
+                latencies[count++] = now - sent;
+            }
+            done.countDown();
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int perRoom = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int total = rooms * perRoom;
+
+        // warm up, then measure.
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+
+            // the baseline, what a room does with fan-out off.
+            Node local = new Node(total);
+            run(rooms, perRoom, nodeCount, (room, frame, publisher) -> local.deliver(room, frame));
+            if (report) {
+                report("local delivery", local);
+            }
+
+            LocalTopic topic = new LocalTopic(16);
+            Node[] nodes = new Node[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                Node node = nodes[i] = new Node(total);
+                node.fanout = new RoomFanout(topic.transport(), node::deliver);
+                node.fanout.open();
+            }
+            long start = System.nanoTime();
+            run(rooms, perRoom, nodeCount, (room, frame, publisher) -> nodes[publisher].fanout.publish(room, frame));
+            for (Node node : nodes) {
+                if (!node.done.await(60, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Timed out waiting for delivery");
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            for (Node node : nodes) {
+                node.fanout.close();
+            }
+            if (!report) {
+                continue;
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                report("fan-out, node " + i, nodes[i]);
+            }
+            System.out.printf("%-20s: %d events to %d nodes in %dms%n", "fan-out", total, nodeCount,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed));
+
+            boolean ordered = true;
+            for (int i = 1; i < nodeCount; i++) {
+                ordered &= nodes[i].heard.equals(nodes[0].heard);
+            }
+            for (List<Long> seqs : nodes[0].heard.values()) {
+                for (int i = 1; i < seqs.size(); i++) {
+                    ordered &= seqs.get(i) > seqs.get(i - 1);
+                }
+            }
+            System.out.println("every node heard every room in the same order: " + ordered);
+            System.out.println("node 0 : " + nodes[0].fanout.getStats());
+        }
+    }
+
+    private interface Publish {
+        void publish(String roomId, String frame, int publisher);
+    }
+
+    /**
+     * Each room is driven by one thread, as commands for a room are, at about
+     * a thousand events a second, with the publishing node rotating so events
+     * come from every node.
+     */
+    private static void run(int rooms, int perRoom, int nodes, Publish publish) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < rooms; r++) {
+            String roomId = "Room" + r;
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < perRoom; i++) {
+                    publish.publish(roomId, i + ":" + System.nanoTime(), i % nodes);
+                    // a busy room, but players don't send everything at once.
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private static void report(String name, Node node) {
+        long[] sorted = Arrays.copyOf(node.latencies, node.count);
+        Arrays.sort(sorted);
+        System.out.printf("%-20s: %d delivered, latency p50 %6dus p99 %6dus max %6dus%n", name, sorted.length,
+                micros(sorted, 0.5), micros(sorted, 0.99), micros(sorted, 1.0));
+    }
+
+    private static long micros(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.min(sorted.length - 1, Math.round(fraction * (sorted.length - 1)));
+        return TimeUnit.NANOSECONDS.toMicros(sorted[i]);
+    }
+}
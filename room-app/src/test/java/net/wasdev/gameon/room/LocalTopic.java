@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Stands in for a partitioned topic, for running room fan-out across several
+ * nodes in one JVM: events for a room always land on the same partition, and
+ * each node reads every partition in order.
+ */
+class LocalTopic {
+    private final Object[] partitions;
+    private final List<BlockingQueue<Object[]>> readers = new CopyOnWriteArrayList<BlockingQueue<Object[]>>();
+    // while set, every send fails as if the broker were away.
+    volatile boolean down;
+
+    LocalTopic(int partitions) {
+        this.partitions = new Object[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Object();
+        }
+    }
+
+    void append(String roomId, byte[] value) {
+        synchronized (partitions[Math.abs(roomId.hashCode() % partitions.length)]) {
+            for (BlockingQueue<Object[]> reader : readers) {
+                reader.add(new Object[] { roomId, value });
+            }
+        }
+    }
+
+    /**
+     * A node's connection to the topic.
+     */
+    RoomFanout.Transport transport() {
+        return new RoomFanout.Transport() {
+            private final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+            private Thread thread;
+
+            @Override
+            public void start(RoomFanout.Receiver receiver) {
+                readers.add(queue);
+                thread = new Thread(() -> {
+                    try {
+                        while (true) {
+                            Object[] record = queue.take();
+                            receiver.received((String) record[0], (byte[]) record[1]);
+                        }
+                    } catch (InterruptedException e) {
+                        // closing.
+                    }
+                }, "local-topic-reader");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            @Override
+            public void send(String roomId, byte[] value, RoomFanout.Completion done) {
+                if (down) {
+                    done.completed(new IllegalStateException("topic down"));
+                    return;
+                }
+                append(roomId, value);
+                done.completed(null);
+            }
+
+            @Override
+            public void close() {
+                readers.remove(queue);
+                thread.interrupt();
+            }
+        };
+    }
+}
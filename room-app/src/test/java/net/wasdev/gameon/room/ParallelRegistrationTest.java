@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.parser.CommandHandler;
+
+public class ParallelRegistrationTest {
+
+    @BeforeClass
+    public static void locations() {
+        System.setProperty(Constants.ENV_ROOM_SVC, "ws://localhost:9080/rooms");
+        System.setProperty(Constants.ENV_MAP_SVC, "http://localhost:9080/map/v1/sites");
+    }
+
+    private static List<RoomRegistrationHandler> handlers(int count) {
+        List<RoomRegistrationHandler> handlers = new ArrayList<RoomRegistrationHandler>();
+        for (int i = 0; i < count; i++) {
+            RoomDesc desc = new RoomDesc("Room" + i, "Room " + i, "A room.", new ItemDesc[0], new DoorDesc[0]);
+            handlers.add(new RoomRegistrationHandler(new Room(desc, Collections.<CommandHandler> emptyList()),
+                    "owner", "secret"));
+        }
+        return handlers;
+    }
+
+    @Test
+    public void runsEveryRoomAtMostParallelismAtATime() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger most = new AtomicInteger();
+        Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        ParallelRegistration parallel = new ParallelRegistration(4);
+
+        ParallelRegistration.Result result = parallel.runAll(handlers(40), handler -> {
+            most.accumulateAndGet(running.incrementAndGet(), Math::max);
+            seen.add(handler.getRoomId());
+            threads.add(Thread.currentThread());
+            Thread.sleep(5);
+            running.decrementAndGet();
+            return true;
+        }, parallel.newResult(40));
+
+        assertEquals(40, result.getRegistered());
+        assertEquals(40, seen.size());
+        assertTrue("ran " + most.get() + " at once", most.get() <= 4);
+        // the caller is one of the four.
+        assertTrue(threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void theCallerRegistersOnItsOwnWithParallelismOne() {
+        Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        ParallelRegistration parallel = new ParallelRegistration(1);
+        ParallelRegistration.Result result = parallel.runAll(handlers(5), handler -> {
+            threads.add(Thread.currentThread());
+            return false;
+        }, parallel.newResult(5));
+
+        assertEquals(5, result.getDeferred());
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+    }
+}
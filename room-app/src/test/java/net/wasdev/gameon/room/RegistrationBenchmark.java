@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.sample.SampleDataProvider;
+
+/**
+ * Registers a batch of rooms against a local stand-in for the map service,
+ * which answers after a fixed latency, and reports how long startup
+ * registration takes and how many requests it makes. Needs a JAX-RS client
+ * implementation on the classpath.
+ * <p>
+ * Usage: RegistrationBenchmark [rooms] [parallelism] [map latency ms]
+ */
+public class RegistrationBenchmark {
+
+    private static final String OWNER = "bench";
+
+    /**
+     * Just enough of the map to register rooms with: query by owner (and
+     * name), get, post and put.
+     */
+    private static class FakeMap {
+        final Map<String, JsonObject> sites = new ConcurrentHashMap<String, JsonObject>();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger ids = new AtomicInteger();
+        // each client port seen is a connection the client had to set up.
+        final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+        final long latency;
+        volatile boolean down;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger peakInFlight = new AtomicInteger();
+        // bumped on every change, the listing's ETag.
+        final AtomicInteger version = new AtomicInteger();
+
+        FakeMap(long latency) {
+            this.latency = latency;
+        }
+
+        void reset() {
+            requests.set(0);
+            connections.clear();
+            peakInFlight.set(0);
+        }
+
+        void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            connections.add(exchange.getRemoteAddress().getPort());
+            peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            if (down) {
+                readFully(exchange.getRequestBody());
+                respond(exchange, 503, null);
+                return;
+            }
+            JsonObject body = null;
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] data = readFully(in);
+                if (data.length > 0) {
+                    body = Json.createReader(new ByteArrayInputStream(data)).readObject();
+                }
+            }
+            String path = exchange.getRequestURI().getPath();
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            switch (exchange.getRequestMethod()) {
+                case "POST":
+                    id = "site" + ids.incrementAndGet();
+                    respond(exchange, 201, store(id, body).toString());
+                    break;
+                case "PUT":
+                    respond(exchange, 200, store(id, body).toString());
+                    break;
+                default:
+                    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                    if (!"sites".equals(id)) {
+                        JsonObject site = sites.get(id);
+                        String etag = site == null ? null : "\"" + Integer.toHexString(site.hashCode()) + "\"";
+                        if (etag != null && etag.equals(ifNoneMatch)) {
+                            respond(exchange, 304, null);
+                            break;
+                        }
+                        if (etag != null) {
+                            exchange.getResponseHeaders().add("ETag", etag);
+                        }
+                        respond(exchange, site == null ? 404 : 200, site == null ? null : site.toString());
+                    } else {
+                        String etag = "\"v" + version.get() + "\"";
+                        if (etag.equals(ifNoneMatch)) {
+                            respond(exchange, 304, null);
+                            break;
+                        }
+                        exchange.getResponseHeaders().add("ETag", etag);
+                        String name = queryParam(exchange, "name");
+                        JsonArrayBuilder found = Json.createArrayBuilder();
+                        int count = 0;
+                        for (JsonObject site : sites.values()) {
+                            if (name == null || name.equals(site.getJsonObject("info").getString("name"))) {
+                                found.add(site);
+                                count++;
+                            }
+                        }
+                        respond(exchange, count == 0 ? 204 : 200, count == 0 ? null : found.build().toString());
+                    }
+            }
+        }
+
+        JsonObject store(String id, JsonObject info) {
+            JsonObject site = Json.createObjectBuilder().add("_id", id).add("owner", OWNER).add("info", info)
+                    .add("exits", Json.createObjectBuilder()).build();
+            sites.put(id, site);
+            version.incrementAndGet();
+            return site;
+        }
+
+        /**
+         * Give a number of sites a new neighbour to the north, as if rooms
+         * had been moved around them.
+         */
+        void moveNeighbours(int count) {
+            int moved = 0;
+            for (Map.Entry<String, JsonObject> e : sites.entrySet()) {
+                if (moved++ == count) {
+                    break;
+                }
+                JsonObject site = e.getValue();
+                JsonObject exits = Json.createObjectBuilder().add("N", Json.createObjectBuilder()
+                        .add("_id", "moved" + version.get()).add("name", "Moved" + moved)
+                        .add("fullName", "Moved Room " + moved).add("door", "A door that was not here before"))
+                        .build();
+                JsonObjectBuilder updated = Json.createObjectBuilder();
+                for (Map.Entry<String, JsonValue> field : site.entrySet()) {
+                    updated.add(field.getKey(), field.getValue());
+                }
+                sites.put(e.getKey(), updated.add("exits", exits).build());
+            }
+            version.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : ParallelRegistration.DEFAULT_PARALLELISM;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+        FakeMap fake = new FakeMap(latency);
+        HttpServer map = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        map.setExecutor(Executors.newCachedThreadPool());
+        map.createContext("/map/v1/sites", fake::handle);
+        map.start();
+
+        System.setProperty(Constants.ENV_MAP_SVC, "http://localhost:" + map.getAddress().getPort() + "/map/v1/sites");
+        System.setProperty(Constants.ENV_ROOM_SVC, "ws://localhost:9080/rooms");
+
+        List<RoomRegistrationHandler> handlers = handlers(rooms, 0);
+        ParallelRegistration parallel = new ParallelRegistration(parallelism);
+        BulkRegistration bulk = new BulkRegistration(OWNER, "secret", parallel);
+
+        run("first start, per room", fake, () -> parallel.registerAll(handlers));
+        fake.sites.clear();
+        run("first start, bulk", fake, () -> bulk.registerAll(handlers));
+        run("restart, per room", fake, () -> parallel.registerAll(handlers));
+        run("restart, bulk", fake, () -> bulk.registerAll(handlers));
+        List<RoomRegistrationHandler> edited = handlers(rooms, Math.max(1, rooms / 100));
+        run("restart with 1% edited, bulk", fake, () -> bulk.registerAll(edited));
+        refresh("exit refresh, bulk", fake, edited, true);
+        refresh("exit refresh, each room", fake, edited, false);
+
+        Path cacheFile = Files.createTempFile("registrations", ".json");
+        Files.delete(cacheFile);
+        run("cache, first start", fake, () -> cached(handlers(rooms, 0), cacheFile, Long.MAX_VALUE, parallel));
+        run("cache, restart", fake, () -> cached(handlers(rooms, 0), cacheFile, Long.MAX_VALUE, parallel));
+        run("cache expired, restart", fake, () -> cached(handlers(rooms, 0), cacheFile, 0, parallel));
+        outage(fake, handlers(rooms, 0), bulk);
+        map.stop(0);
+        run("cache, restart, map down", fake, () -> cached(handlers(rooms, 0), cacheFile, Long.MAX_VALUE, parallel));
+        Files.deleteIfExists(cacheFile);
+
+        System.out.println("map client : " + MapClient.getStats());
+    }
+
+    /**
+     * Start while the map is down, bring it back after a while, and watch the
+     * retry scheduler register everything.
+     */
+    private static void outage(FakeMap fake, List<RoomRegistrationHandler> handlers, BulkRegistration bulk)
+            throws InterruptedException {
+        fake.sites.clear();
+        fake.reset();
+        fake.down = true;
+        RegistrationRetryScheduler retries = RegistrationRetryScheduler.getScheduler();
+        bulk.registerAll(handlers);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(20));
+        int duringOutage = fake.requests.get();
+        System.out.println("outage: after 20s down, " + duringOutage + " requests, " + retries.getStats());
+        fake.reset();
+        fake.down = false;
+        long start = System.nanoTime();
+        while (retries.getQueueDepth() > 0 || fake.sites.size() < handlers.size()) {
+            Thread.sleep(100);
+        }
+        System.out.println("outage: map back, all rooms registered "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms later with " + fake.requests.get()
+                + " requests, peak " + fake.peakInFlight.get() + " in flight");
+    }
+
+    /**
+     * Refresh exits with nothing changed, then again after moving neighbours
+     * of 1% of the rooms.
+     */
+    private static void refresh(String name, FakeMap fake, List<RoomRegistrationHandler> handlers, boolean bulk) {
+        ExitRefresher refresher = new ExitRefresher(OWNER, "secret", handlers, new RegistrationCache(null, 0), bulk);
+        refresher.refresh();
+        String[] passes = { "unchanged", "1% moved" };
+        for (String pass : passes) {
+            if (pass.equals("1% moved")) {
+                fake.moveNeighbours(Math.max(1, handlers.size() / 100));
+            }
+            fake.reset();
+            long start = System.nanoTime();
+            int changed = refresher.refresh();
+            System.out.printf("%-34s: %6dms, %5d requests, %d rooms changed%n", name + ", " + pass,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), fake.requests.get(), changed);
+        }
+    }
+
+    /**
+     * Register as a node with a registration cache does, without bulk queries.
+     */
+    private static ParallelRegistration.Result cached(List<RoomRegistrationHandler> handlers, Path cacheFile,
+            long ttlMillis, ParallelRegistration parallel) {
+        long start = System.nanoTime();
+        LifecycleManager.registerWithMap(OWNER, "secret", handlers, new RegistrationCache(cacheFile, ttlMillis),
+                parallel, false);
+        ParallelRegistration.Result result = parallel.newResult(handlers.size());
+        result.addElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    private interface Registration {
+        ParallelRegistration.Result run();
+    }
+
+    private static void run(String name, FakeMap fake, Registration registration) {
+        fake.reset();
+        ParallelRegistration.Result result = registration.run();
+        System.out.printf("%-34s: %6dms, %5d requests, %3d connections, %d unchanged, %d failed%n", name,
+                result.getElapsedMillis(), fake.requests.get(), fake.connections.size(), result.getUnchanged(),
+                result.getFailures().size());
+    }
+
+    private static List<RoomRegistrationHandler> handlers(int rooms, int edited) {
+        List<RoomRegistrationHandler> handlers = new ArrayList<RoomRegistrationHandler>();
+        for (int i = 0; i < rooms; i++) {
+            String description = i < edited ? "A freshly painted room for benchmarks." : "A room for benchmarks.";
+            RoomDesc desc = new RoomDesc("BenchRoom" + i, "Bench Room " + i, description, new ItemDesc[] {},
+                    new DoorDesc[] {});
+            handlers.add(new RoomRegistrationHandler(new Room(desc, SampleDataProvider.globalCommands), OWNER,
+                    "secret"));
+        }
+        return handlers;
+    }
+
+    private static String queryParam(HttpExchange exchange, String name) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0 && param.substring(0, eq).equals(name)) {
+                    return URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+                }
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            byte[] data = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RoomFanoutTest {
+
+    private static final int NODES = 3;
+    private static final int ROOMS = 8;
+    private static final int PER_ROOM = 200;
+
+    private final LocalTopic topic = new LocalTopic(4);
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    /**
+     * What one node's sessions heard, by room.
+     */
+    private static class Node {
+        final Map<String, List<String>> heard = new ConcurrentHashMap<String, List<String>>();
+        final CountDownLatch done;
+        RoomFanout fanout;
+
+        Node(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        boolean deliver(String roomId, String frame) {
+            heard.computeIfAbsent(roomId, r -> Collections.synchronizedList(new ArrayList<String>())).add(frame);
+            done.countDown();
+            return true;
+        }
+    }
+
+    private void start(int expected) {
+        for (int i = 0; i < NODES; i++) {
+            Node node = new Node(expected);
+            node.fanout = new RoomFanout(topic.transport(), node::deliver);
+            node.fanout.open();
+            nodes.add(node);
+        }
+    }
+
+    @After
+    public void close() {
+        for (Node node : nodes) {
+            node.fanout.close();
+        }
+    }
+
+    private static List<String> frames(int count) {
+        List<String> frames = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            frames.add(String.valueOf(i));
+        }
+        return frames;
+    }
+
+    @Test
+    public void everyNodeHearsEachRoomInTheSameOrder() throws InterruptedException {
+        start(ROOMS * PER_ROOM);
+        // one thread per room, as commands for a room are run, publishing from every node in turn.
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < ROOMS; r++) {
+            String roomId = "Room" + r;
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < PER_ROOM; i++) {
+                    nodes.get(i % NODES).fanout.publish(roomId, String.valueOf(i));
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Node node : nodes) {
+            assertTrue(node.done.await(10, TimeUnit.SECONDS));
+        }
+
+        for (Node node : nodes) {
+            assertEquals(ROOMS, node.heard.size());
+            for (List<String> frames : node.heard.values()) {
+                assertEquals(frames(PER_ROOM), frames);
+            }
+        }
+    }
+
+    @Test
+    public void aFailedPublishIsDeliveredLocally() throws InterruptedException {
+        start(PER_ROOM);
+        topic.down = true;
+        Node publisher = nodes.get(0);
+        for (int i = 0; i < PER_ROOM; i++) {
+            publisher.fanout.publish("Room0", String.valueOf(i));
+        }
+        assertTrue(publisher.done.await(10, TimeUnit.SECONDS));
+
+        // in order, to this node's sessions only.
+        assertEquals(frames(PER_ROOM), publisher.heard.get("Room0"));
+        assertTrue(nodes.get(1).heard.isEmpty());
+        assertTrue(nodes.get(2).heard.isEmpty());
+        assertEquals(0, publisher.fanout.getPublished());
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two looks at room sharding. First it compares how evenly a {@link
+ * ConsistentHashRing} spreads rooms, and how many move when a node joins,
+ * against hashing room ids modulo the number of nodes. Then it runs a real
+ * cluster of separate JVMs sharing a cluster directory: it starts three,
+ * adds a fourth and kills one, checking after each change that every room
+ * ends up served by exactly one node and timing how long that takes.
+ * <p>
+ * Usage: ShardingBenchmark [rooms] [heartbeat millis]
+ */
+public class ShardingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("member")) {
+            member(Paths.get(args[1]), args[2], Integer.parseInt(args[3]), Long.parseLong(args[4]));
+            return;
+        }
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long heartbeat = args.length > 1 ? Long.parseLong(args[1]) : 500;
+        List<String> roomIds = roomIds(rooms);
+
+        System.out.printf("%-8s %-22s %-22s %-22s%n", "nodes", "max/ideal ring", "max/ideal modulo",
+                "moved on join ring/modulo (ideal)");
+        for (int n = 2; n <= 8; n++) {
+            List<String> members = nodes(n);
+            List<String> grown = nodes(n + 1);
+            ConsistentHashRing ring = new ConsistentHashRing(members);
+            ConsistentHashRing grownRing = new ConsistentHashRing(grown);
+            Map<String, Integer> ringCounts = new HashMap<String, Integer>();
+            Map<String, Integer> moduloCounts = new HashMap<String, Integer>();
+            int ringMoved = 0;
+            int moduloMoved = 0;
+            for (String roomId : roomIds) {
+                String owner = ring.ownerOf(roomId);
+                ringCounts.merge(owner, 1, Integer::sum);
+                ringMoved += owner.equals(grownRing.ownerOf(roomId)) ? 0 : 1;
+                int slot = (int) Math.floorMod(ConsistentHashRing.hash(roomId), (long) n);
+                moduloCounts.merge(members.get(slot), 1, Integer::sum);
+                moduloMoved += slot == Math.floorMod(ConsistentHashRing.hash(roomId), (long) (n + 1)) ? 0 : 1;
+            }
+            System.out.printf("%-8d %-22.2f %-22.2f %.1f%% / %.1f%% (%.1f%%)%n", n,
+                    Collections.max(ringCounts.values()) * (double) n / rooms,
+                    Collections.max(moduloCounts.values()) * (double) n / rooms, 100.0 * ringMoved / rooms,
+                    100.0 * moduloMoved / rooms, 100.0 / (n + 1));
+        }
+
+        Path dir = Files.createTempDirectory("room-cluster");
+        Map<String, Process> processes = new LinkedHashMap<String, Process>();
+        try {
+            long start = System.nanoTime();
+            for (String node : nodes(3)) {
+                processes.put(node, launch(dir, node, rooms, heartbeat));
+            }
+            Map<String, String> before = settle(dir, processes.keySet(), roomIds);
+            report("3 nodes started", start, before);
+
+            start = System.nanoTime();
+            processes.put("node-3", launch(dir, "node-3", rooms, heartbeat));
+            Map<String, String> after = settle(dir, processes.keySet(), roomIds);
+            report("node-3 joined", start, after);
+            System.out.printf("%-24s: %d of %d rooms moved, all of them to node-3: %s%n", "", moved(before, after),
+                    rooms, moved(before, after) == count(after, "node-3"));
+
+            start = System.nanoTime();
+            processes.remove("node-0").destroyForcibly().waitFor();
+            Files.deleteIfExists(dir.resolve("node-0.owned"));
+            Map<String, String> survived = settle(dir, processes.keySet(), roomIds);
+            report("node-0 killed", start, survived);
+            System.out.printf("%-24s: %d of %d rooms moved, all of them node-0's: %s%n", "", moved(after, survived),
+                    rooms, moved(after, survived) == count(after, "node-0"));
+        } finally {
+            for (Process p : processes.values()) {
+                p.destroyForcibly();
+            }
+        }
+    }
+
+    private static List<String> roomIds(int rooms) {
+        List<String> roomIds = new ArrayList<String>();
+        for (int i = 0; i < rooms; i++) {
+            roomIds.add("room-" + i);
+        }
+        return roomIds;
+    }
+
+    private static List<String> nodes(int n) {
+        List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            nodes.add("node-" + i);
+        }
+        return nodes;
+    }
+
+    private static Process launch(Path dir, String node, int rooms, long heartbeat) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), ShardingBenchmark.class.getName(), "member",
+                dir.toString(), node, String.valueOf(rooms), String.valueOf(heartbeat));
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(Redirect.to(new File(dir.toFile(), node + ".log")));
+        return pb.start();
+    }
+
+    /**
+     * Wait until every room is served by exactly one of the nodes.
+     *
+     * @return the owner of each room.
+     */
+    private static Map<String, String> settle(Path dir, Set<String> nodes, List<String> roomIds) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            Map<String, String> owners = new HashMap<String, String>();
+            boolean once = true;
+            for (String node : nodes) {
+                Path owned = dir.resolve(node + ".owned");
+                if (!Files.exists(owned)) {
+                    once = false;
+                    continue;
+                }
+                for (String roomId : Files.readAllLines(owned, StandardCharsets.UTF_8)) {
+                    once &= owners.put(roomId, node) == null;
+                }
+            }
+            if (once && owners.keySet().containsAll(roomIds) && owners.size() == roomIds.size()) {
+                return owners;
+            }
+            Thread.sleep(20);
+        }
+        throw new IllegalStateException("Rooms did not settle on one owner each");
+    }
+
+    private static void report(String what, long start, Map<String, String> owners) {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (String node : owners.values()) {
+            counts.merge(node, 1, Integer::sum);
+        }
+        System.out.printf("%-24s: every room served once after %dms, spread %s%n", what,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), counts);
+    }
+
+    private static int moved(Map<String, String> before, Map<String, String> after) {
+        int moved = 0;
+        for (Map.Entry<String, String> e : after.entrySet()) {
+            moved += e.getValue().equals(before.get(e.getKey())) ? 0 : 1;
+        }
+        return moved;
+    }
+
+    private static int count(Map<String, String> owners, String node) {
+        return Collections.frequency(owners.values(), node);
+    }
+
+    /**
+     * One member of the cluster, in its own JVM, writing the rooms it serves
+     * to the cluster directory after each rebalance.
+     */
+    private static void member(Path dir, String node, int rooms, long heartbeat) throws Exception {
+        RoomCluster cluster = new RoomCluster(node, dir, Collections.<String> emptyList(), heartbeat);
+        RoomCluster.join(cluster);
+        Set<String> hosted = ConcurrentHashMap.newKeySet();
+        RoomCluster.Host host = new RoomCluster.Host() {
+            @Override
+            public boolean isHosted(String roomId) {
+                return hosted.contains(roomId);
+            }
+
+            @Override
+            public void host(String roomId) {
+                hosted.add(roomId);
+            }
+
+            @Override
+            public void release(String roomId) {
+                hosted.remove(roomId);
+            }
+        };
+        List<String> roomIds = roomIds(rooms);
+        Path owned = dir.resolve(node + ".owned");
+        Path tmp = dir.resolve(node + ".owned.tmp");
+        while (true) {
+            cluster.rebalance(roomIds, host);
+            Files.write(tmp, new ArrayList<String>(hosted), StandardCharsets.UTF_8);
+            Files.move(tmp, owned, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Thread.sleep(heartbeat);
+        }
+    }
+}
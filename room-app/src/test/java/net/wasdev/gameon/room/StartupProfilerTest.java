@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StartupProfilerTest {
+
+    @Test
+    public void noBudgetIsNeverOver() {
+        assertFalse(StartupProfiler.isOverBudget(0, 60000, 60000));
+        assertFalse(StartupProfiler.isOverBudget(-1, -1, 60000));
+    }
+
+    @Test
+    public void overIfEndpointsOpenedAfterTheBudget() {
+        assertFalse(StartupProfiler.isOverBudget(5000, 5000, 90000));
+        assertTrue(StartupProfiler.isOverBudget(5000, 5001, 5001));
+    }
+
+    @Test
+    public void overIfEndpointsAreStillNotOpenAfterTheBudget() {
+        assertFalse(StartupProfiler.isOverBudget(5000, -1, 4000));
+        assertTrue(StartupProfiler.isOverBudget(5000, -1, 5001));
+    }
+
+    @Test
+    public void milestonesCountOnce() {
+        StartupProfiler.milestone("test");
+        long first = StartupProfiler.getMilestone("test");
+        assertTrue(first >= 0);
+        StartupProfiler.milestone("test");
+        assertEquals(first, StartupProfiler.getMilestone("test"));
+        assertEquals(-1, StartupProfiler.getMilestone("never"));
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.parser.CommandHandler;
+
+public class RoomTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final Supplier<RoomDesc> loader = () -> {
+        loads.incrementAndGet();
+        return definition();
+    };
+
+    private static RoomDesc definition() {
+        return new RoomDesc("RecRoom", "Rec Room", "A room with a view", new ItemDesc[] { new ItemDesc("mug", "A mug") },
+                new DoorDesc[] { new DoorDesc(DoorDesc.Direction.NORTH, "A door") });
+    }
+
+    private Room unloadedRoom() {
+        return new Room(definition(), Collections.<CommandHandler> emptyList(), loader);
+    }
+
+    @Test
+    public void registrationDetailsDoNotLoadTheRoom() {
+        Room room = unloadedRoom();
+        assertEquals("A room with a view", room.getRoomDescription());
+        assertEquals(1, room.getDoors().size());
+        assertEquals(DoorDesc.Direction.NORTH, room.getDoors().iterator().next().direction);
+        assertEquals(0, loads.get());
+        assertFalse(room.isLoaded());
+    }
+
+    @Test
+    public void viewVersionDoesNotLoadTheRoom() {
+        Room room = unloadedRoom();
+        long version = room.getViewVersion();
+        assertEquals(0, loads.get());
+
+        room.getItems();
+        assertEquals(1, loads.get());
+        assertEquals(version, room.getViewVersion());
+    }
+
+    @Test
+    public void viewVersionMovesOnAcrossAnUnload() {
+        Room room = unloadedRoom();
+        room.getItems();
+        long loaded = room.getViewVersion();
+        assertTrue(room.passivate(0));
+        assertFalse(room.isLoaded());
+        // a description built before the unload is not taken as current.
+        assertTrue(room.getViewVersion() != loaded);
+        assertEquals(1, loads.get());
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RoomTimerTest {
+
+    private final RoomTimer timer = new RoomTimer(10, TimeUnit.MILLISECONDS, 64);
+
+    @Test
+    public void runsAnActionAfterItsDelay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(fired::countDown, 50, TimeUnit.MILLISECONDS);
+        assertEquals(1, timer.getPendingCount());
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        // accurate to a tick.
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void runsDelaysBeyondOneTurnOfTheWheel() throws InterruptedException {
+        RoomTimer small = new RoomTimer(5, TimeUnit.MILLISECONDS, 4);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        small.schedule(fired::countDown, 60, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(55));
+    }
+
+    @Test
+    public void aCancelledActionDoesNotRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        long handle = timer.schedule(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        assertTrue(timer.cancel(handle));
+        assertFalse(timer.cancel(handle));
+        CountDownLatch later = new CountDownLatch(1);
+        timer.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void aReusedHandleCannotCancelTheNewTimer() throws InterruptedException {
+        CountDownLatch first = new CountDownLatch(1);
+        long old = timer.schedule(first::countDown, 10, TimeUnit.MILLISECONDS);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        CountDownLatch second = new CountDownLatch(1);
+        timer.schedule(second::countDown, 30, TimeUnit.MILLISECONDS);
+        assertFalse(timer.cancel(old));
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void repeatsUntilCancelled() throws InterruptedException {
+        CountDownLatch three = new CountDownLatch(3);
+        long handle = timer.scheduleRepeating(three::countDown, 10, 10, TimeUnit.MILLISECONDS);
+        assertTrue(three.await(5, TimeUnit.SECONDS));
+        assertTrue(timer.cancel(handle));
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void aSlowActionDoesNotHoldUpAnother() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch quick = new CountDownLatch(1);
+        timer.schedule(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        timer.schedule(quick::countDown, 30, TimeUnit.MILLISECONDS);
+        try {
+            assertTrue(quick.await(2, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void aFailingActionDoesNotStopTheTimer() throws InterruptedException {
+        timer.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 10, TimeUnit.MILLISECONDS);
+        CountDownLatch after = new CountDownLatch(1);
+        timer.schedule(after::countDown, 40, TimeUnit.MILLISECONDS);
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+
+public class DefinitionCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<RoomDefinition> rooms() {
+        RoomDefinition.ItemDefinition mug = new RoomDefinition.ItemDefinition(null, "mug", "A mug.", true, true,
+                "coffee", null, null, null);
+        RoomDefinition.ItemDefinition box = new RoomDefinition.ItemDefinition(null, "box", "A box.", false, false,
+                null, "boxDescription", "boxAccess", Arrays.asList(mug, RoomDefinition.ItemDefinition.reference("key")));
+        RoomDefinition rec = new RoomDefinition("RecRoom", "Rec Room", "A room for relaxing. \u2615",
+                Arrays.asList(new RoomDefinition.Door(DoorDesc.Direction.NORTH, "A door."),
+                        new RoomDefinition.Door(DoorDesc.Direction.DOWN, "A hatch.")),
+                Arrays.asList(box, RoomDefinition.ItemDefinition.reference("cup")));
+        RoomDefinition bare = new RoomDefinition("Bare", "Bare", "Nothing here.",
+                Collections.<RoomDefinition.Door> emptyList(),
+                Collections.<RoomDefinition.ItemDefinition> emptyList());
+        return Arrays.asList(rec, bare);
+    }
+
+    @Test
+    public void roundTrips() {
+        DefinitionCache cache = new DefinitionCache(folder.getRoot().toPath().resolve("rooms.cache"));
+        cache.write(42, rooms());
+        List<RoomDefinition> read = cache.read(42);
+
+        assertEquals(2, read.size());
+        RoomDefinition rec = read.get(0);
+        assertEquals("RecRoom", rec.id);
+        assertEquals("Rec Room", rec.name);
+        assertEquals("A room for relaxing. \u2615", rec.description);
+        assertEquals(2, rec.doors.size());
+        assertEquals(DoorDesc.Direction.NORTH, rec.doors.get(0).direction);
+        assertEquals("A door.", rec.doors.get(0).description);
+        assertEquals(DoorDesc.Direction.DOWN, rec.doors.get(1).direction);
+
+        assertEquals(2, rec.items.size());
+        RoomDefinition.ItemDefinition box = rec.items.get(0);
+        assertTrue(box.isContainer());
+        assertEquals("box", box.name);
+        assertFalse(box.takeable);
+        assertNull(box.useHandler);
+        assertEquals("boxDescription", box.descriptionHandler);
+        assertEquals("boxAccess", box.accessHandler);
+        assertEquals(2, box.items.size());
+        RoomDefinition.ItemDefinition mug = box.items.get(0);
+        assertFalse(mug.isContainer());
+        assertEquals("mug", mug.name);
+        assertEquals("A mug.", mug.description);
+        assertTrue(mug.takeable);
+        assertTrue(mug.clearStateOnDrop);
+        assertEquals("coffee", mug.useHandler);
+        assertEquals("key", box.items.get(1).ref);
+        assertEquals("cup", rec.items.get(1).ref);
+
+        RoomDefinition bare = read.get(1);
+        assertEquals("Bare", bare.id);
+        assertEquals(0, bare.doors.size());
+        assertEquals(0, bare.items.size());
+    }
+
+    @Test
+    public void anotherFingerprintIsStale() {
+        DefinitionCache cache = new DefinitionCache(folder.getRoot().toPath().resolve("rooms.cache"));
+        cache.write(42, rooms());
+        assertNull(cache.read(43));
+    }
+
+    @Test
+    public void noCacheReadsAsNull() {
+        assertNull(new DefinitionCache(folder.getRoot().toPath().resolve("rooms.cache")).read(42));
+    }
+
+    @Test
+    public void aTruncatedCacheIsIgnored() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("rooms.cache");
+        DefinitionCache cache = new DefinitionCache(file);
+        cache.write(42, rooms());
+        byte[] data = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(data, data.length - 5));
+        assertNull(cache.read(42));
+    }
+
+    @Test
+    public void corruptCountsAndLengthsAreIgnored() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("rooms.cache");
+        DefinitionCache cache = new DefinitionCache(file);
+        cache.write(42, rooms());
+        byte[] data = Files.readAllBytes(file);
+        // magic, version and fingerprint, then the room count and the first room's id.
+        int count = 4 + 2 + 8;
+        int idLength = count + 4;
+
+        Files.write(file, withInt(data, count, Integer.MAX_VALUE));
+        assertNull(cache.read(42));
+
+        Files.write(file, withInt(data, idLength, Integer.MAX_VALUE));
+        assertNull(cache.read(42));
+
+        Files.write(file, withInt(data, idLength, -2));
+        assertNull(cache.read(42));
+    }
+
+    @Test
+    public void aBadDirectionIsIgnored() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("rooms.cache");
+        DefinitionCache cache = new DefinitionCache(file);
+        cache.write(42, rooms());
+        byte[] data = Files.readAllBytes(file);
+        byte[] description = "A room for relaxing. \u2615".getBytes(StandardCharsets.UTF_8);
+        // the door count follows the description, then the first door's direction.
+        int direction = indexOf(data, description) + description.length + 4;
+        data[direction] = 0x7F;
+        Files.write(file, data);
+        assertNull(cache.read(42));
+    }
+
+    private static byte[] withInt(byte[] data, int offset, int value) {
+        byte[] copy = data.clone();
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i <= data.length - part.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        throw new AssertionError("not found");
+    }
+}
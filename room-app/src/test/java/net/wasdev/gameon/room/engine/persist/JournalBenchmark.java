@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.wasdev.gameon.room.engine.Room;
+import net.wasdev.gameon.room.engine.meta.ContainerDesc;
+import net.wasdev.gameon.room.engine.meta.DoorDesc;
+import net.wasdev.gameon.room.engine.meta.ItemDesc;
+import net.wasdev.gameon.room.engine.meta.RoomDesc;
+import net.wasdev.gameon.room.engine.meta.StateChanges;
+import net.wasdev.gameon.room.engine.sample.SampleDataProvider;
+
+/**
+ * Compares command throughput with room state held in memory only against
+ * the same commands with the journal on.
+ * <p>
+ * Usage: JournalBenchmark [threads] [commands per thread]
+ */
+public class JournalBenchmark {
+
+    private static class SilentResponseProcessor implements Room.RoomResponseProcessor {
+        @Override
+        public void playerEvent(String senderId, String selfMessage, String othersMessage) {
+        }
+
+        @Override
+        public void roomEvent(String s) {
+        }
+
+        @Override
+        public void locationEvent(String senderId, String roomId, String roomName, String roomDescription,
+                Map<String, String> exits, List<String> objects, List<String> inventory, Map<String, String> commands) {
+        }
+
+        @Override
+        public void exitEvent(String senderId, String exitMessage, String exitID, String exitJson) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        Room[] rooms = new Room[threads];
+        for (int i = 0; i < threads; i++) {
+            ItemDesc pebble = new ItemDesc("Pebble", "A pebble.", true, true);
+            ItemDesc box = new ContainerDesc("Box", "A box.", false, false, new ItemDesc[] {});
+            RoomDesc desc = new RoomDesc("Bench" + i, "Bench", "A room for benchmarks.",
+                    new ItemDesc[] { pebble, box }, new DoorDesc[] {});
+            rooms[i] = new Room(desc, SampleDataProvider.globalCommands);
+            rooms[i].setRoomResponseProcessor(new SilentResponseProcessor());
+            rooms[i].addUserToRoom("bench" + i, "Bench");
+        }
+
+        // warm up, then measure each mode.
+        run(rooms, commands / 5);
+        double memory = run(rooms, commands);
+
+        Path dir = Files.createTempDirectory("journal-bench");
+        MappedJournal journal = new MappedJournal(dir, "bench");
+        journal.start(0);
+        StateChanges.setListener(journal);
+        run(rooms, commands / 5);
+        double journaled = run(rooms, commands);
+        long drainStart = System.nanoTime();
+        StateChanges.setListener(null);
+        journal.close();
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStart);
+
+        System.out.printf("in memory : %,.0f commands/s%n", memory);
+        System.out.printf("journaled : %,.0f commands/s (%.1f%% of in memory), drained in %dms%n", journaled,
+                100 * journaled / memory, drainMillis);
+        System.out.println("journal   : " + journal.getStats());
+    }
+
+    /**
+     * Each thread has its own room, and repeatedly takes and drops the pebble.
+     *
+     * @return commands per second across all threads.
+     */
+    private static double run(Room[] rooms, int commands) throws InterruptedException {
+        Thread[] workers = new Thread[rooms.length];
+        for (int i = 0; i < rooms.length; i++) {
+            Room room = rooms[i];
+            String user = "bench" + i;
+            workers[i] = new Thread(() -> {
+                for (int n = 0; n < commands / 2; n++) {
+                    room.command(user, "take pebble");
+                    room.command(user, "drop pebble");
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) commands * rooms.length * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.wasdev.gameon.room.engine.meta.StateListener;
+
+public class MappedJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Recorder implements StateListener {
+        final List<String> seen = new ArrayList<String>();
+
+        @Override
+        public void itemAddedToRoom(String roomId, String item) {
+            seen.add("room+ " + roomId + " " + item);
+        }
+
+        @Override
+        public void itemRemovedFromRoom(String roomId, String item) {
+            seen.add("room- " + roomId + " " + item);
+        }
+
+        @Override
+        public void itemAddedToContainer(String roomId, String container, String item) {
+            seen.add("container+ " + roomId + " " + container + " " + item);
+        }
+
+        @Override
+        public void itemRemovedFromContainer(String roomId, String container, String item) {
+            seen.add("container- " + roomId + " " + container + " " + item);
+        }
+
+        @Override
+        public void itemStateChanged(String roomId, String item, String state) {
+            seen.add("state " + roomId + " " + item + " " + state);
+        }
+
+        @Override
+        public void roomReset(String roomId) {
+            seen.add("reset " + roomId);
+        }
+    }
+
+    private static void awaitWritten(MappedJournal journal, long seq) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (journal.getLastWrittenSeq() < seq) {
+            assertTrue("journal did not reach " + seq + ": " + journal.getStats(), System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void replaysEveryEntryInOrder() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MappedJournal journal = new MappedJournal(dir, "node");
+        journal.start(0);
+        journal.itemAddedToRoom("RecRoom", "mug");
+        journal.itemRemovedFromRoom("RecRoom", "mug");
+        journal.itemAddedToContainer("RecRoom", "box", "mug");
+        journal.itemRemovedFromContainer("RecRoom", "box", "mug");
+        journal.itemStateChanged("RecRoom", "mug", "full of coffee \u2615");
+        journal.roomReset("RecRoom");
+        journal.close();
+        assertEquals(6, journal.getLastWrittenSeq());
+
+        Recorder replayed = new Recorder();
+        assertEquals(6, new MappedJournal(dir, "node").replay(0, replayed));
+        assertEquals(Arrays.asList("room+ RecRoom mug", "room- RecRoom mug", "container+ RecRoom box mug",
+                "container- RecRoom box mug", "state RecRoom mug full of coffee \u2615", "reset RecRoom"),
+                replayed.seen);
+    }
+
+    @Test
+    public void replaysOnlyAfterTheGivenSequence() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MappedJournal journal = new MappedJournal(dir, "node");
+        journal.start(0);
+        for (int i = 1; i <= 5; i++) {
+            journal.itemAddedToRoom("Room" + i, "item" + i);
+        }
+        journal.close();
+
+        Recorder replayed = new Recorder();
+        assertEquals(5, new MappedJournal(dir, "node").replay(3, replayed));
+        assertEquals(Arrays.asList("room+ Room4 item4", "room+ Room5 item5"), replayed.seen);
+    }
+
+    @Test
+    public void continuesNumberingAfterARestart() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MappedJournal first = new MappedJournal(dir, "node");
+        first.start(0);
+        first.itemAddedToRoom("RecRoom", "mug");
+        first.close();
+
+        MappedJournal second = new MappedJournal(dir, "node");
+        second.start(second.replay(0, new Recorder()));
+        second.itemAddedToRoom("RecRoom", "spoon");
+        second.close();
+        assertEquals(2, second.getLastWrittenSeq());
+
+        Recorder replayed = new Recorder();
+        assertEquals(2, new MappedJournal(dir, "node").replay(0, replayed));
+        assertEquals(Arrays.asList("room+ RecRoom mug", "room+ RecRoom spoon"), replayed.seen);
+    }
+
+    @Test
+    public void stopsAtAFrameThatFailsItsCrc() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MappedJournal journal = new MappedJournal(dir, "node");
+        journal.start(0);
+        journal.itemAddedToRoom("RecRoom", "mug");
+        // wait, so the next entries go in a frame of their own.
+        awaitWritten(journal, 1);
+        journal.itemAddedToRoom("RecRoom", "spoon");
+        journal.itemAddedToRoom("RecRoom", "fork");
+        journal.close();
+        assertEquals(3, journal.getLastWrittenSeq());
+
+        Path segment = journal.segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // segment header: magic, version, first sequence number.
+            long frame = 4 + 2 + 8;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, frame);
+            length.flip();
+            long second = frame + 4 + 4 + length.getInt();
+            // the last byte of the second frame's entries.
+            length.clear();
+            channel.read(length, second);
+            length.flip();
+            long last = second + 4 + 4 + length.getInt() - 1;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, last);
+            b.put(0, (byte) (b.get(0) ^ 0xFF));
+            b.rewind();
+            channel.write(b, last);
+        }
+
+        Recorder replayed = new Recorder();
+        assertEquals(1, new MappedJournal(dir, "node").replay(0, replayed));
+        assertEquals(Arrays.asList("room+ RecRoom mug"), replayed.seen);
+    }
+
+    @Test
+    public void stopsAtAFrameWithAChangedSequenceNumber() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        MappedJournal journal = new MappedJournal(dir, "node");
+        journal.start(0);
+        journal.itemAddedToRoom("RecRoom", "mug");
+        awaitWritten(journal, 1);
+        journal.itemAddedToRoom("RecRoom", "spoon");
+        journal.close();
+        assertEquals(2, journal.getLastWrittenSeq());
+
+        Path segment = journal.segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long frame = 4 + 2 + 8;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, frame);
+            length.flip();
+            long second = frame + 4 + 4 + length.getInt();
+            // renumber the second frame as if it came first, leaving its crc alone.
+            ByteBuffer seq = ByteBuffer.allocate(8);
+            seq.putLong(0, 1);
+            channel.write(seq, second + 4 + 4);
+        }
+
+        Recorder replayed = new Recorder();
+        assertEquals(1, new MappedJournal(dir, "node").replay(0, replayed));
+        assertEquals(Arrays.asList("room+ RecRoom mug"), replayed.seen);
+    }
+
+    @Test
+    public void writesSoonAfterIdling() throws Exception {
+        MappedJournal journal = new MappedJournal(folder.getRoot().toPath(), "node");
+        journal.start(0);
+        journal.itemAddedToRoom("RecRoom", "mug");
+        awaitWritten(journal, 1);
+        // long enough for the writer to park with nothing to do.
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        journal.itemAddedToRoom("RecRoom", "spoon");
+        awaitWritten(journal, 2);
+        journal.close();
+        assertTrue("an idle writer was not woken by an entry",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void keepsTheNewestSegment() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        MappedJournal journal = new MappedJournal(dir, "node");
+        journal.start(0);
+        journal.itemAddedToRoom("RecRoom", "mug");
+        journal.close();
+
+        assertEquals(0, journal.deleteSegmentsThrough(Long.MAX_VALUE));
+        assertEquals(1, journal.segments().size());
+    }
+
+    @Test
+    public void varIntsRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 };
+        for (int v : values) {
+            MappedJournal.putVarInt(buffer, v);
+        }
+        buffer.flip();
+        for (int v : values) {
+            assertEquals(v, MappedJournal.getVarInt(buffer));
+        }
+        assertEquals(0, buffer.remaining());
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.engine.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RoomSnapshot room(String id) {
+        RoomSnapshot room = new RoomSnapshot(id);
+        room.getItems().add("mug");
+        room.getItems().add("spoon");
+        room.getContainers().put("box", Arrays.asList("fork", "knife"));
+        room.getContainers().put("jar", Collections.<String> emptyList());
+        room.getStates().put("mug", "full");
+        return room;
+    }
+
+    @Test
+    public void noSnapshotsReadsAsNull() throws IOException {
+        assertNull(new SnapshotStore(folder.getRoot().toPath(), "node").readLatest());
+    }
+
+    @Test
+    public void readsBackTheNewest() throws IOException {
+        SnapshotStore store = new SnapshotStore(folder.getRoot().toPath(), "node");
+        store.write(5, Arrays.asList(room("First")));
+        store.write(12, Arrays.asList(room("RecRoom"), new RoomSnapshot("Empty")));
+        // another node's snapshots are not ours.
+        new SnapshotStore(folder.getRoot().toPath(), "other").write(99, Arrays.asList(room("Other")));
+
+        SnapshotStore.Snapshot latest = store.readLatest();
+        assertEquals(12, latest.seq);
+        assertEquals(2, latest.rooms.size());
+        RoomSnapshot rec = latest.rooms.get(0);
+        assertEquals("RecRoom", rec.getRoomId());
+        assertEquals(Arrays.asList("mug", "spoon"), rec.getItems());
+        assertEquals(Arrays.asList("fork", "knife"), rec.getContainers().get("box"));
+        assertEquals(Collections.emptyList(), rec.getContainers().get("jar"));
+        assertEquals("full", rec.getStates().get("mug"));
+        RoomSnapshot empty = latest.rooms.get(1);
+        assertEquals("Empty", empty.getRoomId());
+        assertEquals(0, empty.getItems().size());
+        assertEquals(0, empty.getContainers().size());
+        assertEquals(0, empty.getStates().size());
+    }
+
+    @Test
+    public void skipsASnapshotThatFailsItsCrc() throws IOException {
+        SnapshotStore store = new SnapshotStore(folder.getRoot().toPath(), "node");
+        store.write(5, Arrays.asList(room("Older")));
+        Path newest = store.write(12, Arrays.asList(room("Newer")));
+        byte[] data = Files.readAllBytes(newest);
+        data[data.length / 2] ^= 0xFF;
+        Files.write(newest, data);
+
+        SnapshotStore.Snapshot latest = store.readLatest();
+        assertEquals(5, latest.seq);
+        assertEquals("Older", latest.rooms.get(0).getRoomId());
+    }
+
+    @Test
+    public void skipsATruncatedSnapshot() throws IOException {
+        SnapshotStore store = new SnapshotStore(folder.getRoot().toPath(), "node");
+        store.write(5, Arrays.asList(room("Older")));
+        Path newest = store.write(12, Arrays.asList(room("Newer")));
+        byte[] data = Files.readAllBytes(newest);
+        Files.write(newest, Arrays.copyOf(data, data.length - 3));
+
+        assertEquals(5, store.readLatest().seq);
+    }
+
+    @Test
+    public void pruneKeepsTheNewest() throws IOException {
+        SnapshotStore store = new SnapshotStore(folder.getRoot().toPath(), "node");
+        for (long seq : new long[] { 3, 7, 11, 20 }) {
+            store.write(seq, Arrays.asList(room("RecRoom")));
+        }
+        assertEquals(11, store.prune(2));
+        assertEquals(2, store.list().size());
+        assertEquals(20, store.readLatest().seq);
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Measures what windowed aggregation saves the bus. The same stream of
+ * events, from many rooms, items and players, goes through the bus once
+ * sending every event and once sending only a summary per window. A stand-in
+ * for Kafka serializes what it is sent, as the producer would, and the rig
+ * reports records and bytes sent and the CPU the bus's stage thread used,
+ * then checks the summaries account for every event.
+ * <p>
+ * Usage: AggregationBenchmark [events] [window millis]
+ */
+public class AggregationBenchmark {
+
+    private static final int ROOMS = 200;
+    private static final String[] ITEMS = { "Mug", "Coffee Machine", "Lamp", "Fuse", null };
+    private static final int PLAYERS = 5000;
+    private static final int PUBLISHERS = 4;
+
+    /**
+     * Serializes each record as the producer would, and adds up what the
+     * summaries say.
+     */
+    private static class StandInSink implements EventSink {
+        final GameEventSerializer serializer = new GameEventSerializer(GameEventSerializer.Encoding.BINARY);
+        final LongAdder records = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder raw = new LongAdder();
+        final Map<String, Long> counted = new ConcurrentHashMap<String, Long>();
+        volatile long stageThread = -1;
+
+        @Override
+        public void send(GameEvent event, Completion done) {
+            stageThread = Thread.currentThread().getId();
+            records.increment();
+            bytes.add(serializer.serialize(GameEvent.TOPIC, event).length);
+            if (event.getType() == GameEvent.Type.SUMMARY) {
+                for (String row : event.getAttributes().get(GameEvent.ATTR_COUNTS).split(";")) {
+                    String[] f = row.split(",");
+                    counted.merge(f[0] + "/" + f[2], Long.parseLong(f[3]), Long::sum);
+                }
+            } else {
+                raw.increment();
+            }
+            done.completed(null);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        long windowMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        // warm up, then measure.
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            for (EventAggregator.Mode mode : new EventAggregator.Mode[] { EventAggregator.Mode.RAW,
+                    EventAggregator.Mode.SUMMARY }) {
+                StandInSink sink = new StandInSink();
+                EventAggregator aggregator = mode == EventAggregator.Mode.RAW ? null
+                        : new EventAggregator("bench", windowMillis, false);
+                GameEventBus bus = new GameEventBus(events, 1, () -> sink, null, aggregator);
+                Map<String, Long> expected = new ConcurrentHashMap<String, Long>();
+                AtomicLong dropped = new AtomicLong();
+
+                long start = System.nanoTime();
+                List<Thread> publishers = new ArrayList<Thread>();
+                for (int p = 0; p < PUBLISHERS; p++) {
+                    int first = p;
+                    Thread t = new Thread(() -> {
+                        for (int i = first; i < events; i += PUBLISHERS) {
+                            String room = "Room" + (i % ROOMS);
+                            String item = ITEMS[(i / ROOMS) % ITEMS.length];
+                            String user = "user" + (i * 7919 % PLAYERS);
+                            GameEvent e = new GameEvent(GameEvent.Type.COFFEE_MADE, room, user, item,
+                                    System.currentTimeMillis(), null);
+                            while (!bus.publish(e)) {
+                                dropped.incrementAndGet();
+                                Thread.yield();
+                            }
+                            expected.merge(room + "/" + (item == null ? "-" : item), 1L, Long::sum);
+                        }
+                    });
+                    t.start();
+                    publishers.add(t);
+                }
+                for (Thread t : publishers) {
+                    t.join();
+                }
+                if (aggregator == null) {
+                    waitFor(() -> sink.raw.sum() == events);
+                } else {
+                    waitFor(() -> aggregator.getAggregated() == events);
+                    // the last window closes once its time is up.
+                    long summaries = aggregator.getSummaries();
+                    waitFor(() -> aggregator.getSummaries() > summaries && sink.records.sum() == aggregator.getSummaries());
+                }
+                long elapsed = System.nanoTime() - start;
+                long cpu = threads.getThreadCpuTime(sink.stageThread);
+                if (!report) {
+                    continue;
+                }
+                System.out.printf("%-8s: %d events in %dms, %d records (%d bytes) sent, stage cpu %dms, %d retries"
+                        + " on a full bus%n", mode, events, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        sink.records.sum(), sink.bytes.sum(), TimeUnit.NANOSECONDS.toMillis(cpu), dropped.get());
+                if (aggregator != null) {
+                    System.out.printf("%-8s: summaries account for every event per room and item: %s%n", "",
+                            sink.counted.equals(expected));
+                    System.out.printf("%-8s: %s%n", "", aggregator.getStats());
+                }
+            }
+        }
+    }
+
+    private static void waitFor(BooleanSupplier done) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (!done.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<EventOutbox> opened = new ArrayList<EventOutbox>();
+
+    /**
+     * Takes events until told otherwise, answering on the calling thread.
+     */
+    private static class RecordingSink implements EventSink {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> failOnce = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        volatile int takeOnly = Integer.MAX_VALUE;
+
+        @Override
+        public void send(GameEvent event, Completion done) {
+            if (received.size() >= takeOnly || failOnce.remove(event.getCommand())) {
+                done.completed(new IllegalStateException("broker down"));
+            } else {
+                received.add(event.getCommand());
+                done.completed(null);
+            }
+        }
+    }
+
+    @After
+    public void closeOutboxes() {
+        for (EventOutbox outbox : opened) {
+            outbox.close();
+        }
+    }
+
+    private EventOutbox open(long maxBytes, RecordingSink sink) throws IOException {
+        EventOutbox outbox = new EventOutbox(folder.getRoot().toPath(), "node", maxBytes, () -> sink);
+        outbox.open();
+        opened.add(outbox);
+        return outbox;
+    }
+
+    private static List<GameEvent> events(int from, int to, int padding) {
+        List<GameEvent> events = new ArrayList<GameEvent>();
+        char[] pad = new char[padding];
+        Arrays.fill(pad, 'x');
+        for (int i = from; i < to; i++) {
+            Map<String, String> attributes = new LinkedHashMap<String, String>();
+            attributes.put(GameEvent.ATTR_COMMAND, String.valueOf(i));
+            attributes.put("padding", new String(pad));
+            events.add(new GameEvent(GameEvent.Type.COFFEE_MADE, "RecRoom", "user", "mug", i, attributes));
+        }
+        return events;
+    }
+
+    private static List<String> names(int from, int to) {
+        List<String> names = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            names.add(String.valueOf(i));
+        }
+        return names;
+    }
+
+    private static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for " + what, System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void forwardsFromTheAcknowledgedEventAfterReopening() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.takeOnly = 4;
+        EventOutbox first = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        assertEquals(10, first.append(events(0, 10, 0)));
+        waitFor(() -> first.getBacklog() == 6, "the first four to be acknowledged");
+        first.close();
+        assertEquals(names(0, 4), sink.received);
+
+        sink.takeOnly = Integer.MAX_VALUE;
+        EventOutbox second = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        waitFor(() -> second.getBacklog() == 0, "the rest to be forwarded");
+        assertEquals(names(0, 10), sink.received);
+    }
+
+    @Test
+    public void sendsAgainFromTheFirstUnacknowledgedEvent() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.failOnce.add("3");
+        EventOutbox outbox = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        assertEquals(8, outbox.append(events(0, 8, 0)));
+        waitFor(() -> outbox.getBacklog() == 0, "every event to be forwarded");
+        // nothing after the failure went out ahead of it, nor twice.
+        assertEquals(names(0, 8), sink.received);
+    }
+
+    @Test
+    public void deletesSegmentsOnceAcknowledged() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.takeOnly = 0;
+        EventOutbox outbox = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        // about forty of these fill a segment.
+        assertEquals(100, outbox.append(events(0, 100, 100 * 1024)));
+        assertEquals(3, outbox.segments().size());
+
+        sink.takeOnly = Integer.MAX_VALUE;
+        waitFor(() -> outbox.getBacklog() == 0, "every event to be forwarded");
+        waitFor(() -> {
+            try {
+                return outbox.segments().size() == 1;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "acknowledged segments to be deleted");
+        assertEquals(names(0, 100), sink.received);
+    }
+
+    @Test
+    public void refusesEventsAtTheCap() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.takeOnly = 0;
+        // rounds up to the two segment minimum.
+        EventOutbox outbox = open(0, sink);
+        int taken = outbox.append(events(0, 200, 100 * 1024));
+        assertTrue("took " + taken, taken > 40 && taken < 200);
+        assertEquals(200 - taken, outbox.getRefused());
+        assertEquals(2, outbox.segments().size());
+        assertEquals(0, outbox.append(events(200, 201, 100 * 1024)));
+        assertEquals(201 - taken, outbox.getRefused());
+    }
+
+    @Test
+    public void closingTheBusSpoolsWhatItHolds() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.takeOnly = 0;
+        EventOutbox first = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        GameEventBus bus = new GameEventBus(1000, 1, () -> sink, first);
+        for (GameEvent e : events(0, 500, 0)) {
+            assertTrue(bus.publish(e));
+        }
+        bus.close();
+        assertEquals(0, bus.getQueueDepth());
+        assertFalse(bus.publish(events(500, 501, 0).get(0)));
+
+        sink.takeOnly = Integer.MAX_VALUE;
+        EventOutbox second = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        waitFor(() -> second.getBacklog() == 0, "the spooled events to be forwarded");
+        assertEquals(names(0, 500), sink.received);
+    }
+
+    @Test
+    public void checksumCoversTheSequenceNumber() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.takeOnly = 0;
+        EventOutbox first = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        assertEquals(3, first.append(events(0, 3, 0)));
+        first.close();
+
+        // renumber the last record, leaving its event and crc alone.
+        Path segment = first.segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            long position = 4 + 2 + 8;
+            for (int i = 0; i < 2; i++) {
+                length.clear();
+                channel.read(length, position);
+                // the length covers the sequence number and the event, not itself or the crc.
+                position += 4 + 4 + length.getInt(0);
+            }
+            ByteBuffer seq = ByteBuffer.allocate(8);
+            seq.putLong(0, 4);
+            channel.write(seq, position + 4 + 4);
+        }
+
+        EventOutbox second = open(EventOutbox.SEGMENT_SIZE * 4L, sink);
+        assertEquals(2, second.getBacklog());
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class GameEventBusTest {
+
+    /**
+     * Answers on the calling thread, failing each listed event once.
+     */
+    private static class FlakySink implements EventSink {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> failOnce = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        @Override
+        public void send(GameEvent event, Completion done) {
+            String name = event.getRoomId() + ":" + event.getCommand();
+            if (failOnce.remove(name)) {
+                done.completed(new IllegalStateException("not this time"));
+            } else {
+                received.add(name);
+                done.completed(null);
+            }
+        }
+
+        List<String> of(String roomId) {
+            List<String> names = new ArrayList<String>();
+            synchronized (received) {
+                for (String name : received) {
+                    if (name.startsWith(roomId + ":")) {
+                        names.add(name);
+                    }
+                }
+            }
+            return names;
+        }
+    }
+
+    private static GameEvent event(String roomId, int i) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put(GameEvent.ATTR_COMMAND, String.valueOf(i));
+        return new GameEvent(GameEvent.Type.COFFEE_MADE, roomId, "user", "mug", i, attributes);
+    }
+
+    private static List<String> names(String roomId, int from, int to) {
+        List<String> names = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            names.add(roomId + ":" + i);
+        }
+        return names;
+    }
+
+    @Test
+    public void laterEventsOfARoomWaitForItsRetry() throws InterruptedException {
+        FlakySink sink = new FlakySink();
+        sink.failOnce.addAll(Arrays.asList("RecRoom:0", "RecRoom:5"));
+        GameEventBus bus = new GameEventBus(100, 3, () -> sink);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bus.publish(event("RecRoom", i)));
+            assertTrue(bus.publish(event("Hall", i)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (bus.getDelivered() < 20) {
+            assertTrue("Timed out : " + bus.getStats(), System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        assertEquals(names("RecRoom", 0, 10), sink.of("RecRoom"));
+        assertEquals(names("Hall", 0, 10), sink.of("Hall"));
+        // the other room did not wait.
+        assertTrue(sink.received.indexOf("Hall:9") < sink.received.indexOf("RecRoom:0"));
+        assertEquals(0, bus.getQueueDepth());
+        bus.close();
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercises the game event outbox across a broker outage. Events are
+ * published while a stand-in for Kafka is down, the node is "restarted" by
+ * opening a new outbox on the same directory, then the broker comes back.
+ * The rig checks every event arrived in order and reports what publishing
+ * cost the caller, then fills a small outbox to show new events being
+ * refused at the cap.
+ * <p>
+ * Usage: OutboxBenchmark [events]
+ */
+public class OutboxBenchmark {
+
+    /**
+     * Answers from another thread, as Kafka does, failing everything while
+     * down.
+     */
+    private static class StandInSink implements EventSink {
+        final ExecutorService io = Executors.newSingleThreadExecutor();
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile boolean down = true;
+
+        @Override
+        public void send(GameEvent event, Completion done) {
+            boolean failing = down;
+            io.execute(() -> {
+                if (failing) {
+                    done.completed(new IllegalStateException("broker down"));
+                } else {
+                    received.add(Integer.valueOf(event.getCommand()));
+                    done.completed(null);
+                }
+            });
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Path dir = Files.createTempDirectory("outbox");
+        StandInSink sink = new StandInSink();
+
+        EventOutbox first = new EventOutbox(dir, "bench", 256L * 1024 * 1024, () -> sink);
+        first.open();
+        GameEventBus bus = new GameEventBus(events, 1, () -> sink, first);
+        long start = System.nanoTime();
+        for (int i = 0; i < events / 2; i++) {
+            bus.publish(event(i));
+        }
+        long publishNanos = System.nanoTime() - start;
+        waitFor(() -> first.getBacklog() == events / 2, "the first half to be written");
+        first.close();
+        System.out.printf("%-28s: %d events written with the broker down, %.0fns per publish%n", "first run",
+                events / 2, (double) publishNanos / (events / 2));
+
+        EventOutbox second = new EventOutbox(dir, "bench", 256L * 1024 * 1024, () -> sink);
+        second.open();
+        System.out.printf("%-28s: %d events waiting after restart%n", "second run", second.getBacklog());
+        bus = new GameEventBus(events, 1, () -> sink, second);
+        start = System.nanoTime();
+        for (int i = events / 2; i < events; i++) {
+            bus.publish(event(i));
+        }
+        publishNanos = System.nanoTime() - start;
+        System.out.printf("%-28s: %d more events written with the broker down, %.0fns per publish%n",
+                "second run", events / 2, (double) publishNanos / (events / 2));
+        Thread.sleep(500);
+        sink.down = false;
+        start = System.nanoTime();
+        waitFor(() -> sink.received.size() >= events && second.getBacklog() == 0, "every event to be forwarded");
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        second.close();
+
+        boolean inOrder = true;
+        int last = -1;
+        int repeats = 0;
+        for (int n : sink.received) {
+            if (n <= last) {
+                repeats++;
+            } else if (n != last + 1) {
+                inOrder = false;
+            } else {
+                last = n;
+            }
+        }
+        System.out.printf("%-28s: %d events forwarded %dms after the broker was back, including the wait for"
+                + " the next retry%n", "forwarded",
+                sink.received.size(), drainMillis);
+        System.out.println("every event arrived, in order: " + (inOrder && last == events - 1) + ", " + repeats
+                + " sent again");
+        System.out.println("outbox : " + second.getStats());
+        try (java.util.stream.Stream<Path> left = Files.list(dir)) {
+            System.out.println("files left : " + left.count());
+        }
+
+        // an outbox with room for two segments, and the broker down again.
+        sink.down = true;
+        Path small = Files.createTempDirectory("outbox");
+        EventOutbox capped = new EventOutbox(small, "bench", 2 * EventOutbox.SEGMENT_SIZE, () -> sink);
+        capped.open();
+        GameEventBus cappedBus = new GameEventBus(events * 2, 1, () -> sink, capped);
+        for (int i = 0; i < events * 2; i++) {
+            cappedBus.publish(event(i));
+        }
+        waitFor(() -> cappedBus.getQueueDepth() == 0, "the capped outbox to take what it can");
+        capped.close();
+        System.out.println("capped : " + capped.getStats());
+        sink.io.shutdown();
+    }
+
+    private static GameEvent event(int n) {
+        return GameEvent.coffeeMade("RecRoom", "Rec Room", "github:1234", "player", "Mug", String.valueOf(n));
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void waitFor(Condition condition, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while (!condition.met()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Timed out waiting for " + what);
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *******************************************************************************/
+package net.wasdev.gameon.room.events;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import net.wasdev.gameon.events.EventCodec;
+import net.wasdev.gameon.events.SequenceVerifier;
+
+/**
+ * Checks per-room sequencing survives resends. Events from many rooms go
+ * through the bus to a stand-in for a partitioned topic that sometimes loses
+ * the answer to a send it kept, and sometimes fails a send outright, so
+ * events are sent again. The topic is then read back, a partition at a time,
+ * through a {@link SequenceVerifier}, and what it finds is compared with
+ * what the stand-in did: events sent from memory, then through the outbox.
+ * <p>
+ * Usage: SequenceBenchmark [events] [fault percent]
+ */
+public class SequenceBenchmark {
+
+    private static final int ROOMS = 100;
+    private static final int PARTITIONS = 8;
+
+    /**
+     * Answers from another thread, as Kafka does, keeping records keyed by
+     * room on partitions.
+     */
+    private static class StandInTopic implements EventSink {
+        final GameEventSerializer serializer = new GameEventSerializer(GameEventSerializer.Encoding.BINARY);
+        final ExecutorService io = Executors.newSingleThreadExecutor();
+        final List<List<byte[]>> partitions = new ArrayList<List<byte[]>>();
+        final int faultPercent;
+        final LongAdder kept = new LongAdder();
+        final LongAdder lostAnswers = new LongAdder();
+        final LongAdder refused = new LongAdder();
+
+        StandInTopic(int faultPercent) {
+            this.faultPercent = faultPercent;
+            for (int i = 0; i < PARTITIONS; i++) {
+                partitions.add(new ArrayList<byte[]>());
+            }
+        }
+
+        @Override
+        public void send(GameEvent event, Completion done) {
+            byte[] value = serializer.serialize(GameEvent.TOPIC, event);
+            io.execute(() -> {
+                int roll = ThreadLocalRandom.current().nextInt(200);
+                if (roll < faultPercent) {
+                    // kept, but the answer never came back.
+                    append(event.getRoomId(), value);
+                    lostAnswers.increment();
+                    done.completed(new IllegalStateException("request timed out"));
+                } else if (roll < faultPercent * 2) {
+                    refused.increment();
+                    done.completed(new IllegalStateException("not leader for partition"));
+                } else {
+                    append(event.getRoomId(), value);
+                    done.completed(null);
+                }
+            });
+        }
+
+        void append(String roomId, byte[] value) {
+            partitions.get(Math.floorMod(roomId.hashCode(), PARTITIONS)).add(value);
+            kept.increment();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int faultPercent = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        for (boolean outbox : new boolean[] { false, true }) {
+            StandInTopic topic = new StandInTopic(faultPercent);
+            EventOutbox box = null;
+            if (outbox) {
+                box = new EventOutbox(Files.createTempDirectory("sequence"), "bench", 256L * 1024 * 1024,
+                        () -> topic);
+                box.open();
+            }
+            // enough attempts that only a few events are given up on.
+            GameEventBus bus = new GameEventBus(events, 3, () -> topic, box);
+            for (int i = 0; i < events; i++) {
+                bus.publish(GameEvent.coffeeMade("Room" + (i % ROOMS), "Room", "user" + i, "user", "Mug",
+                        String.valueOf(i)));
+            }
+            EventOutbox b = box;
+            waitFor(outbox ? () -> b.getBacklog() == 0 && bus.getQueueDepth() == 0 : () -> bus.getQueueDepth() == 0);
+            topic.io.shutdown();
+            topic.io.awaitTermination(10, TimeUnit.SECONDS);
+            if (box != null) {
+                box.close();
+            }
+
+            SequenceVerifier verifier = new SequenceVerifier();
+            int[] perPartition = new int[PARTITIONS];
+            for (int p = 0; p < PARTITIONS; p++) {
+                for (byte[] value : topic.partitions.get(p)) {
+                    verifier.accept(EventCodec.decode(value));
+                    perPartition[p]++;
+                }
+            }
+            long given = bus.getDropped();
+            System.out.printf("%-8s: %d events, %d kept by the topic, %d answers lost, %d sends failed, %d given up%n",
+                    outbox ? "outbox" : "memory", events, topic.kept.sum(), topic.lostAnswers.sum(),
+                    topic.refused.sum(), given);
+            System.out.printf("%-8s: verifier %s%n", "", verifier.getStats());
+            // an event given up on may still be in the topic, if it was the answer that was lost.
+            System.out.printf("%-8s: missing only where given up: %s, every event kept is accounted for: %s%n", "",
+                    verifier.getMissing() <= given,
+                    topic.kept.sum() - verifier.getDuplicates() == events - verifier.getMissing());
+            System.out.printf("%-8s: records per partition %s%n", "", Arrays.toString(perPartition));
+        }
+    }
+
+    private static void waitFor(BooleanSupplier done) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while (!done.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+}